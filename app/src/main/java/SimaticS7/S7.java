@@ -7,8 +7,11 @@
 package SimaticS7;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.Date;
-import java.util.Calendar;
+import java.util.TimeZone;
 
 /**
  *
@@ -25,6 +28,17 @@ public class S7 {
     public static final int S7AreaDB = 0x84;
     public static final int S7AreaCT = 0x1C;
     public static final int S7AreaTM = 0x1D;   
+    // Word Length
+    public static final int S7WLBit     = 0x01;
+    public static final int S7WLByte    = 0x02;
+    public static final int S7WLChar    = 0x03;
+    public static final int S7WLWord    = 0x04;
+    public static final int S7WLInt     = 0x05;
+    public static final int S7WLDWord   = 0x06;
+    public static final int S7WLDInt    = 0x07;
+    public static final int S7WLReal    = 0x08;
+    public static final int S7WLCounter = 0x1C;
+    public static final int S7WLTimer   = 0x1D;
     // Connection types
     public static final byte PG = 0x01;
     public static final byte OP = 0x02;
@@ -56,10 +70,34 @@ public class S7 {
     public static final int S7CpuStatusUnknown = 0x00;
     public static final int S7CpuStatusRun     = 0x08;
     public static final int S7CpuStatusStop    = 0x04;
+    // Events pushed by the CPU (S7Client.AlarmSubscribe)
+    public static final int S7EvtModeTransition = 0x01;
+    public static final int S7EvtDiagnostic     = 0x02;
+    public static final int S7EvtUser           = 0x04;
+    public static final int S7EvtAlarms         = 0x80;
     // Type Var
     public static final int S7TypeBool = 1;   
     public static final int S7TypeInt = 1;   
     
+    // Returns the size in bytes of one element of the given Word Length
+    public static int DataSizeByte(int WordLength)
+    {
+        switch (WordLength)
+        {
+            case S7WLBit     : return 1;  // S7 sends 1 byte per bit
+            case S7WLByte    : return 1;
+            case S7WLChar    : return 1;
+            case S7WLWord    : return 2;
+            case S7WLDWord   : return 4;
+            case S7WLInt     : return 2;
+            case S7WLDInt    : return 4;
+            case S7WLReal    : return 4;
+            case S7WLCounter : return 2;
+            case S7WLTimer   : return 2;
+            default          : return 0;
+        }
+    }
+    
     // Returns the bit at Pos.Bit 
     public static boolean GetBitAt(byte[] Buffer, int Pos, int Bit)
     {
@@ -129,6 +167,38 @@ public class S7 {
         return Float.intBitsToFloat(IntFloat);
     }
 
+    // Bulk variants : decode Count consecutive values starting at Pos into
+    // Dst[0..Count-1] through a big-endian view of Buffer, with no per-value
+    // allocation. Count values must lie in Buffer.
+
+    // Unsigned 16 bit values
+    public static void GetWordsAt(byte[] Buffer, int Pos, int[] Dst, int Count)
+    {
+        ShortBuffer View = ByteBuffer.wrap(Buffer, Pos, Count*2).asShortBuffer();
+        for (int i = 0; i < Count; i++)
+            Dst[i] = View.get(i) & 0x0FFFF;
+    }
+
+    // Signed 16 bit values
+    public static void GetShortsAt(byte[] Buffer, int Pos, int[] Dst, int Count)
+    {
+        ShortBuffer View = ByteBuffer.wrap(Buffer, Pos, Count*2).asShortBuffer();
+        for (int i = 0; i < Count; i++)
+            Dst[i] = View.get(i);
+    }
+
+    // Signed 32 bit values
+    public static void GetDIntsAt(byte[] Buffer, int Pos, int[] Dst, int Count)
+    {
+        ByteBuffer.wrap(Buffer, Pos, Count*4).asIntBuffer().get(Dst, 0, Count);
+    }
+
+    // 32 bit floating points
+    public static void GetRealsAt(byte[] Buffer, int Pos, float[] Dst, int Count)
+    {
+        ByteBuffer.wrap(Buffer, Pos, Count*4).asFloatBuffer().get(Dst, 0, Count);
+    }
+
     // Returns an ASCII string
     public static String GetStringAt(byte[] Buffer, int Pos, int MaxLen)
     {
@@ -161,26 +231,60 @@ public class S7 {
         return S;
     }
 
+    // Returns the string as GetStringAt (or GetPrintableStringAt, following
+    // Previous) but only builds a new String when its bytes changed since
+    // the last call with Previous
+    public static String GetStringAt(byte[] Buffer, int Pos, int MaxLen, S7String Previous)
+    {
+        Previous.Update(Buffer, Pos, MaxLen);
+        return Previous.Value();
+    }
+
+    // DATE_AND_TIME read in the local time zone, milliseconds included
     public static Date GetDateAt(byte[] Buffer, int Pos)
     {
-        int Year, Month, Day, Hour, Min, Sec;
-        Calendar S7Date = Calendar.getInstance();
+        return new Date(GetDateMillisAt(Buffer, Pos));
+    }
+
+    // DATE_AND_TIME as milliseconds since the epoch, the CPU clock being
+    // read in the local time zone as by GetDateAt. TimeZone.getDefault()
+    // returns a copy: pollers pass their zone to allocate nothing.
+    public static long GetDateMillisAt(byte[] Buffer, int Pos)
+    {
+        return GetDateMillisAt(Buffer, Pos, TimeZone.getDefault());
+    }
 
-        Year = S7.BCDtoByte(Buffer[Pos]);
+    // DATE_AND_TIME as milliseconds since the epoch, the CPU clock being
+    // read in Zone (UTC if null). Nothing is allocated.
+    public static long GetDateMillisAt(byte[] Buffer, int Pos, TimeZone Zone)
+    {
+        int Year = BCDtoByte(Buffer[Pos]);
         if (Year<90)
             Year+=2000;
         else
             Year+=1900;
 
-        Month=S7.BCDtoByte(Buffer[Pos+1])-1;
-        Day  =S7.BCDtoByte(Buffer[Pos+2]);
-        Hour =S7.BCDtoByte(Buffer[Pos+3]);
-        Min  =S7.BCDtoByte(Buffer[Pos+4]);
-        Sec  =S7.BCDtoByte(Buffer[Pos+5]);
+        long Millis = DaysFromCivil(Year, BCDtoByte(Buffer[Pos+1]), BCDtoByte(Buffer[Pos+2]));
+        Millis = Millis*24 + BCDtoByte(Buffer[Pos+3]);
+        Millis = Millis*60 + BCDtoByte(Buffer[Pos+4]);
+        Millis = Millis*60 + BCDtoByte(Buffer[Pos+5]);
+        // Milliseconds : 2 BCD digits, then the high nibble of the weekday byte
+        Millis = Millis*1000 + BCDtoByte(Buffer[Pos+6])*10 + ((Buffer[Pos+7] >> 4) & 0x0F);
 
-        S7Date.set(Year, Month, Day, Hour, Min, Sec);                   
-        
-        return S7Date.getTime();
+        if (Zone!=null)
+            Millis-=Zone.getOffset(Millis-Zone.getRawOffset());
+        return Millis;
+    }
+
+    // Days since 1970-01-01 of a gregorian date (Month 1..12)
+    private static long DaysFromCivil(int Year, int Month, int Day)
+    {
+        if (Month<=2) Year--;
+        int Era = (Year>=0 ? Year : Year-399) / 400;
+        int YearOfEra = Year - Era*400;
+        int DayOfYear = (153*(Month + (Month>2 ? -3 : 9)) + 2)/5 + Day-1;
+        int DayOfEra = YearOfEra*365 + YearOfEra/4 - YearOfEra/100 + DayOfYear;
+        return (long) Era*146097 + DayOfEra - 719468;
     }
         
     public static void SetBitAt(byte[] Buffer, int Pos, int Bit, boolean Value)
@@ -233,36 +337,330 @@ public class S7 {
         SetDIntAt(Buffer, Pos, DInt);
     }
    
-    public static void SetDateAt(byte[] Buffer, int Pos, Date DateTime)
-    {        
-        int Year, Month, Day, Hour, Min, Sec, Dow;
-        Calendar S7Date = Calendar.getInstance();
-        S7Date.setTime(DateTime);
-        
-        Year  = S7Date.get(Calendar.YEAR);
-        Month = S7Date.get(Calendar.MONTH)+1;
-        Day   = S7Date.get(Calendar.DAY_OF_MONTH);
-        Hour  = S7Date.get(Calendar.HOUR_OF_DAY);
-        Min   = S7Date.get(Calendar.MINUTE);
-        Sec   = S7Date.get(Calendar.SECOND);
-        Dow   = S7Date.get(Calendar.DAY_OF_WEEK);
-        
-        if (Year>1999)
-            Year-=2000;
-        
-        Buffer[Pos]  =ByteToBCD(Year);
+    // Bulk variants : encode Src[0..Count-1] as consecutive values starting
+    // at Pos
+
+    public static void SetWordsAt(byte[] Buffer, int Pos, int[] Src, int Count)
+    {
+        ShortBuffer View = ByteBuffer.wrap(Buffer, Pos, Count*2).asShortBuffer();
+        for (int i = 0; i < Count; i++)
+            View.put(i, (short) Src[i]);
+    }
+
+    public static void SetShortsAt(byte[] Buffer, int Pos, int[] Src, int Count)
+    {
+        SetWordsAt(Buffer, Pos, Src, Count);
+    }
+
+    public static void SetDIntsAt(byte[] Buffer, int Pos, int[] Src, int Count)
+    {
+        ByteBuffer.wrap(Buffer, Pos, Count*4).asIntBuffer().put(Src, 0, Count);
+    }
+
+    public static void SetRealsAt(byte[] Buffer, int Pos, float[] Src, int Count)
+    {
+        ByteBuffer.wrap(Buffer, Pos, Count*4).asFloatBuffer().put(Src, 0, Count);
+    }
+
+    // Writes Millis (since the epoch) as a DATE_AND_TIME in Zone (UTC if
+    // null), milliseconds included. Nothing is allocated.
+    public static void SetDateMillisAt(byte[] Buffer, int Pos, long Millis, TimeZone Zone)
+    {
+        if (Zone!=null)
+            Millis+=Zone.getOffset(Millis);
+
+        long Days = Millis / 86400000L;
+        if (Millis % 86400000L < 0) Days--;
+        int Time = (int) (Millis - Days*86400000L);
+        int Dow = (int) (((Days+4) % 7 + 7) % 7) + 1; // 1970-01-01 is a Thursday
+
+        // Civil date from the days since 1970-01-01
+        long Z = Days + 719468;
+        long Era = (Z>=0 ? Z : Z-146096) / 146097;
+        int DayOfEra = (int) (Z - Era*146097);
+        int YearOfEra = (DayOfEra - DayOfEra/1460 + DayOfEra/36524 - DayOfEra/146096) / 365;
+        int DayOfYear = DayOfEra - (365*YearOfEra + YearOfEra/4 - YearOfEra/100);
+        int MP = (5*DayOfYear + 2)/153;
+        int Day = DayOfYear - (153*MP + 2)/5 + 1;
+        int Month = MP<10 ? MP+3 : MP-9;
+        int Year = (int) (YearOfEra + Era*400) + (Month<=2 ? 1 : 0);
+
+        Buffer[Pos]  =ByteToBCD(Year % 100);
         Buffer[Pos+1]=ByteToBCD(Month);
         Buffer[Pos+2]=ByteToBCD(Day);
-        Buffer[Pos+3]=ByteToBCD(Hour);
-        Buffer[Pos+4]=ByteToBCD(Min);
-        Buffer[Pos+5]=ByteToBCD(Sec);
-        Buffer[Pos+6]=0;        
-        Buffer[Pos+7]=ByteToBCD(Dow);        
+        Buffer[Pos+3]=ByteToBCD(Time / 3600000);
+        Buffer[Pos+4]=ByteToBCD((Time / 60000) % 60);
+        Buffer[Pos+5]=ByteToBCD((Time / 1000) % 60);
+        Buffer[Pos+6]=ByteToBCD((Time % 1000) / 10);
+        Buffer[Pos+7]=(byte) (((Time % 10) << 4) | Dow);
+    }
+
+    // Writes DateTime in the local time zone, milliseconds included
+    public static void SetDateAt(byte[] Buffer, int Pos, Date DateTime)
+    {
+        SetDateMillisAt(Buffer, Pos, DateTime.getTime(), TimeZone.getDefault());
+    }
+
+    // Extended types (S7-1200/1500). None of them allocates : dates and
+    // strings are written into holders supplied by the caller.
+
+    // Returns a 64 bit floating point (LREAL)
+    public static double GetLRealAt(byte[] Buffer, int Pos)
+    {
+        return Double.longBitsToDouble(GetLIntAt(Buffer, Pos));
+    }
+
+    // Returns a 64 bit signed value (LINT)
+    public static long GetLIntAt(byte[] Buffer, int Pos)
+    {
+        return ((long) GetDIntAt(Buffer, Pos) << 32) | (GetDIntAt(Buffer, Pos+4) & 0x0FFFFFFFFL);
+    }
+
+    // Returns a 64 bit unsigned value (ULINT, LWORD) as the same 64 bits :
+    // above 2^63-1 the long is negative
+    public static long GetULIntAt(byte[] Buffer, int Pos)
+    {
+        return GetLIntAt(Buffer, Pos);
+    }
+
+    // Returns a TIME as signed milliseconds
+    public static int GetTimeAt(byte[] Buffer, int Pos)
+    {
+        return GetDIntAt(Buffer, Pos);
+    }
+
+    // Returns a TIME_OF_DAY as milliseconds since midnight
+    public static int GetTodAt(byte[] Buffer, int Pos)
+    {
+        return GetDIntAt(Buffer, Pos);
+    }
+
+    // Returns a S5TIME as milliseconds : 3 BCD digits times the time base
+    // (bits 12..13 : 10 ms, 100 ms, 1 s, 10 s)
+    public static int GetS5TimeAt(byte[] Buffer, int Pos)
+    {
+        int Word = GetWordAt(Buffer, Pos);
+        int Value = ((Word >> 8) & 0x0F)*100 + ((Word >> 4) & 0x0F)*10 + (Word & 0x0F);
+        return Value*S5TimeBases[(Word >> 12) & 0x03];
+    }
+
+    private static final int[] S5TimeBases = {10, 100, 1000, 10000};
+
+    // Returns a WCHAR (UTF-16)
+    public static char GetWCharAt(byte[] Buffer, int Pos)
+    {
+        return (char) GetWordAt(Buffer, Pos);
+    }
+
+    // Copies a WSTRING into Dst. The header holds the max and the actual
+    // length (in chars), a corrupted actual length is bounded by the max.
+    public static void GetWStringAt(byte[] Buffer, int Pos, StringBuilder Dst)
+    {
+        int MaxLen = GetWordAt(Buffer, Pos);
+        int Len = Math.min(GetWordAt(Buffer, Pos+2), MaxLen);
+        Dst.setLength(0);
+        for (int c = 0; c < Len; c++)
+            Dst.append((char) GetWordAt(Buffer, Pos+4+c*2));
+    }
+
+    // Fills Dst with a DTL
+    public static void GetDtlAt(byte[] Buffer, int Pos, S7Dtl Dst)
+    {
+        Dst.Year      =GetWordAt(Buffer, Pos);
+        Dst.Month     =Buffer[Pos+2] & 0xFF;
+        Dst.Day       =Buffer[Pos+3] & 0xFF;
+        Dst.Weekday   =Buffer[Pos+4] & 0xFF;
+        Dst.Hour      =Buffer[Pos+5] & 0xFF;
+        Dst.Minute    =Buffer[Pos+6] & 0xFF;
+        Dst.Second    =Buffer[Pos+7] & 0xFF;
+        Dst.Nanosecond=GetDIntAt(Buffer, Pos+8);
+    }
+
+    public static void SetLRealAt(byte[] Buffer, int Pos, double Value)
+    {
+        SetLIntAt(Buffer, Pos, Double.doubleToLongBits(Value));
+    }
+
+    public static void SetLIntAt(byte[] Buffer, int Pos, long Value)
+    {
+        SetDIntAt(Buffer, Pos, (int) (Value >> 32));
+        SetDIntAt(Buffer, Pos+4, (int) Value);
+    }
+
+    public static void SetULIntAt(byte[] Buffer, int Pos, long Value)
+    {
+        SetLIntAt(Buffer, Pos, Value);
+    }
+
+    public static void SetTimeAt(byte[] Buffer, int Pos, int Millis)
+    {
+        SetDIntAt(Buffer, Pos, Millis);
+    }
+
+    public static void SetTodAt(byte[] Buffer, int Pos, int Millis)
+    {
+        SetDIntAt(Buffer, Pos, Millis);
+    }
+
+    // Uses the finest time base that holds Millis, which is truncated to it
+    // and bounded to 0..9990 s (the range of S5TIME)
+    public static void SetS5TimeAt(byte[] Buffer, int Pos, int Millis)
+    {
+        int Base = 0;
+        if (Millis<0) Millis=0;
+        if (Millis>999*S5TimeBases[3]) Millis=999*S5TimeBases[3];
+        while (Millis/S5TimeBases[Base]>999)
+            Base++;
+        int Value = Millis/S5TimeBases[Base];
+        SetWordAt(Buffer, Pos, (Base << 12) | ((Value/100) << 8) | (((Value/10)%10) << 4) | (Value%10));
+    }
+
+    public static void SetWCharAt(byte[] Buffer, int Pos, char Value)
+    {
+        SetWordAt(Buffer, Pos, Value);
+    }
+
+    // Writes a WSTRING declared with MaxLen chars, Value is truncated to it
+    public static void SetWStringAt(byte[] Buffer, int Pos, int MaxLen, CharSequence Value)
+    {
+        int Len = Math.min(Value.length(), MaxLen);
+        SetWordAt(Buffer, Pos, MaxLen);
+        SetWordAt(Buffer, Pos+2, Len);
+        for (int c = 0; c < Len; c++)
+            SetWordAt(Buffer, Pos+4+c*2, Value.charAt(c));
+    }
+
+    // Writes a DTL, the weekday is computed from the date
+    public static void SetDtlAt(byte[] Buffer, int Pos, S7Dtl Value)
+    {
+        SetWordAt(Buffer, Pos, Value.Year);
+        Buffer[Pos+2]=(byte) Value.Month;
+        Buffer[Pos+3]=(byte) Value.Day;
+        Buffer[Pos+4]=(byte) DayOfWeek(Value.Year, Value.Month, Value.Day);
+        Buffer[Pos+5]=(byte) Value.Hour;
+        Buffer[Pos+6]=(byte) Value.Minute;
+        Buffer[Pos+7]=(byte) Value.Second;
+        SetDIntAt(Buffer, Pos+8, Value.Nanosecond);
+    }
+
+    private static final int[] MonthOffsets = {0, 3, 2, 5, 0, 3, 5, 1, 4, 6, 2, 4};
+
+    // Day of the week of a gregorian date, 1 (Sunday)..7 as in DTL, 0 if
+    // the month is invalid
+    public static int DayOfWeek(int Year, int Month, int Day)
+    {
+        if ((Month<1) || (Month>12))
+            return 0;
+        if (Month<3) Year--;
+        return (Year + Year/4 - Year/100 + Year/400 + MonthOffsets[Month-1] + Day) % 7 + 1;
+    }
+
+    // ByteBuffer variants, for heap or direct buffers (see S7Client.ReadArea).
+    // Pos is an absolute index : the position and the limit are left
+    // untouched. A writable heap buffer goes through the byte[] code on its
+    // backing array, which is faster there than getShort/getInt; other
+    // buffers (direct or read-only) are read as single big-endian loads
+    // whatever the order of the buffer.
+
+    private static boolean Swapped(ByteBuffer Buffer)
+    {
+        return Buffer.order()!=ByteOrder.BIG_ENDIAN;
+    }
+
+    // Index into the backing array of Size bytes at Pos, checked against the
+    // limit as getShort/getInt do
+    private static int ArrayPos(ByteBuffer Buffer, int Pos, int Size)
+    {
+        if ((Pos<0) || (Pos>Buffer.limit()-Size))
+            throw new IndexOutOfBoundsException();
+        return Buffer.arrayOffset()+Pos;
+    }
+
+    public static boolean GetBitAt(ByteBuffer Buffer, int Pos, int Bit)
+    {
+        if (Bit<0) Bit=0;
+        if (Bit>7) Bit=7;
+        return (Buffer.get(Pos) & (1 << Bit))!=0;
+    }
+
+    public static int GetWordAt(ByteBuffer Buffer, int Pos)
+    {
+        return GetShortAt(Buffer, Pos) & 0x0FFFF;
+    }
+
+    public static int GetShortAt(ByteBuffer Buffer, int Pos)
+    {
+        if (Buffer.hasArray())
+            return GetShortAt(Buffer.array(), ArrayPos(Buffer, Pos, 2));
+        short Value = Buffer.getShort(Pos);
+        return Swapped(Buffer) ? Short.reverseBytes(Value) : Value;
+    }
+
+    public static long GetDWordAt(ByteBuffer Buffer, int Pos)
+    {
+        return GetDIntAt(Buffer, Pos) & 0x0FFFFFFFFL;
+    }
+
+    public static int GetDIntAt(ByteBuffer Buffer, int Pos)
+    {
+        if (Buffer.hasArray())
+            return GetDIntAt(Buffer.array(), ArrayPos(Buffer, Pos, 4));
+        int Value = Buffer.getInt(Pos);
+        return Swapped(Buffer) ? Integer.reverseBytes(Value) : Value;
+    }
+
+    public static float GetFloatAt(ByteBuffer Buffer, int Pos)
+    {
+        return Float.intBitsToFloat(GetDIntAt(Buffer, Pos));
+    }
+
+    public static void SetBitAt(ByteBuffer Buffer, int Pos, int Bit, boolean Value)
+    {
+        if (Bit<0) Bit=0;
+        if (Bit>7) Bit=7;
+        byte B = Buffer.get(Pos);
+        Buffer.put(Pos, (byte) (Value ? B | (1 << Bit) : B & ~(1 << Bit)));
+    }
+
+    public static void SetWordAt(ByteBuffer Buffer, int Pos, int Value)
+    {
+        SetShortAt(Buffer, Pos, Value);
+    }
+
+    public static void SetShortAt(ByteBuffer Buffer, int Pos, int Value)
+    {
+        if (Buffer.hasArray())
+        {
+            SetShortAt(Buffer.array(), ArrayPos(Buffer, Pos, 2), Value);
+            return;
+        }
+        short Word = (short) Value;
+        Buffer.putShort(Pos, Swapped(Buffer) ? Short.reverseBytes(Word) : Word);
+    }
+
+    public static void SetDWordAt(ByteBuffer Buffer, int Pos, long Value)
+    {
+        SetDIntAt(Buffer, Pos, (int) Value);
+    }
+
+    public static void SetDIntAt(ByteBuffer Buffer, int Pos, int Value)
+    {
+        if (Buffer.hasArray())
+        {
+            SetDIntAt(Buffer.array(), ArrayPos(Buffer, Pos, 4), Value);
+            return;
+        }
+        Buffer.putInt(Pos, Swapped(Buffer) ? Integer.reverseBytes(Value) : Value);
+    }
+
+    public static void SetFloatAt(ByteBuffer Buffer, int Pos, float Value)
+    {
+        SetDIntAt(Buffer, Pos, Float.floatToIntBits(Value));
     }
 
     public static int BCDtoByte(byte B)
     {
-        return ((B >> 4) * 10) + (B & 0x0F);        
+        return (((B >> 4) & 0x0F) * 10) + (B & 0x0F);        
     }
  
     public static byte ByteToBCD(int Value)
@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.util.Date;
+
+/**
+ * An event pushed by the CPU : a new entry of the diagnostic buffer or an
+ * alarm message (ALARM_S, ALARM_8, NOTIFY...) and its acknowledgement.
+ * Fields not carried by the kind of event are left to 0.
+ */
+public class S7Alarm {
+
+    // Kinds of event (CPU functions subfunction)
+    public static final int KindDiagnostic   = 0x03;
+    public static final int KindAlarm8       = 0x05;
+    public static final int KindNotify       = 0x06;
+    public static final int KindAck          = 0x0C;
+    public static final int KindLock         = 0x0D;
+    public static final int KindUnlock       = 0x0E;
+    public static final int KindAlarmSQ      = 0x11;
+    public static final int KindAlarmS       = 0x12;
+    public static final int KindNotify8      = 0x16;
+
+    public int Kind;
+    public int EventId;        // Event ID (diagnostic) or message number (alarm)
+    // Diagnostic buffer entry
+    public int Priority;
+    public int OBNumber;
+    public int DatId;
+    public int Info1;
+    public long Info2;
+    // Alarm message
+    public int EventState;     // Bit 0 : incoming (1) or outgoing (0)
+    public int AckStateGoing;
+    public int AckStateComing;
+    public byte[] Values;      // Associated values as sent (item headers included)
+    // Timestamps
+    public Date Timestamp;     // Raised at (CPU clock, ms resolution)
+    public long ReceivedAt;    // Received at (System.currentTimeMillis())
+
+    public boolean Incoming()
+    {
+        return (EventState & 0x01)!=0;
+    }
+
+    // S7 DATE_AND_TIME (BCD) with its milliseconds
+    protected static Date TimestampAt(byte[] Buffer, int Pos)
+    {
+        return S7.GetDateAt(Buffer, Pos);
+    }
+}
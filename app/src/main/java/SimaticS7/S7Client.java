@@ -13,6 +13,12 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Date;
 
 
@@ -41,18 +47,32 @@ public class S7Client
     public static final int errS7BufferTooSmall    = 0x000C;
     public static final int errS7FunctionError     = 0x000D;
     public static final int errS7InvalidParams     = 0x000E;           
+    public static final int errS7ItemNotAvailable  = 0x000F;
+    public static final int errS7AddressOutOfRange = 0x0010;
+    public static final int errS7InvalidDataType   = 0x0011;
+    public static final int errS7AccessDenied      = 0x0012;
+    public static final int errS7OperationTimeout  = 0x0013;
+    public static final int errS7SinkWrite         = 0x0014;
+    // Transports
+    public static final int TransportStream  = 0; // Socket streams, polled
+    public static final int TransportChannel = 1; // NIO SocketChannel + Selector
     
     // Public fields
     public boolean Connected = false;
     public int LastError = 0;
     public int RecvTimeout = 2000;
+    public int ConnTimeout = 5000;
+    // Budget (ms) of a whole function, all its telegrams included : 0 = none
+    public int OperationTimeout = 0;
     
     // Privates
-    private static final int ISOTCP = 102; // ISOTCP Port
-    private static final int MinPduSize = 16;
-    private static final int DefaultPduSizeRequested = 480;
-    private static final int IsoHSize = 7; // TPKT+COTP Header Size
-    private static final int MaxPduSize = DefaultPduSizeRequested+IsoHSize; 
+    public static final int ISOTCP = 102; // ISOTCP Port
+    static final int MinPduSize = 16;
+    public static final int MinPduSizeRequested = 240;
+    public static final int DefaultPduSizeRequested = 480;
+    public static final int MaxPduSizeRequested = 960; // S7-1500
+    static final int IsoHSize = 7; // TPKT+COTP Header Size
+    static final int MaxPduSize = MaxPduSizeRequested+IsoHSize; 
     
     
     private Socket TCPSocket;
@@ -60,6 +80,12 @@ public class S7Client
     
     private DataInputStream InStream = null;
     private DataOutputStream OutStream = null;
+    
+    private int Transport = TransportStream;
+    private int RemotePort = ISOTCP;
+    private SocketChannel TCPChannel = null;
+    private Selector ChannelSelector = null;
+    private SelectionKey ChannelKey = null;
             
     private String IPAddress;
            
@@ -69,12 +95,66 @@ public class S7Client
     private byte RemoteTSAP_LO;
     private byte LastPDUType;
     
+    // Deadline (System.nanoTime) of the running function
+    private boolean InOperation = false;
+    private long Deadline = 0;
+    private boolean DeadlineHit = false; // A wait was cut to the budget
+    private int _PartialSize = 0;
+
     private short ConnType = S7.PG; 
     private int _PDULength = 0;
+    private int _PDURequested = DefaultPduSizeRequested;
+    
+    // Pipelining : jobs sent before waiting for the replies
+    private static final int MaxJobsWindow = 16;
+    private boolean Pipelined = false;
+    private int _AmQCaller = 0;
+    private int _AmQCallee = 0;
+    private int JobRef = 0;
+    private int JobsPending = 0;
+    private final int[] JobRefs  = new int[MaxJobsWindow];
+    private final int[] JobFirst = new int[MaxJobsWindow];
+    private final int[] JobCount = new int[MaxJobsWindow];
+
+    // Receives the variables pushed by the CPU for a cyclic read job.
+    // It is called on the thread using the client (while it waits for a
+    // reply or into WaitPush()) and must not call the client itself.
+    public interface CyclicListener
+    {
+        void OnCyclicData(int JobId, S7DataItem[] Items, int ItemsCount);
+    }
+
+    private static class CyclicJob
+    {
+        int Id;
+        S7DataItem[] Items;
+        int ItemsCount;
+        CyclicListener Listener;
+    }
+
+    // Cyclic read jobs registered into the CPU, lost with the connection
+    private final ArrayList<CyclicJob> CyclicJobs = new ArrayList<>();
+
+    // Receives the events pushed by the CPU, on the same thread and with
+    // the same restrictions as CyclicListener
+    public interface AlarmListener
+    {
+        void OnAlarm(S7Alarm Alarm);
+    }
+
+    private AlarmListener Alarms = null;
+    private int AlarmEvents = 0;
+
+    // Static SZL lists, may be shared with other clients
+    private S7SzlCache SzlCache = null;
+    private String Module = null;     // Serial number of the module : null until read, "" if unknown
+    private String LastModule = null; // Serial number of the module of the previous connection
+    private S7Szl IdentSZL = null;    // Buffers of the identity functions, allocated once
+    private S7Szl InfoSZL = null;
     
-    // Telegrams
+    // Telegrams (also sent by S7Poller, never modify them)
     // ISO Connection Request telegram (contains also ISO Header and COTP Header)
-    private static final byte ISO_CR[] = {
+    static final byte ISO_CR[] = {
         // TPKT (RFC1006 Header)
         (byte)0x03, // RFC 1006 ID (3) 
         (byte)0x00, // Reserved, always 0
@@ -102,7 +182,7 @@ public class S7Client
     };
     
     // S7 PDU Negotiation Telegram (contains also ISO Header and COTP Header)
-    private static final byte S7_PN[] = {
+    static final byte S7_PN[] = {
         (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x19, 
         (byte)0x02, (byte)0xf0, (byte)0x80, // TPKT + COTP (see above for info)
         (byte)0x32, (byte)0x01, (byte)0x00, (byte)0x00, 
@@ -113,7 +193,7 @@ public class S7Client
 	};
 
     // S7 Read/Write Request Header (contains also ISO Header and COTP Header)
-    private static final byte S7_RW[] = { // 31-35 bytes
+    static final byte S7_RW[] = { // 31-35 bytes
         (byte)0x03,(byte)0x00, 
         (byte)0x00,(byte)0x1f,  // Telegram Length (Data Size + 31 or 35)
         (byte)0x02,(byte)0xf0, (byte)0x80, // COTP (see above for info)
@@ -138,8 +218,57 @@ public class S7Client
         (byte)0x04,             // Transport size
         (byte)0x00,(byte)0x00,  // Data Length * 8 (if not timer or counter) 
     };
-    private static final int Size_RD = 31;
+    static final int Size_RD = 31;
     private static final int Size_WR = 35;
+    static final int Size_RD_Reply = 25; // Reply headers up to the data
+    
+    // Multi variables jobs
+    private static final int MaxVars = 20;    // Max items per job accepted by the CPU
+    private static final int Size_MV_HD = 19; // Multi Read/Write Header (S7_RW first 19 bytes)
+    private static final int Size_MV_IT = 12; // Item spec. size
+    // Transport size in the data section of a reply
+    private static final byte TS_ResBit   = 0x03;
+    private static final byte TS_ResReal  = 0x07;
+    private static final byte TS_ResOctet = 0x09;
+
+    // Cyclic read request (items follow), also used to unsubscribe
+    private static final byte S7_CYC[] = {
+        (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x21, // Telegram Length
+        (byte)0x02, (byte)0xf0, (byte)0x80, (byte)0x32,
+        (byte)0x07, (byte)0x00, (byte)0x00, (byte)0x05,
+        (byte)0x00, (byte)0x00, (byte)0x08,
+        (byte)0x00, (byte)0x08, // Data Length
+        (byte)0x00, (byte)0x01, (byte)0x12,
+        (byte)0x04, (byte)0x11, (byte)0x42, // Request, cyclic services
+        (byte)0x01, // Cyclic transfer (0x04 unsubscribe)
+        (byte)0x00, (byte)0xff, (byte)0x09,
+        (byte)0x00, (byte)0x04, // Length of remaining bytes
+        (byte)0x00, (byte)0x00, // Items count
+        (byte)0x00, // Time base : 0 = 100 ms, 1 = 1 s, 2 = 10 s
+        (byte)0x01  // Interval (time bases)
+    };
+    private static final int Size_CYC = 33;
+    private static final int Size_CYC_Reply = 35; // Reply headers up to the first item
+
+    // Message service request : registers the events pushed by the CPU
+    private static final byte S7_MSG[] = {
+        (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x29,
+        (byte)0x02, (byte)0xf0, (byte)0x80, (byte)0x32,
+        (byte)0x07, (byte)0x00, (byte)0x00, (byte)0x06,
+        (byte)0x00, (byte)0x00, (byte)0x08, (byte)0x00,
+        (byte)0x10, (byte)0x00, (byte)0x01, (byte)0x12,
+        (byte)0x04, (byte)0x11, (byte)0x44, // Request, CPU functions
+        (byte)0x02, // Message service
+        (byte)0x00, (byte)0xff, (byte)0x09, (byte)0x00,
+        (byte)0x0c,
+        (byte)0x00, // Events (29)
+        (byte)0x00,
+        (byte)0x50, (byte)0x4c, (byte)0x43, (byte)0x4d, // Username "PLCMON  "
+        (byte)0x4f, (byte)0x4e, (byte)0x20, (byte)0x20,
+        (byte)0x03, // Alarms type : ALARM_S
+        (byte)0x00
+    };
+    private static final int Size_PUSH_Data = 33; // Pushed packet headers up to the data
 
     // S7 Get Block Info Request Header (contains also ISO Header and COTP Header)
     private static final byte S7_BI[] = {
@@ -156,6 +285,46 @@ public class S7Client
         (byte)0x41 
 	};    
     
+    // S7 Start Upload Request
+    private static final byte S7_UPL_START[] = {
+        (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x23, 
+        (byte)0x02, (byte)0xf0, (byte)0x80, (byte)0x32, 
+        (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x05, 
+        (byte)0x00, (byte)0x00, (byte)0x12, (byte)0x00, 
+        (byte)0x00, 
+        (byte)0x1d, // Start Upload
+        (byte)0x00, (byte)0x00, (byte)0x00, 
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // Upload ID
+        (byte)0x09, (byte)0x5f, (byte)0x30, // File name "_0" +
+        (byte)0x41, // Block Type
+        (byte)0x30, (byte)0x30, (byte)0x30, (byte)0x30, (byte)0x30, // ASCII Block Number
+        (byte)0x41  // Active file system
+    };
+    
+    // S7 Upload Request (next part of the block)
+    private static final byte S7_UPL[] = {
+        (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x19, 
+        (byte)0x02, (byte)0xf0, (byte)0x80, (byte)0x32, 
+        (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x05, 
+        (byte)0x00, (byte)0x00, (byte)0x08, (byte)0x00, 
+        (byte)0x00, 
+        (byte)0x1e, // Upload
+        (byte)0x00, (byte)0x00, (byte)0x00, 
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00  // Upload ID
+    };
+    
+    // S7 End Upload Request
+    private static final byte S7_UPL_END[] = {
+        (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x19, 
+        (byte)0x02, (byte)0xf0, (byte)0x80, (byte)0x32, 
+        (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x05, 
+        (byte)0x00, (byte)0x00, (byte)0x08, (byte)0x00, 
+        (byte)0x00, 
+        (byte)0x1f, // End Upload
+        (byte)0x00, (byte)0x00, (byte)0x00, 
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00  // Upload ID
+    };
+    
     // SZL First telegram request   
     private static final byte S7_SZL_FIRST[] = {
 	(byte)0x03, (byte)0x00, (byte)0x00, (byte)0x21, 
@@ -333,6 +502,18 @@ public class S7Client
                 return "S7 function refused by the CPU.";
             case errS7InvalidParams :
                 return "Invalid parameters supplied to the function.";
+            case errS7ItemNotAvailable :
+                return "Item not available in the CPU.";
+            case errS7AddressOutOfRange :
+                return "Address out of range.";
+            case errS7InvalidDataType :
+                return "Invalid or inconsistent data type.";
+            case errS7AccessDenied :
+                return "Access to the item denied by the CPU.";
+            case errS7OperationTimeout :
+                return "Operation timeout, the time budget is spent.";
+            case errS7SinkWrite :
+                return "Error writing the data into the channel.";
             default : 
                 return "Unknown error : 0x"+Integer.toHexString(Error);
         }
@@ -340,11 +521,13 @@ public class S7Client
     
     private int TCPConnect() 
     {
-        SocketAddress sockaddr = new InetSocketAddress(IPAddress, ISOTCP);
+        if (Transport==TransportChannel)
+            return ChannelConnect();
+        SocketAddress sockaddr = new InetSocketAddress(IPAddress, RemotePort);
         LastError=0;
         try {                       
             TCPSocket = new Socket(); 
-            TCPSocket.connect(sockaddr ,5000);
+            TCPSocket.connect(sockaddr ,TimeLeft(ConnTimeout));
             TCPSocket.setTcpNoDelay(true);
             InStream = new DataInputStream(TCPSocket.getInputStream());
             OutStream = new DataOutputStream(TCPSocket.getOutputStream());           
@@ -355,19 +538,61 @@ public class S7Client
         return LastError;
     }
     
+    private int ChannelConnect()
+    {
+        SocketAddress sockaddr = new InetSocketAddress(IPAddress, RemotePort);
+        LastError=0;
+        try {
+            TCPChannel = SocketChannel.open();
+            TCPChannel.configureBlocking(false);
+            TCPChannel.socket().setTcpNoDelay(true);
+            ChannelSelector = Selector.open();
+            if (TCPChannel.connect(sockaddr))
+                ChannelKey = TCPChannel.register(ChannelSelector, SelectionKey.OP_READ);
+            else
+            {
+                ChannelKey = TCPChannel.register(ChannelSelector, SelectionKey.OP_CONNECT);
+                if ((ChannelSelector.select(TimeLeft(ConnTimeout))==0) || !TCPChannel.finishConnect())
+                    LastError=errTCPConnectionFailed;
+                else
+                    ChannelKey.interestOps(SelectionKey.OP_READ);
+                ChannelSelector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e) {
+            LastError=errTCPConnectionFailed;
+        }
+        if (LastError!=0)
+            ChannelClose();
+        return LastError;
+    }
+    
+    private void ChannelClose()
+    {
+        try {
+            if (ChannelSelector!=null)
+                ChannelSelector.close();
+            if (TCPChannel!=null)
+                TCPChannel.close();
+        } catch (IOException ex) {
+        }
+        ChannelSelector=null;
+        ChannelKey=null;
+        TCPChannel=null;
+    }
+    
     private int WaitForData(int Size, int Timeout) 
     {
-        int cnt = 0;
+        // Monotonic deadline : the sleeps last more than 1 ms each
+        long Expiry = System.nanoTime() + Timeout * 1000000L;
         LastError=0;
-        int SizeAvail;
+        int SizeAvail = 0;
         boolean Expired = false;
         try 
         {
             SizeAvail=InStream.available();
             while ((SizeAvail<Size) && (!Expired) && (LastError==0))
             {
-                
-                cnt++;
                 try {
                     Thread.sleep(1);
                 } 
@@ -375,7 +600,7 @@ public class S7Client
                     LastError=errTCPDataRecvTout;
                 }
                 SizeAvail=InStream.available();              
-                Expired=cnt>Timeout;
+                Expired=(SizeAvail<Size) && (System.nanoTime()-Expiry>=0);
                 // If timeout we clean the buffer
                 if (Expired && (SizeAvail>0) && (LastError==0))
                   InStream.read(PDU, 0, SizeAvail);
@@ -385,7 +610,7 @@ public class S7Client
         {
             LastError=errTCPDataRecvTout;
         }
-        if (cnt>=Timeout)
+        if (Expired)
         {
             LastError=errTCPDataRecvTout;
         }        
@@ -394,8 +619,10 @@ public class S7Client
     
     private int RecvPacket(byte[] Buffer, int Start, int Size)
     {
+        if (Transport==TransportChannel)
+            return ChannelRecv(Buffer, Start, Size, TimeLeft(RecvTimeout));
 	int BytesRead=0;
-        LastError=WaitForData(Size,RecvTimeout);
+        LastError=WaitForData(Size,TimeLeft(RecvTimeout));
 	if (LastError==0)
         {
             try {
@@ -408,10 +635,102 @@ public class S7Client
         }
         return LastError;
     }
+    
+    // Reads exactly Size bytes, sleeping in the selector until they arrive
+    // or Timeout (ms) has elapsed, instead of polling the socket every ms
+    private int ChannelRecv(byte[] Buffer, int Start, int Size, int Timeout)
+    {
+        return ChannelRecv(ByteBuffer.wrap(Buffer, Start, Size), Timeout);
+    }
+    
+    // Fills the remaining bytes of Dst straight from the socket
+    private int ChannelRecv(ByteBuffer Dst, int Timeout)
+    {
+        long Deadline = System.nanoTime() + Timeout * 1000000L;
+        LastError=0;
+        try
+        {
+            while (Dst.hasRemaining() && (LastError==0))
+            {
+                int BytesRead = TCPChannel.read(Dst);
+                if (BytesRead<0)
+                    LastError=errTCPConnectionReset;
+                else if (BytesRead==0)
+                {
+                    long Left = (Deadline - System.nanoTime()) / 1000000L;
+                    if (Left<=0)
+                        LastError=errTCPDataRecvTout;
+                    else
+                    {
+                        ChannelSelector.select(Left);
+                        ChannelSelector.selectedKeys().clear();
+                    }
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            LastError=errTCPDataRecv;
+        }
+        return LastError;
+    }
+
+    // Starts the budget of a function, unless it runs into another one
+    private boolean BeginOperation()
+    {
+        if (InOperation)
+            return false;
+        InOperation=true;
+        Deadline=System.nanoTime() + OperationTimeout * 1000000L;
+        DeadlineHit=false;
+        _PartialSize=0;
+        return true;
+    }
+
+    // Ends the budget. A reply still awaited when it ran out would be read
+    // later as the reply of the next request : the link is dropped.
+    private int EndOperation(boolean Outer)
+    {
+        if (Outer)
+        {
+            if (((LastError==errTCPDataRecvTout) || (LastError==errTCPDataSend)) && DeadlineHit)
+            {
+                Disconnect();
+                LastError=errS7OperationTimeout;
+            }
+            InOperation=false;
+        }
+        return LastError;
+    }
+
+    // Timeout (ms) of one exchange, cut to what is left of the budget
+    private int TimeLeft(int Timeout)
+    {
+        if (!InOperation || (OperationTimeout<=0))
+            return Timeout;
+        long Left = (Deadline - System.nanoTime()) / 1000000L;
+        if (Left<Timeout)
+        {
+            DeadlineHit=true;
+            return (int) Math.max(1, Left);
+        }
+        return Timeout;
+    }
+
+    // True if the budget of the running function is spent
+    private boolean OutOfTime()
+    {
+        return InOperation && (OperationTimeout>0) && (System.nanoTime()-Deadline>=0);
+    }
 
     private void SendPacket(byte[] Buffer, int Len)
     {
         LastError = 0;
+        if (Transport==TransportChannel)
+        {
+            ChannelSend(Buffer, Len);
+            return;
+        }
         try {
             OutStream.write(Buffer,0,Len);
             OutStream.flush();
@@ -419,12 +738,44 @@ public class S7Client
             LastError = errTCPDataSend; 
         }
     }   
+    
+    private void ChannelSend(byte[] Buffer, int Len)
+    {
+        ByteBuffer Src = ByteBuffer.wrap(Buffer, 0, Len);
+        try {
+            while (Src.hasRemaining() && (LastError==0))
+            {
+                if (TCPChannel.write(Src)==0)
+                {
+                    // Socket buffer full : wait until it drains
+                    ChannelKey.interestOps(SelectionKey.OP_WRITE);
+                    if (ChannelSelector.select(TimeLeft(RecvTimeout))==0)
+                        LastError = errTCPDataSend;
+                    ChannelSelector.selectedKeys().clear();
+                    ChannelKey.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (IOException ex) {
+            LastError = errTCPDataSend;
+        }
+    }
+    
     private void SendPacket(byte[] Buffer)
     {
         SendPacket(Buffer,Buffer.length);
     }   
     
-    private int RecvIsoPacket()
+    // Copies a telegram template into the PDU of this instance.
+    // Templates are shared by all the clients and must never be modified :
+    // the variable fields are patched into the PDU before to send it.
+    private void SetupTelegram(byte[] Template)
+    {
+        System.arraycopy(Template, 0, PDU, 0, Template.length);
+    }
+    
+    // Receives the TPKT and COTP headers of the next data packet and
+    // returns its size : the S7 payload is left into the socket
+    private int RecvIsoHeader()
     {
         Boolean Done = false;
         int Size = 0;
@@ -451,8 +802,6 @@ public class S7Client
         {
             RecvPacket(PDU,4, 3); // Skip remaining 3 COTP bytes
             LastPDUType=PDU[5];   // Stores PDU Type, we need it 
-            // Receives the S7 Payload          
-            RecvPacket(PDU, 7, Size-IsoHSize);          
         }
         if (LastError==0)
             return Size;
@@ -460,16 +809,62 @@ public class S7Client
             return 0;
     }
     
+    // Receives the next reply : the packets pushed by the CPU meanwhile
+    // are handed to their listener
+    private int RecvIsoPacket()
+    {
+        int Size;
+        boolean Push;
+        do
+        {
+            Size = RecvIsoHeader();
+            if (LastError==0)
+            {
+                // Receives the S7 Payload
+                RecvPacket(PDU, 7, Size-IsoHSize);
+            }
+            Push = (LastError==0) && IsPush(Size);
+            if (Push)
+                DispatchPush(Size);
+        }
+        while (Push);
+        if (LastError==0)
+            return Size;
+        else
+            return 0;
+    }
+    
+    // Receives the data of a read reply straight into the destination :
+    // the caller's array, the backing array of a heap buffer or, with the
+    // channel transport, a direct buffer. Only a direct buffer over the
+    // stream transport goes through the PDU.
+    private int RecvData(byte[] Data, ByteBuffer Buffer, int Pos, int Size)
+    {
+        if (Buffer==null)
+            return RecvPacket(Data, Pos, Size);
+        if (Buffer.hasArray())
+            return RecvPacket(Buffer.array(), Buffer.arrayOffset()+Pos, Size);
+        ByteBuffer Dst = Buffer.duplicate();
+        Dst.limit(Pos+Size);
+        Dst.position(Pos);
+        if (Transport==TransportChannel)
+            return ChannelRecv(Dst, TimeLeft(RecvTimeout));
+        if (RecvPacket(PDU, Size_RD_Reply, Size)==0)
+            Dst.put(PDU, Size_RD_Reply, Size);
+        return LastError;
+    }
+    
     private int ISOConnect() 
     {
     	int Size;
-        ISO_CR[16]=LocalTSAP_HI;
-        ISO_CR[17]=LocalTSAP_LO;
-        ISO_CR[20]=RemoteTSAP_HI;
-        ISO_CR[21]=RemoteTSAP_LO;
+        SetupTelegram(ISO_CR);
+        PDU[16]=LocalTSAP_HI;
+        PDU[17]=LocalTSAP_LO;
+        PDU[20]=RemoteTSAP_HI;
+        PDU[21]=RemoteTSAP_LO;
         
         // Sends the connection request telegram      
-        SendPacket(ISO_CR);
+        SendPacket(PDU, ISO_CR.length);
         if (LastError==0)
         {            
             // Gets the reply (if any)
@@ -492,9 +887,10 @@ public class S7Client
     {
         int Length;
         // Set PDU Size Requested
-        S7.SetWordAt(S7_PN,23,DefaultPduSizeRequested);            
+        SetupTelegram(S7_PN);
+        S7.SetWordAt(PDU,23,_PDURequested);            
         // Sends the connection request telegram
-        SendPacket(S7_PN);
+        SendPacket(PDU, S7_PN.length);
         if (LastError==0)    
         {
             Length=RecvIsoPacket();
@@ -503,8 +899,12 @@ public class S7Client
                 // check S7 Error
                 if ((Length==27) && (PDU[17]==0) && (PDU[18]==0))  // 20 = size of Negotiate Answer
                 {
-                    // Get PDU Size Negotiated
-                    _PDULength = S7.GetWordAt(PDU,25);
+                    // Get Max AmQ (parallel jobs) and PDU Size Negotiated
+                    _AmQCaller = S7.GetWordAt(PDU,21);
+                    _AmQCallee = S7.GetWordAt(PDU,23);
+                    // The CPU never grants more than requested, but we
+                    // don't want to trust the PDU buffer size to it
+                    _PDULength = Math.min(S7.GetWordAt(PDU,25), _PDURequested);
                     if (_PDULength>0)
                         return 0;
                     else
@@ -521,9 +921,38 @@ public class S7Client
     {
         ConnType=ConnectionType;
     }
+    
+    /**
+     * Selects the transport used by the next Connect().
+     * TransportStream (default) polls the socket stream while waiting for
+     * data, TransportChannel blocks in a Selector and wakes up as soon as
+     * the reply arrives.
+     * @param Value TransportStream or TransportChannel
+     */
+    public void SetTransport(int Value)
+    {
+        if (!Connected)
+            Transport=Value;
+    }
+    
+    public int Transport()
+    {
+        return Transport;
+    }
+
+    /**
+     * Sets the TCP port of the next Connect(), 102 (ISOTCP) by default.
+     * @param Port the remote port, e.g. of a PLC behind a port forwarding
+     */
+    public void SetRemotePort(int Port)
+    {
+        if (!Connected)
+            RemotePort=Port;
+    }
       
     public int Connect() 
     {
+        boolean Outer = BeginOperation();
         LastError=0;
         if (!Connected)
         {
@@ -535,23 +964,34 @@ public class S7Client
                 {
                     LastError=NegotiatePduLength(); // Third stage : S7 PDU negotiation
                 }
+                if ((LastError!=0) && (Transport==TransportChannel))
+                    ChannelClose();
             }	            
         }
         Connected=LastError==0;
-	return LastError;
+	return EndOperation(Outer);
     }
     
     public void Disconnect()
     {
         if (Connected)
         {
-            try {
-                OutStream.close();
-                InStream.close();
-                TCPSocket.close();
-                _PDULength=0;
-            } catch (IOException ex) {            
+            if (Transport==TransportChannel)
+                ChannelClose();
+            else
+            {
+                try {
+                    OutStream.close();
+                    InStream.close();
+                    TCPSocket.close();
+                } catch (IOException ex) {            
+                }
             }
+            _PDULength=0;
+            CyclicJobs.clear();
+            Alarms=null;
+            AlarmEvents=0;
+            Module=null;
             Connected=false;
         }
     }
@@ -568,6 +1008,102 @@ public class S7Client
         return _PDULength;
     }
     
+    /**
+     * Sets the PDU length requested by the next Connect(). The CPU may
+     * grant less : ReadArea, WriteArea and the multi variables functions
+     * always split the jobs according to PDULength(), the negotiated one.
+     * @param Value from MinPduSizeRequested to MaxPduSizeRequested,
+     * DefaultPduSizeRequested (480) by default
+     */
+    public void SetPduSizeRequested(int Value)
+    {
+        if (Value<MinPduSizeRequested)
+            Value=MinPduSizeRequested;
+        if (Value>MaxPduSizeRequested)
+            Value=MaxPduSizeRequested;
+        _PDURequested=Value;
+    }
+    
+    // Bytes read or written from the start by the last ReadArea, WriteArea,
+    // ReadSZL, DBGet or Upload, also when it ran out of time (errS7OperationTimeout)
+    public int PartialSize()
+    {
+        return _PartialSize;
+    }
+
+    public int PduSizeRequested()
+    {
+        return _PDURequested;
+    }
+    
+    /**
+     * Enables the pipelined mode : ReadArea, WriteArea and the multi
+     * variables functions keep up to MaxJobs() jobs in flight, matching
+     * the replies by their PDU reference.
+     * @param Value true to enable, false (default) for one job at time
+     */
+    public void SetPipelined(boolean Value)
+    {
+        Pipelined=Value;
+    }
+    
+    // Parallel jobs accepted by both partners (negotiated Max AmQ)
+    public int MaxJobs()
+    {
+        int Jobs = Math.min(_AmQCaller, _AmQCallee);
+        if (Jobs<1)
+            return 1;
+        return Math.min(Jobs, MaxJobsWindow);
+    }
+    
+    private int JobsWindow()
+    {
+        if (Pipelined)
+            return MaxJobs();
+        return 1;
+    }
+    
+    private void ClearJobs()
+    {
+        for (int c = 0; c < MaxJobsWindow; c++)
+            JobRefs[c]=-1;
+        JobsPending=0;
+    }
+    
+    // Stores a job into a free slot and returns its PDU reference
+    private int PushJob(int First, int Count)
+    {
+        JobRef=(JobRef+1) & 0xFFFF;
+        for (int c = 0; c < MaxJobsWindow; c++)
+        {
+            if (JobRefs[c]<0)
+            {
+                JobRefs[c]=JobRef;
+                JobFirst[c]=First;
+                JobCount[c]=Count;
+                JobsPending++;
+                break;
+            }
+        }
+        return JobRef;
+    }
+    
+    // Returns the slot of the job owning the reply just received, or -1
+    private int PopJob()
+    {
+        int Ref = S7.GetWordAt(PDU,11);
+        for (int c = 0; c < MaxJobsWindow; c++)
+        {
+            if (JobRefs[c]==Ref)
+            {
+                JobRefs[c]=-1;
+                JobsPending--;
+                return c;
+            }
+        }
+        return -1;
+    }
+    
     public void SetConnectionParams(String Address, int LocalTSAP, int RemoteTSAP)
     {
         int LocTSAP = LocalTSAP & 0x0000FFFF;
@@ -580,15 +1116,39 @@ public class S7Client
     }
  
     public int ReadArea(int Area, int DBNumber, int Start, int Amount, byte[] Data)
+    {
+        boolean Outer = BeginOperation();
+        ReadArea(Area, DBNumber, Start, Amount, Data, null, 0);
+        return EndOperation(Outer);
+    }
+    
+    // Reads into a heap or direct ByteBuffer starting at the absolute index
+    // Offset. The position and the limit of the buffer are left untouched.
+    public int ReadArea(int Area, int DBNumber, int Start, int Amount, ByteBuffer Data, int Offset)
+    {
+        int WordSize = ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM)) ? 2 : 1;
+        if ((Data==null) || Data.isReadOnly() || (Offset<0) || (Amount<0) ||
+            (Offset+Amount*WordSize>Data.capacity()))
+            return LastError=errS7InvalidParams;
+        boolean Outer = BeginOperation();
+        ReadArea(Area, DBNumber, Start, Amount, null, Data, Offset);
+        return EndOperation(Outer);
+    }
+    
+    private int ReadArea(int Area, int DBNumber, int Start, int Amount, byte[] Data, ByteBuffer Buffer, int Offset)
     {
 	int Address;
 	int NumElements;
 	int MaxElements;
-	int TotElements;
 	int SizeRequested;
 	int Length;
-	int Offset = 0;
+	int Slot;
+	int Chunks;
+	int Sent = 0;
+	int Failed = 0;
+	int Done = 0;
 	int WordSize = 1;
+	int Window = JobsWindow();
 	     
 	LastError=0;
 		
@@ -597,84 +1157,192 @@ public class S7Client
             WordSize = 2;
 	
         MaxElements=(_PDULength-18) / WordSize; // 18 = Reply telegram header
-            TotElements=Amount;
+        if (MaxElements<1)
+            return LastError=errS7InvalidParams;
+        Chunks=(Amount+MaxElements-1) / MaxElements;
+        ClearJobs();
 	
-        while ((TotElements>0) && (LastError==0))
+        while ((((Sent<Chunks) && (Failed==0)) || (JobsPending>0)) && (LastError==0))
         {
-            NumElements=TotElements;
-            if (NumElements>MaxElements)
-               NumElements=MaxElements;
-
-            SizeRequested = NumElements * WordSize;
+            // Fills the pipe (only one job if not pipelined)
+            while ((Sent<Chunks) && (Failed==0) && (JobsPending<Window) && (LastError==0))
+            {
+                if (OutOfTime())
+                {
+                    Failed = errS7OperationTimeout;
+                    break;
+                }
+                NumElements=Math.min(MaxElements, Amount-Sent*MaxElements);
 
-            // Setup the telegram
-            System.arraycopy(S7_RW, 0, PDU, 0, Size_RD);
-            // Set DB Number
-            PDU[27] = (byte) Area;
-            // Set Area
-            if (Area==S7.S7AreaDB) 
-                S7.SetWordAt(PDU,25,DBNumber);
+                // Setup the telegram
+                System.arraycopy(S7_RW, 0, PDU, 0, Size_RD);
+                // Set DB Number
+                PDU[27] = (byte) Area;
+                // Set Area
+                if (Area==S7.S7AreaDB) 
+                    S7.SetWordAt(PDU,25,DBNumber);
 
-            // Adjusts Start and word length
-            if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM))
-            {
-                Address = Start;
-                if (Area==S7.S7AreaCT)
-                    PDU[22]=S7WLCounter;
+                // Adjusts Start and word length
+                Address = Start+Sent*MaxElements*WordSize;
+                if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM))
+                {
+                    if (Area==S7.S7AreaCT)
+                        PDU[22]=S7WLCounter;
+                    else
+                        PDU[22]=S7WLTimer;
+                }
                 else
-                    PDU[22]=S7WLTimer;
-            }
-            else
-                Address = Start<<3;
+                    Address = Address<<3;
 
-            // Num elements
-            S7.SetWordAt(PDU,23,NumElements);
+                // Num elements
+                S7.SetWordAt(PDU,23,NumElements);
 
-            // Address into the PLC (only 3 bytes)           
-            PDU[30] = (byte) (Address & 0x0FF);
-            Address = Address >> 8;
-            PDU[29] = (byte) (Address & 0x0FF);
-            Address = Address >> 8;
-            PDU[28] = (byte) (Address & 0x0FF);         
-            
-            SendPacket(PDU, Size_RD);
-            if (LastError==0)
+                // Address into the PLC (only 3 bytes)           
+                PDU[30] = (byte) (Address & 0x0FF);
+                Address = Address >> 8;
+                PDU[29] = (byte) (Address & 0x0FF);
+                Address = Address >> 8;
+                PDU[28] = (byte) (Address & 0x0FF);         
+
+                // PDU Reference
+                S7.SetWordAt(PDU,11,PushJob(Sent, NumElements));
+                SendPacket(PDU, Size_RD);
+                Sent++;
+            }
+            if ((LastError==0) && (JobsPending>0))
             {
-                Length=RecvIsoPacket();
+                // Receives the headers into the PDU, the data will follow
+                Length=RecvIsoHeader();
+                if (LastError==0)
+                    RecvPacket(PDU, IsoHSize, Math.min(Length, Size_RD_Reply)-IsoHSize);
+                if ((LastError==0) && IsPush(Length))
+                {
+                    // Not our reply : receives the whole packet and waits again
+                    RecvPacket(PDU, Size_RD_Reply, Length-Size_RD_Reply);
+                    if (LastError==0)
+                        DispatchPush(Length);
+                    continue;
+                }
                 if (LastError==0)
                 {
-                    if (Length>=25)
+                    Slot=PopJob();
+                    SizeRequested = Slot<0 ? 0 : JobCount[Slot] * WordSize;
+                    if ((Slot>=0) && (Length-Size_RD_Reply==SizeRequested) && (PDU[21]==(byte)0xFF))
                     {
-                        if ((Length-25==SizeRequested) && (PDU[21]==(byte)0xFF))
-                        {
-                            System.arraycopy(PDU, 25, Data, Offset, SizeRequested);
-                            Offset+=SizeRequested;
-                        }
-                        else
-                            LastError = errS7DataRead;
+                        RecvData(Data, Buffer, Offset+JobFirst[Slot]*MaxElements*WordSize, SizeRequested);
+                        // Counts the data received without gap from the start
+                        if ((LastError==0) && (JobFirst[Slot]*MaxElements*WordSize==Done))
+                            Done+=SizeRequested;
+                    }
+                    else 
+                    {
+                        // Drains the unexpected payload
+                        if (Length>Size_RD_Reply)
+                            RecvPacket(PDU, Size_RD_Reply, Length-Size_RD_Reply);
+                        if (Slot<0)
+                            LastError = errS7InvalidPDU;
+                        else if (Failed==0)
+                            Failed = Length>=Size_RD_Reply ? errS7DataRead : errS7InvalidPDU;
                     }
-                    else
-                        LastError = errS7InvalidPDU;
                 }
             }
-
-            TotElements -= NumElements;
-            Start += NumElements*WordSize;
         }
+        // The replies of the jobs in flight were drained before to stop
+        if (LastError==0)
+            LastError=Failed;
+        _PartialSize=Done;
         return LastError;
     }
 
     public int WriteArea(int Area, int DBNumber, int Start, int Amount, byte[] Data)
+    {
+        boolean Outer = BeginOperation();
+        WriteChunks(Area, DBNumber, Start, Amount, Data);
+        return EndOperation(Outer);
+    }
+
+    /**
+     * Writes a single bit (S7 transport size BIT) : the CPU changes only
+     * this bit, so there is no read-modify-write of the byte, which would
+     * cost two round trips and race with the PLC program.
+     * @param Area S7AreaDB, S7AreaMK, S7AreaPE or S7AreaPA
+     * @param DBNumber DB Number if Area=S7AreaDB, otherwise ignored
+     * @param Start Offset of the byte
+     * @param Bit Bit of the byte (0..7)
+     * @param Value New value of the bit
+     * @return 
+     */
+    public int WriteBit(int Area, int DBNumber, int Start, int Bit, boolean Value)
+    {
+        int Address;
+        int Length;
+
+        if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM) || (Start<0) || (Bit<0) || (Bit>7))
+            return LastError=errS7InvalidParams;
+        boolean Outer = BeginOperation();
+        LastError=0;
+        _PartialSize=0;
+
+        // Setup the telegram
+        System.arraycopy(S7_RW, 0, PDU, 0, Size_WR);
+        // Whole telegram Size
+        S7.SetWordAt(PDU,2,Size_WR+1);
+        // Data Length
+        S7.SetWordAt(PDU,15,5);
+        // Function
+        PDU[17]= (byte) 0x05;
+        // Transport size and num elements
+        PDU[22]= (byte) S7.S7WLBit;
+        S7.SetWordAt(PDU,23,1);
+        // Set DB Number
+        if (Area==S7.S7AreaDB) 
+            S7.SetWordAt(PDU,25,DBNumber);
+        // Set Area
+        PDU[27] = (byte) Area;
+        // Bit address into the PLC
+        Address = (Start<<3)+Bit;
+        PDU[30] = (byte) (Address & 0x0FF);
+        Address = Address >> 8;
+        PDU[29] = (byte) (Address & 0x0FF);
+        Address = Address >> 8;
+        PDU[28] = (byte) (Address & 0x0FF);
+        // Data : one bit
+        PDU[32] = TS_ResBit;
+        S7.SetWordAt(PDU,33,1);
+        PDU[35] = (byte) (Value ? 0x01 : 0x00);
+
+        SendPacket(PDU, Size_WR+1);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if (LastError==0)
+            {
+                if (Length!=22)
+                    LastError = errS7InvalidPDU;
+                else if ((S7.GetWordAt(PDU,17)!=0) || (PDU[21]!=(byte)0xFF))
+                    LastError = errS7DataWrite;
+                else
+                    _PartialSize=1;
+            }
+        }
+        return EndOperation(Outer);
+    }
+
+    private int WriteChunks(int Area, int DBNumber, int Start, int Amount, byte[] Data)
     {
 	int Address;
 	int NumElements;
 	int MaxElements;
-	int TotElements;
 	int DataSize;
 	int IsoSize;
 	int Length;
-	int Offset = 0;
+	int Slot;
+	int Chunks;
+	int Sent = 0;
+	int Failed = 0;
+	int Done = 0;
 	int WordSize = 1;
+	int Window = JobsWindow();
      
 	LastError=0;
 	
@@ -682,102 +1350,896 @@ public class S7Client
 	if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM))
             WordSize = 2;
 
-        MaxElements=(_PDULength-35) / WordSize; // 18 = Reply telegram header
-	TotElements=Amount;
+        MaxElements=(_PDULength-35) / WordSize; // 35 = Write telegram header
+        if (MaxElements<1)
+            return LastError=errS7InvalidParams;
+        Chunks=(Amount+MaxElements-1) / MaxElements;
+        ClearJobs();
 	
-        while ((TotElements>0) && (LastError==0))
-        {
-            NumElements=TotElements;
-            if (NumElements>MaxElements)
-               NumElements=MaxElements;
-
-            DataSize = NumElements * WordSize;
-            IsoSize  = Size_WR + DataSize;
-
-            // Setup the telegram
-            System.arraycopy(S7_RW, 0, PDU, 0, Size_WR);
-            // Whole telegram Size
-            S7.SetWordAt(PDU,2,IsoSize);
-            // Data Length
-            Length=DataSize+4;
-            S7.SetWordAt(PDU,15,Length);
-            // Function
-            PDU[17]= (byte) 0x05;
-            // Set DB Number
-            PDU[27] = (byte) Area;
-            if (Area==S7.S7AreaDB) 
-                S7.SetWordAt(PDU,25,DBNumber);
-
-            // Adjusts Start and word length
-            if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM))
+        while ((((Sent<Chunks) && (Failed==0)) || (JobsPending>0)) && (LastError==0))
+        {
+            // Fills the pipe (only one job if not pipelined)
+            while ((Sent<Chunks) && (Failed==0) && (JobsPending<Window) && (LastError==0))
             {
-                Address = Start;
-                Length = DataSize;
-                if (Area==S7.S7AreaCT)
-                    PDU[22]=S7WLCounter;
+                if (OutOfTime())
+                {
+                    Failed = errS7OperationTimeout;
+                    break;
+                }
+                NumElements=Math.min(MaxElements, Amount-Sent*MaxElements);
+
+                DataSize = NumElements * WordSize;
+                IsoSize  = Size_WR + DataSize;
+
+                // Setup the telegram
+                System.arraycopy(S7_RW, 0, PDU, 0, Size_WR);
+                // Whole telegram Size
+                S7.SetWordAt(PDU,2,IsoSize);
+                // Data Length
+                Length=DataSize+4;
+                S7.SetWordAt(PDU,15,Length);
+                // Function
+                PDU[17]= (byte) 0x05;
+                // Set DB Number
+                PDU[27] = (byte) Area;
+                if (Area==S7.S7AreaDB) 
+                    S7.SetWordAt(PDU,25,DBNumber);
+
+                // Adjusts Start and word length
+                Address = Start+Sent*MaxElements*WordSize;
+                if ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM))
+                {
+                    Length = DataSize;
+                    if (Area==S7.S7AreaCT)
+                        PDU[22]=S7WLCounter;
+                    else
+                        PDU[22]=S7WLTimer;
+                }
                 else
-                    PDU[22]=S7WLTimer;
+                {
+                    Address = Address<<3;
+                    Length  = DataSize<<3;
+                }
+                // Num elements
+                S7.SetWordAt(PDU,23,NumElements);
+                // Address into the PLC
+                PDU[30] = (byte) (Address & 0x0FF);
+                Address = Address >> 8;
+                PDU[29] = (byte) (Address & 0x0FF);
+                Address = Address >> 8;
+                PDU[28] = (byte) (Address & 0x0FF);
+                // Length
+                S7.SetWordAt(PDU,33,Length);
+
+                // Copies the Data
+                System.arraycopy(Data, Sent*MaxElements*WordSize, PDU, 35, DataSize);
+
+                // PDU Reference
+                S7.SetWordAt(PDU,11,PushJob(Sent, NumElements));
+                SendPacket(PDU, IsoSize);
+                Sent++;
             }
-            else
-            {
-                Address = Start<<3;
-                Length  = DataSize<<3;
-            }
-            // Num elements
-            S7.SetWordAt(PDU,23,NumElements);
-            // Address into the PLC
-            PDU[30] = (byte) (Address & 0x0FF);
-            Address = Address >> 8;
-            PDU[29] = (byte) (Address & 0x0FF);
-            Address = Address >> 8;
-            PDU[28] = (byte) (Address & 0x0FF);
-            // Length
-            S7.SetWordAt(PDU,33,Length);
-            
-            // Copies the Data
-            System.arraycopy(Data, Offset, PDU, 35, DataSize);
-                        
-            SendPacket(PDU, IsoSize);
-            if (LastError==0)
+            if ((LastError==0) && (JobsPending>0))
             {
                 Length=RecvIsoPacket();
                 if (LastError==0)
                 {
-                    if (Length==22)
+                    Slot=PopJob();
+                    if (Slot<0)
+                        LastError = errS7InvalidPDU;
+                    else if (Length==22)
                     {
                         if ((S7.GetWordAt(PDU,17)!=0) || (PDU[21]!=(byte)0xFF))
-                            LastError = errS7DataWrite;
+                        {
+                            if (Failed==0)
+                                Failed = errS7DataWrite;
+                        }
+                        // Counts the data written without gap from the start
+                        else if (JobFirst[Slot]*MaxElements*WordSize==Done)
+                            Done+=JobCount[Slot]*WordSize;
                     }
+                    else if (Failed==0)
+                        Failed = errS7InvalidPDU;
+                }
+            }
+        }
+        // The replies of the jobs in flight were drained before to stop
+        if (LastError==0)
+            LastError=Failed;
+        _PartialSize=Done;
+        return LastError;
+    }
+
+    /**
+     * Reads many (even scattered) variables packing them into as few jobs
+     * as the negotiated PDU allows.
+     * Each item gets its own error code into Item.Result, the function
+     * returns only the connection-level errors.
+     * @param Items    Items to read
+     * @param ItemsCount How many items of the array to read
+     * @return 0 if all the jobs were exchanged, an error code otherwise
+     */
+    public int ReadMultiVars(S7DataItem[] Items, int ItemsCount)
+    {
+        return MultiVars(Items, ItemsCount, false);
+    }
+
+    /**
+     * Writes many (even scattered) variables packing them into as few jobs
+     * as the negotiated PDU allows, so that a group of related values is
+     * applied by a single telegram whenever it fits.
+     * Each item gets its own error code into Item.Result, the function
+     * returns only the connection-level errors.
+     * @param Items    Items to write
+     * @param ItemsCount How many items of the array to write
+     * @return 0 if all the jobs were exchanged, an error code otherwise
+     */
+    public int WriteMultiVars(S7DataItem[] Items, int ItemsCount)
+    {
+        return MultiVars(Items, ItemsCount, true);
+    }
+
+    private int MultiVars(S7DataItem[] Items, int ItemsCount, boolean Write)
+    {
+        int First = 0;
+        int Count;
+        int Length;
+        int Slot;
+        int Window = JobsWindow();
+
+        boolean Late = false;
+
+        LastError=0;
+        if ((ItemsCount<0) || (ItemsCount>Items.length))
+            return LastError=errS7InvalidParams;
+
+        boolean Outer = BeginOperation();
+        CheckVars(Items, ItemsCount);
+        ClearJobs();
+        while ((((First<ItemsCount) && !Late) || (JobsPending>0)) && (LastError==0))
+        {
+            // Fills the pipe (only one job if not pipelined)
+            while ((First<ItemsCount) && !Late && (JobsPending<Window) && (LastError==0))
+            {
+                Late=OutOfTime();
+                if (Late)
+                    break;
+                if (Items[First].Result!=0) // Refused by CheckVars
+                {
+                    First++;
+                    continue;
+                }
+                Count=VarsFit(Items, First, ItemsCount, Write);
+                if (Count==0)
+                    break; // Oversized item, see below
+                if (Write)
+                    SendWriteVars(Items, First, Count, PushJob(First, Count));
+                else
+                    SendReadVars(Items, First, Count, PushJob(First, Count));
+                if (LastError==0)
+                    First+=Count;
+            }
+            if ((LastError==0) && (JobsPending>0))
+            {
+                Length=RecvIsoPacket();
+                if (LastError==0)
+                {
+                    Slot=PopJob();
+                    if (Slot<0)
+                        LastError=errS7InvalidPDU;
+                    else if (Write)
+                        ParseWriteVars(Items, JobFirst[Slot], JobCount[Slot], Length);
                     else
-                        LastError = errS7InvalidPDU;
+                        ParseReadVars(Items, JobFirst[Slot], JobCount[Slot], Length);
+                    if ((LastError!=0) && (Slot>=0))
+                        FailVars(Items, JobFirst[Slot], JobFirst[Slot]+JobCount[Slot]);
                 }
             }
+            else if ((LastError==0) && (First<ItemsCount) && !Late)
+            {
+                // This item alone overflows the PDU : Read/WriteArea split it
+                VarByArea(Items[First], Write);
+                if (LastError==0)
+                    First++;
+            }
+        }
+        if (LastError!=0)
+        {
+            // Items not reached because of a connection error
+            for (int c = 0; c < MaxJobsWindow; c++)
+            {
+                if (JobRefs[c]>=0)
+                    FailVars(Items, JobFirst[c], JobFirst[c]+JobCount[c]);
+            }
+            FailVars(Items, First, ItemsCount);
+        }
+        else if (Late)
+        {
+            // Items not sent because the budget is spent
+            LastError=errS7OperationTimeout;
+            FailVars(Items, First, ItemsCount);
+        }
+        _PartialSize=0;
+        return EndOperation(Outer);
+    }
+
+    private void FailVars(S7DataItem[] Items, int First, int Last)
+    {
+        for (int c = First; c < Last; c++)
+        {
+            if (Items[c].Result==0)
+                Items[c].Result=LastError;
+        }
+    }
+
+    // Validates the items, refused ones get errS7InvalidParams, the others 0
+    private void CheckVars(S7DataItem[] Items, int ItemsCount)
+    {
+        for (int c = 0; c < ItemsCount; c++)
+        {
+            S7DataItem Item = Items[c];
+            if (Item.Area==S7.S7AreaCT)
+                Item.WordLen=S7.S7WLCounter;
+            if (Item.Area==S7.S7AreaTM)
+                Item.WordLen=S7.S7WLTimer;
+
+            if ((Item.Data==null) || (Item.Amount<1) || (S7.DataSizeByte(Item.WordLen)==0) ||
+                (Item.Data.length<Item.DataSize()) || ((Item.WordLen==S7.S7WLBit) && (Item.Amount!=1)))
+                Item.Result=errS7InvalidParams;
+            else
+                Item.Result=0;
+        }
+    }
+
+    // Returns how many consecutive items (from First) fit into one job
+    // or 0 if the first one alone exceeds the PDU
+    private int VarsFit(S7DataItem[] Items, int First, int ItemsCount, boolean Write)
+    {
+        int ReqSize = 12; // S7 Header + Function + Items count
+        int ResSize = 14; // S7 Ack Header + Function + Items count
+        int Vars = 0;
+        int Last = First;
+
+        while (Last<ItemsCount)
+        {
+            if (Items[Last].Result==0)
+            {
+                int DataSize = Items[Last].DataSize();
+                ReqSize += Size_MV_IT;
+                if (Write)
+                {
+                    ReqSize += 4 + DataSize + (DataSize & 1); // Item header + Data + Pad byte
+                    ResSize += 1;                             // Return code
+                }
+                else
+                    ResSize += 4 + DataSize + (DataSize & 1);
+                if ((Vars==MaxVars) || (ReqSize>_PDULength) || (ResSize>_PDULength))
+                    break;
+                Vars++;
+            }
+            Last++;
+        }
+        if (Vars==0)
+            return 0;
+        return Last-First;
+    }
+
+    // Fills the item spec. at Pos and returns the next position
+    private int SetVarSpec(S7DataItem Item, int Pos)
+    {
+        int Address;
+
+        PDU[Pos]   = (byte)0x12; // Var spec.
+        PDU[Pos+1] = (byte)0x0a; // Length of remaining bytes
+        PDU[Pos+2] = (byte)0x10; // Syntax ID
+        PDU[Pos+3] = (byte)Item.WordLen;
+        S7.SetWordAt(PDU, Pos+4, Item.Amount);
+        if (Item.Area==S7.S7AreaDB)
+            S7.SetWordAt(PDU, Pos+6, Item.DBNumber);
+        else
+            S7.SetWordAt(PDU, Pos+6, 0);
+        PDU[Pos+8] = (byte)Item.Area;
+
+        if ((Item.WordLen==S7.S7WLBit) || (Item.WordLen==S7.S7WLCounter) || (Item.WordLen==S7.S7WLTimer))
+            Address = Item.Start;
+        else
+            Address = Item.Start<<3;
+        PDU[Pos+11] = (byte) (Address & 0x0FF);
+        Address = Address >> 8;
+        PDU[Pos+10] = (byte) (Address & 0x0FF);
+        Address = Address >> 8;
+        PDU[Pos+9]  = (byte) (Address & 0x0FF);
+
+        return Pos+Size_MV_IT;
+    }
+
+    private void SendReadVars(S7DataItem[] Items, int First, int Count, int Ref)
+    {
+        int Vars = 0;
+        int Pos = Size_MV_HD;
+
+        System.arraycopy(S7_RW, 0, PDU, 0, Size_MV_HD);
+        S7.SetWordAt(PDU, 11, Ref);                      // PDU Reference
+        for (int c = First; c < First+Count; c++)
+        {
+            if (Items[c].Result==0)
+            {
+                Pos=SetVarSpec(Items[c], Pos);
+                Vars++;
+            }
+        }
+        S7.SetWordAt(PDU, 2, Pos);                       // Telegram Length
+        S7.SetWordAt(PDU, 13, Vars*Size_MV_IT+2);        // Parameters Length
+        PDU[18] = (byte)Vars;                            // Items count
+        SendPacket(PDU, Pos);
+    }
+
+    private void ParseReadVars(S7DataItem[] Items, int First, int Count, int Length)
+    {
+        if ((Length<21) || (PDU[19]!=(byte)0x04))
+        {
+            LastError=errS7InvalidPDU;
+            return;
+        }
+        if (S7.GetWordAt(PDU,17)!=0) // The whole job was refused
+        {
+            for (int c = First; c < First+Count; c++)
+            {
+                if (Items[c].Result==0)
+                    Items[c].Result=errS7FunctionError;
+            }
+            return;
+        }
+        ParseVarsData(Items, First, Count, 21, Length);
+    }
+
+    // Copies the data of the items, starting at Pos into the PDU
+    private void ParseVarsData(S7DataItem[] Items, int First, int Count, int Pos, int Length)
+    {
+        int Size;
+
+        for (int c = First; c < First+Count; c++)
+        {
+            S7DataItem Item = Items[c];
+            if (Item.Result!=0)
+                continue;
+            if (Pos+4>Length)
+            {
+                LastError=errS7InvalidPDU;
+                return;
+            }
+            if (PDU[Pos]==(byte)0xFF)
+            {
+                Size=S7.GetWordAt(PDU, Pos+2);
+                // Size is in bits unless the transport size is expressed in bytes
+                if ((PDU[Pos+1]!=TS_ResOctet) && (PDU[Pos+1]!=TS_ResReal) && (PDU[Pos+1]!=TS_ResBit))
+                    Size=Size>>3;
+                if ((Pos+4+Size>Length) || (Size>Item.Data.length))
+                {
+                    LastError=errS7InvalidPDU;
+                    return;
+                }
+                System.arraycopy(PDU, Pos+4, Item.Data, 0, Size);
+                Pos+=4+Size+(Size & 1); // Odd items are padded (but the last one)
+            }
+            else
+            {
+                Item.Result=ItemError(PDU[Pos], errS7DataRead);
+                Pos+=4;
+            }
+        }
+    }
+
+    private void SendWriteVars(S7DataItem[] Items, int First, int Count, int Ref)
+    {
+        int Vars = 0;
+        int Done = 0;
+        int Pos = Size_MV_HD;
+        int DataPos;
+        int DataStart;
+        int Size;
+
+        for (int c = First; c < First+Count; c++)
+        {
+            if (Items[c].Result==0)
+                Vars++;
+        }
+        DataStart = Size_MV_HD+Vars*Size_MV_IT;
+        DataPos = DataStart;
+
+        System.arraycopy(S7_RW, 0, PDU, 0, Size_MV_HD);
+        S7.SetWordAt(PDU, 11, Ref);                      // PDU Reference
+        PDU[17] = (byte)0x05;                            // Function Write Var
+        for (int c = First; c < First+Count; c++)
+        {
+            S7DataItem Item = Items[c];
+            if (Item.Result!=0)
+                continue;
+            Pos=SetVarSpec(Item, Pos);
+            Size=Item.DataSize();
+            PDU[DataPos] = (byte)0x00; // Reserved
+            switch (Item.WordLen)
+            {
+                case S7.S7WLBit :
+                    PDU[DataPos+1] = TS_ResBit;
+                    S7.SetWordAt(PDU, DataPos+2, Size);
+                    break;
+                case S7.S7WLInt :
+                case S7.S7WLDInt :
+                    PDU[DataPos+1] = (byte)0x05; // Int, length in bits
+                    S7.SetWordAt(PDU, DataPos+2, Size<<3);
+                    break;
+                case S7.S7WLReal :
+                    PDU[DataPos+1] = TS_ResReal;
+                    S7.SetWordAt(PDU, DataPos+2, Size);
+                    break;
+                case S7.S7WLChar :
+                case S7.S7WLCounter :
+                case S7.S7WLTimer :
+                    PDU[DataPos+1] = TS_ResOctet;
+                    S7.SetWordAt(PDU, DataPos+2, Size);
+                    break;
+                default :
+                    PDU[DataPos+1] = (byte)0x04; // Byte/Word/DWord, length in bits
+                    S7.SetWordAt(PDU, DataPos+2, Size<<3);
+            }
+            System.arraycopy(Item.Data, 0, PDU, DataPos+4, Size);
+            DataPos+=4+Size;
+            Done++;
+            // Odd items are padded (but the last one)
+            if (((Size & 1)!=0) && (Done<Vars))
+                PDU[DataPos++] = (byte)0x00;
+        }
+        S7.SetWordAt(PDU, 2, DataPos);                   // Telegram Length
+        S7.SetWordAt(PDU, 13, Vars*Size_MV_IT+2);        // Parameters Length
+        S7.SetWordAt(PDU, 15, DataPos-DataStart);        // Data Length
+        PDU[18] = (byte)Vars;                            // Items count
+        SendPacket(PDU, DataPos);
+    }
+
+    private void ParseWriteVars(S7DataItem[] Items, int First, int Count, int Length)
+    {
+        int Pos = 21;
+
+        if ((Length<21) || (PDU[19]!=(byte)0x05))
+        {
+            LastError=errS7InvalidPDU;
+            return;
+        }
+        for (int c = First; c < First+Count; c++)
+        {
+            S7DataItem Item = Items[c];
+            if (Item.Result!=0)
+                continue;
+            if (S7.GetWordAt(PDU,17)!=0) // The whole job was refused
+            {
+                Item.Result=errS7FunctionError;
+                continue;
+            }
+            if (Pos>=Length)
+            {
+                LastError=errS7InvalidPDU;
+                return;
+            }
+            if (PDU[Pos]!=(byte)0xFF)
+                Item.Result=ItemError(PDU[Pos], errS7DataWrite);
+            Pos++;
+        }
+    }
+
+    private void VarByArea(S7DataItem Item, boolean Write)
+    {
+        int Amount = Item.DataSize();
+        if ((Item.Area==S7.S7AreaCT) || (Item.Area==S7.S7AreaTM))
+            Amount = Item.Amount;
+        if (Write)
+            Item.Result=WriteArea(Item.Area, Item.DBNumber, Item.Start, Amount, Item.Data);
+        else
+            Item.Result=ReadArea(Item.Area, Item.DBNumber, Item.Start, Amount, Item.Data);
+        // An item error must not stop the job
+        if ((LastError==errS7DataRead) || (LastError==errS7DataWrite))
+            LastError=0;
+    }
+
+    // Translates the return code of a variable into an error code
+    private static int ItemError(byte ReturnCode, int Default)
+    {
+        switch (ReturnCode)
+        {
+            case (byte)0x03 : return errS7AccessDenied;
+            case (byte)0x05 : return errS7AddressOutOfRange;
+            case (byte)0x06 :
+            case (byte)0x07 : return errS7InvalidDataType;
+            case (byte)0x0A : return errS7ItemNotAvailable;
+            default : return Default;
+        }
+    }
+
+    /**
+     * Registers a cyclic read job into the CPU (S7-300/400 only) : the CPU
+     * then pushes the values of the items every Interval, there is no more
+     * request to send. The first values come with the reply.
+     * The pushed values are copied into the items (Data and Result) and
+     * then handed to the listener, on the thread using the client : see
+     * WaitPush() to receive them between the other jobs.
+     * @param Items      Items to read, they must fit into one PDU
+     * @param ItemsCount How many items of the array to read
+     * @param Interval   ms between two pushes (rounded to the time base)
+     * @param Listener   Receives the pushed values
+     * @param JobId      Receives the job id given to CyclicUnsubscribe()
+     * @return 0 if the job is registered, an error code otherwise
+     */
+    public int CyclicSubscribe(S7DataItem[] Items, int ItemsCount, int Interval, CyclicListener Listener, IntByRef JobId)
+    {
+        int Pos = Size_CYC;
+        int Length;
+
+        LastError=0;
+        if ((ItemsCount<1) || (ItemsCount>Items.length) || (Interval<1) || (Listener==null))
+            return LastError=errS7InvalidParams;
+        CheckVars(Items, ItemsCount);
+        if (!CyclicFit(Items, ItemsCount))
+            return LastError=errS7InvalidParams;
+
+        SetupTelegram(S7_CYC);
+        S7.SetWordAt(PDU, 29, ItemsCount);
+        if (Interval<=25500)
+        {
+            PDU[31]=0x00;
+            PDU[32]=(byte)Math.max(1, (Interval+50)/100);
+        }
+        else if (Interval<=255000)
+        {
+            PDU[31]=0x01;
+            PDU[32]=(byte)((Interval+500)/1000);
+        }
+        else
+        {
+            PDU[31]=0x02;
+            PDU[32]=(byte)Math.min(255, (Interval+5000)/10000);
+        }
+        for (int c = 0; c < ItemsCount; c++)
+            Pos=SetVarSpec(Items[c], Pos);
+        S7.SetWordAt(PDU, 2, Pos);     // Telegram Length
+        S7.SetWordAt(PDU, 15, Pos-25); // Data Length
+        S7.SetWordAt(PDU, 27, Pos-29); // Length of remaining bytes
+        SendPacket(PDU, Pos);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if (LastError==0)
+            {
+                if ((Length>=Size_CYC_Reply) && (S7.GetWordAt(PDU,27)==0) && (PDU[29]==(byte)0xFF))
+                {
+                    CyclicJob Job = new CyclicJob();
+                    Job.Id=PDU[24] & 0xFF;
+                    Job.Items=Items;
+                    Job.ItemsCount=ItemsCount;
+                    Job.Listener=Listener;
+                    CyclicJobs.add(Job);
+                    JobId.Value=Job.Id;
+                    ParseCyclic(Job, Length);
+                }
+                else if (Length>=29)
+                    LastError=errS7FunctionError;
+                else
+                    LastError=errS7InvalidPDU;
+            }
+        }
+        return LastError;
+    }
+
+    /**
+     * Deletes a cyclic read job from the CPU.
+     * @param JobId Job id given by CyclicSubscribe()
+     * @return 0 if the job is deleted, an error code otherwise
+     */
+    public int CyclicUnsubscribe(int JobId)
+    {
+        int Length;
+        CyclicJob Job = FindCyclicJob(JobId);
+
+        LastError=0;
+        if (Job==null)
+            return LastError=errS7InvalidParams;
+        // The values still pushed are dropped from now
+        CyclicJobs.remove(Job);
+
+        SetupTelegram(S7_CYC);
+        S7.SetWordAt(PDU, 2, 31);
+        S7.SetWordAt(PDU, 15, 6);
+        PDU[23]=0x04; // Unsubscribe
+        S7.SetWordAt(PDU, 27, 2);
+        PDU[29]=(byte)0x80;
+        PDU[30]=(byte)JobId;
+        SendPacket(PDU, 31);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if (LastError==0)
+            {
+                if (Length<29)
+                    LastError=errS7InvalidPDU;
+                else if (S7.GetWordAt(PDU,27)!=0)
+                    LastError=errS7FunctionError;
+            }
+        }
+        return LastError;
+    }
+
+    // Deletes all the cyclic read jobs of the connection
+    public int CyclicUnsubscribeAll()
+    {
+        LastError=0;
+        while ((CyclicJobs.size()>0) && (LastError==0))
+            CyclicUnsubscribe(CyclicJobs.get(0).Id);
+        return LastError;
+    }
+
+    // Number of cyclic read jobs registered by this connection
+    public int CyclicJobsCount()
+    {
+        return CyclicJobs.size();
+    }
+
+    /**
+     * Registers the events that the CPU pushes to this connection : changes
+     * of operating mode, diagnostic buffer entries, user and alarm messages
+     * (ALARM_S). They are handed to the listener like the cyclic reads,
+     * see WaitPush(), with the CPU time and the time they were received.
+     * @param Events   S7.S7EvtXXX flags, 0 to unregister
+     * @param Listener Receives the events
+     * @return 0 if the events are registered, an error code otherwise
+     */
+    public int AlarmSubscribe(int Events, AlarmListener Listener)
+    {
+        int Length;
+
+        LastError=0;
+        if ((Events!=0) && (Listener==null))
+            return LastError=errS7InvalidParams;
+        SetupTelegram(S7_MSG);
+        PDU[29]=(byte)Events;
+        SendPacket(PDU, S7_MSG.length);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if (LastError==0)
+            {
+                if (Length<29)
+                    LastError=errS7InvalidPDU;
+                else if ((S7.GetWordAt(PDU,27)!=0) || (PDU[29]!=(byte)0xFF))
+                    LastError=errS7FunctionError;
+            }
+        }
+        if (LastError==0)
+        {
+            AlarmEvents=Events;
+            Alarms=Events!=0 ? Listener : null;
+        }
+        return LastError;
+    }
+
+    public int AlarmUnsubscribe()
+    {
+        return AlarmSubscribe(0, null);
+    }
+
+    // Events registered by AlarmSubscribe()
+    public int AlarmEvents()
+    {
+        return AlarmEvents;
+    }
 
-            Offset+=DataSize;
-            TotElements -= NumElements;
-            Start += NumElements*WordSize;
+    // Deletes the cyclic read jobs and the alarm registration, so that
+    // the CPU stops pushing to this connection
+    public int UnsubscribeAll()
+    {
+        CyclicUnsubscribeAll();
+        if ((LastError==0) && (AlarmEvents!=0))
+            AlarmUnsubscribe();
+        return LastError;
+    }
+
+    /**
+     * Waits for a packet pushed by the CPU and hands it to its listener.
+     * Use it to receive the pushes when no other job is running.
+     * @param Timeout ms to wait
+     * @return 0 if a packet was received, errTCPDataRecvTout if nothing
+     * came within Timeout (the connection is still usable), an error
+     * code otherwise
+     */
+    public int WaitPush(int Timeout)
+    {
+        int Size;
+
+        LastError=0;
+        if (!Connected)
+            return LastError=errTCPConnectionFailed;
+        if (WaitReadable(Timeout)!=0)
+            return LastError;
+        Size=RecvIsoHeader();
+        if (LastError==0)
+            RecvPacket(PDU, 7, Size-IsoHSize);
+        // A late reply of a job gone is dropped
+        if ((LastError==0) && IsPush(Size))
+            DispatchPush(Size);
+        return LastError;
+    }
+
+    // Waits until some bytes can be read, without reading them
+    private int WaitReadable(int Timeout)
+    {
+        if (Transport!=TransportChannel)
+            return WaitForData(1, Timeout);
+        long Deadline = System.nanoTime() + Timeout * 1000000L;
+        LastError=0;
+        try
+        {
+            boolean Ready = false;
+            while (!Ready && (LastError==0))
+            {
+                long Left = (Deadline - System.nanoTime()) / 1000000L;
+                if (Left<=0)
+                    LastError=errTCPDataRecvTout;
+                else
+                {
+                    Ready = ChannelSelector.select(Left)>0;
+                    ChannelSelector.selectedKeys().clear();
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            LastError=errTCPDataRecv;
         }
         return LastError;
     }
-   
+
+    // True if the packet into the PDU is pushed by the CPU (user data
+    // without request) rather than the reply to one of our requests
+    private boolean IsPush(int Length)
+    {
+        return (Length>=29) && (PDU[8]==(byte)0x07) && ((PDU[22] & 0xF0)==0x00);
+    }
+
+    // Hands a pushed packet to its listener, an unknown one is dropped
+    private void DispatchPush(int Length)
+    {
+        if (((PDU[22] & 0x0F)==0x02) && (PDU[23]==0x01)) // Cyclic services, cyclic transfer
+        {
+            CyclicJob Job = FindCyclicJob(PDU[24] & 0xFF);
+            if (Job!=null)
+                ParseCyclic(Job, Length);
+        }
+        else if (((PDU[22] & 0x0F)==0x04) && (Alarms!=null)) // CPU functions
+        {
+            long ReceivedAt = System.currentTimeMillis();
+            if ((Length<Size_PUSH_Data) || (PDU[29]!=(byte)0xFF))
+                return;
+            Length=Math.min(Length, Size_PUSH_Data+S7.GetWordAt(PDU, 31));
+            if (PDU[23]==S7Alarm.KindDiagnostic)
+                ParseDiagnostic(Length, ReceivedAt);
+            else
+                ParseAlarms(Length, ReceivedAt);
+        }
+    }
+
+    // Diagnostic buffer entry : ID, priority, OB, DatID, Info1, Info2, time
+    private void ParseDiagnostic(int Length, long ReceivedAt)
+    {
+        int Pos = Size_PUSH_Data;
+        if (Pos+20>Length)
+            return;
+        S7Alarm Alarm = new S7Alarm();
+        Alarm.Kind=S7Alarm.KindDiagnostic;
+        Alarm.EventId=S7.GetWordAt(PDU, Pos);
+        Alarm.Priority=PDU[Pos+2] & 0xFF;
+        Alarm.OBNumber=PDU[Pos+3] & 0xFF;
+        Alarm.DatId=S7.GetWordAt(PDU, Pos+4);
+        Alarm.Info1=S7.GetWordAt(PDU, Pos+6);
+        Alarm.Info2=S7.GetDWordAt(PDU, Pos+8);
+        Alarm.Timestamp=S7Alarm.TimestampAt(PDU, Pos+12);
+        Alarm.ReceivedAt=ReceivedAt;
+        Alarms.OnAlarm(Alarm);
+    }
+
+    // Alarm messages : time, function, messages count, then the messages
+    private void ParseAlarms(int Length, long ReceivedAt)
+    {
+        int Kind = PDU[23] & 0xFF;
+        int Pos = Size_PUSH_Data+10;
+        int Count;
+        int Next;
+
+        if (Pos>Length)
+            return;
+        Count=PDU[Size_PUSH_Data+9] & 0xFF;
+        for (int c = 0; (c < Count) && (Pos+8<=Length); c++)
+        {
+            Next=Math.min(Length, Pos+2+(PDU[Pos+1] & 0xFF));
+            S7Alarm Alarm = new S7Alarm();
+            Alarm.Kind=Kind;
+            Alarm.EventId=S7.GetDIntAt(PDU, Pos+4);
+            Alarm.Timestamp=S7Alarm.TimestampAt(PDU, Size_PUSH_Data);
+            Alarm.ReceivedAt=ReceivedAt;
+            if ((Kind==S7Alarm.KindAck) && (Pos+10<=Next))
+            {
+                Alarm.AckStateGoing=PDU[Pos+8] & 0xFF;
+                Alarm.AckStateComing=PDU[Pos+9] & 0xFF;
+            }
+            else if ((Kind!=S7Alarm.KindLock) && (Kind!=S7Alarm.KindUnlock) && (Pos+11<=Next))
+            {
+                Alarm.EventState=PDU[Pos+8] & 0xFF;
+                Alarm.AckStateGoing=PDU[Pos+9] & 0xFF;
+                Alarm.AckStateComing=PDU[Pos+10] & 0xFF;
+                Alarm.Values=new byte[Next-Pos-11];
+                System.arraycopy(PDU, Pos+11, Alarm.Values, 0, Alarm.Values.length);
+            }
+            Alarms.OnAlarm(Alarm);
+            Pos=Next;
+        }
+    }
+
+    private CyclicJob FindCyclicJob(int JobId)
+    {
+        for (CyclicJob Job : CyclicJobs)
+        {
+            if (Job.Id==JobId)
+                return Job;
+        }
+        return null;
+    }
+
+    // Copies the values of a cyclic job into its items and calls the
+    // listener : a bad packet fails the items, not the running job
+    private void ParseCyclic(CyclicJob Job, int Length)
+    {
+        int Error = LastError;
+
+        for (int c = 0; c < Job.ItemsCount; c++)
+            Job.Items[c].Result=0;
+        if ((Length<Size_CYC_Reply) || (S7.GetWordAt(PDU,27)!=0) || (PDU[29]!=(byte)0xFF))
+            LastError=errS7DataRead;
+        else
+            ParseVarsData(Job.Items, 0, Job.ItemsCount, Size_CYC_Reply, Length);
+        if (LastError!=0)
+            FailVars(Job.Items, 0, Job.ItemsCount);
+        LastError = Error;
+        Job.Listener.OnCyclicData(Job.Id, Job.Items, Job.ItemsCount);
+    }
+
+    // True if the items are valid and both the request and the pushed
+    // packets fit into the PDU
+    private boolean CyclicFit(S7DataItem[] Items, int ItemsCount)
+    {
+        int ReqSize = Size_CYC-IsoHSize;
+        int ResSize = Size_CYC_Reply-IsoHSize;
+
+        if (ItemsCount>MaxVars)
+            return false;
+        for (int c = 0; c < ItemsCount; c++)
+        {
+            int DataSize = Items[c].DataSize();
+            if (Items[c].Result!=0)
+                return false;
+            ReqSize += Size_MV_IT;
+            ResSize += 4 + DataSize + (DataSize & 1);
+        }
+        return (ReqSize<=_PDULength) && (ResSize<=_PDULength);
+    }
+
     public int GetAgBlockInfo(int BlockType, int BlockNumber, S7BlockInfo Block)
     {
     	int Length;
         LastError=0;
+        SetupTelegram(S7_BI);
         // Block Type
-        S7_BI[30] = (byte) BlockType;
+        PDU[30] = (byte) BlockType;
         // Block Number
-        S7_BI[31]=(byte) ((BlockNumber / 10000)+0x30);
-        BlockNumber=BlockNumber % 10000;
-        S7_BI[32]=(byte) ((BlockNumber / 1000)+0x30);
-        BlockNumber=BlockNumber % 1000;
-        S7_BI[33]=(byte) ((BlockNumber / 100)+0x30);
-        BlockNumber=BlockNumber % 100;
-        S7_BI[34]=(byte) ((BlockNumber / 10)+0x30);
-        BlockNumber=BlockNumber % 10;
-        S7_BI[35]=(byte) ((BlockNumber / 1)+0x30);
+        SetBlockNumberAt(31, BlockNumber);
         
-        SendPacket(S7_BI);
+        SendPacket(PDU, S7_BI.length);
         if (LastError==0)
         {
             Length=RecvIsoPacket();
@@ -805,6 +2267,7 @@ public class S7Client
      */
     public int DBGet(int DBNumber, byte[] Buffer, IntByRef SizeRead)
     {
+        boolean Outer = BeginOperation();
         S7BlockInfo Block = new S7BlockInfo();
         // Query the DB Length
         LastError = GetAgBlockInfo(S7.Block_DB, DBNumber, Block);
@@ -817,14 +2280,259 @@ public class S7Client
                 LastError=ReadArea(S7.S7AreaDB, DBNumber, 0, SizeToRead, Buffer);
                 if (LastError==0)
                     SizeRead.Value=SizeToRead;
+                else if (LastError==errS7OperationTimeout)
+                    SizeRead.Value=_PartialSize;
             }
             else
                 LastError=errS7BufferTooSmall;
         }
-        return LastError;
+        return EndOperation(Outer);
     }  
     
+    /**
+     * Reads a whole DB into a channel, as DBGet(int, byte[], IntByRef) but
+     * by windows of a few PDUs, so that the memory used does not depend on
+     * the size of the DB. Each window is written as soon as it is received.
+     * @param DBNumber DB Number
+     * @param Sink     Destination channel, in blocking mode
+     * @param SizeRead How many bytes were written into Sink, also on error
+     * @return 
+     */
+    public int DBGet(int DBNumber, WritableByteChannel Sink, IntByRef SizeRead)
+    {
+        boolean Outer = BeginOperation();
+        S7BlockInfo Block = new S7BlockInfo();
+        int Done = 0;
+        // Query the DB Length
+        LastError = GetAgBlockInfo(S7.Block_DB, DBNumber, Block);
+        if (LastError==0)
+        {
+            int SizeToRead = Block.MC7Size();
+            byte[] Window = new byte[Math.min(SizeToRead, JobsWindow()*(_PDULength-18))];
+            while ((Done<SizeToRead) && (LastError==0))
+            {
+                int Size = Math.min(Window.length, SizeToRead-Done);
+                ReadArea(S7.S7AreaDB, DBNumber, Done, Size, Window, null, 0);
+                // A window partly read is written up to the first gap
+                int Read = LastError==0 ? Size : _PartialSize;
+                if ((Read>0) && !WriteSink(Sink, Window, 0, Read))
+                    LastError=errS7SinkWrite;
+                else
+                    Done+=Read;
+            }
+        }
+        SizeRead.Value=Done;
+        _PartialSize=Done;
+        return EndOperation(Outer);
+    }
+
+    /**
+     * Uploads a block (OB, FC, FB, DB, SDB...) as stored in the load memory,
+     * header and code included, and writes it into a channel part by part,
+     * as it is received : the memory used does not depend on the size of
+     * the block.
+     * @param BlockType S7.Block_OB, S7.Block_DB...
+     * @param BlockNumber Block Number
+     * @param Sink Destination channel, in blocking mode
+     * @param Size How many bytes were written into Sink, also on error
+     * @return 
+     */
+    public int Upload(int BlockType, int BlockNumber, WritableByteChannel Sink, IntByRef Size)
+    {
+        boolean Outer = BeginOperation();
+        boolean Done = false;
+        int Length;
+        int UploadId;
+        int Failed = 0;
+
+        Size.Value=0;
+        _PartialSize=0;
+        LastError=0;
+        // Start upload : the CPU opens the block and gives its upload ID
+        SetupTelegram(S7_UPL_START);
+        PDU[28] = (byte) BlockType;
+        SetBlockNumberAt(29, BlockNumber);
+        SendPacket(PDU, S7_UPL_START.length);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if (LastError==0)
+            {
+                if (Length < 19) // the minimum expected
+                    LastError = errS7InvalidPDU;
+                else if (S7.GetWordAt(PDU,17)!=0)
+                    LastError = errS7FunctionError;
+                else if ((Length < 27) || (PDU[19]!=(byte)0x1D)) // with the upload ID
+                    LastError = errS7InvalidPDU;
+            }
+        }
+        if (LastError!=0)
+            return EndOperation(Outer);
+        UploadId=S7.GetDIntAt(PDU, 23);
+
+        // Upload : one part of the block by request until the last one
+        while (!Done && (Failed==0))
+        {
+            SetupTelegram(S7_UPL);
+            S7.SetDIntAt(PDU, 21, UploadId);
+            SendPacket(PDU, S7_UPL.length);
+            if (LastError!=0)
+                return EndOperation(Outer);
+            Length=RecvIsoPacket();
+            if (LastError!=0)
+                return EndOperation(Outer);
+            if (Length < 19) // the minimum expected
+                Failed = errS7InvalidPDU;
+            else if (S7.GetWordAt(PDU,17)!=0)
+                Failed = errS7FunctionError;
+            else if ((Length < 21) || (PDU[19]!=(byte)0x1E)) // with the status
+                Failed = errS7InvalidPDU;
+            else
+            {
+                // Data : length, 00 FB, then the part of the block
+                int Pos = 19 + S7.GetWordAt(PDU,13) + 4;
+                int DataSize = S7.GetWordAt(PDU,15) - 4;
+                Done = PDU[20]==0x00; // More data follows if 1
+                if (DataSize>0)
+                {
+                    if (Pos+DataSize > Length)
+                        Failed = errS7InvalidPDU;
+                    else if (!WriteSink(Sink, PDU, Pos, DataSize))
+                        Failed = errS7SinkWrite;
+                    else
+                    {
+                        Size.Value+=DataSize;
+                        _PartialSize=Size.Value; // also if the link fails next
+                    }
+                }
+            }
+            if (!Done && (Failed==0) && OutOfTime())
+                Failed = errS7OperationTimeout;
+        }
+
+        // End upload, also on error : otherwise the CPU keeps the block open
+        SetupTelegram(S7_UPL_END);
+        S7.SetDIntAt(PDU, 21, UploadId);
+        SendPacket(PDU, S7_UPL_END.length);
+        if (LastError==0)
+        {
+            Length=RecvIsoPacket();
+            if ((LastError==0) && (Failed==0))
+            {
+                if (Length < 20) // the minimum expected
+                    Failed = errS7InvalidPDU;
+                else if (S7.GetWordAt(PDU,17)!=0)
+                    Failed = errS7FunctionError;
+            }
+        }
+        if (LastError==0)
+            LastError=Failed;
+        _PartialSize=Size.Value;
+        return EndOperation(Outer);
+    }
+
+    // Writes into a channel in blocking mode, false on error
+    private static boolean WriteSink(WritableByteChannel Sink, byte[] Buffer, int Pos, int Size)
+    {
+        ByteBuffer Src = ByteBuffer.wrap(Buffer, Pos, Size);
+        try {
+            while (Src.hasRemaining())
+                Sink.write(Src);
+        } catch (IOException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    // Block number in 5 ASCII digits, as in the block file names
+    private void SetBlockNumberAt(int Pos, int BlockNumber)
+    {
+        for (int c = Pos+4; c >= Pos; c--)
+        {
+            PDU[c] = (byte) ((BlockNumber % 10)+0x30);
+            BlockNumber = BlockNumber / 10;
+        }
+    }
+    
     public int ReadSZL(int ID, int Index, S7Szl SZL)
+    {
+        boolean Outer = BeginOperation();
+        boolean Cached = false;
+        LastError=0;
+        SZL.DataSize=0;
+        if ((SzlCache!=null) && Connected && S7SzlCache.IsStatic(ID))
+            Cached = (IdentifyModule()==0) && !Module.isEmpty();
+        if ((LastError==0) && !(Cached && SzlCache.Get(Module, ID, Index, SZL)))
+        {
+            ReadSZLSlices(ID, Index, SZL);
+            if (Cached && (LastError==0))
+                SzlCache.Put(Module, ID, Index, SZL);
+        }
+        _PartialSize=SZL.DataSize;
+        return EndOperation(Outer);
+    }
+
+    /**
+     * Static SZL lists (see S7SzlCache.IsStatic) are then read once per
+     * module : the first one read on a connection costs one more request,
+     * which identifies the module by its serial number. The lists of the
+     * module of the previous connection are dropped if it was replaced.
+     * @param Cache the cache, shared or not, null to read the PLC each time
+     */
+    public void SetSzlCache(S7SzlCache Cache)
+    {
+        SzlCache=Cache;
+    }
+
+    public S7SzlCache SzlCache()
+    {
+        return SzlCache;
+    }
+
+    // Reads the serial number of the module, once per connection
+    private int IdentifyModule()
+    {
+        if (Module!=null)
+            return 0;
+        if (IdentSZL==null)
+            IdentSZL = new S7Szl(1024);
+        if (ReadSZLSlices(0x001C, 0x0000, IdentSZL)!=0)
+        {
+            if (LastError!=errS7FunctionError)
+                return LastError;
+            // Component identification not supported : nothing is cached
+            LastError=0;
+            Module="";
+            return 0;
+        }
+        Module=SerialNumberOf(IdentSZL);
+        if (Module.isEmpty())
+            return 0;
+        if ((LastModule!=null) && !LastModule.equals(Module))
+            SzlCache.Invalidate(LastModule);
+        LastModule=Module;
+        SzlCache.Put(Module, 0x001C, 0x0000, IdentSZL);
+        return 0;
+    }
+
+    // Record 0005 of the component identification (SZL 0x001C)
+    private static String SerialNumberOf(S7Szl SZL)
+    {
+        if (SZL.LENTHDR<=2)
+            return "";
+        for (int Pos = 0; Pos+SZL.LENTHDR <= SZL.DataSize; Pos+=SZL.LENTHDR)
+        {
+            if (S7.GetWordAt(SZL.Data, Pos)==0x0005)
+            {
+                String S = S7.GetStringAt(SZL.Data, Pos+2, SZL.LENTHDR-2);
+                int End = S.indexOf('\0');
+                return (End>=0 ? S.substring(0, End) : S).trim();
+            }
+        }
+        return "";
+    }
+
+    private int ReadSZLSlices(int ID, int Index, S7Szl SZL)
     {
     	int Length;
         int DataSZL;
@@ -840,16 +2548,20 @@ public class S7Client
         {
             if (First)
             {
-                S7.SetWordAt(S7_SZL_FIRST, 11, ++Seq_out);
-                S7.SetWordAt(S7_SZL_FIRST, 29, ID);
-                S7.SetWordAt(S7_SZL_FIRST, 31, Index);
-                SendPacket(S7_SZL_FIRST);                
+                SetupTelegram(S7_SZL_FIRST);
+                S7.SetWordAt(PDU, 11, ++Seq_out);
+                S7.SetWordAt(PDU, 29, ID);
+                S7.SetWordAt(PDU, 31, Index);
+                SendPacket(PDU, S7_SZL_FIRST.length);
             }
             else
             {
-                S7.SetWordAt(S7_SZL_NEXT, 11, ++Seq_out);
+                if (OutOfTime())
+                    return LastError=errS7OperationTimeout;
+                SetupTelegram(S7_SZL_NEXT);
+                S7.SetWordAt(PDU, 11, ++Seq_out);
                 PDU[24] = (byte)Seq_in;
-                SendPacket(S7_SZL_NEXT);                
+                SendPacket(PDU, S7_SZL_NEXT.length);
             }
             if (LastError!=0)
                 return LastError;
@@ -911,7 +2623,7 @@ public class S7Client
     
     public int GetCpuInfo(S7CpuInfo Info)
     {
-        S7Szl SZL = new S7Szl(1024);
+        S7Szl SZL = InfoSZL();
         
         LastError = ReadSZL(0x001C, 0x0000, SZL);
         if (LastError==0)
@@ -923,7 +2635,7 @@ public class S7Client
 
     public int GetCpInfo(S7CpInfo Info)
     {
-        S7Szl SZL = new S7Szl(1024);
+        S7Szl SZL = InfoSZL();
         
         LastError = ReadSZL(0x0131, 0x0001, SZL);
         if (LastError==0)
@@ -935,7 +2647,7 @@ public class S7Client
     
     public int GetOrderCode(S7OrderCode Code)
     {
-        S7Szl SZL = new S7Szl(1024);
+        S7Szl SZL = InfoSZL();
         
         LastError = ReadSZL(0x0011, 0x0000, SZL);
         if (LastError==0)
@@ -945,6 +2657,36 @@ public class S7Client
         return LastError;
     }
 
+    /**
+     * Gets the identity of the CPU in one call, under one time budget.
+     * With a SZL cache, it costs no request after the first connection to
+     * the module, and one on the next connections.
+     * @param Code the order code, or null if not wanted
+     * @param CpuInfo the CPU info, or null if not wanted
+     * @param CpInfo the communication info, or null if not wanted
+     * @return 0 or the first error
+     */
+    public int GetIdentity(S7OrderCode Code, S7CpuInfo CpuInfo, S7CpInfo CpInfo)
+    {
+        boolean Outer = BeginOperation();
+        LastError=0;
+        // Component identification first : it also identifies the module
+        if (CpuInfo!=null)
+            GetCpuInfo(CpuInfo);
+        if ((Code!=null) && (LastError==0))
+            GetOrderCode(Code);
+        if ((CpInfo!=null) && (LastError==0))
+            GetCpInfo(CpInfo);
+        return EndOperation(Outer);
+    }
+
+    private S7Szl InfoSZL()
+    {
+        if (InfoSZL==null)
+            InfoSZL = new S7Szl(1024);
+        return InfoSZL;
+    }
+
     public int GetPlcDateTime(Date DateTime)
     {
         int Length;
@@ -975,9 +2717,10 @@ public class S7Client
         int Length;
        
         LastError = 0;
-        S7.SetDateAt(S7_SET_DT, 31, DateTime);
+        SetupTelegram(S7_SET_DT);
+        S7.SetDateAt(PDU, 31, DateTime);
         
-        SendPacket(S7_SET_DT);
+        SendPacket(PDU, S7_SET_DT.length);
         if (LastError==0)
         {
             Length=RecvIsoPacket();
@@ -1121,9 +2864,10 @@ public class S7Client
             {
                 pwd[c]=(byte) (pwd[c] ^ 0x55 ^ pwd[c-2]);            
             }
-            System.arraycopy(pwd, 0, S7_SET_PWD, 29, 8);
+            SetupTelegram(S7_SET_PWD);
+            System.arraycopy(pwd, 0, PDU, 29, 8);
             // Sends the telegrem
-            SendPacket(S7_SET_PWD);
+            SendPacket(PDU, S7_SET_PWD.length);
             if (LastError==0)
             {
                 Length=RecvIsoPacket();
@@ -0,0 +1,44 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+/**
+ * One variable of a multi-variable read/write job.
+ * Start is a byte offset, except for S7WLBit (bit address = Byte*8+Bit)
+ * and for Counters/Timers (element index).
+ * Result holds the per-item error code once the job is done.
+ */
+public class S7DataItem {
+
+    public int Area;
+    public int WordLen;
+    public int DBNumber;
+    public int Start;
+    public int Amount;
+    public byte[] Data;
+    public int Result;
+
+    public S7DataItem()
+    {
+    }
+
+    public S7DataItem(int Area, int WordLen, int DBNumber, int Start, int Amount, byte[] Data)
+    {
+        this.Area=Area;
+        this.WordLen=WordLen;
+        this.DBNumber=DBNumber;
+        this.Start=Start;
+        this.Amount=Amount;
+        this.Data=Data;
+    }
+
+    // Size in bytes of the payload exchanged for this item
+    public int DataSize()
+    {
+        return Amount*S7.DataSizeByte(WordLen);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+/**
+ * Holder of a DTL (S7-1200/1500 date and time, 12 bytes), filled by
+ * S7.GetDtlAt so that it can be reused from one poll to the next.
+ * Fields are binary (not BCD) : Month 1..12, Weekday 1 (Sunday)..7.
+ */
+public class S7Dtl {
+
+    public int Year;        // 1970..2262
+    public int Month;
+    public int Day;
+    public int Weekday;
+    public int Hour;
+    public int Minute;
+    public int Second;
+    public int Nanosecond;  // 0..999999999
+
+    public void Set(int Year, int Month, int Day, int Hour, int Minute, int Second, int Nanosecond)
+    {
+        this.Year=Year;
+        this.Month=Month;
+        this.Day=Day;
+        this.Hour=Hour;
+        this.Minute=Minute;
+        this.Second=Second;
+        this.Nanosecond=Nanosecond;
+        this.Weekday=S7.DayOfWeek(Year, Month, Day);
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Polls many PLCs from a single thread.
+ * Every connection is a non blocking SocketChannel registered into one
+ * Selector and driven by a small state machine : TCP connect, ISO connect,
+ * PDU negotiation, then a cyclic read of one area split into PDU sized
+ * chunks. A broken connection is reopened after an exponential backoff.
+ * The results are published to the sink from the poller thread.
+ */
+public class S7Poller {
+
+    // Receives the results of the read cycles, on the poller thread
+    public interface S7Sink
+    {
+        // Data holds the whole area when Error==0 (else it is null) and is
+        // reused by the next cycle of the same target : copy it to keep it
+        void OnResult(int Target, int Error, byte[] Data);
+    }
+
+    // Target states
+    private static final int StIdle        = 0; // Waits for the next connection attempt
+    private static final int StConnecting  = 1; // TCP connection
+    private static final int StIsoConnect  = 2; // ISO connection request sent
+    private static final int StNegotiating = 3; // PDU negotiation sent
+    private static final int StReady       = 4; // Waits for the next read cycle
+    private static final int StReading     = 5; // Read chunk sent
+
+    private static final int ISOTCP = 102;
+    private static final int MaxReconnectDelay = 30000;
+
+    private static class Target
+    {
+        int Index;
+        InetSocketAddress Address;
+        byte RemoteTSAP_HI;
+        byte RemoteTSAP_LO;
+        int Area;
+        int DBNumber;
+        int Start;
+        int Amount;
+        int Interval;
+        int WordSize;
+        byte[] Data;
+
+        SocketChannel Channel;
+        SelectionKey Key;
+        final ByteBuffer In = ByteBuffer.allocate(S7Client.MaxPduSize+S7Client.IsoHSize);
+        final ByteBuffer Out = ByteBuffer.allocate(64);
+        int State = StIdle;
+        long Deadline;
+        long CycleStart;
+        int PDULength;
+        int Offset;
+        int Chunk;
+        int Ref;
+        int Failures;
+    }
+
+    private final S7Sink Sink;
+    private final ArrayList<Target> Targets = new ArrayList<>();
+    private final Random Jitter = new Random();
+
+    private short ConnType = S7.PG;
+    private int RemotePort = ISOTCP;
+    private int PduSizeRequested = S7Client.DefaultPduSizeRequested;
+    private int ConnectTimeout = 5000;
+    private int RecvTimeout = 2000;
+    private int ReconnectDelay = 500;
+
+    private Selector PollSelector;
+    private Thread PollThread;
+    private volatile boolean Running = false;
+
+    public S7Poller(S7Sink Sink)
+    {
+        this.Sink = Sink;
+    }
+
+    /**
+     * Adds a PLC to poll, before Start().
+     * @param Address IP address of the PLC
+     * @param Rack rack of the CPU
+     * @param Slot slot of the CPU
+     * @param Area S7 area to read
+     * @param DBNumber DB number (if Area==S7AreaDB)
+     * @param Start byte offset, or first counter/timer
+     * @param Amount bytes, or counters/timers, to read at each cycle
+     * @param Interval ms between the start of two cycles, 0 for back to back
+     * @return the target index given to the sink, -1 if already started
+     */
+    public synchronized int AddTarget(String Address, int Rack, int Slot, int Area, int DBNumber, int Start, int Amount, int Interval)
+    {
+        if (Running || Amount<1)
+            return -1;
+        int RemoteTSAP=(ConnType<<8) + (Rack * 0x20) + Slot;
+        Target T = new Target();
+        T.Index = Targets.size();
+        T.Address = new InetSocketAddress(Address, RemotePort);
+        T.RemoteTSAP_HI = (byte) (RemoteTSAP>>8);
+        T.RemoteTSAP_LO = (byte) (RemoteTSAP & 0x00FF);
+        T.Area = Area;
+        T.DBNumber = DBNumber;
+        T.Start = Start;
+        T.Amount = Amount;
+        T.Interval = Interval;
+        T.WordSize = ((Area==S7.S7AreaCT) || (Area==S7.S7AreaTM)) ? 2 : 1;
+        T.Data = new byte[Amount*T.WordSize];
+        Targets.add(T);
+        return T.Index;
+    }
+
+    // Applies to the targets added afterwards
+    public void SetConnectionType(short ConnectionType)
+    {
+        ConnType=ConnectionType;
+    }
+
+    // Applies to the targets added afterwards, 102 (ISOTCP) by default
+    public void SetRemotePort(int Port)
+    {
+        RemotePort=Port;
+    }
+
+    public void SetPduSizeRequested(int Value)
+    {
+        PduSizeRequested=Math.max(S7Client.MinPduSizeRequested, Math.min(Value, S7Client.MaxPduSizeRequested));
+    }
+
+    // Timeouts in ms, for the TCP connection and for every reply
+    public void SetTimeouts(int ConnectTimeout, int RecvTimeout)
+    {
+        this.ConnectTimeout=ConnectTimeout;
+        this.RecvTimeout=RecvTimeout;
+    }
+
+    // First delay (ms) before to reconnect, doubled at every failure
+    public void SetReconnectDelay(int Value)
+    {
+        ReconnectDelay=Value;
+    }
+
+    public synchronized int Start()
+    {
+        if (Running)
+            return 0;
+        try {
+            PollSelector = Selector.open();
+        } catch (IOException ex) {
+            return S7Client.errTCPConnectionFailed;
+        }
+        long Now = Now();
+        for (Target T : Targets)
+        {
+            T.State = StIdle;
+            T.Deadline = Now;
+        }
+        Running = true;
+        PollThread = new Thread(this::Loop, "S7Poller");
+        PollThread.setDaemon(true);
+        PollThread.start();
+        return 0;
+    }
+
+    public void Stop()
+    {
+        Thread Poller;
+        synchronized (this)
+        {
+            if (!Running)
+                return;
+            Running = false;
+            Poller = PollThread;
+            PollSelector.wakeup();
+        }
+        try {
+            Poller.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean Running()
+    {
+        return Running;
+    }
+
+    private static long Now()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void Loop()
+    {
+        while (Running)
+        {
+            long Now = Now();
+            long Next = Now + 1000;
+            for (Target T : Targets)
+            {
+                if (T.Deadline<=Now)
+                    Expired(T, Now);
+                if (T.Deadline<Next)
+                    Next = T.Deadline;
+            }
+            try {
+                PollSelector.select(Math.max(1, Next-Now()));
+            } catch (IOException ex) {
+                break;
+            }
+            Iterator<SelectionKey> Keys = PollSelector.selectedKeys().iterator();
+            while (Keys.hasNext())
+            {
+                SelectionKey Key = Keys.next();
+                Keys.remove();
+                Target T = (Target) Key.attachment();
+                try {
+                    if (Key.isConnectable())
+                        Connected(T);
+                    else
+                    {
+                        if (Key.isWritable())
+                            Flush(T);
+                        if (Key.isReadable())
+                            Received(T);
+                    }
+                } catch (IOException | java.nio.channels.CancelledKeyException ex) {
+                    Fail(T, T.State==StConnecting ? S7Client.errTCPConnectionFailed : S7Client.errTCPDataRecv);
+                }
+            }
+        }
+        for (Target T : Targets)
+            Close(T);
+        try {
+            PollSelector.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    // The deadline of a target is reached : next step or timeout
+    private void Expired(Target T, long Now)
+    {
+        switch (T.State)
+        {
+            case StIdle:
+                Open(T, Now);
+                break;
+            case StReady:
+                T.CycleStart = Now;
+                T.Offset = 0;
+                SendRead(T);
+                break;
+            case StConnecting:
+                Fail(T, S7Client.errTCPConnectionFailed);
+                break;
+            default:
+                Fail(T, S7Client.errTCPDataRecvTout);
+                break;
+        }
+    }
+
+    private void Open(Target T, long Now)
+    {
+        try {
+            T.Channel = SocketChannel.open();
+            T.Channel.configureBlocking(false);
+            T.Channel.socket().setTcpNoDelay(true);
+            T.In.clear();
+            T.State = StConnecting;
+            T.Deadline = Now + ConnectTimeout;
+            if (T.Channel.connect(T.Address))
+            {
+                T.Key = T.Channel.register(PollSelector, SelectionKey.OP_READ, T);
+                Connected(T);
+            }
+            else
+                T.Key = T.Channel.register(PollSelector, SelectionKey.OP_CONNECT, T);
+        } catch (IOException ex) {
+            Fail(T, S7Client.errTCPConnectionFailed);
+        }
+    }
+
+    // TCP connected : sends the ISO connection request
+    private void Connected(Target T) throws IOException
+    {
+        if (T.State!=StConnecting || !T.Channel.finishConnect())
+            return;
+        T.Key.interestOps(SelectionKey.OP_READ);
+        Setup(T, S7Client.ISO_CR);
+        T.Out.put(16, (byte) 0x01); // Local TSAP 0x0100
+        T.Out.put(17, (byte) 0x00);
+        T.Out.put(20, T.RemoteTSAP_HI);
+        T.Out.put(21, T.RemoteTSAP_LO);
+        Send(T, StIsoConnect);
+    }
+
+    private void SendRead(Target T)
+    {
+        byte[] Out = T.Out.array();
+        int MaxElements = (T.PDULength-18) / T.WordSize; // 18 = Reply telegram header
+        int NumElements = Math.min(MaxElements, T.Amount - T.Offset);
+        int Address = T.Start + T.Offset*T.WordSize;
+
+        Setup(T, S7Client.S7_RW);
+        T.Out.limit(S7Client.Size_RD);
+        T.Ref = (T.Ref+1) & 0xFFFF;
+        S7.SetWordAt(Out, 11, T.Ref);
+        if (T.Area==S7.S7AreaCT)
+            Out[22] = (byte) S7.S7WLCounter;
+        else if (T.Area==S7.S7AreaTM)
+            Out[22] = (byte) S7.S7WLTimer;
+        else
+            Address = Address<<3;
+        S7.SetWordAt(Out, 23, NumElements);
+        if (T.Area==S7.S7AreaDB)
+            S7.SetWordAt(Out, 25, T.DBNumber);
+        Out[27] = (byte) T.Area;
+        Out[28] = (byte) ((Address >> 16) & 0x0FF);
+        Out[29] = (byte) ((Address >> 8) & 0x0FF);
+        Out[30] = (byte) (Address & 0x0FF);
+        T.Chunk = NumElements;
+        Send(T, StReading);
+    }
+
+    // Copies a telegram template into the output buffer of the target
+    private void Setup(Target T, byte[] Template)
+    {
+        T.Out.clear();
+        T.Out.put(Template);
+        T.Out.flip();
+    }
+
+    private void Send(Target T, int NextState)
+    {
+        T.State = NextState;
+        T.Deadline = Now() + RecvTimeout;
+        try {
+            Flush(T);
+        } catch (IOException ex) {
+            Fail(T, S7Client.errTCPDataSend);
+        }
+    }
+
+    // Writes what the socket accepts, the rest when it becomes writable
+    private void Flush(Target T) throws IOException
+    {
+        T.Channel.write(T.Out);
+        if (T.Out.hasRemaining())
+            T.Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else
+            T.Key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Reads what is available and handles every complete ISO packet
+    private void Received(Target T) throws IOException
+    {
+        if (T.Channel.read(T.In)<0)
+        {
+            Fail(T, S7Client.errTCPConnectionReset);
+            return;
+        }
+        byte[] In = T.In.array();
+        while ((T.Key!=null) && (T.In.position()>=4))
+        {
+            int Size = S7.GetWordAt(In, 2);
+            if ((Size<S7Client.IsoHSize) || (Size>S7Client.MaxPduSize))
+            {
+                Fail(T, S7Client.errISOInvalidPDU);
+                return;
+            }
+            if (T.In.position()<Size)
+                break;
+            if (Size>S7Client.IsoHSize) // Skips the empty data packets
+                Packet(T, In, Size);
+            if (T.Key==null) // Failed while handling it
+                return;
+            T.In.flip();
+            T.In.position(Size);
+            T.In.compact();
+        }
+    }
+
+    private void Packet(Target T, byte[] In, int Size)
+    {
+        switch (T.State)
+        {
+            case StIsoConnect:
+                if ((Size==22) && (In[5]==(byte)0xD0)) // CC Connection confirm
+                {
+                    Setup(T, S7Client.S7_PN);
+                    S7.SetWordAt(T.Out.array(), 23, PduSizeRequested);
+                    Send(T, StNegotiating);
+                }
+                else
+                    Fail(T, S7Client.errISOConnectionFailed);
+                break;
+            case StNegotiating:
+                if ((Size==27) && (In[17]==0) && (In[18]==0))
+                {
+                    T.PDULength = Math.min(S7.GetWordAt(In, 25), PduSizeRequested);
+                    if (T.PDULength<=18+T.WordSize)
+                        Fail(T, S7Client.errISONegotiatingPDU);
+                    else
+                    {
+                        T.Failures = 0;
+                        T.State = StReady;
+                        T.Deadline = Now();
+                    }
+                }
+                else
+                    Fail(T, S7Client.errISONegotiatingPDU);
+                break;
+            case StReading:
+                if ((Size<S7Client.Size_RD_Reply) || (S7.GetWordAt(In, 11)!=T.Ref))
+                    Fail(T, S7Client.errS7InvalidPDU);
+                else if ((Size-S7Client.Size_RD_Reply==T.Chunk*T.WordSize) && (In[21]==(byte)0xFF))
+                {
+                    System.arraycopy(In, S7Client.Size_RD_Reply, T.Data, T.Offset*T.WordSize, T.Chunk*T.WordSize);
+                    T.Offset += T.Chunk;
+                    if (T.Offset<T.Amount)
+                        SendRead(T);
+                    else
+                        Cycle(T, 0);
+                }
+                else
+                    Cycle(T, S7Client.errS7DataRead); // The connection is still fine
+                break;
+            default:
+                Fail(T, S7Client.errS7InvalidPDU);
+                break;
+        }
+    }
+
+    // Publishes the cycle and schedules the next one
+    private void Cycle(Target T, int Error)
+    {
+        long Now = Now();
+        T.State = StReady;
+        T.Deadline = Math.max(Now, T.CycleStart + T.Interval);
+        Sink.OnResult(T.Index, Error, Error==0 ? T.Data : null);
+    }
+
+    // Closes the connection and schedules the next attempt
+    private void Fail(Target T, int Error)
+    {
+        Close(T);
+        long Delay = Math.min(MaxReconnectDelay, (long) ReconnectDelay << Math.min(T.Failures, 16));
+        T.Failures++;
+        T.State = StIdle;
+        T.Deadline = Now() + Delay/2 + (long) (Jitter.nextDouble() * (Delay/2));
+        Sink.OnResult(T.Index, Error, null);
+    }
+
+    private void Close(Target T)
+    {
+        if (T.Key!=null)
+            T.Key.cancel();
+        T.Key = null;
+        try {
+            if (T.Channel!=null)
+                T.Channel.close();
+        } catch (IOException ex) {
+        }
+        T.Channel = null;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+/**
+ * Last value of a string polled from the CPU. The raw bytes are kept so
+ * that a new String is only built when they change : a poll of an
+ * unchanged string allocates nothing.
+ */
+public class S7String {
+
+    private final boolean Printable;
+    private byte[] Raw = new byte[0];
+    private String Value = "";
+    private boolean Valid = false;
+
+    public S7String()
+    {
+        this(false);
+    }
+
+    // Printable : decoded as by S7.GetPrintableStringAt
+    public S7String(boolean Printable)
+    {
+        this.Printable=Printable;
+    }
+
+    // Returns true if the string changed since the last update (always on
+    // the first one)
+    public boolean Update(byte[] Buffer, int Pos, int MaxLen)
+    {
+        if (Valid && (Raw.length==MaxLen) && SameBytes(Buffer, Pos))
+            return false;
+
+        if (Raw.length!=MaxLen)
+            Raw=new byte[MaxLen];
+        System.arraycopy(Buffer, Pos, Raw, 0, MaxLen);
+        Value = Printable ? S7.GetPrintableStringAt(Raw, 0, MaxLen) : S7.GetStringAt(Raw, 0, MaxLen);
+        Valid=true;
+        return true;
+    }
+
+    public String Value()
+    {
+        return Value;
+    }
+
+    // Forgets the last value, the next update builds the string again
+    public void Reset()
+    {
+        Valid=false;
+    }
+
+    private boolean SameBytes(byte[] Buffer, int Pos)
+    {
+        for (int c = 0; c < Raw.length; c++)
+        {
+            if (Buffer[Pos+c]!=Raw[c])
+                return false;
+        }
+        return true;
+    }
+}
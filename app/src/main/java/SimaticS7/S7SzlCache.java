@@ -0,0 +1,192 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The static system status lists (module and component identification, CPU
+ * characteristics, communication capabilities) of the CPUs, keyed by serial
+ * number of the module.
+ * Can be shared by several S7Client (see S7Client.SetSzlCache) and saved
+ * between two runs.
+ */
+public class S7SzlCache {
+
+    private static final int FileVersion = 1;
+    private static final int MaxModules  = 64;
+    private static final int MaxLists    = 1024;  // Per module
+    private static final int MaxListSize = 65536; // Larger than any S7Szl buffer
+
+    private static class Item
+    {
+        int LENTHDR;
+        int N_DR;
+        byte[] Data;
+    }
+
+    // Least recently used module first
+    private final LinkedHashMap<String, HashMap<Integer, Item>> Modules =
+        new LinkedHashMap<String, HashMap<Integer, Item>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HashMap<Integer, Item>> Eldest)
+            {
+                return size()>MaxModules;
+            }
+        };
+    private boolean Modified = false;
+
+    // Lists which don't change while the module runs
+    public static boolean IsStatic(int ID)
+    {
+        switch (ID & 0x00FF)
+        {
+            case 0x11 : // Module identification
+            case 0x12 : // CPU characteristics
+            case 0x1C : // Component identification
+            case 0x31 : // Communication capabilities
+                return true;
+            default :
+                return false;
+        }
+    }
+
+    private static Integer Key(int ID, int Index)
+    {
+        return ((ID & 0xFFFF) << 16) | (Index & 0xFFFF);
+    }
+
+    // Copies a list of the module into SZL, false if not cached or too large
+    public synchronized boolean Get(String Module, int ID, int Index, S7Szl SZL)
+    {
+        HashMap<Integer, Item> Lists = Modules.get(Module);
+        Item I = Lists!=null ? Lists.get(Key(ID, Index)) : null;
+        if ((I==null) || (I.Data.length>SZL.Data.length))
+            return false;
+        SZL.LENTHDR=I.LENTHDR;
+        SZL.N_DR=I.N_DR;
+        SZL.DataSize=I.Data.length;
+        SZL.Copy(I.Data, 0, 0, I.Data.length);
+        return true;
+    }
+
+    // Lists beyond the limits of Load are not cached
+    public synchronized void Put(String Module, int ID, int Index, S7Szl SZL)
+    {
+        if ((SZL.DataSize<0) || (SZL.DataSize>MaxListSize))
+            return;
+        HashMap<Integer, Item> Lists = Modules.get(Module);
+        if (Lists==null)
+        {
+            Lists = new HashMap<>();
+            Modules.put(Module, Lists);
+        }
+        if ((Lists.size()>=MaxLists) && !Lists.containsKey(Key(ID, Index)))
+            return;
+        Item I = new Item();
+        I.LENTHDR=SZL.LENTHDR;
+        I.N_DR=SZL.N_DR;
+        I.Data=new byte[SZL.DataSize];
+        System.arraycopy(SZL.Data, 0, I.Data, 0, SZL.DataSize);
+        Lists.put(Key(ID, Index), I);
+        Modified=true;
+    }
+
+    public synchronized void Invalidate(String Module)
+    {
+        if (Modules.remove(Module)!=null)
+            Modified=true;
+    }
+
+    public synchronized void Clear()
+    {
+        if (!Modules.isEmpty())
+            Modified=true;
+        Modules.clear();
+    }
+
+    public synchronized int ModulesCount()
+    {
+        return Modules.size();
+    }
+
+    // True if the content changed since created, loaded or saved
+    public synchronized boolean Modified()
+    {
+        return Modified;
+    }
+
+    public synchronized void Save(OutputStream Stream) throws IOException
+    {
+        DataOutputStream Out = new DataOutputStream(Stream);
+        Out.writeInt(FileVersion);
+        Out.writeInt(Modules.size());
+        for (Map.Entry<String, HashMap<Integer, Item>> Module : Modules.entrySet())
+        {
+            Out.writeUTF(Module.getKey());
+            Out.writeInt(Module.getValue().size());
+            for (Map.Entry<Integer, Item> List : Module.getValue().entrySet())
+            {
+                Item I = List.getValue();
+                Out.writeInt(List.getKey());
+                Out.writeShort(I.LENTHDR);
+                Out.writeShort(I.N_DR);
+                Out.writeInt(I.Data.length);
+                Out.write(I.Data);
+            }
+        }
+        Out.flush();
+        Modified=false;
+    }
+
+    // Replaces the content by a saved one. An unknown format leaves it empty,
+    // as does a damaged one, which throws an IOException.
+    public synchronized void Load(InputStream Stream) throws IOException
+    {
+        DataInputStream In = new DataInputStream(Stream);
+        Modules.clear();
+        Modified=false;
+        if (In.readInt()!=FileVersion)
+            return;
+        int ModulesCount = Count(In.readInt(), MaxModules);
+        LinkedHashMap<String, HashMap<Integer, Item>> Loaded = new LinkedHashMap<>();
+        for (int m = 0; m < ModulesCount; m++)
+        {
+            String Module = In.readUTF();
+            int ListsCount = Count(In.readInt(), MaxLists);
+            HashMap<Integer, Item> Lists = new HashMap<>();
+            for (int l = 0; l < ListsCount; l++)
+            {
+                Integer Key = In.readInt();
+                Item I = new Item();
+                I.LENTHDR=In.readUnsignedShort();
+                I.N_DR=In.readUnsignedShort();
+                I.Data=new byte[Count(In.readInt(), MaxListSize)];
+                In.readFully(I.Data);
+                Lists.put(Key, I);
+            }
+            Loaded.put(Module, Lists);
+        }
+        Modules.putAll(Loaded);
+    }
+
+    // A count or a length read from a saved content, within 0..Max
+    private static int Count(int Value, int Max) throws IOException
+    {
+        if ((Value<0) || (Value>Max))
+            throw new IOException("Damaged SZL cache: "+Value+" out of 0.."+Max);
+        return Value;
+    }
+}
@@ -46,11 +46,13 @@ import be.heh.plcmonitor.preference.ControlLevelPreference;
 import be.heh.plcmonitor.preference.PillsPreferenceFragment;
 import be.heh.plcmonitor.preference.SettingsPreferenceFragment;
 import be.heh.plcmonitor.model.User;
+import be.heh.plcmonitor.s7.PlcConnectionPool;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -69,6 +71,11 @@ public class MainActivity extends Activity
      */
     public static final int LOGIN = 1;
 
+    /**
+     * File keeping the identity of the PLCs between two runs.
+     */
+    private static final String SZL_CACHE_FILE_NAME = "szl.cache";
+
     /**
      * Injections.
      */
@@ -123,6 +130,8 @@ public class MainActivity extends Activity
         setContentView(R.layout.activity_main);
 
         SQLiteDatabase.loadLibs(this);
+        PlcConnectionPool.getInstance().setSzlCacheFile(
+                new File(getFilesDir(), SZL_CACHE_FILE_NAME));
 
         ApplicationComponent applicationComponent =
                 DaggerApplicationComponent.builder()
@@ -244,11 +253,9 @@ public class MainActivity extends Activity
     public void onBackPressed() {
         if (ControlLevelPreference.isRunning.get()) {
             ControlLevelPreference.readThread.interrupt();
-            ControlLevelPreference.plcConnection.close();
             ControlLevelPreference.isRunning.set(false);
         } else if (PillsPreferenceFragment.isRunning.get()) {
             PillsPreferenceFragment.readThread.interrupt();
-            PillsPreferenceFragment.plcConnection.close();
             PillsPreferenceFragment.isRunning.set(false);
         }
 
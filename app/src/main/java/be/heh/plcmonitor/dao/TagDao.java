@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.heh.plcmonitor.dao;
+
+import be.heh.plcmonitor.model.Plc;
+import be.heh.plcmonitor.model.Tag;
+
+import java.util.List;
+
+/**
+ * DAO interface for the Tag entity.
+ *
+ * @author Terencio Agozzino
+ */
+public interface TagDao extends GenericDao<Tag> {
+
+    /**
+     * Retrieves the tags of the data block of a PLC.
+     *
+     * @param plc the given PLC
+     * @return the list of the tags of the PLC, empty if none is defined
+     */
+    List<Tag> getTagsByPlc(Plc plc);
+
+    /**
+     * Retrieves the tags of a PLC, defining them first from the given
+     * default layout if none is defined yet.
+     *
+     * @param plc the given PLC
+     * @param defaultTags the tags to define if the PLC has none
+     * @return the list of the tags of the PLC
+     */
+    List<Tag> getTagsByPlc(Plc plc, List<Tag> defaultTags);
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.heh.plcmonitor.dao;
+
+import be.heh.plcmonitor.database.DatabaseHelper;
+import be.heh.plcmonitor.model.Plc;
+import be.heh.plcmonitor.model.Tag;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implements basic DAO operations for the Tag entity.
+ *
+ * @author Terencio Agozzino
+ */
+public class TagDaoImpl extends GenericDaoImpl<Tag> implements TagDao {
+
+    /**
+     * Default constructor that retrieves the DAO of the OrmLite implementation
+     * of Tag objects.
+     *
+     * @param databaseHelper the database helper
+     * @throws SQLException when DatabaseHelper class contains invalid SQL annotations
+     */
+    public TagDaoImpl(DatabaseHelper databaseHelper) throws SQLException {
+        super(databaseHelper.getTagDao());
+    }
+
+    /**
+     * Retrieves the tags of the data block of a PLC.
+     *
+     * @param plc the given PLC
+     * @return the list of the tags of the PLC, empty if none is defined
+     */
+    @Override
+    public List<Tag> getTagsByPlc(Plc plc) {
+        try {
+            return dao.query(dao.queryBuilder()
+                    .orderBy(Tag.ID_FIELD_NAME, true)
+                    .where().eq(Tag.PLC_ID_FIELD_NAME, plc.getId())
+                    .prepare());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return new ArrayList<>();
+    }
+
+    /**
+     * Retrieves the tags of a PLC, defining them first from the given
+     * default layout if none is defined yet.
+     *
+     * @param plc the given PLC
+     * @param defaultTags the tags to define if the PLC has none
+     * @return the list of the tags of the PLC
+     */
+    @Override
+    public List<Tag> getTagsByPlc(Plc plc, List<Tag> defaultTags) {
+        List<Tag> tags = getTagsByPlc(plc);
+        if (!tags.isEmpty()) return tags;
+
+        try {
+            dao.create(defaultTags);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return defaultTags;
+    }
+}
@@ -25,6 +25,7 @@ import be.heh.plcmonitor.model.DataBlock;
 import be.heh.plcmonitor.model.Plc;
 import be.heh.plcmonitor.model.User;
 import be.heh.plcmonitor.model.PlcUser;
+import be.heh.plcmonitor.model.Tag;
 
 import com.j256.ormlite.cipher.android.apptools.OrmLiteSqliteOpenHelper;
 import com.j256.ormlite.dao.Dao;
@@ -67,7 +68,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
      * Database version that may have to be increase at any changes to the
      * database objects.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
 
     /**
      * Retrieves and hold the contents of the key
@@ -86,6 +87,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     private Dao<Plc, Integer> plcDao;
     private Dao<User, Integer> userDao;
     private Dao<PlcUser, Integer> plcUserDao;
+    private Dao<Tag, Integer> tagDao;
 
     /**
      * RuntimeException for DAO object used to access the different tables.
@@ -94,6 +96,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     private RuntimeExceptionDao<Plc, Integer> plcRuntimeDao;
     private RuntimeExceptionDao<PlcUser, Integer> plcUserRuntimeDao;
     private RuntimeExceptionDao<User, Integer> userRuntimeDao;
+    private RuntimeExceptionDao<Tag, Integer> tagRuntimeDao;
 
     /**
      * Main constructor of the helper class.
@@ -145,11 +148,13 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             userDao = DaoManager.createDao(connectionSource, User.class);
             plcDao = DaoManager.createDao(connectionSource, Plc.class);
             plcUserDao = DaoManager.createDao(connectionSource, PlcUser.class);
+            tagDao = DaoManager.createDao(connectionSource, Tag.class);
 
             TableUtils.createTable(connectionSource, DataBlock.class);
             TableUtils.createTable(connectionSource, Plc.class);
             TableUtils.createTable(connectionSource, PlcUser.class);
             TableUtils.createTable(connectionSource, User.class);
+            TableUtils.createTable(connectionSource, Tag.class);
         } catch (SQLException e) {
             Log.e(TAG, "Unable to create database", e);
             throw new RuntimeException(e);
@@ -172,10 +177,30 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
                           ConnectionSource connectionSource,
                           int oldVersion, int newVersion) {
         try {
+            if (oldVersion <= 3) {
+                // Version 2 adds the PDU size of the PLCs
+                if (oldVersion == 1) {
+                    sqliteDatabase.execSQL("ALTER TABLE plc ADD COLUMN " +
+                            Plc.PDU_SIZE_FIELD_NAME +
+                            " INTEGER NOT NULL DEFAULT " + Plc.DEFAULT_PDU_SIZE);
+                }
+                // Version 3 adds the time budget of the PLCs
+                if (oldVersion <= 2) {
+                    sqliteDatabase.execSQL("ALTER TABLE plc ADD COLUMN " +
+                            Plc.TIMEOUT_FIELD_NAME +
+                            " INTEGER NOT NULL DEFAULT " + Plc.DEFAULT_TIMEOUT);
+                }
+                // Version 4 adds the tag layouts of the data blocks, the
+                // default ones are defined when a PLC is first monitored
+                TableUtils.createTable(connectionSource, Tag.class);
+                return;
+            }
+
             TableUtils.dropTable(connectionSource, DataBlock.class, true);
             TableUtils.dropTable(connectionSource, Plc.class, true);
             TableUtils.dropTable(connectionSource, PlcUser.class, true);
             TableUtils.dropTable(connectionSource, User.class, true);
+            TableUtils.dropTable(connectionSource, Tag.class, true);
             onCreate(sqliteDatabase, connectionSource);
         } catch (SQLException e) {
             Log.e(TAG, "Unable to upgrade database from version " +
@@ -323,6 +348,37 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         return userRuntimeDao;
     }
 
+    /**
+     * Creates or retrieves the DAO (Database Access Object) cached value
+     * for the Tag class.
+     *
+     * @return the DAO for the Tag class
+     * @throws SQLException when Tag class contains invalid SQL annotations
+     */
+    public Dao<Tag, Integer> getTagDao() throws SQLException {
+        if (tagDao == null) {
+            tagDao = getDao(Tag.class);
+        }
+
+        return tagDao;
+    }
+
+    /**
+     * Creates or retrieves the RuntimeExceptionDao cached value version of a
+     * DAO (Database Access Object) for the Tag class.
+     *
+     * This method should be called only through RuntimeExceptions.
+     *
+     * @return the RuntimeExceptionDao for the Tag class
+     */
+    public RuntimeExceptionDao<Tag, Integer> getTagDataDao() {
+        if (tagRuntimeDao == null) {
+            tagRuntimeDao = getRuntimeExceptionDao(Tag.class);
+        }
+
+        return tagRuntimeDao;
+    }
+
     /**
      * Closes the database connection and clear any cached DAOs.
      */
@@ -334,11 +390,13 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         plcDao = null;
         userDao = null;
         plcUserDao = null;
+        tagDao = null;
 
         dataBlockRuntimeDao = null;
         plcRuntimeDao = null;
         userRuntimeDao = null;
         plcUserRuntimeDao = null;
+        tagRuntimeDao = null;
     }
 
     /**
@@ -21,6 +21,7 @@ import android.content.Context;
 import be.heh.plcmonitor.dao.DataBlockDaoImpl;
 import be.heh.plcmonitor.dao.PlcDaoImpl;
 import be.heh.plcmonitor.dao.PlcUserDaoImpl;
+import be.heh.plcmonitor.dao.TagDaoImpl;
 import be.heh.plcmonitor.dao.UserDaoImpl;
 
 import dagger.Module;
@@ -145,4 +146,22 @@ public class DatabaseModule {
 
         return null;
     }
+
+    /**
+     * Provides the only instance of the TagDaoImpl using Singleton.
+     *
+     * @param databaseHelper the database helper
+     * @return the only instance of the TagDaoImpl
+     */
+    @Provides
+    @Singleton
+    public TagDaoImpl provideTagDaoImpl(DatabaseHelper databaseHelper) {
+        try {
+            return new TagDaoImpl(databaseHelper);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
 }
\ No newline at end of file
@@ -82,6 +82,8 @@ public class AddPlcFragment extends Fragment {
     private TextView mPlcIpView;
     private TextView mPlcRackView;
     private TextView mPlcSlotView;
+    private TextView mPlcPduSizeView;
+    private TextView mPlcTimeoutView;
 
     /**
      * Keeps the current user in memory to easily add the PLC to his
@@ -158,6 +160,24 @@ public class AddPlcFragment extends Fragment {
             return false;
         });
 
+        mPlcPduSizeView = view.findViewById(R.id.txtPlcPduSize);
+        mPlcPduSizeView.setOnEditorActionListener((textView, id, keyEvent) -> {
+            if (id == EditorInfo.IME_ACTION_DONE || id == EditorInfo.IME_NULL) {
+                attemptAddPlc();
+                return true;
+            }
+            return false;
+        });
+
+        mPlcTimeoutView = view.findViewById(R.id.txtPlcTimeout);
+        mPlcTimeoutView.setOnEditorActionListener((textView, id, keyEvent) -> {
+            if (id == EditorInfo.IME_ACTION_DONE || id == EditorInfo.IME_NULL) {
+                attemptAddPlc();
+                return true;
+            }
+            return false;
+        });
+
         Button mAddButton = view.findViewById(R.id.btn_add);
         mAddButton.setOnClickListener(v -> attemptAddPlc());
 
@@ -175,12 +195,16 @@ public class AddPlcFragment extends Fragment {
         mPlcIpView.setError(null);
         mPlcRackView.setError(null);
         mPlcSlotView.setError(null);
+        mPlcPduSizeView.setError(null);
+        mPlcTimeoutView.setError(null);
 
         // Store values at the time of the adding PLC attempt.
         String plcName = mPlcNameView.getText().toString();
         String plcIp = mPlcIpView.getText().toString();
         String plcRack = mPlcRackView.getText().toString();
         String plcSlot = mPlcSlotView.getText().toString();
+        String plcPduSize = mPlcPduSizeView.getText().toString();
+        String plcTimeout = mPlcTimeoutView.getText().toString();
 
         boolean cancel = false;
         View focusView = null;
@@ -229,12 +253,32 @@ public class AddPlcFragment extends Fragment {
             cancel = true;
         }
 
+        // Check for a valid PDU size, the default one if not specified.
+        if (TextUtils.isEmpty(plcPduSize)) {
+            plcPduSize = String.valueOf(Plc.DEFAULT_PDU_SIZE);
+        } else if (!Validator.isValidPduSize(plcPduSize)) {
+            mPlcPduSizeView.setError(getString(R.string.error_invalid_pdu_size));
+            focusView = mPlcPduSizeView;
+            cancel = true;
+        }
+
+        // Check for a valid timeout, none if not specified.
+        if (TextUtils.isEmpty(plcTimeout)) {
+            plcTimeout = String.valueOf(Plc.DEFAULT_TIMEOUT);
+        } else if (!Validator.isValidTimeout(plcTimeout)) {
+            mPlcTimeoutView.setError(getString(R.string.error_invalid_timeout));
+            focusView = mPlcTimeoutView;
+            cancel = true;
+        }
+
         if (cancel) {
             // There was an error; don't attempt register and focus the first
             // form field with an error.
             focusView.requestFocus();
         } else {
-            createPlc(plcName, plcIp, Integer.parseInt(plcRack), Integer.parseInt(plcSlot))
+            createPlc(plcName, plcIp, Integer.parseInt(plcRack),
+                    Integer.parseInt(plcSlot), Integer.parseInt(plcPduSize),
+                    Integer.parseInt(plcTimeout))
                     .subscribeOn(Schedulers.io())
                     .observeOn(AndroidSchedulers.mainThread())
                     .subscribeWith(new DisposableCompletableObserver() {
@@ -272,11 +316,16 @@ public class AddPlcFragment extends Fragment {
      * @param ip the IP address of the PLC
      * @param rack the rack of the PLC
      * @param slot the slot of the PLC
+     * @param pduSize the PDU size requested to the PLC
+     * @param timeout the time budget of an operation on the PLC
      * @return the new Completable instance
      */
-    public Completable createPlc(String name, String ip, int rack, int slot) {
+    public Completable createPlc(String name, String ip, int rack, int slot,
+                                 int pduSize, int timeout) {
         return Completable.create(emitter -> {
             mPlc = new Plc(name, ip, rack, slot, null);
+            mPlc.setPduSize(pduSize);
+            mPlc.setTimeout(timeout);
             plcDaoImpl.create(mPlc);
             plcUserDaoImpl.create(new PlcUser(mPlc, mUser));
 
@@ -95,6 +95,8 @@ public class EditPlcFragment extends Fragment {
     private TextView mPlcIpView;
     private TextView mPlcRackView;
     private TextView mPlcSlotView;
+    private TextView mPlcPduSizeView;
+    private TextView mPlcTimeoutView;
 
     private TextView mDbAmountView;
     private TextView mDbNumberView;
@@ -159,6 +161,24 @@ public class EditPlcFragment extends Fragment {
             return false;
         });
 
+        mPlcPduSizeView = view.findViewById(R.id.txtPlcPduSize);
+        mPlcPduSizeView.setOnEditorActionListener((textView, id, keyEvent) -> {
+            if (id == EditorInfo.IME_ACTION_DONE || id == EditorInfo.IME_NULL) {
+                attemptEdit();
+                return true;
+            }
+            return false;
+        });
+
+        mPlcTimeoutView = view.findViewById(R.id.txtPlcTimeout);
+        mPlcTimeoutView.setOnEditorActionListener((textView, id, keyEvent) -> {
+            if (id == EditorInfo.IME_ACTION_DONE || id == EditorInfo.IME_NULL) {
+                attemptEdit();
+                return true;
+            }
+            return false;
+        });
+
         mDbAmountView = view.findViewById(R.id.txtDbAmount);
         mDbAmountView.setOnEditorActionListener((textView, id, keyEvent) -> {
             if (id == EditorInfo.IME_ACTION_DONE || id == EditorInfo.IME_NULL) {
@@ -241,12 +261,16 @@ public class EditPlcFragment extends Fragment {
         mPlcIpView.setError(null);
         mPlcRackView.setError(null);
         mPlcSlotView.setError(null);
+        mPlcPduSizeView.setError(null);
+        mPlcTimeoutView.setError(null);
 
         // Store values at the time of the adding PLC attempt.
         String plcName = mPlcNameView.getText().toString();
         String plcIp = mPlcIpView.getText().toString();
         String plcRack = mPlcRackView.getText().toString();
         String plcSlot = mPlcSlotView.getText().toString();
+        String plcPduSize = mPlcPduSizeView.getText().toString();
+        String plcTimeout = mPlcTimeoutView.getText().toString();
 
         String dbAmount = mDbAmountView.getText().toString();
         String dbNumber = mDbNumberView.getText().toString();
@@ -300,6 +324,24 @@ public class EditPlcFragment extends Fragment {
             cancel = true;
         }
 
+        // Check for a valid PDU size, the default one if not specified.
+        if (TextUtils.isEmpty(plcPduSize)) {
+            plcPduSize = String.valueOf(Plc.DEFAULT_PDU_SIZE);
+        } else if (!Validator.isValidPduSize(plcPduSize)) {
+            mPlcPduSizeView.setError(getString(R.string.error_invalid_pdu_size));
+            focusView = mPlcPduSizeView;
+            cancel = true;
+        }
+
+        // Check for a valid timeout, none if not specified.
+        if (TextUtils.isEmpty(plcTimeout)) {
+            plcTimeout = String.valueOf(Plc.DEFAULT_TIMEOUT);
+        } else if (!Validator.isValidTimeout(plcTimeout)) {
+            mPlcTimeoutView.setError(getString(R.string.error_invalid_timeout));
+            focusView = mPlcTimeoutView;
+            cancel = true;
+        }
+
         // Check for a valid data block amount.
         if (TextUtils.isEmpty(dbAmount)) {
             mDbAmountView.setError(getString(R.string.error_field_required));
@@ -338,7 +380,9 @@ public class EditPlcFragment extends Fragment {
             // form field with an error.
             focusView.requestFocus();
         } else {
-            editPlc(plcName, plcIp, Integer.valueOf(plcRack), Integer.valueOf(plcSlot))
+            editPlc(plcName, plcIp, Integer.valueOf(plcRack),
+                    Integer.valueOf(plcSlot), Integer.valueOf(plcPduSize),
+                    Integer.valueOf(plcTimeout))
                     .subscribeOn(Schedulers.io())
                     .observeOn(AndroidSchedulers.mainThread())
                     .subscribeWith(new DisposableCompletableObserver() {
@@ -437,14 +481,19 @@ public class EditPlcFragment extends Fragment {
      * @param ip   the IP address of the PLC
      * @param rack the rack of the PLC
      * @param slot the slot of the PLC
+     * @param pduSize the PDU size requested to the PLC
+     * @param timeout the time budget of an operation on the PLC
      * @return the new Completable instance
      */
-    public Completable editPlc(String name, String ip, int rack, int slot) {
+    public Completable editPlc(String name, String ip, int rack, int slot,
+                               int pduSize, int timeout) {
         return Completable.create(emitter -> {
             mPlc.setName(name);
             mPlc.setIp(ip);
             mPlc.setRack(rack);
             mPlc.setSlot(slot);
+            mPlc.setPduSize(pduSize);
+            mPlc.setTimeout(timeout);
             plcDaoImpl.update(mPlc);
 
             emitter.onComplete();
@@ -472,5 +521,7 @@ public class EditPlcFragment extends Fragment {
         mPlcIpView.setText(plc.getIp());
         mPlcRackView.setText(String.valueOf(plc.getRack()));
         mPlcSlotView.setText(String.valueOf(plc.getSlot()));
+        mPlcPduSizeView.setText(String.valueOf(plc.getPduSize()));
+        mPlcTimeoutView.setText(String.valueOf(plc.getTimeout()));
     }
 }
\ No newline at end of file
@@ -40,8 +40,22 @@ public class Plc implements Parcelable {
     public static final String NAME_FIELD_NAME = "name";
     public static final String RACK_FIELD_NAME= "rack";
     public static final String SLOT_FIELD_NAME = "slot";
+    public static final String PDU_SIZE_FIELD_NAME = "pdu_size";
+    public static final String TIMEOUT_FIELD_NAME = "timeout";
     public static final String DATA_BLOCK_ID_FIELD_NAME = "data_block_id";
 
+    /**
+     * PDU size requested by default, accepted by every S7 CPU.
+     */
+    public static final int DEFAULT_PDU_SIZE = 480;
+
+    /**
+     * Time budget of an operation by default (none) and at most, in
+     * milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 0;
+    public static final int MAX_TIMEOUT = 60000;
+
     /**
      * Properties with ORMLite annotations for the database.
      */
@@ -60,6 +74,14 @@ public class Plc implements Parcelable {
     @DatabaseField(columnName = SLOT_FIELD_NAME, canBeNull = false)
     private int slot;
 
+    @DatabaseField(columnName = PDU_SIZE_FIELD_NAME, defaultValue = "480",
+            canBeNull = false)
+    private int pduSize = DEFAULT_PDU_SIZE;
+
+    @DatabaseField(columnName = TIMEOUT_FIELD_NAME, defaultValue = "0",
+            canBeNull = false)
+    private int timeout = DEFAULT_TIMEOUT;
+
     @DatabaseField(foreign = true, columnName = DATA_BLOCK_ID_FIELD_NAME,
             index = true, foreignAutoRefresh = true)
     private DataBlock dataBlock;
@@ -103,6 +125,8 @@ public class Plc implements Parcelable {
         this.ip = source.readString();
         this.rack = source.readInt();
         this.slot = source.readInt();
+        this.pduSize = source.readInt();
+        this.timeout = source.readInt();
         this.dataBlock = (DataBlock) source.readValue(DataBlock.class.getClassLoader());
     }
 
@@ -190,6 +214,34 @@ public class Plc implements Parcelable {
      */
     public void setSlot(int slot) { this.slot = slot; }
 
+    /**
+     * Gets the PDU size requested to the PLC.
+     *
+     * @return the PDU size requested to the PLC
+     */
+    public int getPduSize() { return pduSize; }
+
+    /**
+     * Sets the PDU size requested to the PLC.
+     *
+     * @param pduSize the PDU size requested to the PLC
+     */
+    public void setPduSize(int pduSize) { this.pduSize = pduSize; }
+
+    /**
+     * Gets the time budget of an operation on the PLC, connecting included.
+     *
+     * @return the time budget in milliseconds, 0 for none
+     */
+    public int getTimeout() { return timeout; }
+
+    /**
+     * Sets the time budget of an operation on the PLC, connecting included.
+     *
+     * @param timeout the time budget in milliseconds, 0 for none
+     */
+    public void setTimeout(int timeout) { this.timeout = timeout; }
+
     /**
      * Specifies whether two PLCs are the same.
      *
@@ -211,6 +263,8 @@ public class Plc implements Parcelable {
                 ", ip='" + ip + '\'' +
                 ", rack=" + rack + '\'' +
                 ", slot=" + slot + '\'' +
+                ", pduSize=" + pduSize + '\'' +
+                ", timeout=" + timeout + '\'' +
                 ", dataBlock=" + dataBlock + '\'' +
                 '}';
     }
@@ -246,6 +300,8 @@ public class Plc implements Parcelable {
         dest.writeString(ip);
         dest.writeInt(rack);
         dest.writeInt(slot);
+        dest.writeInt(pduSize);
+        dest.writeInt(timeout);
         dest.writeParcelable(dataBlock, flags);
     }
 
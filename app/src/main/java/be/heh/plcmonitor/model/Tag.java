@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.model;
+
+import com.j256.ormlite.field.DatabaseField;
+
+/**
+ * A base model class for a tag of the data block of a PLC: a named value
+ * at a given offset, with its type and its scaling.
+ *
+ * @author Terencio Agozzino
+ */
+public class Tag {
+
+    /**
+     * Database field names.
+     */
+    public static final String ID_FIELD_NAME = "id";
+    public static final String PLC_ID_FIELD_NAME = "plc_id";
+    public static final String NAME_FIELD_NAME = "name";
+    public static final String TYPE_FIELD_NAME = "type";
+    public static final String OFFSET_FIELD_NAME = "offset";
+    public static final String BIT_FIELD_NAME = "bit";
+    public static final String SCALE_FIELD_NAME = "scale";
+    public static final String BIAS_FIELD_NAME = "bias";
+
+    /**
+     * Types of the tags.
+     */
+    public static final int TYPE_BOOL = 0;
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_WORD = 2;
+    public static final int TYPE_INT = 3;
+    public static final int TYPE_DWORD = 4;
+    public static final int TYPE_DINT = 5;
+    public static final int TYPE_REAL = 6;
+    public static final int TYPES_COUNT = 7;
+
+    /**
+     * Properties with ORMLite annotations for the database.
+     */
+    @DatabaseField(generatedId = true, columnName = ID_FIELD_NAME)
+    private int id;
+
+    @DatabaseField(foreign = true, columnName = PLC_ID_FIELD_NAME,
+            canBeNull = false, index = true)
+    private Plc plc;
+
+    @DatabaseField(columnName = NAME_FIELD_NAME, canBeNull = false)
+    private String name;
+
+    @DatabaseField(columnName = TYPE_FIELD_NAME, canBeNull = false)
+    private int type;
+
+    @DatabaseField(columnName = OFFSET_FIELD_NAME, canBeNull = false)
+    private int offset;
+
+    @DatabaseField(columnName = BIT_FIELD_NAME, canBeNull = false)
+    private int bit;
+
+    @DatabaseField(columnName = SCALE_FIELD_NAME, canBeNull = false,
+            defaultValue = "1")
+    private double scale = 1;
+
+    @DatabaseField(columnName = BIAS_FIELD_NAME, canBeNull = false,
+            defaultValue = "0")
+    private double bias;
+
+    /**
+     * Default constructor of the Tag class needed for ORMLite.
+     */
+    public Tag() { }
+
+    /**
+     * Constructor of an unscaled tag.
+     *
+     * @param plc the PLC of the tag
+     * @param name the name of the tag, unique for the PLC
+     * @param type the type of the tag (TYPE_BOOL...)
+     * @param offset the byte offset of the tag inside the data block
+     * @param bit the bit of the tag for TYPE_BOOL; must be 0 for the other
+     *            types, which TagLayout rejects otherwise
+     */
+    public Tag(Plc plc, String name, int type, int offset, int bit) {
+        this(plc, name, type, offset, bit, 1, 0);
+    }
+
+    /**
+     * Main constructor of the Tag class.
+     *
+     * @param plc the PLC of the tag
+     * @param name the name of the tag, unique for the PLC
+     * @param type the type of the tag (TYPE_BOOL...)
+     * @param offset the byte offset of the tag inside the data block
+     * @param bit the bit of the tag for TYPE_BOOL; must be 0 for the other
+     *            types, which TagLayout rejects otherwise
+     * @param scale the factor applied to the raw value
+     * @param bias the value added to the scaled value
+     */
+    public Tag(Plc plc, String name, int type, int offset, int bit,
+               double scale, double bias) {
+        this.plc = plc;
+        this.name = name;
+        this.type = type;
+        this.offset = offset;
+        this.bit = bit;
+        this.scale = scale;
+        this.bias = bias;
+    }
+
+    /**
+     * Gets the size of a type inside the data block.
+     *
+     * @param type the type of a tag (TYPE_BOOL...)
+     * @return the size of the type in bytes
+     */
+    public static int sizeOf(int type) {
+        switch (type) {
+            case TYPE_WORD:
+            case TYPE_INT:
+                return 2;
+            case TYPE_DWORD:
+            case TYPE_DINT:
+            case TYPE_REAL:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Gets the PLC of the tag.
+     *
+     * @return the PLC of the tag
+     */
+    public Plc getPlc() { return plc; }
+
+    /**
+     * Sets the PLC of the tag.
+     *
+     * @param plc the PLC of the tag
+     */
+    public void setPlc(Plc plc) { this.plc = plc; }
+
+    /**
+     * Gets the name of the tag.
+     *
+     * @return the name of the tag
+     */
+    public String getName() { return name; }
+
+    /**
+     * Sets the name of the tag.
+     *
+     * @param name the name of the tag
+     */
+    public void setName(String name) { this.name = name; }
+
+    /**
+     * Gets the type of the tag.
+     *
+     * @return the type of the tag (TYPE_BOOL...)
+     */
+    public int getType() { return type; }
+
+    /**
+     * Sets the type of the tag.
+     *
+     * @param type the type of the tag (TYPE_BOOL...)
+     */
+    public void setType(int type) { this.type = type; }
+
+    /**
+     * Gets the byte offset of the tag inside the data block.
+     *
+     * @return the byte offset of the tag
+     */
+    public int getOffset() { return offset; }
+
+    /**
+     * Sets the byte offset of the tag inside the data block.
+     *
+     * @param offset the byte offset of the tag
+     */
+    public void setOffset(int offset) { this.offset = offset; }
+
+    /**
+     * Gets the bit of the tag.
+     *
+     * @return the bit of the tag for TYPE_BOOL; 0 for the other types
+     */
+    public int getBit() { return bit; }
+
+    /**
+     * Sets the bit of the tag.
+     *
+     * @param bit the bit of the tag for TYPE_BOOL; must be 0 for the other
+     *            types
+     */
+    public void setBit(int bit) { this.bit = bit; }
+
+    /**
+     * Gets the factor applied to the raw value.
+     *
+     * @return the scale of the tag
+     */
+    public double getScale() { return scale; }
+
+    /**
+     * Sets the factor applied to the raw value.
+     *
+     * @param scale the scale of the tag
+     */
+    public void setScale(double scale) { this.scale = scale; }
+
+    /**
+     * Gets the value added to the scaled value.
+     *
+     * @return the bias of the tag
+     */
+    public double getBias() { return bias; }
+
+    /**
+     * Sets the value added to the scaled value.
+     *
+     * @param bias the bias of the tag
+     */
+    public void setBias(double bias) { this.bias = bias; }
+
+    /**
+     * Specifies the representation of the tag.
+     *
+     * @return the details of the tag
+     */
+    @Override
+    public String toString() {
+        return "Tag{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                ", type=" + type +
+                ", offset=" + offset +
+                ", bit=" + bit +
+                ", scale=" + scale +
+                ", bias=" + bias +
+                '}';
+    }
+}
@@ -16,79 +16,163 @@
 
 package be.heh.plcmonitor.plc;
 
-import SimaticS7.S7;
+import java.util.Arrays;
+import java.util.List;
+
+import be.heh.plcmonitor.model.Plc;
+import be.heh.plcmonitor.model.Tag;
 
 /**
- * A base model class for control level
+ * A base model class for control level, reading its values through the tag
+ * layout of its data block.
  *
  * @author Terencio Agozzino
  */
 public class ControlLevel {
 
-    private byte[] data;
+    /**
+     * Names of the tags.
+     */
+    public static final String MANUAL = "manual";
+    public static final String VALVE_1 = "valve_1";
+    public static final String VALVE_2 = "valve_2";
+    public static final String VALVE_3 = "valve_3";
+    public static final String VALVE_4 = "valve_4";
+    public static final String REMOTE = "remote";
+    public static final String WATER_LEVEL = "water_level";
+    public static final String SET_POINT = "set_point";
+    public static final String MANUAL_VALUE = "manual_value";
+    public static final String VALVE_CONTROL_WORD = "valve_control_word";
+
+    private final TagLayout layout;
+
+    private final int manual;
+    private final int valve1;
+    private final int valve2;
+    private final int valve3;
+    private final int valve4;
+    private final int remote;
+    private final int waterLevel;
+    private final int setPoint;
+    private final int manualValue;
+    private final int valveControlWord;
 
     /**
      * Main constructor of the ControlLevel class.
      *
+     * @param layout the tag layout of the data block
+     */
+    public ControlLevel(TagLayout layout) {
+        this.layout = layout;
+        manual = layout.indexOf(MANUAL);
+        valve1 = layout.indexOf(VALVE_1);
+        valve2 = layout.indexOf(VALVE_2);
+        valve3 = layout.indexOf(VALVE_3);
+        valve4 = layout.indexOf(VALVE_4);
+        remote = layout.indexOf(REMOTE);
+        waterLevel = layout.indexOf(WATER_LEVEL);
+        setPoint = layout.indexOf(SET_POINT);
+        manualValue = layout.indexOf(MANUAL_VALUE);
+        valveControlWord = layout.indexOf(VALVE_CONTROL_WORD);
+    }
+
+    /**
+     * Gets the tags of the data block of a control level, as wired on the
+     * training stands.
+     *
+     * @param plc the PLC of the control level
+     * @return the default tags of the control level
+     */
+    public static List<Tag> getDefaultTags(Plc plc) {
+        return Arrays.asList(
+                new Tag(plc, VALVE_1, Tag.TYPE_BOOL, 0, 1),
+                new Tag(plc, VALVE_2, Tag.TYPE_BOOL, 0, 2),
+                new Tag(plc, VALVE_3, Tag.TYPE_BOOL, 0, 3),
+                new Tag(plc, VALVE_4, Tag.TYPE_BOOL, 0, 4),
+                new Tag(plc, MANUAL, Tag.TYPE_BOOL, 0, 5),
+                new Tag(plc, REMOTE, Tag.TYPE_BOOL, 0, 6),
+                new Tag(plc, WATER_LEVEL, Tag.TYPE_WORD, 16, 0),
+                new Tag(plc, SET_POINT, Tag.TYPE_WORD, 18, 0),
+                new Tag(plc, MANUAL_VALUE, Tag.TYPE_WORD, 20, 0),
+                new Tag(plc, VALVE_CONTROL_WORD, Tag.TYPE_WORD, 22, 0));
+    }
+
+    /**
+     * Decodes new data of the data block.
+     *
      * @param data the data storage area of the data block
      */
-    public ControlLevel(byte[] data) { this.data = data; }
+    public void update(byte[] data) { layout.decode(data); }
+
+    /**
+     * Copies the last decoded values, to hand them over to another thread.
+     *
+     * @return a control level holding the current values
+     */
+    public ControlLevel copy() { return new ControlLevel(layout.copy()); }
+
+    /**
+     * Gets the tag layout of the data block.
+     *
+     * @return the tag layout
+     */
+    public TagLayout getLayout() { return layout; }
 
     /**
      * Checks whether the configuration is manual or automatic.
      *
      * @return true if the configuration is manual; false otherwise
      */
-    public boolean isManual() { return S7.GetBitAt(data, 0, 5); }
+    public boolean isManual() { return layout.getBoolean(manual); }
 
     /**
      * Checks if valve 1 is open.
      *
      * @return true if valve 1 is open; false otherwise
      */
-    public boolean isValve1Open() { return S7.GetBitAt(data, 0, 1); }
+    public boolean isValve1Open() { return layout.getBoolean(valve1); }
 
     /**
      * Checks if valve 2 is open.
      *
      * @return true if valve 2 is open; false otherwise
      */
-    public boolean isValve2Open() { return S7.GetBitAt(data, 0, 2); }
+    public boolean isValve2Open() { return layout.getBoolean(valve2); }
 
     /**
      * Checks if valve 3 is open.
      *
      * @return true if valve 3 is open; false otherwise
      */
-    public boolean isValve3Open() { return S7.GetBitAt(data, 0, 3); }
+    public boolean isValve3Open() { return layout.getBoolean(valve3); }
 
     /**
      * Checks if valve 4 is open.
      *
      * @return true if valve 4 is open; false otherwise
      */
-    public boolean isValve4Open() { return S7.GetBitAt(data, 0, 4); }
+    public boolean isValve4Open() { return layout.getBoolean(valve4); }
 
     /**
      * Checks the PLC remote connection status.
      *
      * @return true if the PLC is remotely controllable; false otherwise
      */
-    public boolean isRemotelyControllable() { return S7.GetBitAt(data, 0, 6); }
+    public boolean isRemotelyControllable() { return layout.getBoolean(remote); }
 
     /**
      * Get the manual value.
      *
      * @return the manual value.
      */
-    public int getManualValue() { return S7.GetWordAt(data, 20); }
+    public int getManualValue() { return (int) layout.getLong(manualValue); }
 
     /**
      * Gets the set point.
      *
      * @return the set point
      */
-    public int getSetPoint() { return S7.GetWordAt(data, 18); }
+    public int getSetPoint() { return (int) layout.getLong(setPoint); }
 
     /**
      * Get the valve control word.
@@ -96,12 +180,12 @@ public class ControlLevel {
      * @return the valve control word.
      *
      */
-    public int getValveControlWord() { return S7.GetWordAt(data, 22); }
+    public int getValveControlWord() { return (int) layout.getLong(valveControlWord); }
 
     /**
      *  Gets the water level.
      *
      * @return the water level
      */
-    public int getWaterLevel() { return S7.GetWordAt(data, 16); }
+    public int getWaterLevel() { return (int) layout.getLong(waterLevel); }
 }
\ No newline at end of file
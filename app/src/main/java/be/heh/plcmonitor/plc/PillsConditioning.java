@@ -16,65 +16,161 @@
 
 package be.heh.plcmonitor.plc;
 
-import SimaticS7.S7;
+import java.util.Arrays;
+import java.util.List;
+
+import be.heh.plcmonitor.model.Plc;
+import be.heh.plcmonitor.model.Tag;
 
 /**
- * A base model class for pills conditioning.
+ * A base model class for pills conditioning, reading its values through the
+ * tag layout of its data block.
  *
  * @author Terencio Agozzino
  */
 public class PillsConditioning {
 
-    private byte[] data;
+    /**
+     * Names of the tags.
+     */
+    public static final String FILLED_BOTTLES = "filled_bottles";
+    public static final String PRODUCED_BOTTLES = "produced_bottles";
+    public static final String PILLS_5_REQUEST = "pills_5_request";
+    public static final String PILLS_10_REQUEST = "pills_10_request";
+    public static final String PILLS_15_REQUEST = "pills_15_request";
+    public static final String CYLINDER = "cylinder";
+    public static final String EMPTY_BOTTLE = "empty_bottle";
+    public static final String EMPTY_BOTTLES_COMING_IN = "empty_bottles_coming_in";
+    public static final String OPEN_BOTTLE = "open_bottle";
+    public static final String PASSING_PILLS = "passing_pills";
+    public static final String REMOTE = "remote";
+    public static final String MOTOR_CONVEYOR = "motor_conveyor";
+    public static final String MOTOR_DISTRIBUTOR_PILLS = "motor_distributor_pills";
+
+    private final TagLayout layout;
+
+    private final int filledBottles;
+    private final int producedBottles;
+    private final int pills5Request;
+    private final int pills10Request;
+    private final int pills15Request;
+    private final int cylinder;
+    private final int emptyBottle;
+    private final int emptyBottlesComingIn;
+    private final int openBottle;
+    private final int passingPills;
+    private final int remote;
+    private final int motorConveyor;
+    private final int motorDistributorPills;
 
     /**
      * Main constructor of the PillsConditioning class.
      *
+     * @param layout the tag layout of the data block
+     */
+    public PillsConditioning(TagLayout layout) {
+        this.layout = layout;
+        filledBottles = layout.indexOf(FILLED_BOTTLES);
+        producedBottles = layout.indexOf(PRODUCED_BOTTLES);
+        pills5Request = layout.indexOf(PILLS_5_REQUEST);
+        pills10Request = layout.indexOf(PILLS_10_REQUEST);
+        pills15Request = layout.indexOf(PILLS_15_REQUEST);
+        cylinder = layout.indexOf(CYLINDER);
+        emptyBottle = layout.indexOf(EMPTY_BOTTLE);
+        emptyBottlesComingIn = layout.indexOf(EMPTY_BOTTLES_COMING_IN);
+        openBottle = layout.indexOf(OPEN_BOTTLE);
+        passingPills = layout.indexOf(PASSING_PILLS);
+        remote = layout.indexOf(REMOTE);
+        motorConveyor = layout.indexOf(MOTOR_CONVEYOR);
+        motorDistributorPills = layout.indexOf(MOTOR_DISTRIBUTOR_PILLS);
+    }
+
+    /**
+     * Gets the tags of the data block of a pills conditioning, as wired on
+     * the training stands.
+     *
+     * @param plc the PLC of the pills conditioning
+     * @return the default tags of the pills conditioning
+     */
+    public static List<Tag> getDefaultTags(Plc plc) {
+        return Arrays.asList(
+                new Tag(plc, EMPTY_BOTTLE, Tag.TYPE_BOOL, 0, 4),
+                new Tag(plc, OPEN_BOTTLE, Tag.TYPE_BOOL, 0, 5),
+                new Tag(plc, PASSING_PILLS, Tag.TYPE_BOOL, 0, 6),
+                new Tag(plc, EMPTY_BOTTLES_COMING_IN, Tag.TYPE_BOOL, 1, 3),
+                new Tag(plc, REMOTE, Tag.TYPE_BOOL, 1, 6),
+                new Tag(plc, MOTOR_DISTRIBUTOR_PILLS, Tag.TYPE_BOOL, 4, 0),
+                new Tag(plc, MOTOR_CONVEYOR, Tag.TYPE_BOOL, 4, 1),
+                new Tag(plc, CYLINDER, Tag.TYPE_BOOL, 4, 2),
+                new Tag(plc, PILLS_5_REQUEST, Tag.TYPE_BOOL, 4, 3),
+                new Tag(plc, PILLS_10_REQUEST, Tag.TYPE_BOOL, 4, 4),
+                new Tag(plc, PILLS_15_REQUEST, Tag.TYPE_BOOL, 4, 5),
+                new Tag(plc, FILLED_BOTTLES, Tag.TYPE_WORD, 16, 0));
+    }
+
+    /**
+     * Decodes new data of the data block.
+     *
      * @param data the data storage area of the data block
      */
-    public PillsConditioning(byte[] data) { this.data = data; }
+    public void update(byte[] data) { layout.decode(data); }
+
+    /**
+     * Copies the last decoded values, to hand them over to another thread.
+     *
+     * @return a pills conditioning holding the current values
+     */
+    public PillsConditioning copy() { return new PillsConditioning(layout.copy()); }
+
+    /**
+     * Gets the tag layout of the data block.
+     *
+     * @return the tag layout
+     */
+    public TagLayout getLayout() { return layout; }
 
     /**
      * Gets the number of filled bottles.
      *
      * @return the number of bottles
      */
-    public int getFilledBottles() { return S7.GetWordAt(data, 16); }
+    public int getFilledBottles() { return (int) layout.getLong(filledBottles); }
 
     /**
      * Gets the number of produces bottles.
      *
-     * @return the number of produces bottles
+     * @return the number of produces bottles; 0 while no produced_bottles tag
+     *         is configured, its offset being unknown on the training stands
      */
-    public int getProducesBottles() { return S7.GetWordAt(data, 16); }
+    public int getProducesBottles() { return (int) layout.getLong(producedBottles); }
 
     /**
      * Checks if 5 pills are requested.
      *
      * @return true if 5 pills are requested; false otherwise
      */
-    public boolean is5PillsRequest() { return S7.GetBitAt(data, 4, 3); }
+    public boolean is5PillsRequest() { return layout.getBoolean(pills5Request); }
 
     /**
      * Checks if 10 pills are requested.
      *
      * @return true if 10 pills are requested; false otherwise
      */
-    public boolean is10PillsRequest() { return S7.GetBitAt(data, 4, 4); }
+    public boolean is10PillsRequest() { return layout.getBoolean(pills10Request); }
 
     /**
      * Checks if 15 pills are requested.
      *
      * @return true if 15 pills are requested; false otherwise
      */
-    public boolean is15PillsRequest() { return S7.GetBitAt(data, 4, 5); }
+    public boolean is15PillsRequest() { return layout.getBoolean(pills15Request); }
 
     /**
      * Checks the status of the cylinder to close the bottles of pills.
      *
      * @return true if the cylinder is running; false otherwise
      */
-    public boolean isCylinder() { return S7.GetBitAt(data, 4, 2); }
+    public boolean isCylinder() { return layout.getBoolean(cylinder); }
 
     /**
      * Checks whether the sensor has detected a bottle that needs to be filled.
@@ -82,14 +178,14 @@ public class PillsConditioning {
      * @return true if the sensor detected a bottle that needs to be filled;
      *         false otherwise
      */
-    public boolean isEmptyBottle() { return S7.GetBitAt(data, 0, 4); }
+    public boolean isEmptyBottle() { return layout.getBoolean(emptyBottle); }
 
     /**
      * Checks if empty bottles coming in.
      *
      * @return true if empty bottles come in; false otherwise
      */
-    public boolean isEmptyBottlesComingIn() { return S7.GetBitAt(data, 1, 3); }
+    public boolean isEmptyBottlesComingIn() { return layout.getBoolean(emptyBottlesComingIn); }
 
     /**
      * Checks whether the sensor has detected a bottle that needs to be closed.
@@ -97,14 +193,14 @@ public class PillsConditioning {
      * @return true if the sensor detected a bottle that needs to be closed;
      *         false otherwise
      */
-    public boolean isOpenBottle() { return S7.GetBitAt(data, 0, 5); }
+    public boolean isOpenBottle() { return layout.getBoolean(openBottle); }
 
     /**
      * Checks if the pill dispenser is distributing pills.
      *
      * @return true if the pill dispenser is distributing pills; false otherwise
      */
-    public boolean isPassingPills() { return S7.GetBitAt(data, 0, 6); }
+    public boolean isPassingPills() { return layout.getBoolean(passingPills); }
 
     /**
      * Checks if pills are requested.
@@ -120,19 +216,19 @@ public class PillsConditioning {
      *
      * @return true if the PLC is remotely controllable; false otherwise
      */
-    public boolean isRemotelyControllable() { return S7.GetBitAt(data, 1, 6); }
+    public boolean isRemotelyControllable() { return layout.getBoolean(remote); }
 
     /**
      * Checks the status of the conveyor motor
      *
      * @return true if the conveyor is running; false otherwise
      */
-    public boolean isMotorConveyor() { return S7.GetBitAt(data, 4, 1); }
+    public boolean isMotorConveyor() { return layout.getBoolean(motorConveyor); }
 
     /**
      * Checks the status of the distributor pills motor
      *
      * @return true if the distributor pills motor is running; false otherwise
      */
-    public boolean isMotorDistributorPills() { return S7.GetBitAt(data, 4, 0); }
+    public boolean isMotorDistributorPills() { return layout.getBoolean(motorDistributorPills); }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.plc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import SimaticS7.S7;
+
+import be.heh.plcmonitor.model.DataBlock;
+import be.heh.plcmonitor.model.Tag;
+import be.heh.plcmonitor.s7.TagAddress;
+
+/**
+ * TagLayout decodes the data of a data block according to its tags.
+ *
+ * The tags are compiled once into flat arrays, grouped by type, so that
+ * decoding the data is one pass of one loop per type, without any test on
+ * the type of each tag. Each tag gets a slot holding its last scaled value;
+ * booleans hold 0 or 1 and are not scaled.
+ *
+ * A layout is not thread-safe: it should be decoded and read on the same
+ * thread. A copy holds a snapshot of the values that can be handed over to
+ * another thread, the compiled tags being shared.
+ *
+ * @author Terencio Agozzino
+ */
+public class TagLayout {
+
+    /**
+     * S7 word lengths of the types of the tags.
+     */
+    private static final int[] WORD_LENGTHS = {
+            S7.S7WLBit, S7.S7WLByte, S7.S7WLWord, S7.S7WLInt, S7.S7WLDWord,
+            S7.S7WLDInt, S7.S7WLReal
+    };
+
+    private final String[] names;
+    private final int[] types;
+    private final int[] offsets;
+    private final int[] bits;
+    private final double[] scales;
+    private final double[] biases;
+    private final double[] values;
+    private final int[] ends;
+    private final Map<String, Integer> slots;
+    private final int dataSize;
+
+    /**
+     * Main constructor of the TagLayout class, compiling the tags.
+     *
+     * @param tags the tags of the data block
+     * @throws IllegalArgumentException when a tag has an unknown type, a bad
+     *                                  offset or bit, a bit while not being a
+     *                                  boolean, or a name already used
+     */
+    public TagLayout(List<Tag> tags) {
+        int count = tags.size();
+        names = new String[count];
+        types = new int[count];
+        offsets = new int[count];
+        bits = new int[count];
+        scales = new double[count];
+        biases = new double[count];
+        values = new double[count];
+        ends = new int[Tag.TYPES_COUNT];
+        slots = new HashMap<>();
+
+        // Counting sort on the type, keeping the order of the tags
+        int[] starts = new int[Tag.TYPES_COUNT];
+        for (Tag tag : tags) {
+            int type = tag.getType();
+            if (type < 0 || type >= Tag.TYPES_COUNT) {
+                throw new IllegalArgumentException("Unknown type: " + tag);
+            }
+            ends[type]++;
+        }
+        for (int type = 1; type < Tag.TYPES_COUNT; type++) {
+            ends[type] += ends[type - 1];
+            starts[type] = ends[type - 1];
+        }
+
+        int size = 0;
+        for (Tag tag : tags) {
+            if (tag.getOffset() < 0 || tag.getBit() < 0 || tag.getBit() > 7) {
+                throw new IllegalArgumentException("Bad address: " + tag);
+            }
+            // Only booleans are addressed to the bit
+            if (tag.getType() != Tag.TYPE_BOOL && tag.getBit() != 0) {
+                throw new IllegalArgumentException("Bit of a non-boolean: " +
+                        tag);
+            }
+
+            int slot = starts[tag.getType()]++;
+            if (slots.put(tag.getName(), slot) != null) {
+                throw new IllegalArgumentException("Duplicate name: " + tag);
+            }
+            names[slot] = tag.getName();
+            types[slot] = tag.getType();
+            offsets[slot] = tag.getOffset();
+            bits[slot] = tag.getBit();
+            scales[slot] = tag.getScale();
+            biases[slot] = tag.getBias();
+            size = Math.max(size, tag.getOffset() + Tag.sizeOf(tag.getType()));
+        }
+        dataSize = size;
+    }
+
+    /**
+     * Copy constructor of the TagLayout class.
+     *
+     * @param layout the layout to copy
+     */
+    private TagLayout(TagLayout layout) {
+        names = layout.names;
+        types = layout.types;
+        offsets = layout.offsets;
+        bits = layout.bits;
+        scales = layout.scales;
+        biases = layout.biases;
+        values = layout.values.clone();
+        ends = layout.ends;
+        slots = layout.slots;
+        dataSize = layout.dataSize;
+    }
+
+    /**
+     * Copies the layout with its last decoded values.
+     *
+     * @return a layout decoding the same tags, with its own values
+     */
+    public TagLayout copy() { return new TagLayout(this); }
+
+    /**
+     * Decodes the values of all the tags.
+     *
+     * @param data the data of the data block, from its first byte
+     * @throws IllegalArgumentException when the data is shorter than the
+     *                                  layout
+     */
+    public void decode(byte[] data) {
+        if (data.length < dataSize) {
+            throw new IllegalArgumentException("Data too short: " +
+                    data.length + " < " + dataSize);
+        }
+
+        int i = 0;
+        for (int end = ends[Tag.TYPE_BOOL]; i < end; i++) {
+            values[i] = (data[offsets[i]] >> bits[i]) & 0x01;
+        }
+        for (int end = ends[Tag.TYPE_BYTE]; i < end; i++) {
+            values[i] = (data[offsets[i]] & 0xFF) * scales[i] + biases[i];
+        }
+        for (int end = ends[Tag.TYPE_WORD]; i < end; i++) {
+            values[i] = S7.GetWordAt(data, offsets[i]) * scales[i] + biases[i];
+        }
+        for (int end = ends[Tag.TYPE_INT]; i < end; i++) {
+            values[i] = S7.GetShortAt(data, offsets[i]) * scales[i] + biases[i];
+        }
+        for (int end = ends[Tag.TYPE_DWORD]; i < end; i++) {
+            values[i] = S7.GetDWordAt(data, offsets[i]) * scales[i] + biases[i];
+        }
+        for (int end = ends[Tag.TYPE_DINT]; i < end; i++) {
+            values[i] = S7.GetDIntAt(data, offsets[i]) * scales[i] + biases[i];
+        }
+        for (int end = ends[Tag.TYPE_REAL]; i < end; i++) {
+            values[i] = S7.GetFloatAt(data, offsets[i]) * scales[i] + biases[i];
+        }
+    }
+
+    /**
+     * Gets the slot of a tag.
+     *
+     * @param name the name of the tag
+     * @return the slot of the tag; -1 if the layout has no such tag
+     */
+    public int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Gets the last decoded value of a tag.
+     *
+     * @param slot the slot of the tag
+     * @return the scaled value of the tag; 0 if the slot is -1
+     */
+    public double getValue(int slot) { return slot < 0 ? 0 : values[slot]; }
+
+    /**
+     * Gets the last decoded value of a tag as an integer.
+     *
+     * @param slot the slot of the tag
+     * @return the scaled value of the tag, rounded; 0 if the slot is -1
+     */
+    public long getLong(int slot) { return Math.round(getValue(slot)); }
+
+    /**
+     * Gets the last decoded value of a boolean tag.
+     *
+     * @param slot the slot of the tag
+     * @return true if the value is not 0; false otherwise or if the slot is
+     *         -1
+     */
+    public boolean getBoolean(int slot) { return getValue(slot) != 0; }
+
+    /**
+     * Gets the name of a tag.
+     *
+     * @param slot the slot of the tag
+     * @return the name of the tag
+     */
+    public String getName(int slot) { return names[slot]; }
+
+    /**
+     * Gets the address of a tag inside the memory of the PLC, to write it.
+     *
+     * @param slot the slot of the tag
+     * @param dataBlock the data block of the layout
+     * @return the address of the tag; null if the slot is -1
+     */
+    public TagAddress getAddress(int slot, DataBlock dataBlock) {
+        if (slot < 0) return null;
+
+        return new TagAddress(S7.S7AreaDB, dataBlock.getDbNumber(),
+                dataBlock.getOffset() + offsets[slot], bits[slot],
+                WORD_LENGTHS[types[slot]]);
+    }
+
+    /**
+     * Gets the number of tags of the layout.
+     *
+     * @return the number of tags
+     */
+    public int size() { return names.length; }
+
+    /**
+     * Gets the number of bytes of the data block needed by the layout.
+     *
+     * @return the end of the last tag, from the first byte of the data
+     */
+    public int getDataSize() { return dataSize; }
+}
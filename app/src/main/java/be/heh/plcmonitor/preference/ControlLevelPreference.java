@@ -33,16 +33,23 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Inject;
 
 import SimaticS7.S7;
+import SimaticS7.S7Client;
 import SimaticS7.S7OrderCode;
 import be.heh.plcmonitor.ApplicationComponent;
 import be.heh.plcmonitor.DaggerApplicationComponent;
 import be.heh.plcmonitor.R;
 import be.heh.plcmonitor.dao.PlcDaoImpl;
+import be.heh.plcmonitor.dao.TagDaoImpl;
 import be.heh.plcmonitor.database.DatabaseModule;
 import be.heh.plcmonitor.model.DataBlock;
 import be.heh.plcmonitor.model.Plc;
 import be.heh.plcmonitor.plc.ControlLevel;
-import be.heh.plcmonitor.s7.PlcConnection;
+import be.heh.plcmonitor.plc.TagLayout;
+import be.heh.plcmonitor.s7.CommandScheduler;
+import be.heh.plcmonitor.s7.DataBlockSubscription;
+import be.heh.plcmonitor.s7.PlcConnectionPool;
+import be.heh.plcmonitor.s7.PlcSupervisor;
+import be.heh.plcmonitor.s7.TagAddress;
 
 /**
  * Represents the general and account settings screen of the user.
@@ -52,12 +59,18 @@ import be.heh.plcmonitor.s7.PlcConnection;
 public class ControlLevelPreference extends PreferenceFragment
         implements SharedPreferences.OnSharedPreferenceChangeListener {
 
+    /**
+     * Useful for debug to identify which class has logged.
+     */
+    private static final String TAG = ControlLevelPreference.class.getSimpleName();
+
     /**
      * Message codes.
      */
     private static final int MESSAGE_PRE_EXECUTE = 1;
     private static final int MESSAGE_PROGRESS_UPDATE = 2;
     private static final int MESSAGE_POST_EXECUTE = 3;
+    private static final int MESSAGE_STATE_CHANGED = 4;
 
     /**
      * Injections.
@@ -65,16 +78,25 @@ public class ControlLevelPreference extends PreferenceFragment
     @Inject
     PlcDaoImpl plcDaoImpl;
 
+    @Inject
+    TagDaoImpl tagDaoImpl;
+
     private byte[] datasPLC = new byte[512];
 
 
     public static AtomicBoolean isRunning = new AtomicBoolean(false);
     public static Thread readThread;
-    public static PlcConnection plcConnection;
+
+    private Plc plc;
 
     private ControlLevel controlLevel;
     private DataBlock dataBlock;
 
+    /**
+     * Jobs of the connection, the commands of the user first.
+     */
+    private final CommandScheduler scheduler = new CommandScheduler();
+
     /**
      * UI references.
      */
@@ -133,11 +155,18 @@ public class ControlLevelPreference extends PreferenceFragment
         mManualValuePreference = findPreference("pref_manual");
         mControlWordPreference = findPreference("pref_control_word");
 
-        Plc plc = plcDaoImpl.getPlcByName("Control Level");
+        plc = plcDaoImpl.getPlcByName("Control Level");
         dataBlock = plc.getDataBlock();
 
-        plcConnection = new PlcConnection(plc, S7.S7_BASIC);
-        controlLevel = new ControlLevel(dataBlock.getData());
+        controlLevel = new ControlLevel(new TagLayout(tagDaoImpl.getTagsByPlc(
+                plc, ControlLevel.getDefaultTags(plc))));
+
+        bindCommand(mValve1Preference, ControlLevel.VALVE_1);
+        bindCommand(mValve2Preference, ControlLevel.VALVE_2);
+        bindCommand(mValve3Preference, ControlLevel.VALVE_3);
+        bindCommand(mValve4Preference, ControlLevel.VALVE_4);
+        bindCommand(mManualPreference, ControlLevel.MANUAL);
+        bindCommand(mRemotePreference, ControlLevel.REMOTE);
 
         readThread = new Thread(new AutomateS7());
         start();
@@ -149,6 +178,25 @@ public class ControlLevelPreference extends PreferenceFragment
         });
     }
 
+    /**
+     * Writes the bit of a switch into the data block when the user toggles
+     * it. The listener is not called when the switch is refreshed from the
+     * data block, so that no value read is written back.
+     *
+     * @param preference the switch
+     * @param name the name of the tag of the switch
+     */
+    private void bindCommand(SwitchPreference preference, String name) {
+        TagLayout layout = controlLevel.getLayout();
+        TagAddress address = layout.getAddress(layout.indexOf(name), dataBlock);
+        if (address == null) return;
+
+        preference.setOnPreferenceChangeListener((p, newValue) -> {
+            scheduler.writeBit(address, (Boolean) newValue);
+            return true;
+        });
+    }
+
     /**
      * Registers a callback to be invoked when a change happens to a
      * preference when the fragment will start interacting with the user.
@@ -218,27 +266,51 @@ public class ControlLevelPreference extends PreferenceFragment
     }
 
     /**
-     * Called on the reading thread.
+     * Called on the UI thread with the values decoded by the reading thread.
      *
-     * @param progress the progress
+     * @param values the snapshot of the values of the data block
      */
-    private void downloadOnProgressUpdate (int progress) { updateAll(); }
+    private void downloadOnProgressUpdate(ControlLevel values) {
+        controlLevel = values;
+        updateAll();
+    }
 
     /**
      * Called after the reading thread.
      */
     private void downloadOnPostExecute() { }
 
+    /**
+     * Called when the state of the connection changes.
+     *
+     * @param state the ordinal of the new PlcSupervisor.State
+     */
+    private void downloadOnStateChanged(int state) {
+        switch (PlcSupervisor.State.values()[state]) {
+            case CONNECTING:
+                mStatusPreference.setSummary("Connecting");
+                break;
+            case CONNECTED:
+                mStatusPreference.setSummary("Connected");
+                break;
+            case RECONNECTING:
+                mStatusPreference.setSummary("Reconnecting");
+                break;
+            default:
+                mStatusPreference.setSummary("Disconnected");
+                break;
+        }
+    }
+
     /**
      * Gets the CPU code of a PLC.
      *
+     * @param resOrderCode the result of S7Client.GetOrderCode()
+     * @param s7OrderCode the order code read from the PLC
      * @return the CPU code if the connection to the PLC was successful and the
      *         code could be read; -1 otherwise.
      */
-    public int getCpuCode() {
-        S7OrderCode s7OrderCode = new S7OrderCode();
-        int resOrderCode = plcConnection.getS7Client().GetOrderCode(s7OrderCode);
-
+    public int getCpuCode(int resOrderCode, S7OrderCode s7OrderCode) {
         int cpu = -1;
 
         if (resOrderCode == 0) {
@@ -264,7 +336,16 @@ public class ControlLevelPreference extends PreferenceFragment
     public void stop() {
         isRunning.set(false);
         readThread.interrupt();
-        plcConnection.close();
+    }
+
+    /**
+     * Stops the reading thread when the fragment is destroyed, so that its
+     * connection goes back to the pool.
+     */
+    @Override
+    public void onDestroy() {
+        stop();
+        super.onDestroy();
     }
 
     @SuppressLint("HandlerLeak")
@@ -284,11 +365,14 @@ public class ControlLevelPreference extends PreferenceFragment
                     downloadOnPreExecute(msg.arg1);
                     break;
                 case MESSAGE_PROGRESS_UPDATE:
-                    downloadOnProgressUpdate(msg.arg1);
+                    downloadOnProgressUpdate((ControlLevel) msg.obj);
                     break;
                 case MESSAGE_POST_EXECUTE:
                     downloadOnPostExecute();
                     break;
+                case MESSAGE_STATE_CHANGED:
+                    downloadOnStateChanged(msg.arg1);
+                    break;
                 default:
                     break;
             }
@@ -298,23 +382,43 @@ public class ControlLevelPreference extends PreferenceFragment
     private class AutomateS7 implements Runnable {
         @Override
         public void run() {
+            PlcSupervisor supervisor = new PlcSupervisor(
+                    PlcConnectionPool.getInstance(), plc, S7.S7_BASIC);
+            supervisor.setOnStateChangedListener((state, error) ->
+                    sendStateMessage(state.ordinal()));
+            // The switch is refreshed from the data block by the next read
+            scheduler.setOnWriteFailedListener((address, error) ->
+                    Log.e(TAG, "Unable to write the tag at offset " +
+                            address.getOffset() + ": " +
+                            S7Client.ErrorText(error)));
             try {
-                plcConnection.open();
-
-                sendPreExecuteMessage(getCpuCode());
-
+                S7OrderCode s7OrderCode = new S7OrderCode();
+                int resOrderCode = supervisor.execute(client ->
+                        client.GetOrderCode(s7OrderCode));
+
+                sendPreExecuteMessage(getCpuCode(resOrderCode, s7OrderCode));
+
+                // The data block is written by the reading thread only: it
+                // is decoded here and the UI gets a snapshot of the values
+                ControlLevel decoder = controlLevel.copy();
+                DataBlockSubscription subscription = new DataBlockSubscription(
+                        dataBlock, DataBlockSubscription.DEFAULT_INTERVAL,
+                        data -> {
+                            decoder.update(data);
+                            sendProgressMessage(decoder.copy());
+                        });
                 while (isRunning.get()) {
-                    int retInfo = plcConnection.getS7Client().ReadArea(S7.S7AreaDB,
-                            dataBlock.getDbNumber(), dataBlock.getOffset(),
-                            dataBlock.getAmount(), dataBlock.getData());
-
-                    if (retInfo == 0) {
-                        sendProgressMessage(S7.GetWordAt(dataBlock.getData(), 0));
-                    }
+                    scheduler.submit(CommandScheduler.Priority.FAST_TAG,
+                            subscription);
+                    scheduler.runAll(supervisor);
                 }
                 sendPostExecuteMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch(Exception e){
                 e.printStackTrace();
+            } finally {
+                supervisor.close();
             }
         }
     }
@@ -328,6 +432,18 @@ public class ControlLevelPreference extends PreferenceFragment
         readingHandler.sendMessage(postExecuteMsg);
     }
 
+    /**
+     * Sends state changed message.
+     *
+     * @param arg1 the ordinal of the new PlcSupervisor.State
+     */
+    private void sendStateMessage(int arg1) {
+        Message stateMsg = new Message();
+        stateMsg.what = MESSAGE_STATE_CHANGED;
+        stateMsg.arg1 = arg1;
+        readingHandler.sendMessage(stateMsg);
+    }
+
     /**
      * Sends pre-execute message.
      *
@@ -343,12 +459,12 @@ public class ControlLevelPreference extends PreferenceFragment
     /**
      * Sends progress execute message.
      *
-     * @param arg1
+     * @param values the snapshot of the values of the data block
      */
-    private void sendProgressMessage(int arg1) {
+    private void sendProgressMessage(ControlLevel values) {
         Message progressMsg = new Message();
         progressMsg.what = MESSAGE_PROGRESS_UPDATE;
-        progressMsg.arg1 = arg1;
+        progressMsg.obj = values;
         readingHandler.sendMessage(progressMsg);
     }
 
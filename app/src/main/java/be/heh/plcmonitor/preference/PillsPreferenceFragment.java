@@ -37,17 +37,24 @@ import be.heh.plcmonitor.ApplicationComponent;
 import be.heh.plcmonitor.DaggerApplicationComponent;
 import be.heh.plcmonitor.R;
 import be.heh.plcmonitor.dao.PlcDaoImpl;
+import be.heh.plcmonitor.dao.TagDaoImpl;
 import be.heh.plcmonitor.database.DatabaseModule;
 import be.heh.plcmonitor.model.DataBlock;
 import be.heh.plcmonitor.model.Plc;
 import be.heh.plcmonitor.plc.PillsConditioning;
-import be.heh.plcmonitor.s7.PlcConnection;
+import be.heh.plcmonitor.plc.TagLayout;
+import be.heh.plcmonitor.s7.CommandScheduler;
+import be.heh.plcmonitor.s7.DataBlockSubscription;
+import be.heh.plcmonitor.s7.PlcConnectionPool;
+import be.heh.plcmonitor.s7.PlcSupervisor;
+import be.heh.plcmonitor.s7.TagAddress;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 
 import SimaticS7.S7;
+import SimaticS7.S7Client;
 import SimaticS7.S7OrderCode;
 
 import static android.support.design.widget.Snackbar.LENGTH_LONG;
@@ -60,12 +67,18 @@ import static android.support.design.widget.Snackbar.LENGTH_LONG;
 public class PillsPreferenceFragment extends PreferenceFragment
         implements SharedPreferences.OnSharedPreferenceChangeListener {
 
+    /**
+     * Useful for debug to identify which class has logged.
+     */
+    private static final String TAG = PillsPreferenceFragment.class.getSimpleName();
+
     /**
      * Message codes.
      */
     private static final int MESSAGE_PRE_EXECUTE = 1;
     private static final int MESSAGE_PROGRESS_UPDATE = 2;
     private static final int MESSAGE_POST_EXECUTE = 3;
+    private static final int MESSAGE_STATE_CHANGED = 4;
 
     /**
      * Injections.
@@ -73,12 +86,21 @@ public class PillsPreferenceFragment extends PreferenceFragment
     @Inject
     PlcDaoImpl plcDaoImpl;
 
+    @Inject
+    TagDaoImpl tagDaoImpl;
+
     private PillsConditioning pills;
     private DataBlock dataBlock;
 
+    /**
+     * Jobs of the connection, the commands of the user first.
+     */
+    private final CommandScheduler scheduler = new CommandScheduler();
+
     public static AtomicBoolean isRunning = new AtomicBoolean(false);
     public static Thread readThread;
-    public static PlcConnection plcConnection;
+
+    private Plc plc;
 
     /**
      * UI references.
@@ -145,11 +167,23 @@ public class PillsPreferenceFragment extends PreferenceFragment
 
         mRemotePreference = (SwitchPreference) findPreference("switch_remote");
 
-        Plc plc = plcDaoImpl.getPlcByName("Conditioning Pills");
+        plc = plcDaoImpl.getPlcByName("Conditioning Pills");
         dataBlock = plc.getDataBlock();
 
-        plcConnection = new PlcConnection(plc, S7.S7_BASIC);
-        pills = new PillsConditioning(dataBlock.getData());
+        pills = new PillsConditioning(new TagLayout(tagDaoImpl.getTagsByPlc(
+                plc, PillsConditioning.getDefaultTags(plc))));
+
+        TagLayout layout = pills.getLayout();
+        TagAddress remote = layout.getAddress(
+                layout.indexOf(PillsConditioning.REMOTE), dataBlock);
+
+        // Only called on user toggles, not when refreshed from the data block
+        if (remote != null) {
+            mRemotePreference.setOnPreferenceChangeListener((p, newValue) -> {
+                scheduler.writeBit(remote, (Boolean) newValue);
+                return true;
+            });
+        }
 
         readThread = new Thread(new AutomateS7());
         start();
@@ -230,27 +264,51 @@ public class PillsPreferenceFragment extends PreferenceFragment
     }
 
     /**
-     * Called on the reading thread.
+     * Called on the UI thread with the values decoded by the reading thread.
      *
-     * @param progress the progress
+     * @param values the snapshot of the values of the data block
      */
-    private void downloadOnProgressUpdate (int progress) { updateAll(); }
+    private void downloadOnProgressUpdate(PillsConditioning values) {
+        pills = values;
+        updateAll();
+    }
 
     /**
      * Called after the reading thread.
      */
     private void downloadOnPostExecute() { }
 
+    /**
+     * Called when the state of the connection changes.
+     *
+     * @param state the ordinal of the new PlcSupervisor.State
+     */
+    private void downloadOnStateChanged(int state) {
+        switch (PlcSupervisor.State.values()[state]) {
+            case CONNECTING:
+                mStatusPreference.setSummary("Connecting");
+                break;
+            case CONNECTED:
+                mStatusPreference.setSummary("Connected");
+                break;
+            case RECONNECTING:
+                mStatusPreference.setSummary("Reconnecting");
+                break;
+            default:
+                mStatusPreference.setSummary("Disconnected");
+                break;
+        }
+    }
+
     /**
      * Gets the CPU code of a PLC.
      *
+     * @param resOrderCode the result of S7Client.GetOrderCode()
+     * @param s7OrderCode the order code read from the PLC
      * @return the CPU code if the connection to the PLC was successful and the
      *         code could be read; -1 otherwise.
      */
-    public int getCpuCode() {
-        S7OrderCode s7OrderCode = new S7OrderCode();
-        int resOrderCode = plcConnection.getS7Client().GetOrderCode(s7OrderCode);
-
+    public int getCpuCode(int resOrderCode, S7OrderCode s7OrderCode) {
         int cpu = -1;
 
         if (resOrderCode == 0) {
@@ -276,7 +334,16 @@ public class PillsPreferenceFragment extends PreferenceFragment
     public void stop() {
         isRunning.set(false);
         readThread.interrupt();
-        plcConnection.close();
+    }
+
+    /**
+     * Stops the reading thread when the fragment is destroyed, so that its
+     * connection goes back to the pool.
+     */
+    @Override
+    public void onDestroy() {
+        stop();
+        super.onDestroy();
     }
 
     @SuppressLint("HandlerLeak")
@@ -296,11 +363,14 @@ public class PillsPreferenceFragment extends PreferenceFragment
                     downloadOnPreExecute(msg.arg1);
                     break;
                 case MESSAGE_PROGRESS_UPDATE:
-                    downloadOnProgressUpdate(msg.arg1);
+                    downloadOnProgressUpdate((PillsConditioning) msg.obj);
                     break;
                 case MESSAGE_POST_EXECUTE:
                     downloadOnPostExecute();
                     break;
+                case MESSAGE_STATE_CHANGED:
+                    downloadOnStateChanged(msg.arg1);
+                    break;
                 default:
                     break;
             }
@@ -310,23 +380,43 @@ public class PillsPreferenceFragment extends PreferenceFragment
     private class AutomateS7 implements Runnable {
         @Override
         public void run() {
+            PlcSupervisor supervisor = new PlcSupervisor(
+                    PlcConnectionPool.getInstance(), plc, S7.S7_BASIC);
+            supervisor.setOnStateChangedListener((state, error) ->
+                    sendStateMessage(state.ordinal()));
+            // The switch is refreshed from the data block by the next read
+            scheduler.setOnWriteFailedListener((address, error) ->
+                    Log.e(TAG, "Unable to write the tag at offset " +
+                            address.getOffset() + ": " +
+                            S7Client.ErrorText(error)));
             try {
-                plcConnection.open();
-
-                sendPreExecuteMessage(getCpuCode());
-
+                S7OrderCode s7OrderCode = new S7OrderCode();
+                int resOrderCode = supervisor.execute(client ->
+                        client.GetOrderCode(s7OrderCode));
+
+                sendPreExecuteMessage(getCpuCode(resOrderCode, s7OrderCode));
+
+                // The data block is written by the reading thread only: it
+                // is decoded here and the UI gets a snapshot of the values
+                PillsConditioning decoder = pills.copy();
+                DataBlockSubscription subscription = new DataBlockSubscription(
+                        dataBlock, DataBlockSubscription.DEFAULT_INTERVAL,
+                        data -> {
+                            decoder.update(data);
+                            sendProgressMessage(decoder.copy());
+                        });
                 while (isRunning.get()) {
-                    int retInfo = plcConnection.getS7Client().ReadArea(S7.S7AreaDB,
-                            dataBlock.getDbNumber(), dataBlock.getOffset(),
-                            dataBlock.getAmount(), dataBlock.getData());
-
-                    if (retInfo == 0) {
-                        sendProgressMessage(S7.GetWordAt(dataBlock.getData(), 0));
-                    }
+                    scheduler.submit(CommandScheduler.Priority.FAST_TAG,
+                            subscription);
+                    scheduler.runAll(supervisor);
                 }
                 sendPostExecuteMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch(Exception e){
                 e.printStackTrace();
+            } finally {
+                supervisor.close();
             }
         }
     }
@@ -340,6 +430,18 @@ public class PillsPreferenceFragment extends PreferenceFragment
         readingHandler.sendMessage(postExecuteMsg);
     }
 
+    /**
+     * Sends state changed message.
+     *
+     * @param arg1 the ordinal of the new PlcSupervisor.State
+     */
+    private void sendStateMessage(int arg1) {
+        Message stateMsg = new Message();
+        stateMsg.what = MESSAGE_STATE_CHANGED;
+        stateMsg.arg1 = arg1;
+        readingHandler.sendMessage(stateMsg);
+    }
+
     /**
      * Sends pre-execute message.
      *
@@ -355,12 +457,12 @@ public class PillsPreferenceFragment extends PreferenceFragment
     /**
      * Sends progress execute message.
      *
-     * @param arg1
+     * @param values the snapshot of the values of the data block
      */
-    private void sendProgressMessage(int arg1) {
+    private void sendProgressMessage(PillsConditioning values) {
         Message progressMsg = new Message();
         progressMsg.what = MESSAGE_PROGRESS_UPDATE;
-        progressMsg.arg1 = arg1;
+        progressMsg.obj = values;
         readingHandler.sendMessage(progressMsg);
     }
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7Client;
+
+/**
+ * AlarmSubscription delivers the alarms and diagnostic events of a PLC as
+ * soon as the CPU pushes them.
+ *
+ * Each run of the job waits for the next events, so it is meant to be
+ * executed in a loop by a PlcSupervisor. A new connection registers the
+ * events again; the pool unregisters them when the connection is released.
+ * As alarms may not come for a long time, a quiet wait ends by a status
+ * request which checks the link.
+ *
+ * @author Terencio Agozzino
+ */
+public class AlarmSubscription implements PlcSupervisor.Job {
+
+    /**
+     * Default time waited for an event before checking the link, in
+     * milliseconds.
+     */
+    public static final int DEFAULT_WAIT_TIME = 5000;
+
+    private final int events;
+    private final int waitTime;
+    private final S7Client.AlarmListener listener;
+
+    /**
+     * Main constructor of the AlarmSubscription class.
+     *
+     * @param events the events to receive (S7.S7EvtAlarms...)
+     * @param waitTime the time waited for an event, in milliseconds
+     * @param listener the listener of the events, called on the reading
+     *                 thread
+     */
+    public AlarmSubscription(int events, int waitTime,
+                             S7Client.AlarmListener listener) {
+        this.events = events;
+        this.waitTime = waitTime;
+        this.listener = listener;
+    }
+
+    /**
+     * Waits for the next events of the PLC.
+     *
+     * @param client the S7 client of the connection
+     * @return 0 if the connection is still alive; the S7Client error code
+     *         otherwise
+     */
+    @Override
+    public int run(S7Client client) {
+        if (client.AlarmEvents() != events) {
+            return client.AlarmSubscribe(events, listener);
+        }
+
+        int result = client.WaitPush(waitTime);
+        if (result == S7Client.errTCPDataRecvTout) {
+            result = client.GetPlcStatus(new IntByRef());
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import SimaticS7.S7CpuInfo;
+import SimaticS7.S7DataItem;
+import SimaticS7.S7OrderCode;
+import SimaticS7.S7Szl;
+
+import be.heh.plcmonitor.model.Plc;
+
+import io.reactivex.Single;
+
+/**
+ * AsyncPlcConnection is the asynchronous facade of a PlcConnection.
+ *
+ * Every operation returns a cold Single emitting an S7Result, which carries
+ * the value, the S7Client error code and the timing of the operation. The
+ * operations of a connection run one at a time on the shared I/O threads, in
+ * subscription order, so that the application can fan out to many PLCs
+ * without a blocked thread per device.
+ *
+ * S7 errors are reported by the result; the Single only fails on unexpected
+ * exceptions.
+ *
+ * @author Terencio Agozzino
+ */
+public class AsyncPlcConnection {
+
+    /**
+     * Operation run on the client of the connection.
+     */
+    public interface Operation {
+
+        /**
+         * Runs the operation.
+         *
+         * @param client the S7 client of the connection
+         * @return 0 if the operation succeeded; the S7Client error code
+         *         otherwise
+         */
+        int run(S7Client client);
+    }
+
+    private final PlcConnection connection;
+    private final Executor executor;
+
+    /**
+     * Builds the asynchronous facade of a connection, running on the shared
+     * I/O threads.
+     *
+     * @param connection the connection to the PLC
+     */
+    public AsyncPlcConnection(PlcConnection connection) {
+        this(connection, new SerialExecutor());
+    }
+
+    /**
+     * Builds the asynchronous facade of a connection.
+     *
+     * @param connection the connection to the PLC
+     * @param executor the executor serializing the operations of the
+     *                 connection
+     */
+    public AsyncPlcConnection(PlcConnection connection, Executor executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues an operation on the connection.
+     *
+     * @param value the value filled in by the operation, may be null
+     * @param operation the operation to run
+     * @param <T> the type of the value
+     * @return the Single emitting the result of the operation
+     */
+    public <T> Single<S7Result<T>> submit(T value, Operation operation) {
+        return Single.create(emitter -> {
+            long queued = System.nanoTime();
+
+            executor.execute(() -> {
+                if (emitter.isDisposed()) return;
+
+                long start = System.nanoTime();
+                int error;
+                try {
+                    error = operation.run(connection.getS7Client());
+                } catch (RuntimeException e) {
+                    emitter.onError(e);
+                    return;
+                }
+                emitter.onSuccess(new S7Result<>(value, error, start - queued,
+                        System.nanoTime() - start));
+            });
+        });
+    }
+
+    /**
+     * Connects to the PLC, unless already connected.
+     *
+     * @return the Single emitting the connection
+     */
+    public Single<S7Result<PlcConnection>> connect() {
+        Plc plc = connection.getPlc();
+
+        return submit(connection, client -> client.Connected ? 0 :
+                client.ConnectTo(plc.getIp(), plc.getRack(), plc.getSlot()));
+    }
+
+    /**
+     * Disconnects from the PLC.
+     *
+     * @return the Single emitting the connection
+     */
+    public Single<S7Result<PlcConnection>> disconnect() {
+        return submit(connection, client -> {
+            client.Disconnect();
+            return 0;
+        });
+    }
+
+    /**
+     * Reads an area of the PLC into a new buffer.
+     *
+     * @param area the S7 area (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param start the byte offset, or the first counter or timer
+     * @param amount the number of bytes, counters or timers
+     * @return the Single emitting the data read
+     */
+    public Single<S7Result<byte[]>> readArea(int area, int dbNumber, int start,
+                                             int amount) {
+        int wordSize = area == S7.S7AreaCT || area == S7.S7AreaTM ? 2 : 1;
+
+        return Single.defer(() -> readArea(area, dbNumber, start, amount,
+                new byte[amount * wordSize]));
+    }
+
+    /**
+     * Reads an area of the PLC into the given buffer.
+     *
+     * @param area the S7 area (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param start the byte offset, or the first counter or timer
+     * @param amount the number of bytes, counters or timers
+     * @param data the buffer receiving the data
+     * @return the Single emitting the buffer
+     */
+    public Single<S7Result<byte[]>> readArea(int area, int dbNumber, int start,
+                                             int amount, byte[] data) {
+        return submit(data, client ->
+                client.ReadArea(area, dbNumber, start, amount, data));
+    }
+
+    /**
+     * Reads an area of the PLC straight into a heap or direct buffer.
+     *
+     * @param area the S7 area (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param start the byte offset, or the first counter or timer
+     * @param amount the number of bytes, counters or timers
+     * @param data the buffer receiving the data
+     * @param offset the absolute index of the data in the buffer
+     * @return the Single emitting the buffer
+     */
+    public Single<S7Result<ByteBuffer>> readArea(int area, int dbNumber,
+                                                 int start, int amount,
+                                                 ByteBuffer data, int offset) {
+        return submit(data, client ->
+                client.ReadArea(area, dbNumber, start, amount, data, offset));
+    }
+
+    /**
+     * Writes an area of the PLC.
+     *
+     * @param area the S7 area (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param start the byte offset, or the first counter or timer
+     * @param amount the number of bytes, counters or timers
+     * @param data the data to write
+     * @return the Single emitting the data written
+     */
+    public Single<S7Result<byte[]>> writeArea(int area, int dbNumber, int start,
+                                              int amount, byte[] data) {
+        return submit(data, client ->
+                client.WriteArea(area, dbNumber, start, amount, data));
+    }
+
+    /**
+     * Writes a single bit of the PLC, leaving the other bits of its byte
+     * untouched.
+     *
+     * @param area the S7 area (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param start the byte offset
+     * @param bit the bit of the byte, from 0 to 7
+     * @param value the value to write
+     * @return the Single emitting the value written
+     */
+    public Single<S7Result<Boolean>> writeBit(int area, int dbNumber, int start,
+                                              int bit, boolean value) {
+        return submit(value, client ->
+                client.WriteBit(area, dbNumber, start, bit, value));
+    }
+
+    /**
+     * Reads several variables, possibly from different areas.
+     *
+     * @param items the variables to read, holding their own result
+     * @return the Single emitting the variables
+     */
+    public Single<S7Result<S7DataItem[]>> readMultiVars(S7DataItem[] items) {
+        return submit(items, client -> client.ReadMultiVars(items, items.length));
+    }
+
+    /**
+     * Writes several variables, possibly into different areas.
+     *
+     * @param items the variables to write, holding their own result
+     * @return the Single emitting the variables
+     */
+    public Single<S7Result<S7DataItem[]>> writeMultiVars(S7DataItem[] items) {
+        return submit(items, client ->
+                client.WriteMultiVars(items, items.length));
+    }
+
+    /**
+     * Reads a system status list of the PLC.
+     *
+     * @param id the identifier of the list
+     * @param index the index of the list
+     * @return the Single emitting the list
+     */
+    public Single<S7Result<S7Szl>> readSzl(int id, int index) {
+        return Single.defer(() -> {
+            S7Szl szl = new S7Szl(1024);
+            return submit(szl, client -> client.ReadSZL(id, index, szl));
+        });
+    }
+
+    /**
+     * Reads the order code of the PLC.
+     *
+     * @return the Single emitting the order code
+     */
+    public Single<S7Result<S7OrderCode>> getOrderCode() {
+        return Single.defer(() -> {
+            S7OrderCode orderCode = new S7OrderCode();
+            return submit(orderCode, client -> client.GetOrderCode(orderCode));
+        });
+    }
+
+    /**
+     * Reads the CPU information of the PLC.
+     *
+     * @return the Single emitting the CPU information
+     */
+    public Single<S7Result<S7CpuInfo>> getCpuInfo() {
+        return Single.defer(() -> {
+            S7CpuInfo cpuInfo = new S7CpuInfo();
+            return submit(cpuInfo, client -> client.GetCpuInfo(cpuInfo));
+        });
+    }
+
+    /**
+     * Reads the status of the PLC.
+     *
+     * @return the Single emitting the status (S7.S7CpuStatusRun...)
+     */
+    public Single<S7Result<Integer>> getPlcStatus() {
+        return Single.defer(() -> {
+            IntByRef status = new IntByRef();
+            return submit(status, client -> client.GetPlcStatus(status))
+                    .map(result -> new S7Result<>(status.Value,
+                            result.getError(), result.getQueueTime(),
+                            result.getExecutionTime()));
+        });
+    }
+
+    /**
+     * Uploads a block of the PLC into a channel, part by part as it is
+     * received, so that it can be archived whatever its size.
+     *
+     * @param blockType the type of the block (S7.Block_OB...)
+     * @param blockNumber the number of the block
+     * @param sink the channel receiving the block, in blocking mode
+     * @return the Single emitting the number of bytes written into the sink
+     */
+    public Single<S7Result<Integer>> upload(int blockType, int blockNumber,
+                                            WritableByteChannel sink) {
+        return Single.defer(() -> {
+            IntByRef size = new IntByRef();
+            return submit(size, client ->
+                    client.Upload(blockType, blockNumber, sink, size))
+                    .map(result -> new S7Result<>(size.Value,
+                            result.getError(), result.getQueueTime(),
+                            result.getExecutionTime()));
+        });
+    }
+
+    /**
+     * Gets the connection behind the facade.
+     *
+     * @return the connection to the PLC
+     */
+    public PlcConnection getConnection() { return connection; }
+}
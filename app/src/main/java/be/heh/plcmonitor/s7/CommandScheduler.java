@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+
+/**
+ * CommandScheduler orders the jobs sent over the connection of a
+ * PlcSupervisor by priority, so that the commands of the operator do not
+ * wait behind the polling.
+ *
+ * Jobs are submitted from any thread and run one at a time by the reading
+ * thread through runNext(), the most urgent first. A StepJob, such as a
+ * polled data block, is run one PDU at a time: a more urgent job submitted
+ * meanwhile runs before its next step. A write to an address already waiting
+ * to be written replaces the pending value instead of being queued. A write
+ * failing on a broken link is run again first once reconnected, unless a
+ * newer value was queued meanwhile; other failures are reported to the
+ * listener.
+ *
+ * @author Terencio Agozzino
+ */
+public class CommandScheduler {
+
+    /**
+     * Priority classes of the jobs, the most urgent first.
+     */
+    public enum Priority {
+        COMMAND,
+        ALARM,
+        FAST_TAG,
+        SLOW_TAG
+    }
+
+    /**
+     * Job run in several steps, each one exchanging a single PDU.
+     */
+    public interface StepJob extends PlcSupervisor.Job {
+
+        /**
+         * Specifies whether the last step has been run.
+         *
+         * @return true if the job is over; false if more steps remain
+         */
+        boolean isDone();
+    }
+
+    /**
+     * Listener notified of the writes given up, on the reading thread.
+     */
+    public interface OnWriteFailedListener {
+
+        /**
+         * Called when a value could not be written.
+         *
+         * @param address the address of the tag
+         * @param error the S7Client error code of the write
+         */
+        void onWriteFailed(TagAddress address, int error);
+    }
+
+    private final ArrayDeque<PlcSupervisor.Job>[] queues;
+    private final Map<TagAddress, Write> writes = new HashMap<>();
+
+    private OnWriteFailedListener listener;
+
+    /**
+     * Main constructor of the CommandScheduler class.
+     */
+    @SuppressWarnings("unchecked")
+    public CommandScheduler() {
+        queues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Sets the listener notified of the writes given up.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public synchronized void setOnWriteFailedListener(
+            OnWriteFailedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a job behind the pending jobs of the same priority.
+     *
+     * @param priority the priority of the job
+     * @param job the job to run
+     */
+    public synchronized void submit(Priority priority, PlcSupervisor.Job job) {
+        queues[priority.ordinal()].addLast(job);
+    }
+
+    /**
+     * Queues the write of a bit as a command.
+     *
+     * @param address the address of the bit
+     * @param value the value to write
+     */
+    public void writeBit(TagAddress address, boolean value) {
+        write(address, new byte[] { (byte) (value ? 0x01 : 0x00) });
+    }
+
+    /**
+     * Queues the write of a tag as a command. If a write to the same address
+     * is still pending, only its value is replaced.
+     *
+     * @param address the address of the tag
+     * @param value the value to write, in the PLC byte order
+     */
+    public synchronized void write(TagAddress address, byte[] value) {
+        Write pending = writes.get(address);
+        if (pending != null) {
+            pending.value = value;
+            return;
+        }
+
+        Write write = new Write(address, value);
+        writes.put(address, write);
+        queues[Priority.COMMAND.ordinal()].addLast(write);
+    }
+
+    /**
+     * Runs the next step of the most urgent job, on the connection of the
+     * supervisor.
+     *
+     * @param supervisor the supervisor of the connection
+     * @return true if a job was run; false if none was pending
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for the reconnection
+     */
+    public boolean runNext(PlcSupervisor supervisor)
+            throws InterruptedException {
+        PlcSupervisor.Job job = null;
+        Priority priority = null;
+
+        synchronized (this) {
+            for (Priority p : Priority.values()) {
+                job = queues[p.ordinal()].pollFirst();
+                if (job != null) {
+                    priority = p;
+                    break;
+                }
+            }
+            if (job == null) return false;
+            // A value submitted from now on is a new write
+            if (job instanceof Write) writes.remove(((Write) job).address);
+        }
+
+        int result = supervisor.execute(job);
+        if (result == 0 && job instanceof StepJob && !((StepJob) job).isDone()) {
+            synchronized (this) {
+                queues[priority.ordinal()].addFirst(job);
+            }
+        } else if (result != 0 && job instanceof Write) {
+            failed((Write) job, result, supervisor);
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs a failed write again before the other commands if the link broke,
+     * the supervisor reconnecting before the next job; gives it up otherwise.
+     *
+     * @param write the failed write
+     * @param result the S7Client error code of the write
+     * @param supervisor the supervisor of the connection
+     */
+    private void failed(Write write, int result, PlcSupervisor supervisor) {
+        OnWriteFailedListener listener;
+
+        synchronized (this) {
+            // A newer value replaces the failed one
+            if (writes.containsKey(write.address)) return;
+
+            if (PlcSupervisor.isLinkError(result) &&
+                    supervisor.getState() != PlcSupervisor.State.CLOSED) {
+                writes.put(write.address, write);
+                queues[Priority.COMMAND.ordinal()].addFirst(write);
+                return;
+            }
+            listener = this.listener;
+        }
+        if (listener != null) listener.onWriteFailed(write.address, result);
+    }
+
+    /**
+     * Runs the pending jobs until none is left.
+     *
+     * @param supervisor the supervisor of the connection
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for the reconnection
+     */
+    public void runAll(PlcSupervisor supervisor) throws InterruptedException {
+        while (runNext(supervisor)) { }
+    }
+
+    /**
+     * Gets the number of pending jobs.
+     *
+     * @return the number of jobs waiting to be run
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (ArrayDeque<PlcSupervisor.Job> queue : queues) {
+            size += queue.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Drops the pending jobs.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<PlcSupervisor.Job> queue : queues) {
+            queue.clear();
+        }
+        writes.clear();
+    }
+
+    /**
+     * Write of a tag, whose value may be replaced while pending.
+     */
+    private static class Write implements PlcSupervisor.Job {
+
+        private final TagAddress address;
+        private byte[] value;
+
+        /**
+         * Main constructor of the Write class.
+         *
+         * @param address the address of the tag
+         * @param value the value to write
+         */
+        Write(TagAddress address, byte[] value) {
+            this.address = address;
+            this.value = value;
+        }
+
+        /**
+         * Writes the value of the tag.
+         *
+         * @param client the S7 client of the connection
+         * @return 0 if the value was written; the S7Client error code
+         *         otherwise
+         */
+        @Override
+        public int run(S7Client client) {
+            byte[] data = value;
+
+            if (address.getWordLength() == S7.S7WLBit) {
+                return client.WriteBit(address.getArea(),
+                        address.getDbNumber(), address.getOffset(),
+                        address.getBit(), data[0] != 0);
+            }
+
+            int amount = address.isByteAddressable() ?
+                    data.length : data.length / 2;
+            return client.WriteArea(address.getArea(), address.getDbNumber(),
+                    address.getOffset(), amount, data);
+        }
+    }
+}
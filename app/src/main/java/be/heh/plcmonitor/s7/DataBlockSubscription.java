@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.nio.ByteBuffer;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import SimaticS7.S7DataItem;
+
+import be.heh.plcmonitor.model.DataBlock;
+
+/**
+ * DataBlockSubscription keeps the data of a data block up to date.
+ *
+ * The data block is registered as a cyclic read job into the PLC, which then
+ * pushes its values at a fixed interval: no request is sent anymore. PLCs
+ * without cyclic services (S7-1200, S7-1500) and data blocks too large for
+ * one PDU are polled instead.
+ *
+ * Each run of the job receives one update, so it is meant to be executed in a
+ * loop by a PlcSupervisor. A new connection registers the job again; the pool
+ * deletes it when the connection is released. A polled data block is read one
+ * PDU per run, so that a CommandScheduler may send more urgent jobs between
+ * two PDUs; the listener is called once the whole data block is read.
+ *
+ * @author Terencio Agozzino
+ */
+public class DataBlockSubscription implements CommandScheduler.StepJob {
+
+    /**
+     * Default interval between two pushes, in milliseconds.
+     */
+    public static final int DEFAULT_INTERVAL = 100;
+
+    /**
+     * Listener of the updates of the data block.
+     */
+    public interface OnDataChangedListener {
+
+        /**
+         * Called on the reading thread when new data has been received.
+         *
+         * @param data the data of the data block
+         */
+        void onDataChanged(byte[] data);
+    }
+
+    private final DataBlock dataBlock;
+    private final int interval;
+    private final OnDataChangedListener listener;
+    private final S7DataItem[] items;
+
+    private boolean cyclic = true;
+    private int position;
+
+    /**
+     * Main constructor of the DataBlockSubscription class.
+     *
+     * @param dataBlock the data block to keep up to date
+     * @param interval the interval between two pushes, in milliseconds
+     * @param listener the listener of the updates
+     */
+    public DataBlockSubscription(DataBlock dataBlock, int interval,
+                                 OnDataChangedListener listener) {
+        this.dataBlock = dataBlock;
+        this.interval = interval;
+        this.listener = listener;
+        this.items = new S7DataItem[] {
+                new S7DataItem(S7.S7AreaDB, S7.S7WLByte,
+                        dataBlock.getDbNumber(), dataBlock.getOffset(),
+                        dataBlock.getAmount(), dataBlock.getData())
+        };
+    }
+
+    /**
+     * Waits for the next update of the data block, or reads its next PDU
+     * when polled.
+     *
+     * A missing push is reported as a receive timeout, so that the supervisor
+     * reconnects.
+     *
+     * @param client the S7 client of the connection
+     * @return 0 if the data was updated; the S7Client error code otherwise
+     */
+    @Override
+    public int run(S7Client client) {
+        if (cyclic) {
+            if (client.CyclicJobsCount() > 0) {
+                return client.WaitPush(Math.max(client.RecvTimeout,
+                        interval * 5));
+            }
+
+            int result = client.CyclicSubscribe(items, items.length, interval,
+                    (jobId, data, count) -> {
+                        if (data[0].Result == 0) {
+                            listener.onDataChanged(dataBlock.getData());
+                        }
+                    }, new IntByRef());
+            if (result != S7Client.errS7FunctionError &&
+                    result != S7Client.errS7InvalidParams) {
+                return result;
+            }
+            cyclic = false;
+        }
+
+        int size = Math.min(dataBlock.getAmount() - position,
+                client.PDULength() - 18);
+        int result = client.ReadArea(S7.S7AreaDB, dataBlock.getDbNumber(),
+                dataBlock.getOffset() + position, size,
+                ByteBuffer.wrap(dataBlock.getData()), position);
+        if (result != 0) {
+            position = 0;
+            return result;
+        }
+
+        position += size;
+        if (position >= dataBlock.getAmount()) {
+            position = 0;
+            listener.onDataChanged(dataBlock.getData());
+        }
+
+        return result;
+    }
+
+    /**
+     * Specifies whether the last update is complete.
+     *
+     * @return true if the data block was pushed or wholly read; false if
+     *         PDUs remain to be polled
+     */
+    @Override
+    public boolean isDone() { return position == 0; }
+
+    /**
+     * Specifies whether the PLC pushes the data or is polled.
+     *
+     * @return true if the data block is read by a cyclic job; false otherwise
+     */
+    public boolean isCyclic() { return cyclic; }
+}
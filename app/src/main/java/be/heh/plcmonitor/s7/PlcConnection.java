@@ -39,6 +39,16 @@ public class PlcConnection {
      */
     private S7Client mS7Client;
 
+    /**
+     * The connection resource type used on the PLC.
+     */
+    private short mConnectionType;
+
+    /**
+     * The key of the connection in the pool which leased it, if any.
+     */
+    PlcConnectionPool.Key mPoolKey;
+
     /**
      * Builds a connection using a PLC and a connection type.
      *
@@ -47,8 +57,28 @@ public class PlcConnection {
      */
     public PlcConnection(Plc mPlc, short connectionType) {
         this.mPlc = mPlc;
+        mConnectionType = connectionType;
         mS7Client = new S7Client();
         mS7Client.SetConnectionType(connectionType);
+        mS7Client.SetPduSizeRequested(mPlc.getPduSize());
+        mS7Client.OperationTimeout = mPlc.getTimeout();
+    }
+
+    /**
+     * Applies the current settings of the PLC, which may have been edited
+     * since the connection was opened. The time budget applies from the next
+     * operation; a new PDU size needs a new negotiation, so the connection
+     * is closed if the size changed and must be opened again.
+     *
+     * @param plc the PLC, at the same address as the one of the connection
+     */
+    void update(Plc plc) {
+        mPlc = plc;
+        mS7Client.OperationTimeout = plc.getTimeout();
+
+        int pduSize = mS7Client.PduSizeRequested();
+        mS7Client.SetPduSizeRequested(plc.getPduSize());
+        if (mS7Client.PduSizeRequested() != pduSize) close();
     }
 
     /**
@@ -82,6 +112,20 @@ public class PlcConnection {
         }
     }
 
+    /**
+     * Checks that the connection is established without trying to open it.
+     *
+     * @return true if the SimaticS7 API client is connected; false otherwise.
+     */
+    public boolean isConnected() { return mS7Client.Connected; }
+
+    /**
+     * Gets the connection resource type used on the PLC.
+     *
+     * @return the connection resource type
+     */
+    public short getConnectionType() { return mConnectionType; }
+
     /**
      * Gets the PLC on which the connection is built.
      *
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7Client;
+import SimaticS7.S7SzlCache;
+
+import be.heh.plcmonitor.model.Plc;
+
+/**
+ * PlcConnectionPool shares the connections to the PLCs across the screens.
+ *
+ * Connections are keyed by IP address, rack, slot and connection type. They
+ * are leased by acquire() and given back by release(), then kept warm for an
+ * idle time so that reopening a screen costs no TCP, ISO or PDU handshake.
+ * The PDU size and the time budget of the PLC are applied when a connection
+ * is leased, so that editing them does not open a second connection to the
+ * same CPU.
+ * As S7 CPUs only have a few connection resources, the number of connections
+ * per PLC is capped.
+ * The connections share one cache of the identity of the PLCs (order code,
+ * CPU and CP info), which can be saved into a file between two runs.
+ *
+ * @author Terencio Agozzino
+ */
+public class PlcConnectionPool {
+
+    /**
+     * Default values of the pool settings.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+    public static final long DEFAULT_HEALTH_CHECK_DELAY = 5000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_PLC = 1;
+
+    /**
+     * The one and only instance of the pool.
+     */
+    private static PlcConnectionPool instance;
+
+    /**
+     * Pool settings, in milliseconds for durations.
+     */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private long healthCheckDelay = DEFAULT_HEALTH_CHECK_DELAY;
+    private int maxConnectionsPerPlc = DEFAULT_MAX_CONNECTIONS_PER_PLC;
+    private int remotePort = S7Client.ISOTCP;
+
+    /**
+     * Connections of each PLC.
+     */
+    private final Map<Key, Slot> slots = new HashMap<>();
+
+    /**
+     * Closes the connections idle for too long and saves the SZL cache.
+     */
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Static system status lists of the PLCs, shared by the connections and
+     * loaded from the file once if any.
+     */
+    private final S7SzlCache szlCache = new S7SzlCache();
+    private File szlCacheFile;
+    private boolean szlCacheLoaded;
+
+    /**
+     * Identifies the connection resources of a PLC.
+     */
+    static class Key {
+        final String ip;
+        final int rack;
+        final int slot;
+        final short connectionType;
+
+        Key(Plc plc, short connectionType) {
+            this.ip = plc.getIp();
+            this.rack = plc.getRack();
+            this.slot = plc.getSlot();
+            this.connectionType = connectionType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return rack == key.rack && slot == key.slot &&
+                    connectionType == key.connectionType && ip.equals(key.ip);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = ip.hashCode();
+            result = 31 * result + rack;
+            result = 31 * result + slot;
+            result = 31 * result + connectionType;
+            return result;
+        }
+    }
+
+    /**
+     * A connection waiting in the pool.
+     */
+    private static class IdleConnection {
+        final PlcConnection connection;
+        final long since;
+
+        IdleConnection(PlcConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * The connections of one PLC.
+     */
+    private static class Slot {
+        final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+        int opened;
+    }
+
+    /**
+     * Builds an empty pool. The application shares the one of getInstance(),
+     * the tests build their own.
+     */
+    PlcConnectionPool() { }
+
+    /**
+     * Gets the one and only instance of the pool.
+     *
+     * @return the instance of the pool
+     */
+    public static synchronized PlcConnectionPool getInstance() {
+        if (instance == null) {
+            instance = new PlcConnectionPool();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Leases an open connection to a PLC, reusing a warm one if possible.
+     *
+     * A connection idle for longer than the health check delay is probed
+     * before being handed out, and reopened if the probe fails. When all the
+     * connections of the PLC are leased, waits up to the acquire timeout for
+     * one to be released.
+     *
+     * This method does network I/O and must not be called on the UI thread.
+     *
+     * @param plc the PLC to connect to
+     * @param connectionType the connection resource type
+     * @return the leased connection; null if the PLC cannot be reached or no
+     *         connection was released in time
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for a connection
+     */
+    public PlcConnection acquire(Plc plc, short connectionType)
+            throws InterruptedException {
+        long timeout;
+        synchronized (this) {
+            timeout = acquireTimeout;
+        }
+
+        return acquire(plc, connectionType, timeout);
+    }
+
+    /**
+     * Leases an open connection to a PLC as acquire(Plc, short), waiting
+     * for a released connection up to the given time only.
+     *
+     * @param plc the PLC to connect to
+     * @param connectionType the connection resource type
+     * @param timeout the time to wait for a released connection, in
+     *                milliseconds, 0 not to wait
+     * @return the leased connection; null if the PLC cannot be reached or no
+     *         connection was released in time
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for a connection
+     */
+    public PlcConnection acquire(Plc plc, short connectionType, long timeout)
+            throws InterruptedException {
+        Key key = new Key(plc, connectionType);
+        loadSzlCache();
+        long deadline = System.currentTimeMillis() + timeout;
+        IdleConnection idleConnection = null;
+        PlcConnection connection;
+
+        synchronized (this) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+
+            while (slot.idle.isEmpty() && slot.opened >= maxConnectionsPerPlc) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return null;
+                wait(left);
+            }
+
+            if (!slot.idle.isEmpty()) {
+                // The most recently used connection is the warmest one
+                idleConnection = slot.idle.pollLast();
+                connection = idleConnection.connection;
+            } else {
+                connection = new PlcConnection(plc, connectionType);
+                connection.getS7Client().SetSzlCache(szlCache);
+                connection.getS7Client().SetRemotePort(remotePort);
+                connection.mPoolKey = key;
+                slot.opened++;
+            }
+            startReaper();
+        }
+
+        connection.update(plc);
+
+        if (idleConnection != null && !isHealthy(idleConnection)) {
+            connection.close();
+        }
+        if (!connection.isConnected()) {
+            connection.open();
+        }
+        if (!connection.isConnected()) {
+            discard(key);
+            return null;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Gives back a leased connection to the pool, deleting its cyclic read
+     * jobs and alarm registration. Broken connections, including the ones
+     * whose last exchange failed on the link, are discarded.
+     *
+     * @param connection the leased connection, may be null
+     */
+    public void release(PlcConnection connection) {
+        if (connection == null) return;
+
+        // The PLC may have been edited since the connection was leased
+        Key key = connection.mPoolKey;
+        // The client still believes it is connected after a link error
+        if (PlcSupervisor.isLinkError(connection.getS7Client().LastError)) {
+            connection.close();
+        }
+        // Otherwise the PLC would keep pushing cyclic data and alarms
+        if (connection.isConnected() &&
+                connection.getS7Client().UnsubscribeAll() != 0) {
+            connection.close();
+        }
+        if (!connection.isConnected()) {
+            discard(key);
+            return;
+        }
+
+        synchronized (this) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                connection.close();
+                return;
+            }
+            slot.idle.addLast(new IdleConnection(connection,
+                    System.currentTimeMillis()));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes all the idle connections. Leased connections are closed when
+     * released.
+     */
+    public void closeAll() {
+        List<PlcConnection> expired = new ArrayList<>();
+
+        synchronized (this) {
+            for (Slot slot : slots.values()) {
+                for (IdleConnection idleConnection : slot.idle) {
+                    expired.add(idleConnection.connection);
+                }
+                slot.opened -= slot.idle.size();
+                slot.idle.clear();
+            }
+            notifyAll();
+        }
+        for (PlcConnection connection : expired) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Gets the number of idle connections to a PLC, which can be leased
+     * without taking a new connection resource of the CPU.
+     *
+     * @param plc the PLC
+     * @param connectionType the connection resource type
+     * @return the number of idle connections
+     */
+    public synchronized int idleCount(Plc plc, short connectionType) {
+        Slot slot = slots.get(new Key(plc, connectionType));
+        return slot == null ? 0 : slot.idle.size();
+    }
+
+    /**
+     * Checks that an idle connection is still usable, probing the PLC only
+     * if the connection was not used recently.
+     *
+     * @param idleConnection the idle connection
+     * @return true if the connection is usable; false otherwise
+     */
+    private boolean isHealthy(IdleConnection idleConnection) {
+        PlcConnection connection = idleConnection.connection;
+        if (!connection.isConnected()) return false;
+        if (System.currentTimeMillis() - idleConnection.since < healthCheckDelay) {
+            return true;
+        }
+
+        return connection.getS7Client().GetPlcStatus(new IntByRef()) == 0;
+    }
+
+    /**
+     * Frees the place of a connection that will not come back to the pool.
+     *
+     * @param key the key of the connection
+     */
+    private synchronized void discard(Key key) {
+        Slot slot = slots.get(key);
+        if (slot != null && slot.opened > 0) {
+            slot.opened--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Starts the thread closing the connections idle for too long.
+     */
+    private synchronized void startReaper() {
+        if (reaper != null) return;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PlcConnectionPool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        reaper.scheduleWithFixedDelay(this::closeExpired, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the connections idle for longer than the idle timeout.
+     */
+    private void closeExpired() {
+        List<PlcConnection> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (Slot slot : slots.values()) {
+                Iterator<IdleConnection> iterator = slot.idle.iterator();
+                while (iterator.hasNext()) {
+                    IdleConnection idleConnection = iterator.next();
+                    if (now - idleConnection.since >= idleTimeout) {
+                        iterator.remove();
+                        expired.add(idleConnection.connection);
+                        slot.opened--;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        for (PlcConnection connection : expired) {
+            connection.close();
+        }
+        saveSzlCache();
+    }
+
+    /**
+     * Loads the SZL cache from its file, the first time only.
+     */
+    private void loadSzlCache() {
+        File file;
+        synchronized (this) {
+            if (szlCacheLoaded || szlCacheFile == null) return;
+            szlCacheLoaded = true;
+            file = szlCacheFile;
+        }
+        if (!file.exists()) return;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            szlCache.Load(in);
+        } catch (IOException e) {
+            // Load() left the cache empty: the lists are read again from the
+            // PLCs, and the next save replaces the damaged file
+            szlCache.Clear();
+        }
+    }
+
+    /**
+     * Saves the SZL cache into its file if it changed. It is written to a
+     * temporary file first, then renamed, so that a crash while saving leaves
+     * the previous file whole.
+     */
+    private void saveSzlCache() {
+        File file;
+        synchronized (this) {
+            file = szlCacheFile;
+        }
+        if (file == null || !szlCache.Modified()) return;
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(temporary))) {
+            szlCache.Save(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Gets the cache of the identity of the PLCs shared by the connections.
+     *
+     * @return the SZL cache
+     */
+    public S7SzlCache getSzlCache() { return szlCache; }
+
+    /**
+     * Sets the file in which the SZL cache is kept between two runs. It is
+     * loaded by the next acquire() and saved by the idle connections reaper.
+     *
+     * @param szlCacheFile the file of the SZL cache, null to keep it in memory
+     */
+    public synchronized void setSzlCacheFile(File szlCacheFile) {
+        this.szlCacheFile = szlCacheFile;
+        this.szlCacheLoaded = false;
+    }
+
+    /**
+     * Sets how long a released connection is kept warm.
+     *
+     * @param idleTimeout the idle time in milliseconds
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets how long acquire() waits for a connection to be released.
+     *
+     * @param acquireTimeout the timeout in milliseconds
+     */
+    public synchronized void setAcquireTimeout(long acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * Sets after how long an idle connection is probed before reuse.
+     *
+     * @param healthCheckDelay the delay in milliseconds
+     */
+    public synchronized void setHealthCheckDelay(long healthCheckDelay) {
+        this.healthCheckDelay = healthCheckDelay;
+    }
+
+    /**
+     * Sets the maximum number of connections opened to one PLC.
+     *
+     * @param maxConnectionsPerPlc the maximum number of connections per PLC
+     */
+    public synchronized void setMaxConnectionsPerPlc(int maxConnectionsPerPlc) {
+        this.maxConnectionsPerPlc = maxConnectionsPerPlc;
+    }
+
+    /**
+     * Sets the TCP port of the connections opened from now on, to reach a
+     * simulated PLC.
+     *
+     * @param remotePort the remote port, S7Client.ISOTCP by default
+     */
+    synchronized void setRemotePort(int remotePort) {
+        this.remotePort = remotePort;
+    }
+}
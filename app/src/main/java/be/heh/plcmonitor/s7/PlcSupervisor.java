@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7Client;
+
+import be.heh.plcmonitor.model.Plc;
+
+/**
+ * PlcSupervisor keeps a connection to a PLC alive for as long as it is
+ * needed.
+ *
+ * Jobs are run through execute(). When a job fails because the link is
+ * broken, the connection is dropped and reopened with an exponential backoff
+ * and jitter, so that a network blip does not stall the monitoring. While no
+ * job is run, a cheap keepalive probe detects dead links. Every state
+ * transition is published to the listener.
+ *
+ * The lock is only held to change the state or the connection: jobs, probes
+ * and connection attempts run outside of it, one at a time on the
+ * connection, so that getState() or close() never wait for the network.
+ *
+ * @author Terencio Agozzino
+ */
+public class PlcSupervisor {
+
+    /**
+     * Default values of the supervisor settings, in milliseconds.
+     */
+    public static final long DEFAULT_MIN_BACKOFF = 500;
+    public static final long DEFAULT_MAX_BACKOFF = 30000;
+    public static final long DEFAULT_KEEPALIVE_INTERVAL = 10000;
+
+    /**
+     * States of the supervised connection.
+     */
+    public enum State {
+        CONNECTING,
+        CONNECTED,
+        RECONNECTING,
+        CLOSED
+    }
+
+    /**
+     * Job run on the client of a connected PLC.
+     */
+    public interface Job {
+
+        /**
+         * Runs the job.
+         *
+         * @param client the connected S7 client
+         * @return 0 if the job succeeded; the S7Client error code otherwise
+         */
+        int run(S7Client client);
+    }
+
+    /**
+     * Listener notified of the state transitions, on the thread that caused
+     * them.
+     */
+    public interface OnStateChangedListener {
+
+        /**
+         * Called when the state of the connection changes.
+         *
+         * @param state the new state
+         * @param error the S7Client error code that caused the transition, 0
+         *              if none
+         */
+        void onStateChanged(State state, int error);
+    }
+
+    private final PlcConnectionPool pool;
+    private final Plc plc;
+    private final short connectionType;
+    private final Random random = new Random();
+
+    private long minBackoff = DEFAULT_MIN_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private long keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+
+    private OnStateChangedListener listener;
+    private ScheduledExecutorService keepAlive;
+
+    private PlcConnection connection;
+    private boolean busy;
+    private boolean connecting;
+    private State state = State.CONNECTING;
+    private int attempts;
+    private long nextAttempt;
+    private long lastActivity;
+
+    /**
+     * Main constructor of the PlcSupervisor class.
+     *
+     * @param pool the pool leasing the connections
+     * @param plc the PLC to supervise
+     * @param connectionType the connection resource type
+     */
+    public PlcSupervisor(PlcConnectionPool pool, Plc plc, short connectionType) {
+        this.pool = pool;
+        this.plc = plc;
+        this.connectionType = connectionType;
+    }
+
+    /**
+     * Runs a job once the PLC is connected, waiting for the reconnection if
+     * the link is broken and for the job of another thread if any. A job
+     * that fails because of the link drops the connection, which is reopened
+     * by the next call.
+     *
+     * @param job the job to run
+     * @return the result of the job; errTCPConnectionFailed if the supervisor
+     *         was closed
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for the reconnection
+     */
+    public int execute(Job job) throws InterruptedException {
+        PlcConnection leased = lease();
+        if (leased == null) return S7Client.errTCPConnectionFailed;
+
+        return run(leased, job);
+    }
+
+    /**
+     * Closes the supervisor and gives back its connection to the pool, once
+     * the job running on it, if any, is over.
+     */
+    public void close() {
+        ScheduledExecutorService executor;
+
+        synchronized (this) {
+            if (state == State.CLOSED) return;
+
+            if (!busy) release();
+            setState(State.CLOSED, 0);
+            executor = keepAlive;
+            keepAlive = null;
+            notifyAll();
+        }
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Gets the current state of the connection.
+     *
+     * @return the current state of the connection
+     */
+    public synchronized State getState() { return state; }
+
+    /**
+     * Sets the listener notified of the state transitions.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public synchronized void setOnStateChangedListener(
+            OnStateChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the bounds of the delay between two reconnection attempts.
+     *
+     * @param minBackoff the delay after the first failure, in milliseconds
+     * @param maxBackoff the largest delay, in milliseconds
+     */
+    public synchronized void setBackoff(long minBackoff, long maxBackoff) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Sets after how long without any job the link is probed.
+     *
+     * @param keepAliveInterval the idle time in milliseconds
+     */
+    public synchronized void setKeepAliveInterval(long keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * Specifies whether an error means that the link to the PLC is broken.
+     * A timeout or a malformed S7 reply also counts, because the late or
+     * unexpected bytes would desynchronize the next exchanges, pipelined
+     * replies and pushes included.
+     *
+     * @param error the S7Client error code
+     * @return true if the connection must be reopened; false otherwise
+     */
+    public static boolean isLinkError(int error) {
+        return error >= S7Client.errTCPConnectionFailed &&
+                error <= S7Client.errS7InvalidPDU ||
+                error == S7Client.errS7OperationTimeout;
+    }
+
+    /**
+     * Takes the connection for a job, connecting first if needed, and
+     * waiting while another job runs on it or while the next attempt is not
+     * due.
+     *
+     * @return the connection, marked busy; null if the supervisor was closed
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting
+     */
+    private PlcConnection lease() throws InterruptedException {
+        while (true) {
+            synchronized (this) {
+                startKeepAlive();
+                while (true) {
+                    if (state == State.CLOSED) return null;
+
+                    if (connection != null && !busy) {
+                        busy = true;
+                        return connection;
+                    }
+                    if (connection == null && !connecting) {
+                        long delay = nextAttempt - System.currentTimeMillis();
+                        if (delay <= 0) break;
+                        wait(delay);
+                    } else {
+                        wait();
+                    }
+                }
+                connecting = true;
+            }
+            connect();
+        }
+    }
+
+    /**
+     * Runs a job on the leased connection, then drops the connection if the
+     * result reveals a broken link, or gives it back if the supervisor was
+     * closed meanwhile.
+     *
+     * @param leased the connection marked busy by the caller
+     * @param job the job to run
+     * @return the result of the job
+     */
+    private int run(PlcConnection leased, Job job) {
+        int result = 0;
+        boolean completed = false;
+
+        try {
+            result = job.run(leased.getS7Client());
+            completed = true;
+        } finally {
+            synchronized (this) {
+                busy = false;
+                if (state == State.CLOSED) {
+                    release();
+                } else if (completed) {
+                    check(result);
+                }
+                notifyAll();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Leases a connection from the pool, outside of the lock, scheduling the
+     * next attempt with an exponential backoff and jitter when it fails. The
+     * caller has set connecting.
+     *
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for the pool
+     */
+    private void connect() throws InterruptedException {
+        PlcConnection leased = null;
+        boolean completed = false;
+
+        try {
+            leased = pool.acquire(plc, connectionType);
+            completed = true;
+        } finally {
+            synchronized (this) {
+                connecting = false;
+                if (state == State.CLOSED) {
+                    pool.release(leased);
+                } else if (leased != null) {
+                    connection = leased;
+                    attempts = 0;
+                    lastActivity = System.currentTimeMillis();
+                    setState(State.CONNECTED, 0);
+                } else if (completed) {
+                    // Equal jitter: half of the delay is fixed, the other half
+                    // random
+                    long backoff = Math.min(maxBackoff,
+                            minBackoff << Math.min(attempts, 16));
+                    long delay = backoff / 2 +
+                            (long) (random.nextDouble() * (backoff / 2));
+                    attempts++;
+                    nextAttempt = System.currentTimeMillis() + delay;
+                    setState(State.RECONNECTING,
+                            S7Client.errTCPConnectionFailed);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drops the connection if a result reveals a broken link, or if the
+     * client closed it, so that no job runs on a closed connection.
+     *
+     * @param result the result of the last exchange
+     */
+    private void check(int result) {
+        if (!isLinkError(result) && connection.isConnected()) {
+            lastActivity = System.currentTimeMillis();
+            return;
+        }
+
+        connection.close();
+        release();
+        nextAttempt = 0;
+        setState(State.RECONNECTING, result);
+    }
+
+    /**
+     * Probes the link when idle, or reconnects when a retry is due and no
+     * job is waiting for it.
+     */
+    private void probe() {
+        PlcConnection leased;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            if (connection != null && !busy &&
+                    now - lastActivity >= keepAliveInterval) {
+                busy = true;
+                leased = connection;
+            } else if (connection == null && !connecting &&
+                    state == State.RECONNECTING && now >= nextAttempt) {
+                connecting = true;
+                leased = null;
+            } else {
+                return;
+            }
+        }
+
+        if (leased != null) {
+            run(leased, client -> client.GetPlcStatus(new IntByRef()));
+        } else {
+            try {
+                connect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gives back the connection to the pool.
+     */
+    private void release() {
+        pool.release(connection);
+        connection = null;
+    }
+
+    /**
+     * Starts the thread sending the keepalive probes.
+     */
+    private void startKeepAlive() {
+        if (keepAlive != null || state == State.CLOSED) return;
+
+        keepAlive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PlcSupervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(250, Math.min(minBackoff, keepAliveInterval / 2));
+        keepAlive.scheduleWithFixedDelay(this::probe, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes a state transition.
+     *
+     * @param state the new state
+     * @param error the S7Client error code that caused the transition
+     */
+    private void setState(State state, int error) {
+        if (this.state == state) return;
+
+        this.state = state;
+        if (listener != null) listener.onStateChanged(state, error);
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import SimaticS7.S7DataItem;
+
+/**
+ * ReadPlan coalesces a set of tag addresses into the minimal number of
+ * multi-variable read jobs.
+ *
+ * Tags of the same area are merged into one item whenever the gap between
+ * them is cheaper to read than the overhead of another item, then the items
+ * are packed into as few PDUs as the negotiated PDU length allows.
+ *
+ * @author Terencio Agozzino
+ */
+public class ReadPlan {
+
+    /**
+     * Default largest gap, in bytes, read to merge two tags. An extra item
+     * costs 12 bytes in the request and 4 bytes in the reply.
+     */
+    public static final int DEFAULT_MAX_GAP = 16;
+
+    /**
+     * S7 protocol sizes used to compute the cost of the plan.
+     */
+    private static final int ISO_HEADER = 7;
+    private static final int MAX_ITEMS = 20;
+    private static final int REQUEST_HEADER = 12;
+    private static final int REQUEST_ITEM = 12;
+    private static final int REPLY_HEADER = 14;
+    private static final int REPLY_ITEM = 4;
+    private static final int READ_AREA_REQUEST = 31;
+    private static final int READ_AREA_REPLY = 25;
+
+    private final List<TagAddress> tags;
+    private final int pduLength;
+
+    private S7DataItem[] items;
+    private int[] tagItems;
+    private int[] tagOffsets;
+
+    private int requests;
+    private int payloadBytes;
+    private int wireBytes;
+    private int naiveWireBytes;
+
+    /**
+     * Main constructor of the ReadPlan class that computes the plan.
+     *
+     * @param tags the tags to read
+     * @param pduLength the PDU length negotiated with the PLC
+     * @param maxGap the largest gap, in bytes, read to merge two tags
+     */
+    public ReadPlan(List<TagAddress> tags, int pduLength, int maxGap) {
+        this.tags = tags;
+        this.pduLength = pduLength;
+
+        List<Range> ranges = merge(maxGap);
+        pack(ranges);
+        computeStatistics();
+    }
+
+    /**
+     * A contiguous range of the PLC memory read by one item.
+     */
+    private static class Range {
+        final TagAddress first;
+        final int start;
+        int end;
+        final List<Integer> tagIndexes = new ArrayList<>();
+        S7DataItem item;
+
+        Range(TagAddress first, int start, int end) {
+            this.first = first;
+            this.start = start;
+            this.end = end;
+        }
+
+        int getReplySize() {
+            int size = end - start;
+            return REPLY_ITEM + size + (size & 1);
+        }
+    }
+
+    /**
+     * Merges the tags sorted by area and offset into ranges, as long as the
+     * gap stays under maxGap and the range still fits into one reply.
+     *
+     * @param maxGap the largest gap, in bytes, read to merge two tags
+     * @return the list of ranges to read
+     */
+    private List<Range> merge(int maxGap) {
+        List<Integer> sorted = new ArrayList<>();
+        for (int i = 0; i < tags.size(); i++) {
+            sorted.add(i);
+        }
+        Collections.sort(sorted, (a, b) -> {
+            TagAddress ta = tags.get(a);
+            TagAddress tb = tags.get(b);
+            if (ta.getArea() != tb.getArea()) return ta.getArea() - tb.getArea();
+            if (ta.getDbNumber() != tb.getDbNumber()) {
+                return ta.getDbNumber() - tb.getDbNumber();
+            }
+            return ta.getOffset() - tb.getOffset();
+        });
+
+        int maxPayload = (pduLength - REPLY_HEADER - REPLY_ITEM) & ~1;
+        List<Range> ranges = new ArrayList<>();
+        Range range = null;
+
+        for (int index : sorted) {
+            TagAddress tag = tags.get(index);
+            int end = tag.getOffset() + tag.getSize();
+
+            if (range != null && tag.isByteAddressable() &&
+                    range.first.isByteAddressable() &&
+                    tag.getArea() == range.first.getArea() &&
+                    tag.getDbNumber() == range.first.getDbNumber() &&
+                    tag.getOffset() <= range.end + maxGap &&
+                    Math.max(end, range.end) - range.start <= maxPayload) {
+                range.end = Math.max(end, range.end);
+            } else if (range != null && !tag.isByteAddressable() &&
+                    tag.equals(range.first)) {
+                // Same counter or timer read twice
+            } else {
+                range = new Range(tag, tag.getOffset(), end);
+                ranges.add(range);
+            }
+            range.tagIndexes.add(index);
+        }
+        return ranges;
+    }
+
+    /**
+     * Packs the ranges into jobs using a first-fit decreasing strategy and
+     * orders the items job by job, so that the sequential packing done by
+     * S7Client.ReadMultiVars yields the same jobs.
+     *
+     * @param ranges the ranges to read
+     */
+    private void pack(List<Range> ranges) {
+        List<List<Range>> jobs = new ArrayList<>();
+        List<Integer> replySizes = new ArrayList<>();
+        int maxItems = Math.min(MAX_ITEMS,
+                (pduLength - REQUEST_HEADER) / REQUEST_ITEM);
+
+        Collections.sort(ranges, (a, b) -> b.getReplySize() - a.getReplySize());
+        for (Range range : ranges) {
+            int job = 0;
+            while (job < jobs.size() && (jobs.get(job).size() >= maxItems ||
+                    replySizes.get(job) + range.getReplySize() > pduLength)) {
+                job++;
+            }
+            if (job == jobs.size()) {
+                jobs.add(new ArrayList<>());
+                replySizes.add(REPLY_HEADER);
+            }
+            jobs.get(job).add(range);
+            replySizes.set(job, replySizes.get(job) + range.getReplySize());
+        }
+
+        items = new S7DataItem[ranges.size()];
+        tagItems = new int[tags.size()];
+        tagOffsets = new int[tags.size()];
+
+        int i = 0;
+        for (List<Range> job : jobs) {
+            for (Range range : job) {
+                TagAddress first = range.first;
+                int size = range.end - range.start;
+
+                if (first.isByteAddressable()) {
+                    range.item = new S7DataItem(first.getArea(), S7.S7WLByte,
+                            first.getDbNumber(), range.start, size, new byte[size]);
+                } else {
+                    range.item = new S7DataItem(first.getArea(),
+                            first.getWordLength(), 0, range.start, 1,
+                            new byte[size]);
+                }
+                for (int index : range.tagIndexes) {
+                    tagItems[index] = i;
+                    tagOffsets[index] = first.isByteAddressable() ?
+                            tags.get(index).getOffset() - range.start : 0;
+                }
+                items[i++] = range.item;
+            }
+        }
+    }
+
+    /**
+     * Computes the bytes exchanged by the plan and by one ReadArea per tag.
+     */
+    private void computeStatistics() {
+        int job = 0;
+        int jobItems = 0;
+        int jobReply = REPLY_HEADER;
+
+        payloadBytes = 0;
+        wireBytes = 0;
+        naiveWireBytes = 0;
+
+        for (TagAddress tag : tags) {
+            naiveWireBytes += READ_AREA_REQUEST + READ_AREA_REPLY + tag.getSize();
+        }
+
+        // Replays the packing done by S7Client.ReadMultiVars
+        for (S7DataItem item : items) {
+            int size = item.DataSize();
+            int replySize = REPLY_ITEM + size + (size & 1);
+
+            if (jobItems > 0 && (jobItems == MAX_ITEMS ||
+                    REQUEST_HEADER + (jobItems + 1) * REQUEST_ITEM > pduLength ||
+                    jobReply + replySize > pduLength)) {
+                wireBytes += 2 * ISO_HEADER + REQUEST_HEADER +
+                        jobItems * REQUEST_ITEM + jobReply;
+                job++;
+                jobItems = 0;
+                jobReply = REPLY_HEADER;
+            }
+            jobItems++;
+            jobReply += replySize;
+            payloadBytes += size;
+        }
+        if (jobItems > 0) {
+            wireBytes += 2 * ISO_HEADER + REQUEST_HEADER +
+                    jobItems * REQUEST_ITEM + jobReply;
+            job++;
+        }
+        requests = job;
+    }
+
+    /**
+     * Reads all the tags of the plan.
+     *
+     * @param client the connected S7 client
+     * @return 0 if the jobs were exchanged, the S7Client error code otherwise
+     */
+    public int read(S7Client client) {
+        return client.ReadMultiVars(items, items.length);
+    }
+
+    /**
+     * Gets the items read by the plan.
+     *
+     * @return the items read by the plan
+     */
+    public S7DataItem[] getItems() { return items; }
+
+    /**
+     * Gets the tags of the plan.
+     *
+     * @return the tags of the plan
+     */
+    public List<TagAddress> getTags() { return tags; }
+
+    /**
+     * Gets the PDU length the plan was computed for.
+     *
+     * @return the PDU length the plan was computed for
+     */
+    public int getPduLength() { return pduLength; }
+
+    /**
+     * Gets the buffer holding the value of a tag after read().
+     *
+     * @param tag the index of the tag in the list given to the plan
+     * @return the buffer holding the value of the tag
+     */
+    public byte[] getData(int tag) { return items[tagItems[tag]].Data; }
+
+    /**
+     * Gets the position of the value of a tag in its buffer.
+     *
+     * @param tag the index of the tag in the list given to the plan
+     * @return the position of the value of the tag in getData(tag)
+     */
+    public int getOffset(int tag) { return tagOffsets[tag]; }
+
+    /**
+     * Gets the result of the last read for a tag.
+     *
+     * @param tag the index of the tag in the list given to the plan
+     * @return 0 if the tag was read; the S7Client error code otherwise
+     */
+    public int getResult(int tag) { return items[tagItems[tag]].Result; }
+
+    /**
+     * Gets the number of round trips needed by the plan.
+     *
+     * @return the number of round trips of the plan
+     */
+    public int getRequests() { return requests; }
+
+    /**
+     * Gets the number of round trips needed by one ReadArea per tag.
+     *
+     * @return the number of tags
+     */
+    public int getNaiveRequests() { return tags.size(); }
+
+    /**
+     * Gets the payload bytes read by the plan, gaps included.
+     *
+     * @return the payload bytes read by the plan
+     */
+    public int getPayloadBytes() { return payloadBytes; }
+
+    /**
+     * Gets the bytes sent and received by the plan, headers included.
+     *
+     * @return the bytes exchanged by the plan
+     */
+    public int getWireBytes() { return wireBytes; }
+
+    /**
+     * Gets the bytes sent and received by one ReadArea per tag, headers
+     * included.
+     *
+     * @return the bytes exchanged without the plan
+     */
+    public int getNaiveWireBytes() { return naiveWireBytes; }
+
+    /**
+     * Specifies the representation of the plan, with the round trips and
+     * bytes saved compared to one ReadArea per tag.
+     *
+     * @return the details of the plan
+     */
+    @Override
+    public String toString() {
+        return "ReadPlan{" +
+                "tags=" + tags.size() +
+                ", items=" + items.length +
+                ", requests=" + requests + "/" + getNaiveRequests() +
+                ", payloadBytes=" + payloadBytes +
+                ", wireBytes=" + wireBytes + "/" + naiveWireBytes +
+                '}';
+    }
+}
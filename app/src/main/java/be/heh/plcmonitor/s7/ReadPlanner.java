@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReadPlanner caches the read plan of a set of tags so that it is computed
+ * once and only recomputed when the tags or the PDU length change.
+ *
+ * @author Terencio Agozzino
+ */
+public class ReadPlanner {
+
+    /**
+     * The largest gap, in bytes, read to merge two tags.
+     */
+    private final int maxGap;
+
+    /**
+     * Key of the cached plan.
+     */
+    private List<TagAddress> tags;
+    private int pduLength;
+
+    /**
+     * The cached plan.
+     */
+    private ReadPlan plan;
+
+    /**
+     * Default constructor of the ReadPlanner class.
+     */
+    public ReadPlanner() { this(ReadPlan.DEFAULT_MAX_GAP); }
+
+    /**
+     * Main constructor of the ReadPlanner class.
+     *
+     * @param maxGap the largest gap, in bytes, read to merge two tags
+     */
+    public ReadPlanner(int maxGap) { this.maxGap = maxGap; }
+
+    /**
+     * Gets the plan of a set of tags, computing it only if the tags or the
+     * PDU length changed since the previous call.
+     *
+     * @param tags the tags to read
+     * @param pduLength the PDU length negotiated with the PLC
+     * @return the plan to read the tags
+     */
+    public synchronized ReadPlan getPlan(List<TagAddress> tags, int pduLength) {
+        if (plan == null || this.pduLength != pduLength ||
+                !this.tags.equals(tags)) {
+            this.tags = new ArrayList<>(tags);
+            this.pduLength = pduLength;
+            plan = new ReadPlan(this.tags, pduLength, maxGap);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Forgets the cached plan.
+     */
+    public synchronized void invalidate() { plan = null; }
+}
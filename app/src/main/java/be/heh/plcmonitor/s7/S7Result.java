@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.S7Client;
+
+/**
+ * Result of an asynchronous S7 operation.
+ *
+ * Carries the value read, the S7Client error code and how long the operation
+ * waited in the queue of its connection and then took to run.
+ *
+ * @param <T> the type of the value
+ *
+ * @author Terencio Agozzino
+ */
+public class S7Result<T> {
+
+    private final T value;
+    private final int error;
+    private final long queueTime;
+    private final long executionTime;
+
+    /**
+     * Main constructor of the S7Result class.
+     *
+     * @param value the value of the operation, may be null
+     * @param error the S7Client error code, 0 if the operation succeeded
+     * @param queueTime the time waited in the queue, in nanoseconds
+     * @param executionTime the time taken by the operation, in nanoseconds
+     */
+    public S7Result(T value, int error, long queueTime, long executionTime) {
+        this.value = value;
+        this.error = error;
+        this.queueTime = queueTime;
+        this.executionTime = executionTime;
+    }
+
+    /**
+     * Gets the value of the operation.
+     *
+     * @return the value of the operation, meaningful only if isSuccess()
+     */
+    public T getValue() { return value; }
+
+    /**
+     * Gets the S7Client error code of the operation.
+     *
+     * @return 0 if the operation succeeded; the S7Client error code otherwise
+     */
+    public int getError() { return error; }
+
+    /**
+     * Gets the description of the error of the operation.
+     *
+     * @return the description of the error
+     */
+    public String getErrorText() { return S7Client.ErrorText(error); }
+
+    /**
+     * Gets the time waited in the queue of the connection.
+     *
+     * @return the time waited in the queue, in nanoseconds
+     */
+    public long getQueueTime() { return queueTime; }
+
+    /**
+     * Gets the time taken by the operation itself.
+     *
+     * @return the time taken by the operation, in nanoseconds
+     */
+    public long getExecutionTime() { return executionTime; }
+
+    /**
+     * Specifies whether the operation succeeded.
+     *
+     * @return true if the operation succeeded; false otherwise
+     */
+    public boolean isSuccess() { return error == 0; }
+
+    /**
+     * Specifies the representation of the result.
+     *
+     * @return the details of the result
+     */
+    @Override
+    public String toString() {
+        return "S7Result{" +
+                "value=" + value +
+                ", error=" + error +
+                ", queueTime=" + queueTime +
+                ", executionTime=" + executionTime +
+                '}';
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SerialExecutor runs its tasks one at a time, in submission order, on a
+ * small pool of I/O threads shared by all the connections.
+ *
+ * An S7Client is not thread-safe, so each connection gets its own
+ * SerialExecutor. Many PLCs can then be served without a thread per device.
+ *
+ * @author Terencio Agozzino
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * Number of I/O threads shared by all the connections.
+     */
+    public static final int IO_THREADS = 4;
+
+    /**
+     * The I/O threads shared by all the connections.
+     */
+    private static ExecutorService ioExecutor;
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private Runnable active;
+
+    /**
+     * Builds a serial executor on the shared I/O threads.
+     */
+    public SerialExecutor() { this(getIoExecutor()); }
+
+    /**
+     * Builds a serial executor on the given executor.
+     *
+     * @param executor the executor running the tasks
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the I/O threads shared by all the connections.
+     *
+     * @return the shared I/O executor
+     */
+    public static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            ioExecutor = Executors.newFixedThreadPool(IO_THREADS, runnable -> {
+                Thread thread = new Thread(runnable,
+                        "S7-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return ioExecutor;
+    }
+
+    /**
+     * Queues a task, run after all the tasks queued before it.
+     *
+     * @param task the task to run
+     */
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Hands the next task over to the I/O threads.
+     */
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
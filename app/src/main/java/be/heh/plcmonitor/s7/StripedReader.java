@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import SimaticS7.S7Szl;
+
+import be.heh.plcmonitor.model.Plc;
+
+/**
+ * StripedReader reads a large range of a data block over several pooled
+ * connections at once.
+ *
+ * The range is split into stripes of whole PDUs, read concurrently, one per
+ * connection, straight into the destination buffer. As each connection costs
+ * a connection resource of the CPU, the number of stripes is bounded by the
+ * idle connections of the pool and the free resources reported by the CPU
+ * (one being left for the other clients), and by the connections per PLC
+ * allowed by the pool. The extra connections
+ * are only taken if the pool has them at hand.
+ *
+ * This class does network I/O and must not be called on the UI thread.
+ *
+ * @author Terencio Agozzino
+ */
+public class StripedReader {
+
+    /**
+     * Default maximum number of stripes read at once.
+     */
+    public static final int DEFAULT_MAX_STRIPES = 4;
+
+    /**
+     * Smallest stripe, in PDUs: below, a connection costs more than it saves.
+     */
+    public static final int MIN_PDUS_PER_STRIPE = 2;
+
+    /**
+     * Connection resources of the CPU left to the other clients.
+     */
+    public static final int RESERVED_CONNECTIONS = 1;
+
+    private final PlcConnectionPool pool;
+    private final int maxStripes;
+    private final ExecutorService executor;
+
+    /**
+     * Builds a reader running the stripes on the shared I/O threads.
+     *
+     * @param pool the pool of the connections
+     * @param maxStripes the maximum number of stripes read at once
+     */
+    public StripedReader(PlcConnectionPool pool, int maxStripes) {
+        this(pool, maxStripes, SerialExecutor.getIoExecutor());
+    }
+
+    /**
+     * Main constructor of the StripedReader class.
+     *
+     * @param pool the pool of the connections
+     * @param maxStripes the maximum number of stripes read at once
+     * @param executor the executor running the stripes but the first one,
+     *                 which runs on the calling thread
+     */
+    public StripedReader(PlcConnectionPool pool, int maxStripes,
+                         ExecutorService executor) {
+        this.pool = pool;
+        this.maxStripes = Math.max(1, maxStripes);
+        this.executor = executor;
+    }
+
+    /**
+     * Reads a range of a data block.
+     *
+     * @param plc the PLC to read
+     * @param connectionType the connection resource type
+     * @param dbNumber the number of the data block
+     * @param start the first byte of the range
+     * @param amount the number of bytes of the range
+     * @param buffer the destination buffer, filled from its first byte
+     * @return 0 if the whole range was read; the first S7Client error code
+     *         otherwise
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for a connection or a stripe
+     */
+    public int read(Plc plc, short connectionType, int dbNumber, int start,
+                    int amount, byte[] buffer) throws InterruptedException {
+        if (amount < 0 || amount > buffer.length) {
+            return S7Client.errS7InvalidParams;
+        }
+
+        List<PlcConnection> connections = new ArrayList<>();
+        try {
+            PlcConnection first = pool.acquire(plc, connectionType);
+            if (first == null) return S7Client.errTCPConnectionFailed;
+            connections.add(first);
+
+            // Whole PDUs per stripe, so that no stripe ends by a short one
+            int pduData = first.getS7Client().PDULength() - 18;
+            int pdus = (amount + pduData - 1) / pduData;
+            int stripes = Math.min(maxStripes,
+                    Math.max(1, pdus / MIN_PDUS_PER_STRIPE));
+            if (stripes > 1) {
+                // Idle pooled connections are reused before opening new ones
+                stripes = Math.min(stripes, 1
+                        + pool.idleCount(plc, connectionType)
+                        + freeConnections(first.getS7Client()));
+            }
+            while (connections.size() < stripes) {
+                PlcConnection connection = pool.acquire(plc, connectionType, 0);
+                if (connection == null) break;
+                connections.add(connection);
+            }
+
+            return readStripes(connections, dbNumber, start, amount, buffer,
+                    ((pdus + connections.size() - 1) / connections.size())
+                            * pduData);
+        } finally {
+            for (PlcConnection connection : connections) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Reads the stripes, one per connection.
+     *
+     * @param connections the leased connections
+     * @param dbNumber the number of the data block
+     * @param start the first byte of the range
+     * @param amount the number of bytes of the range
+     * @param buffer the destination buffer
+     * @param stripeSize the size of a stripe, the last one may be shorter
+     * @return 0 if all the stripes were read; the first error otherwise
+     * @throws InterruptedException when the thread is interrupted while
+     *                              waiting for a stripe
+     */
+    private int readStripes(List<PlcConnection> connections, int dbNumber,
+                            int start, int amount, byte[] buffer,
+                            int stripeSize) throws InterruptedException {
+        List<Future<Integer>> futures = new ArrayList<>();
+        int error = 0;
+
+        try {
+            for (int i = 1; i < connections.size(); i++) {
+                S7Client client = connections.get(i).getS7Client();
+                int offset = i * stripeSize;
+                int size = Math.min(stripeSize, amount - offset);
+                if (size <= 0) break;
+
+                futures.add(executor.submit(() -> client.ReadArea(
+                        S7.S7AreaDB, dbNumber, start + offset, size,
+                        ByteBuffer.wrap(buffer), offset)));
+            }
+            error = connections.get(0).getS7Client().ReadArea(S7.S7AreaDB,
+                    dbNumber, start, Math.min(stripeSize, amount), buffer);
+        } finally {
+            int result = awaitStripes(futures);
+            if (error == 0) error = result;
+        }
+
+        return error;
+    }
+
+    /**
+     * Waits for all the stripes, even when interrupted, as a connection must
+     * be idle to be released.
+     *
+     * @param futures the stripes running on the executor
+     * @return 0 if all the stripes were read; the first error otherwise
+     * @throws InterruptedException when the thread was interrupted while
+     *                              waiting
+     */
+    private static int awaitStripes(List<Future<Integer>> futures)
+            throws InterruptedException {
+        boolean interrupted = false;
+        RuntimeException failure = null;
+        int error = 0;
+
+        for (Future<Integer> future : futures) {
+            while (true) {
+                try {
+                    int result = future.get();
+                    if (error == 0) error = result;
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new RuntimeException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) throw new InterruptedException();
+        if (failure != null) throw failure;
+
+        return error;
+    }
+
+    /**
+     * Gets the number of connection resources of the CPU the reader may
+     * take, from the communication status data (SZL 0x0132 index 1).
+     *
+     * @param client the S7 client of a connection to the CPU
+     * @return the free connection resources less the reserved ones; 0 if the
+     *         CPU does not tell
+     */
+    private static int freeConnections(S7Client client) {
+        S7Szl szl = new S7Szl(1024);
+        if (client.ReadSZL(0x0132, 0x0001, szl) != 0 || szl.DataSize < 16) {
+            return 0;
+        }
+
+        return Math.max(0, S7.GetWordAt(szl.Data, 14) - RESERVED_CONNECTIONS);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.S7;
+
+/**
+ * Address of a tag inside the memory of a PLC.
+ *
+ * For counters and timers, the offset is the index of the element instead of
+ * a byte offset.
+ *
+ * @author Terencio Agozzino
+ */
+public class TagAddress {
+
+    private final int area;
+    private final int dbNumber;
+    private final int offset;
+    private final int bit;
+    private final int wordLength;
+
+    /**
+     * Main constructor of the TagAddress class.
+     *
+     * @param area the S7 area of the tag (S7.S7AreaDB, S7.S7AreaMK...)
+     * @param dbNumber the number of the data block, ignored outside S7AreaDB
+     * @param offset the byte offset of the tag
+     * @param bit the bit of the tag for S7WLBit, ignored otherwise
+     * @param wordLength the S7 word length of the tag (S7.S7WLBit...)
+     */
+    public TagAddress(int area, int dbNumber, int offset, int bit,
+                      int wordLength) {
+        this.area = area;
+        this.dbNumber = area == S7.S7AreaDB ? dbNumber : 0;
+        this.offset = offset;
+        this.bit = wordLength == S7.S7WLBit ? bit : 0;
+        this.wordLength = wordLength;
+    }
+
+    /**
+     * Gets the S7 area of the tag.
+     *
+     * @return the S7 area of the tag
+     */
+    public int getArea() { return area; }
+
+    /**
+     * Gets the number of the data block of the tag.
+     *
+     * @return the number of the data block, 0 outside S7AreaDB
+     */
+    public int getDbNumber() { return dbNumber; }
+
+    /**
+     * Gets the byte offset of the tag.
+     *
+     * @return the byte offset of the tag
+     */
+    public int getOffset() { return offset; }
+
+    /**
+     * Gets the bit of the tag.
+     *
+     * @return the bit of the tag, 0 if the tag is not a bit
+     */
+    public int getBit() { return bit; }
+
+    /**
+     * Gets the S7 word length of the tag.
+     *
+     * @return the S7 word length of the tag
+     */
+    public int getWordLength() { return wordLength; }
+
+    /**
+     * Gets the number of bytes of the tag inside the PLC memory.
+     *
+     * @return the size of the tag in bytes
+     */
+    public int getSize() { return S7.DataSizeByte(wordLength); }
+
+    /**
+     * Specifies whether the tag lies in a byte addressable area, meaning
+     * that it can be merged with its neighbours.
+     *
+     * @return true if the tag is byte addressable; false otherwise
+     */
+    public boolean isByteAddressable() {
+        return area != S7.S7AreaCT && area != S7.S7AreaTM;
+    }
+
+    /**
+     * Specifies whether two tags share the same address.
+     *
+     * @param o the other tag
+     * @return true if both tags share the same address; false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TagAddress)) return false;
+
+        TagAddress tag = (TagAddress) o;
+        return area == tag.area && dbNumber == tag.dbNumber &&
+                offset == tag.offset && bit == tag.bit &&
+                wordLength == tag.wordLength;
+    }
+
+    /**
+     * Computes the hash code of the address of the tag.
+     *
+     * @return the hash code of the tag
+     */
+    @Override
+    public int hashCode() {
+        int result = area;
+        result = 31 * result + dbNumber;
+        result = 31 * result + offset;
+        result = 31 * result + bit;
+        result = 31 * result + wordLength;
+        return result;
+    }
+
+    /**
+     * Specifies the representation of the tag.
+     *
+     * @return the details of the tag
+     */
+    @Override
+    public String toString() {
+        return "TagAddress{" +
+                "area=" + area +
+                ", dbNumber=" + dbNumber +
+                ", offset=" + offset +
+                ", bit=" + bit +
+                ", wordLength=" + wordLength +
+                '}';
+    }
+}
@@ -18,7 +18,12 @@ package be.heh.plcmonitor.util;
 
 import android.util.Patterns;
 
+import SimaticS7.S7Client;
+
 import be.heh.plcmonitor.dao.UserDaoImpl;
+import be.heh.plcmonitor.model.Plc;
+
+import static org.apache.commons.lang3.StringUtils.isNumeric;
 
 /**
  * Validator that allows to check various fields and things for users and PLCs.
@@ -70,6 +75,32 @@ public class Validator {
         return name.matches("^([A-Za-z]+)(\\s[A-Za-z]+)*\\s?$");
     }
 
+    /**
+     * Specifies the validation of a PDU size requested to a PLC.
+     *
+     * @param pduSize the PDU size requested to the PLC
+     * @return true if the PDU size is a valid one; false otherwise
+     */
+    public static boolean isValidPduSize(String pduSize) {
+        if (!isNumeric(pduSize) || pduSize.length() > 4) return false;
+
+        int size = Integer.parseInt(pduSize);
+        return size >= S7Client.MinPduSizeRequested &&
+                size <= S7Client.MaxPduSizeRequested;
+    }
+
+    /**
+     * Specifies the validation of the time budget of an operation on a PLC.
+     *
+     * @param timeout the time budget in milliseconds, 0 for none
+     * @return true if the time budget is a valid one; false otherwise
+     */
+    public static boolean isValidTimeout(String timeout) {
+        if (!isNumeric(timeout) || timeout.length() > 5) return false;
+
+        return Integer.parseInt(timeout) <= Plc.MAX_TIMEOUT;
+    }
+
     /**
      * Specifies the validation of a user password.
      *
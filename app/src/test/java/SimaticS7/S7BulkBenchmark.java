@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the bulk decoders and encoders of S7 against a loop of the scalar
+ * ones, after checking that both give the same values, unaligned offsets
+ * included.
+ *
+ * Not a unit test: run its main(), with the blocks per round (100000) as
+ * optional argument. Each line gives the nanoseconds per block.
+ */
+public class S7BulkBenchmark {
+
+    private static final int COUNT = 400;
+
+    private static final byte[] buffer = new byte[COUNT * 4];
+    private static final byte[] written = new byte[COUNT * 4 + 3];
+    private static final int[] words = new int[COUNT * 2];
+    private static final int[] dints = new int[COUNT];
+    private static final float[] reals = new float[COUNT];
+
+    private static final String[] NAMES = {
+            "400 REALs", "400 DINTs", "800 WORDs", "set 400 REALs"
+    };
+
+    // Accumulates a value of every block, so that no loop is optimized away
+    private static int sink;
+
+    public static void main(String[] args) {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        new Random(3).nextBytes(buffer);
+        check();
+
+        for (int round = 0; round < 3; round++) {
+            StringBuilder line = new StringBuilder("round " + round + ":");
+            for (int operation = 0; operation < NAMES.length; operation++) {
+                line.append(String.format(" %s scalar %.0f, bulk %.0f;",
+                        NAMES[operation], time(blocks, operation, false),
+                        time(blocks, operation, true)));
+            }
+            System.out.println(line);
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void run(int operation, boolean bulk) {
+        switch (operation) {
+            case 0:
+                if (bulk) S7.GetRealsAt(buffer, 0, reals, COUNT);
+                else getRealsScalar();
+                break;
+            case 1:
+                if (bulk) S7.GetDIntsAt(buffer, 0, dints, COUNT);
+                else getDIntsScalar();
+                break;
+            case 2:
+                if (bulk) S7.GetWordsAt(buffer, 0, words, COUNT * 2);
+                else getWordsScalar();
+                break;
+            default:
+                if (bulk) S7.SetRealsAt(written, 0, reals, COUNT);
+                else setRealsScalar();
+                break;
+        }
+    }
+
+    private static void getRealsScalar() {
+        for (int i = 0; i < COUNT; i++) {
+            reals[i] = S7.GetFloatAt(buffer, i * 4);
+        }
+    }
+
+    private static void getDIntsScalar() {
+        for (int i = 0; i < COUNT; i++) {
+            dints[i] = S7.GetDIntAt(buffer, i * 4);
+        }
+    }
+
+    private static void getWordsScalar() {
+        for (int i = 0; i < COUNT * 2; i++) {
+            words[i] = S7.GetWordAt(buffer, i * 2);
+        }
+    }
+
+    private static void setRealsScalar() {
+        for (int i = 0; i < COUNT; i++) {
+            S7.SetFloatAt(written, i * 4, reals[i]);
+        }
+    }
+
+    // Mean nanoseconds of a block
+    private static double time(int blocks, int operation, boolean bulk) {
+        long start = System.nanoTime();
+        for (int i = 0; i < blocks; i++) {
+            run(operation, bulk);
+            sink += Float.floatToRawIntBits(reals[i % COUNT]) + dints[i % COUNT]
+                    + words[i % COUNT] + written[i % COUNT];
+        }
+        return (System.nanoTime() - start) / (double) blocks;
+    }
+
+    // The bulk conversions give the values of the scalar ones
+    private static void check() {
+        int[] expectedInts = new int[COUNT * 2];
+        float[] expectedReals = new float[COUNT];
+        byte[] expected = new byte[written.length];
+
+        getWordsScalar();
+        System.arraycopy(words, 0, expectedInts, 0, words.length);
+        S7.GetWordsAt(buffer, 0, words, COUNT * 2);
+        same("GetWordsAt", Arrays.equals(expectedInts, words));
+
+        for (int i = 0; i < COUNT * 2; i++) {
+            expectedInts[i] = S7.GetShortAt(buffer, i * 2);
+        }
+        S7.GetShortsAt(buffer, 0, words, COUNT * 2);
+        same("GetShortsAt", Arrays.equals(expectedInts, words));
+
+        getDIntsScalar();
+        int[] expectedDInts = dints.clone();
+        S7.GetDIntsAt(buffer, 0, dints, COUNT);
+        same("GetDIntsAt", Arrays.equals(expectedDInts, dints));
+
+        getRealsScalar();
+        System.arraycopy(reals, 0, expectedReals, 0, COUNT);
+        S7.GetRealsAt(buffer, 0, reals, COUNT);
+        same("GetRealsAt", Arrays.equals(expectedReals, reals));
+
+        // Unaligned offsets
+        for (int i = 0; i < COUNT; i++) {
+            S7.SetFloatAt(expected, 3 + i * 4, reals[i]);
+        }
+        S7.SetRealsAt(written, 3, reals, COUNT);
+        same("SetRealsAt", Arrays.equals(expected, written));
+        S7.GetRealsAt(written, 3, reals, COUNT);
+        same("GetRealsAt unaligned", Arrays.equals(expectedReals, reals));
+
+        for (int i = 0; i < COUNT; i++) {
+            S7.SetDIntAt(expected, 3 + i * 4, dints[i]);
+        }
+        S7.SetDIntsAt(written, 3, dints, COUNT);
+        same("SetDIntsAt", Arrays.equals(expected, written));
+
+        getWordsScalar();
+        for (int i = 0; i < COUNT * 2; i++) {
+            S7.SetWordAt(expected, 1 + i * 2, words[i]);
+        }
+        S7.SetWordsAt(written, 1, words, COUNT * 2);
+        same("SetWordsAt", Arrays.equals(expected, written));
+    }
+
+    private static void same(String name, boolean same) {
+        if (!same) {
+            throw new IllegalStateException(name +
+                    " differs from the scalar loop");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Times every scalar getter and setter of S7 on a 4 KB DB image held by a
+ * byte[], a heap ByteBuffer and a direct ByteBuffer, over three warmed-up
+ * rounds.
+ *
+ * Not a unit test: run its main(), with the images per round (20000) as
+ * optional argument. Each line gives the microseconds per image, for the
+ * byte[], heap and direct codecs.
+ */
+public class S7ByteBufferBenchmark {
+
+    private static final int SIZE = 4096;
+
+    private static final String[] NAMES = {
+            "GetBitAt", "GetWordAt", "GetShortAt", "GetDWordAt", "GetDIntAt",
+            "GetFloatAt", "SetBitAt", "SetWordAt", "SetShortAt", "SetDWordAt",
+            "SetDIntAt", "SetFloatAt"
+    };
+    private static final String[] CODECS = {"byte[]", "heap", "direct"};
+
+    private static final byte[] image = new byte[SIZE];
+    private static final ByteBuffer heap = ByteBuffer.wrap(new byte[SIZE]);
+    private static final ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+
+    // Accumulates the values read, so that no loop is optimized away
+    private static double sink;
+
+    public static void main(String[] args) {
+        int images = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        new Random(3).nextBytes(image);
+        for (int i = 0; i < SIZE; i++) {
+            heap.put(i, image[i]);
+            direct.put(i, image[i]);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round + " (byte[] / heap / direct):");
+            for (int operation = 0; operation < NAMES.length; operation++) {
+                StringBuilder line = new StringBuilder(String.format("  %-11s",
+                        NAMES[operation]));
+                for (int codec = 0; codec < CODECS.length; codec++) {
+                    line.append(String.format(" %6.2f", time(images,
+                            operation, codec)));
+                }
+                System.out.println(line);
+            }
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    // Mean microseconds of an image
+    private static double time(int images, int operation, int codec) {
+        long start = System.nanoTime();
+        for (int i = 0; i < images; i++) {
+            sink += run(operation, codec, i);
+        }
+        return (System.nanoTime() - start) / 1000.0 / images;
+    }
+
+    // Reads or writes every value of the image
+    private static double run(int operation, int codec, int value) {
+        boolean array = codec == 0;
+        ByteBuffer buffer = codec == 1 ? heap : direct;
+        double sum = 0;
+
+        switch (operation) {
+            case 0:
+                for (int pos = 0; pos < SIZE; pos++) {
+                    if (array ? S7.GetBitAt(image, pos, pos & 7) :
+                            S7.GetBitAt(buffer, pos, pos & 7)) sum++;
+                }
+                break;
+            case 1:
+                for (int pos = 0; pos <= SIZE - 2; pos += 2) {
+                    sum += array ? S7.GetWordAt(image, pos) :
+                            S7.GetWordAt(buffer, pos);
+                }
+                break;
+            case 2:
+                for (int pos = 0; pos <= SIZE - 2; pos += 2) {
+                    sum += array ? S7.GetShortAt(image, pos) :
+                            S7.GetShortAt(buffer, pos);
+                }
+                break;
+            case 3:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    sum += array ? S7.GetDWordAt(image, pos) :
+                            S7.GetDWordAt(buffer, pos);
+                }
+                break;
+            case 4:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    sum += array ? S7.GetDIntAt(image, pos) :
+                            S7.GetDIntAt(buffer, pos);
+                }
+                break;
+            case 5:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    sum += array ? S7.GetFloatAt(image, pos) :
+                            S7.GetFloatAt(buffer, pos);
+                }
+                break;
+            case 6:
+                for (int pos = 0; pos < SIZE; pos++) {
+                    boolean bit = ((pos ^ value) & 1) != 0;
+                    if (array) S7.SetBitAt(image, pos, pos & 7, bit);
+                    else S7.SetBitAt(buffer, pos, pos & 7, bit);
+                }
+                break;
+            case 7:
+                for (int pos = 0; pos <= SIZE - 2; pos += 2) {
+                    if (array) S7.SetWordAt(image, pos, pos + value);
+                    else S7.SetWordAt(buffer, pos, pos + value);
+                }
+                break;
+            case 8:
+                for (int pos = 0; pos <= SIZE - 2; pos += 2) {
+                    if (array) S7.SetShortAt(image, pos, pos - value);
+                    else S7.SetShortAt(buffer, pos, pos - value);
+                }
+                break;
+            case 9:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    if (array) S7.SetDWordAt(image, pos, pos + value);
+                    else S7.SetDWordAt(buffer, pos, pos + value);
+                }
+                break;
+            case 10:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    if (array) S7.SetDIntAt(image, pos, pos * value);
+                    else S7.SetDIntAt(buffer, pos, pos * value);
+                }
+                break;
+            default:
+                for (int pos = 0; pos <= SIZE - 4; pos += 4) {
+                    if (array) S7.SetFloatAt(image, pos, pos * 0.5f + value);
+                    else S7.SetFloatAt(buffer, pos, pos * 0.5f + value);
+                }
+                break;
+        }
+        // A byte written, else the setters could be optimized away
+        return sum + (array ? image[value & (SIZE - 1)] :
+                buffer.get(value & (SIZE - 1)));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the ByteBuffer getters and setters of S7 with the byte[] ones,
+ * for every scalar type, on heap, direct, little-endian (swapped) and
+ * sliced buffers whose position is not 0.
+ */
+public class S7ByteBufferTest {
+
+    private static final int SIZE = 1024;
+    private static final int POSITION = 5;
+
+    private static byte[] image() {
+        byte[] image = new byte[SIZE];
+        new Random(7).nextBytes(image);
+        S7.SetFloatAt(image, 0, Float.NaN);
+        S7.SetFloatAt(image, 4, -0.0f);
+        S7.SetDWordAt(image, 8, 0xFFFFFFFFL);
+        S7.SetWordAt(image, 12, 0xFFFF);
+        S7.SetShortAt(image, 14, Short.MIN_VALUE);
+        S7.SetDIntAt(image, 16, Integer.MIN_VALUE);
+        return image;
+    }
+
+    // The buffers under test, holding the image, their position moved
+    private static ByteBuffer[] buffers(byte[] image) {
+        byte[] shifted = new byte[SIZE + 3];
+        System.arraycopy(image, 0, shifted, 3, SIZE);
+        ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+        direct.put(image);
+        ByteBuffer directSwapped = ByteBuffer.allocateDirect(SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        directSwapped.put(image);
+
+        ByteBuffer[] buffers = {
+                ByteBuffer.wrap(image.clone()),
+                ByteBuffer.wrap(image.clone()).order(ByteOrder.LITTLE_ENDIAN),
+                direct,
+                directSwapped,
+                // Absolute indexes are relative to the slice
+                ByteBuffer.wrap(shifted, 3, SIZE).slice()
+                        .order(ByteOrder.LITTLE_ENDIAN)
+        };
+        for (ByteBuffer buffer : buffers) {
+            buffer.position(POSITION);
+        }
+        return buffers;
+    }
+
+    private static String name(ByteBuffer buffer) {
+        return (buffer.isDirect() ? "direct " : "heap ") + buffer.order();
+    }
+
+    private static void assertUntouched(ByteBuffer buffer) {
+        assertEquals(name(buffer), POSITION, buffer.position());
+        assertEquals(name(buffer), SIZE, buffer.limit());
+    }
+
+    @Test
+    public void gettersMatchTheArrayGetters() {
+        byte[] image = image();
+
+        for (ByteBuffer buffer : buffers(image)) {
+            String name = name(buffer);
+            for (int pos = 0; pos <= SIZE - 4; pos++) {
+                assertEquals(name, S7.GetWordAt(image, pos),
+                        S7.GetWordAt(buffer, pos));
+                assertEquals(name, S7.GetShortAt(image, pos),
+                        S7.GetShortAt(buffer, pos));
+                assertEquals(name, S7.GetDWordAt(image, pos),
+                        S7.GetDWordAt(buffer, pos));
+                assertEquals(name, S7.GetDIntAt(image, pos),
+                        S7.GetDIntAt(buffer, pos));
+                assertEquals(name,
+                        Float.floatToRawIntBits(S7.GetFloatAt(image, pos)),
+                        Float.floatToRawIntBits(S7.GetFloatAt(buffer, pos)));
+                // Out of range bits are clamped the same way
+                for (int bit = -1; bit <= 8; bit++) {
+                    assertEquals(name, S7.GetBitAt(image, pos, bit),
+                            S7.GetBitAt(buffer, pos, bit));
+                }
+            }
+            assertUntouched(buffer);
+        }
+    }
+
+    @Test
+    public void knownValuesAreReadBigEndian() {
+        for (ByteBuffer buffer : buffers(image())) {
+            String name = name(buffer);
+            assertEquals(name, 0xFFFFFFFFL, S7.GetDWordAt(buffer, 8));
+            assertEquals(name, 0xFFFF, S7.GetWordAt(buffer, 12));
+            assertEquals(name, Short.MIN_VALUE, S7.GetShortAt(buffer, 14));
+            assertEquals(name, Integer.MIN_VALUE, S7.GetDIntAt(buffer, 16));
+            assertEquals(name, Float.floatToRawIntBits(-0.0f),
+                    Float.floatToRawIntBits(S7.GetFloatAt(buffer, 4)));
+            assertEquals(name, (byte) 0x80, buffer.get(14));
+        }
+    }
+
+    @Test
+    public void settersMatchTheArraySetters() {
+        for (ByteBuffer buffer : buffers(new byte[SIZE])) {
+            byte[] expected = new byte[SIZE];
+            Random random = new Random(9);
+
+            for (int i = 0; i < 20000; i++) {
+                int pos = random.nextInt(SIZE - 3);
+                int value = random.nextInt();
+                switch (i % 6) {
+                    case 0:
+                        S7.SetWordAt(expected, pos, value);
+                        S7.SetWordAt(buffer, pos, value);
+                        break;
+                    case 1:
+                        S7.SetShortAt(expected, pos, value);
+                        S7.SetShortAt(buffer, pos, value);
+                        break;
+                    case 2:
+                        long dword = random.nextLong();
+                        S7.SetDWordAt(expected, pos, dword);
+                        S7.SetDWordAt(buffer, pos, dword);
+                        break;
+                    case 3:
+                        S7.SetDIntAt(expected, pos, value);
+                        S7.SetDIntAt(buffer, pos, value);
+                        break;
+                    case 4:
+                        float real = Float.intBitsToFloat(value);
+                        S7.SetFloatAt(expected, pos, real);
+                        S7.SetFloatAt(buffer, pos, real);
+                        break;
+                    default:
+                        int bit = random.nextInt(10) - 1;
+                        boolean set = random.nextBoolean();
+                        S7.SetBitAt(expected, pos, bit, set);
+                        S7.SetBitAt(buffer, pos, bit, set);
+                        break;
+                }
+            }
+
+            assertUntouched(buffer);
+            byte[] written = new byte[SIZE];
+            ByteBuffer all = buffer.duplicate();
+            all.clear();
+            all.get(written);
+            assertArrayEquals(name(buffer), expected, written);
+        }
+    }
+
+    // Heap buffers go through their array: it holds bytes beyond the limit
+    private static void assertOutOfLimit(ByteBuffer buffer, int pos) {
+        String name = name(buffer) + " at " + pos;
+        try {
+            S7.GetShortAt(buffer, pos + 2);
+            fail(name);
+        } catch (IndexOutOfBoundsException e) { }
+        try {
+            S7.GetDIntAt(buffer, pos);
+            fail(name);
+        } catch (IndexOutOfBoundsException e) { }
+        try {
+            S7.SetDIntAt(buffer, pos, 1);
+            fail(name);
+        } catch (IndexOutOfBoundsException e) { }
+        try {
+            S7.GetFloatAt(buffer, -1);
+            fail(name);
+        } catch (IndexOutOfBoundsException e) { }
+    }
+
+    @Test
+    public void indexesAreCheckedAgainstTheLimit() {
+        byte[] array = new byte[32];
+        assertOutOfLimit(ByteBuffer.wrap(array, 0, 8).slice(), 5);
+        assertOutOfLimit(ByteBuffer.wrap(array, 4, 8).slice(), 5);
+        ByteBuffer limited = ByteBuffer.wrap(array);
+        limited.limit(8);
+        assertOutOfLimit(limited, 5);
+        ByteBuffer direct = ByteBuffer.allocateDirect(32);
+        direct.limit(8);
+        assertOutOfLimit(direct, 5);
+
+        // Indexes of a slice start at its offset in the array, the others
+        // at the start of the array whatever the position
+        array[4] = 0x12;
+        array[5] = 0x34;
+        assertEquals(0x1234, S7.GetWordAt(ByteBuffer.wrap(array, 4, 8).slice(),
+                0));
+        assertEquals(0x1234, S7.GetWordAt(ByteBuffer.wrap(array, 4, 8), 4));
+    }
+}
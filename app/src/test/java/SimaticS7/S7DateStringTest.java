@@ -0,0 +1,219 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the epoch milliseconds DATE_AND_TIME conversions of S7 with the
+ * Calendar based ones they replaced, over the whole 1990..2089 range, and
+ * checks that unchanged strings are not decoded again and that polling
+ * either allocates nothing.
+ */
+public class S7DateStringTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone BRUSSELS =
+            TimeZone.getTimeZone("Europe/Brussels");
+    private static final long DAY = 86400000L;
+
+    // Milliseconds since the epoch of a UTC time, Month 1..12
+    private static long utc(int year, int month, int day, int hour,
+                            int minute, int second) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    // The former GetDateAt, in the zone, without the milliseconds of the
+    // current time it used to leave in the Calendar
+    private static long calendarMillis(byte[] buffer, TimeZone zone) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        int year = S7.BCDtoByte(buffer[0]);
+        calendar.set(year < 90 ? year + 2000 : year + 1900,
+                S7.BCDtoByte(buffer[1]) - 1, S7.BCDtoByte(buffer[2]),
+                S7.BCDtoByte(buffer[3]), S7.BCDtoByte(buffer[4]),
+                S7.BCDtoByte(buffer[5]));
+        return calendar.getTimeInMillis();
+    }
+
+    // The former SetDateAt, in the zone, the years of the 1990s written on
+    // two digits as the ones of the 2000s
+    private static byte[] calendarBytes(long millis, TimeZone zone) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(millis);
+        return new byte[] {
+                S7.ByteToBCD(calendar.get(Calendar.YEAR) % 100),
+                S7.ByteToBCD(calendar.get(Calendar.MONTH) + 1),
+                S7.ByteToBCD(calendar.get(Calendar.DAY_OF_MONTH)),
+                S7.ByteToBCD(calendar.get(Calendar.HOUR_OF_DAY)),
+                S7.ByteToBCD(calendar.get(Calendar.MINUTE)),
+                S7.ByteToBCD(calendar.get(Calendar.SECOND)),
+                (byte) calendar.get(Calendar.DAY_OF_WEEK)
+        };
+    }
+
+    private static void assertSameAsCalendar(long millis, TimeZone zone) {
+        byte[] buffer = new byte[8];
+        S7.SetDateMillisAt(buffer, 0, millis, zone);
+        byte[] written = {
+                buffer[0], buffer[1], buffer[2], buffer[3], buffer[4],
+                buffer[5], (byte) (buffer[7] & 0x0F)
+        };
+        String name = zone.getID() + " " + new Date(millis);
+        assertArrayEquals(name, calendarBytes(millis, zone), written);
+
+        // Read back, the milliseconds included
+        assertEquals(name, millis, S7.GetDateMillisAt(buffer, 0, zone));
+        assertEquals(name, millis - millis % 1000,
+                calendarMillis(buffer, zone));
+    }
+
+    @Test
+    public void everyDayFrom1990To2089MatchesTheCalendar() {
+        long first = utc(1990, 1, 1, 0, 0, 0);
+        long last = utc(2089, 12, 31, 0, 0, 0);
+
+        for (long day = first; day <= last; day += DAY) {
+            // From 04:00 on, away from the changes of daylight saving time
+            long time = 4 * 3600000L + (day / DAY * 7919123L) % (20 * 3600000L);
+            assertSameAsCalendar(day + time, UTC);
+            assertSameAsCalendar(day + time - 2 * 3600000L, BRUSSELS);
+        }
+    }
+
+    @Test
+    public void limitsAndLeapDaysMatchTheCalendar() {
+        // First and last instants of the range, in UTC
+        assertSameAsCalendar(utc(1990, 1, 1, 0, 0, 0), UTC);
+        assertSameAsCalendar(utc(2089, 12, 31, 23, 59, 59) + 999, UTC);
+
+        for (int year = 1992; year <= 2088; year += 4) {
+            long leapDay = utc(year, 2, 29, 12, 0, 0);
+            assertSameAsCalendar(leapDay - DAY, UTC);
+            assertSameAsCalendar(leapDay, UTC);
+            assertSameAsCalendar(leapDay + DAY, BRUSSELS);
+            assertSameAsCalendar(leapDay - 1, BRUSSELS);
+        }
+
+        // 2000 is a leap year, 2100 would not be
+        byte[] buffer = new byte[8];
+        S7.SetDateMillisAt(buffer, 0, utc(2000, 2, 29, 0, 0, 0), UTC);
+        assertEquals("00022900", String.format("%02X%02X%02X%02X",
+                buffer[0], buffer[1], buffer[2], buffer[3]));
+    }
+
+    @Test
+    public void knownDateAndTimeIsDecoded() {
+        // 1999-12-31 23:59:59.999, a Friday
+        byte[] buffer = {(byte) 0x99, 0x12, 0x31, 0x23, 0x59, 0x59,
+                (byte) 0x99, (byte) 0x96};
+        assertEquals(946684799999L, S7.GetDateMillisAt(buffer, 0, UTC));
+        assertEquals(946684799999L, S7.GetDateMillisAt(buffer, 0, null));
+        // Without a zone, the local one as GetDateAt
+        assertEquals(S7.GetDateAt(buffer, 0).getTime(),
+                S7.GetDateMillisAt(buffer, 0));
+        assertEquals(S7.GetDateMillisAt(buffer, 0, TimeZone.getDefault()),
+                S7.GetDateMillisAt(buffer, 0));
+        assertEquals(99, S7.BCDtoByte((byte) 0x99));
+
+        byte[] written = new byte[8];
+        S7.SetDateMillisAt(written, 0, 946684799999L, null);
+        assertArrayEquals(buffer, written);
+    }
+
+    @Test
+    public void unchangedStringIsNotDecodedAgain() {
+        byte[] buffer = "Pump 1 running  ".getBytes(StandardCharsets.UTF_8);
+        S7String string = new S7String();
+
+        assertTrue(string.Update(buffer, 0, buffer.length));
+        String first = string.Value();
+        assertEquals("Pump 1 running  ", first);
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(string.Update(buffer, 0, buffer.length));
+            assertSame(first, string.Value());
+            assertSame(first, S7.GetStringAt(buffer, 0, buffer.length, string));
+        }
+
+        buffer[5] = '2';
+        assertTrue(string.Update(buffer, 0, buffer.length));
+        assertNotSame(first, string.Value());
+        assertEquals("Pump 2 running  ", string.Value());
+        assertEquals("Pump", S7.GetStringAt(buffer, 0, 4, string));
+
+        string.Reset();
+        assertTrue(string.Update(buffer, 0, 4));
+    }
+
+    @Test
+    public void printableStringReplacesTheControlCharacters() {
+        S7String string = new S7String(true);
+        byte[] buffer = {65, 0, 66, (byte) 200};
+        string.Update(buffer, 0, buffer.length);
+        assertEquals(S7.GetPrintableStringAt(buffer, 0, buffer.length),
+                string.Value());
+        assertEquals("A.B.", string.Value());
+    }
+
+    @Test
+    public void steadyStatePollsAllocateNothing() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] date = new byte[8];
+        S7.SetDateMillisAt(date, 0, utc(2018, 3, 21, 12, 34, 56) + 789,
+                BRUSSELS);
+        byte[] text = "Pump 1 running  ".getBytes(StandardCharsets.UTF_8);
+        S7String string = new S7String();
+        long id = Thread.currentThread().getId();
+
+        // Warmed up until compiled, as when polled for a while
+        long sum = poll(20000, date, text, string);
+        long before = allocations.getThreadAllocatedBytes(id);
+        sum += poll(5000, date, text, string);
+        long allocated = allocations.getThreadAllocatedBytes(id) - before;
+
+        assertTrue(sum != 0);
+        // A single allocation per poll would be 5000 times 16 bytes or more
+        assertTrue(allocated + " bytes allocated", allocated < 1024);
+    }
+
+    private static long poll(int count, byte[] date, byte[] text,
+                             S7String string) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += S7.GetDateMillisAt(date, 0, BRUSSELS);
+            sum += S7.GetDateMillisAt(date, 0, UTC);
+            string.Update(text, 0, text.length);
+            sum += S7.GetStringAt(text, 0, text.length, string).length();
+        }
+        return sum;
+    }
+}
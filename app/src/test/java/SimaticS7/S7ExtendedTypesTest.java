@@ -0,0 +1,204 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Known vectors and round trips of the S7-1200/1500 types of S7 : S5TIME,
+ * TIME, LINT, ULINT, LREAL, WCHAR, WSTRING and DTL.
+ */
+public class S7ExtendedTypesTest {
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String hex(byte[] buffer, int pos, int size) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            hex.append(String.format("%02X", buffer[pos + i]));
+        }
+        return hex.toString();
+    }
+
+    private static String s5Time(int millis) {
+        byte[] buffer = new byte[2];
+        S7.SetS5TimeAt(buffer, 0, millis);
+        return hex(buffer, 0, 2);
+    }
+
+    @Test
+    public void s5TimeDecodesEveryTimeBase() {
+        assertEquals(1230, S7.GetS5TimeAt(bytes("0123"), 0));
+        assertEquals(12300, S7.GetS5TimeAt(bytes("1123"), 0));
+        assertEquals(123000, S7.GetS5TimeAt(bytes("2123"), 0));
+        assertEquals(1230000, S7.GetS5TimeAt(bytes("3123"), 0));
+        assertEquals(10, S7.GetS5TimeAt(bytes("0001"), 0));
+        assertEquals(9990000, S7.GetS5TimeAt(bytes("3999"), 0));
+        // Bits 14..15 are not part of the value
+        assertEquals(1230, S7.GetS5TimeAt(bytes("C123"), 0));
+    }
+
+    @Test
+    public void s5TimeUsesTheFinestBaseUpTo999() {
+        assertEquals("0000", s5Time(0));
+        assertEquals("0999", s5Time(9990));
+        assertEquals("0999", s5Time(9999));
+        // 1000 times the base needs the next base
+        assertEquals("1100", s5Time(10000));
+        assertEquals("1999", s5Time(99999));
+        assertEquals("2100", s5Time(100000));
+        assertEquals("2999", s5Time(999999));
+        assertEquals("3100", s5Time(1000000));
+        assertEquals("3999", s5Time(9990000));
+        // Bounded to the range of S5TIME
+        assertEquals("3999", s5Time(99999999));
+        assertEquals("0000", s5Time(-5));
+        // Truncated, not rounded, in the finest base
+        assertEquals("0001", s5Time(19));
+    }
+
+    @Test
+    public void s5TimeRoundTripLosesLessThanItsBase() {
+        byte[] buffer = new byte[2];
+        for (int millis = 0; millis <= 9990000; millis += 37) {
+            S7.SetS5TimeAt(buffer, 0, millis);
+            int read = S7.GetS5TimeAt(buffer, 0);
+            int base = millis < 10000 ? 10 : millis < 100000 ? 100 :
+                    millis < 1000000 ? 1000 : 10000;
+            assertTrue(millis + " read " + read,
+                    read <= millis && millis - read < base);
+        }
+    }
+
+    @Test
+    public void timeIsSignedMilliseconds() {
+        byte[] buffer = new byte[4];
+        assertEquals(-1, S7.GetTimeAt(bytes("FFFFFFFF"), 0));
+        assertEquals(Integer.MIN_VALUE, S7.GetTimeAt(bytes("80000000"), 0));
+
+        S7.SetTimeAt(buffer, 0, -1500);
+        assertEquals("FFFFFA24", hex(buffer, 0, 4));
+        assertEquals(-1500, S7.GetTimeAt(buffer, 0));
+        assertEquals(86399999, S7.GetTodAt(bytes("05265BFF"), 0));
+    }
+
+    @Test
+    public void ulintAboveLongMaxValueKeepsItsBits() {
+        byte[] buffer = new byte[9];
+        long max = S7.GetULIntAt(bytes("FFFFFFFFFFFFFFFF"), 0);
+        assertEquals("18446744073709551615", Long.toUnsignedString(max));
+
+        BigInteger value = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.TEN);
+        S7.SetULIntAt(buffer, 1, value.longValue());
+        assertEquals("8000000000000009", hex(buffer, 1, 8));
+        assertEquals(value.toString(),
+                Long.toUnsignedString(S7.GetULIntAt(buffer, 1)));
+    }
+
+    @Test
+    public void lintAndLRealAreBigEndian() {
+        byte[] buffer = new byte[9];
+        assertEquals(-1L, S7.GetLIntAt(bytes("FFFFFFFFFFFFFFFF"), 0));
+        assertEquals(Long.MIN_VALUE, S7.GetLIntAt(bytes("8000000000000000"), 0));
+        assertEquals(0xFFFFFFFFL, S7.GetLIntAt(bytes("00000000FFFFFFFF"), 0));
+        S7.SetLIntAt(buffer, 1, 0x0123456789ABCDEFL);
+        assertEquals("0123456789ABCDEF", hex(buffer, 1, 8));
+
+        assertEquals(1.0, S7.GetLRealAt(bytes("3FF0000000000000"), 0), 0);
+        assertEquals(-Math.PI, S7.GetLRealAt(bytes("C00921FB54442D18"), 0), 0);
+        S7.SetLRealAt(buffer, 1, Double.NaN);
+        assertTrue(Double.isNaN(S7.GetLRealAt(buffer, 1)));
+    }
+
+    @Test
+    public void wStringIsBoundedByItsMaxLength() {
+        byte[] buffer = new byte[32];
+        StringBuilder text = new StringBuilder("previous");
+
+        S7.SetWStringAt(buffer, 0, 10, "h\u00e9llo\u20ac");
+        assertEquals("000A0006", hex(buffer, 0, 4));
+        assertEquals("20AC", hex(buffer, 14, 2));
+        S7.GetWStringAt(buffer, 0, text);
+        assertEquals("h\u00e9llo\u20ac", text.toString());
+
+        // Longer than the declared max length : truncated
+        S7.SetWStringAt(buffer, 0, 3, "abcdef");
+        assertEquals("00030003", hex(buffer, 0, 4));
+        S7.GetWStringAt(buffer, 0, text);
+        assertEquals("abc", text.toString());
+
+        // A corrupted actual length is bounded by the max length
+        S7.GetWStringAt(bytes("00020009004100420043"), 0, text);
+        assertEquals("AB", text.toString());
+        S7.GetWStringAt(bytes("00050000"), 0, text);
+        assertEquals("", text.toString());
+
+        assertEquals('\u20ac', S7.GetWCharAt(bytes("20AC"), 0));
+        S7.SetWCharAt(buffer, 0, '\uffff');
+        assertEquals("FFFF", hex(buffer, 0, 2));
+    }
+
+    @Test
+    public void dtlKeepsTheNanosecondsAndComputesTheWeekday() {
+        S7Dtl dtl = new S7Dtl();
+        S7.GetDtlAt(bytes("07E20315040C2238075BCD15"), 0, dtl);
+        assertEquals(2018, dtl.Year);
+        assertEquals(3, dtl.Month);
+        assertEquals(21, dtl.Day);
+        assertEquals(4, dtl.Weekday);
+        assertEquals(12, dtl.Hour);
+        assertEquals(34, dtl.Minute);
+        assertEquals(56, dtl.Second);
+        assertEquals(123456789, dtl.Nanosecond);
+
+        byte[] buffer = new byte[17];
+        S7.SetDtlAt(buffer, 5, dtl);
+        assertEquals("07E20315040C2238075BCD15", hex(buffer, 5, 12));
+
+        // The weekday written is computed, whatever the holder says
+        dtl.Set(2262, 4, 11, 23, 47, 16, 854775807);
+        dtl.Weekday = 1;
+        S7.SetDtlAt(buffer, 0, dtl);
+        S7Dtl read = new S7Dtl();
+        S7.GetDtlAt(buffer, 0, read);
+        assertEquals(2262, read.Year);
+        assertEquals(854775807, read.Nanosecond);
+        assertEquals(6, read.Weekday);
+    }
+
+    @Test
+    public void dayOfWeekMatchesTheCalendarFrom1970To2262() {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(1970, Calendar.JANUARY, 1);
+
+        while (calendar.get(Calendar.YEAR) <= 2262) {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int day = calendar.get(Calendar.DAY_OF_MONTH);
+            assertEquals(year + "-" + month + "-" + day,
+                    calendar.get(Calendar.DAY_OF_WEEK),
+                    S7.DayOfWeek(year, month, day));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        assertEquals(0, S7.DayOfWeek(2000, 13, 1));
+    }
+}
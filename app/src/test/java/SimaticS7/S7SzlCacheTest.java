@@ -0,0 +1,115 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SimaticS7;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Saved and damaged contents of S7SzlCache.
+ */
+public class S7SzlCacheTest {
+
+    private static final String MODULE = "S C-X4U421302012";
+
+    private static S7SzlCache cache() {
+        S7SzlCache cache = new S7SzlCache();
+        S7Szl szl = new S7Szl(64);
+        szl.LENTHDR = 28;
+        szl.N_DR = 2;
+        szl.DataSize = 56;
+        for (int i = 0; i < szl.DataSize; i++) {
+            szl.Data[i] = (byte) i;
+        }
+        cache.Put(MODULE, 0x0011, 0, szl);
+        return cache;
+    }
+
+    // A saved content of one module and one list of the given length
+    private static byte[] saved(int modules, int lists, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(modules);
+        out.writeUTF(MODULE);
+        out.writeInt(lists);
+        out.writeInt(0x00110000);
+        out.writeShort(28);
+        out.writeShort(2);
+        out.writeInt(length);
+        out.write(new byte[Math.max(0, Math.min(length, 16))]);
+        return bytes.toByteArray();
+    }
+
+    private static void assertDamaged(byte[] saved) {
+        S7SzlCache cache = cache();
+        try {
+            cache.Load(new ByteArrayInputStream(saved));
+            fail("Loaded a damaged content");
+        } catch (IOException e) {
+            assertEquals(0, cache.ModulesCount());
+        }
+    }
+
+    @Test
+    public void savedContentIsLoadedBack() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        S7SzlCache cache = cache();
+        assertTrue(cache.Modified());
+        cache.Save(bytes);
+        assertFalse(cache.Modified());
+
+        S7SzlCache loaded = new S7SzlCache();
+        loaded.Load(new ByteArrayInputStream(bytes.toByteArray()));
+        S7Szl szl = new S7Szl(64);
+        assertTrue(loaded.Get(MODULE, 0x0011, 0, szl));
+        assertEquals(28, szl.LENTHDR);
+        assertEquals(2, szl.N_DR);
+        assertEquals(56, szl.DataSize);
+        assertEquals(55, szl.Data[55]);
+        assertFalse(loaded.Get(MODULE, 0x0011, 1, szl));
+    }
+
+    @Test
+    public void negativeOrHugeLengthsAreRejected() throws IOException {
+        assertDamaged(saved(1, 1, -1));
+        assertDamaged(saved(1, 1, Integer.MAX_VALUE));
+        assertDamaged(saved(-5, 1, 16));
+        assertDamaged(saved(1, -5, 16));
+        assertDamaged(saved(Integer.MAX_VALUE, 1, 16));
+        assertDamaged(saved(1, Integer.MAX_VALUE, 16));
+    }
+
+    @Test
+    public void truncatedContentLeavesTheCacheEmpty() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cache().Save(bytes);
+        byte[] saved = bytes.toByteArray();
+
+        for (int length = 4; length < saved.length; length += 7) {
+            assertDamaged(Arrays.copyOf(saved, length));
+        }
+    }
+
+    @Test
+    public void unknownFormatLeavesTheCacheEmpty() throws IOException {
+        S7SzlCache cache = cache();
+        cache.Load(new ByteArrayInputStream(new byte[] {0, 0, 0, 9}));
+        assertEquals(0, cache.ModulesCount());
+    }
+}
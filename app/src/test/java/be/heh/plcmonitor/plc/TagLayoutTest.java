@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.plc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import SimaticS7.S7;
+
+import be.heh.plcmonitor.model.Plc;
+import be.heh.plcmonitor.model.Tag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the compilation and the decoding of the TagLayout class.
+ *
+ * @author Terencio Agozzino
+ */
+public class TagLayoutTest {
+
+    private final Plc plc = new Plc();
+
+    /**
+     * Every type is decoded, then scaled, except the booleans.
+     */
+    @Test
+    public void decodesEveryTypeScaled() {
+        TagLayout layout = new TagLayout(Arrays.asList(
+                new Tag(plc, "real", Tag.TYPE_REAL, 0, 0, 2, 1),
+                new Tag(plc, "int", Tag.TYPE_INT, 4, 0, 0.1, -3),
+                new Tag(plc, "dint", Tag.TYPE_DINT, 6, 0),
+                new Tag(plc, "dword", Tag.TYPE_DWORD, 10, 0),
+                new Tag(plc, "byte", Tag.TYPE_BYTE, 14, 0, 1, 5),
+                new Tag(plc, "word", Tag.TYPE_WORD, 16, 0),
+                new Tag(plc, "bool", Tag.TYPE_BOOL, 15, 7)));
+        byte[] data = new byte[18];
+        S7.SetFloatAt(data, 0, 1.5f);
+        S7.SetShortAt(data, 4, -100);
+        S7.SetDIntAt(data, 6, -7);
+        S7.SetDWordAt(data, 10, 0xFFFFFFFFL);
+        data[14] = (byte) 200;
+        S7.SetBitAt(data, 15, 7, true);
+        S7.SetWordAt(data, 16, 0xFFFF);
+
+        layout.decode(data);
+
+        assertEquals(4.0, layout.getValue(layout.indexOf("real")), 0);
+        assertEquals(-13.0, layout.getValue(layout.indexOf("int")), 1e-9);
+        assertEquals(-7L, layout.getLong(layout.indexOf("dint")));
+        assertEquals(0xFFFFFFFFL, layout.getLong(layout.indexOf("dword")));
+        assertEquals(205L, layout.getLong(layout.indexOf("byte")));
+        assertEquals(0xFFFFL, layout.getLong(layout.indexOf("word")));
+        assertTrue(layout.getBoolean(layout.indexOf("bool")));
+        assertFalse(layout.getBoolean(layout.indexOf("missing")));
+        assertEquals(18, layout.getDataSize());
+    }
+
+    /**
+     * A copy keeps the values decoded so far while the layout decodes new
+     * data, so that it can be handed over to another thread.
+     */
+    @Test
+    public void copyIsASnapshotOfTheValues() {
+        ControlLevel controlLevel = new ControlLevel(new TagLayout(
+                ControlLevel.getDefaultTags(plc)));
+        byte[] data = new byte[24];
+        S7.SetBitAt(data, 0, 5, true);
+        S7.SetWordAt(data, 16, 1234);
+        controlLevel.update(data);
+
+        ControlLevel snapshot = controlLevel.copy();
+        controlLevel.update(new byte[24]);
+
+        assertTrue(snapshot.isManual());
+        assertEquals(1234, snapshot.getWaterLevel());
+        assertFalse(controlLevel.isManual());
+        assertEquals(0, controlLevel.getWaterLevel());
+    }
+
+    /**
+     * Only the booleans are addressed to the bit.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheBitOfANonBoolean() {
+        new TagLayout(Collections.singletonList(
+                new Tag(plc, "word", Tag.TYPE_WORD, 16, 3)));
+    }
+
+    /**
+     * A byte has no bit above 7.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABitAboveSeven() {
+        new TagLayout(Collections.singletonList(
+                new Tag(plc, "bool", Tag.TYPE_BOOL, 0, 8)));
+    }
+
+    /**
+     * Each tag is found by a name of its own.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADuplicateName() {
+        new TagLayout(Arrays.asList(new Tag(plc, "a", Tag.TYPE_BOOL, 0, 0),
+                new Tag(plc, "a", Tag.TYPE_BOOL, 0, 1)));
+    }
+
+    /**
+     * Data shorter than the layout cannot be decoded.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDataShorterThanTheLayout() {
+        new TagLayout(Collections.singletonList(
+                new Tag(plc, "real", Tag.TYPE_REAL, 2, 0))).decode(new byte[5]);
+    }
+
+    /**
+     * The tags of the screens, used when the database has none, compile.
+     */
+    @Test
+    public void defaultLayoutsAreValid() {
+        new TagLayout(ControlLevel.getDefaultTags(plc));
+        new TagLayout(PillsConditioning.getDefaultTags(plc));
+    }
+
+    /**
+     * The produced bottles, whose offset is unknown, are not read from the
+     * word of the filled bottles.
+     */
+    @Test
+    public void producedBottlesAreNotTheFilledBottles() {
+        PillsConditioning pills = new PillsConditioning(new TagLayout(
+                PillsConditioning.getDefaultTags(plc)));
+        byte[] data = new byte[18];
+        S7.SetWordAt(data, 16, 42);
+        pills.update(data);
+
+        assertEquals(42, pills.getFilledBottles());
+        assertEquals(0, pills.getProducesBottles());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+
+import be.heh.plcmonitor.model.Plc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the writes of the CommandScheduler when they fail.
+ *
+ * @author Terencio Agozzino
+ */
+public class CommandSchedulerTest {
+
+    private static final TagAddress WORD =
+            new TagAddress(S7.S7AreaDB, 5, 10, 0, S7.S7WLWord);
+
+    private FakePlc fakePlc;
+    private PlcConnectionPool pool;
+    private PlcSupervisor supervisor;
+    private CommandScheduler scheduler;
+    private List<Integer> failures;
+
+    @Before
+    public void setUp() throws Exception {
+        fakePlc = new FakePlc();
+        pool = new PlcConnectionPool();
+        pool.setRemotePort(fakePlc.getPort());
+
+        Plc plc = new Plc("Fake", fakePlc.getAddress(), 0, 1, null);
+        // A dropped link is noticed when the budget runs out
+        plc.setTimeout(300);
+        supervisor = new PlcSupervisor(pool, plc, S7.S7_BASIC);
+        supervisor.setBackoff(10, 100);
+
+        failures = new ArrayList<>();
+        scheduler = new CommandScheduler();
+        scheduler.setOnWriteFailedListener((address, error) ->
+                failures.add(error));
+    }
+
+    @After
+    public void tearDown() {
+        supervisor.close();
+        pool.closeAll();
+        fakePlc.close();
+    }
+
+    /**
+     * A write failing on a broken link is run again once reconnected.
+     */
+    @Test(timeout = 30000)
+    public void writeFailingOnTheLinkIsRunAgain() throws Exception {
+        connect();
+        fakePlc.dropConnections();
+
+        scheduler.write(WORD, new byte[] { 0x12, 0x34 });
+        assertTrue(scheduler.runNext(supervisor));
+        assertEquals(1, scheduler.size());
+
+        scheduler.runAll(supervisor);
+        assertArrayEquals(new byte[] { 0x12, 0x34 },
+                fakePlc.read(S7.S7AreaDB, 5, 10, 2));
+        assertTrue(failures.isEmpty());
+    }
+
+    /**
+     * A value queued while the write of the previous one fails is the only
+     * one written.
+     */
+    @Test(timeout = 30000)
+    public void newerValueReplacesTheFailedWrite() throws Exception {
+        connect();
+        fakePlc.dropConnections();
+        // Called on the reading thread, between the failure and its handling
+        supervisor.setOnStateChangedListener((state, error) -> {
+            if (state == PlcSupervisor.State.RECONNECTING) {
+                scheduler.write(WORD, new byte[] { 0x56, 0x78 });
+            }
+        });
+
+        scheduler.write(WORD, new byte[] { 0x12, 0x34 });
+        assertTrue(scheduler.runNext(supervisor));
+        assertEquals(1, scheduler.size());
+
+        scheduler.runAll(supervisor);
+        assertArrayEquals(new byte[] { 0x56, 0x78 },
+                fakePlc.read(S7.S7AreaDB, 5, 10, 2));
+        assertTrue(failures.isEmpty());
+    }
+
+    /**
+     * A write refused by the PLC is given up and reported.
+     */
+    @Test(timeout = 30000)
+    public void writeRefusedByThePlcIsReported() throws Exception {
+        connect();
+
+        scheduler.write(new TagAddress(S7.S7AreaDB, 5, 70000, 0, S7.S7WLWord),
+                new byte[] { 0x12, 0x34 });
+        scheduler.runAll(supervisor);
+
+        assertEquals(0, scheduler.size());
+        assertEquals(1, failures.size());
+        assertFalse(PlcSupervisor.isLinkError(failures.get(0)));
+    }
+
+    /**
+     * Writes are given up once the supervisor is closed, instead of being
+     * run again forever.
+     */
+    @Test(timeout = 30000)
+    public void writeIsGivenUpOnceTheSupervisorIsClosed() throws Exception {
+        supervisor.close();
+
+        scheduler.write(WORD, new byte[] { 0x12, 0x34 });
+        scheduler.runAll(supervisor);
+
+        assertEquals(0, scheduler.size());
+        assertEquals(1, failures.size());
+        assertEquals(S7Client.errTCPConnectionFailed, (int) failures.get(0));
+    }
+
+    private void connect() throws InterruptedException {
+        assertEquals(0, supervisor.execute(client -> 0));
+        assertTrue(fakePlc.awaitOpenConnections(1, 2000));
+    }
+}
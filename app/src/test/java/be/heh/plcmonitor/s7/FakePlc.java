@@ -0,0 +1,1047 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import SimaticS7.S7;
+import SimaticS7.S7Alarm;
+
+/**
+ * FakePlc is a simulated S7 CPU listening on the loopback interface, for the
+ * tests of the S7 client and of the connection layer.
+ *
+ * It answers the ISO connection request, the PDU negotiation, the reading and
+ * writing of variables, the reading of system status lists and the info and
+ * upload of the blocks given by setBlock(), after an optional delay per job. The events queued by push() are sent to the
+ * connections registered to them, each one right after a read reply so that
+ * they come between the replies of pipelined jobs. Each area and data block holds 64 KB, initialized
+ * to a known pattern. Every connection is served by its own thread, and the
+ * CPU refuses the connections beyond its connection resources.
+ *
+ * @author Terencio Agozzino
+ */
+public class FakePlc implements Closeable {
+
+    /**
+     * Size of each area and data block.
+     */
+    public static final int AREA_SIZE = 65536;
+
+    /**
+     * Largest number of items of a read or write of variables, a larger job
+     * being a protocol error.
+     */
+    private static final int MAX_VARS = 20;
+
+    /**
+     * Item return codes.
+     */
+    private static final int ITEM_OK = 0xFF;
+    private static final int ITEM_OUT_OF_RANGE = 0x05;
+
+    private final ServerSocket server;
+    private final ExecutorService threads = Executors.newCachedThreadPool(
+            daemon("FakePlc"));
+    private final ScheduledExecutorService delayer =
+            Executors.newScheduledThreadPool(4, daemon("FakePlc delay"));
+
+    private final Set<Socket> sockets = new HashSet<>();
+    private final Map<Integer, byte[]> areas = new HashMap<>();
+    private final Map<Integer, Integer> remoteTsaps = new HashMap<>();
+    private final Queue<S7Alarm> pushes = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, byte[]> blocks = new HashMap<>();
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+    private int uploadId;
+
+    private volatile int maxPduSize = 960;
+    private volatile int amq = 3;
+    private volatile long delay;
+    private volatile int maxConnections = 64;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger protocolErrors = new AtomicInteger();
+
+    /**
+     * State of one connection.
+     */
+    private static class Connection {
+        final Socket socket;
+        final OutputStream out;
+        int pduSize = 240;
+        volatile int events;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+    }
+
+    /**
+     * State of one block being uploaded.
+     */
+    private static class Upload {
+        final Connection connection;
+        final byte[] content;
+        int position;
+
+        Upload(Connection connection, byte[] content) {
+            this.connection = connection;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Main constructor of the FakePlc class, listening on an ephemeral port.
+     *
+     * @throws IOException when the port cannot be opened
+     */
+    public FakePlc() throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                128);
+        threads.execute(this::accept);
+    }
+
+    /**
+     * Gets the value of a byte of a data block before any write.
+     *
+     * @param dbNumber the number of the data block
+     * @param index the index of the byte
+     * @return the initial value of the byte
+     */
+    public static byte initialValue(int dbNumber, int index) {
+        return (byte) (index * 7 + dbNumber);
+    }
+
+    /**
+     * Gets the address to connect to.
+     *
+     * @return the loopback address
+     */
+    public String getAddress() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Gets the port to connect to.
+     *
+     * @return the port of the simulated PLC
+     */
+    public int getPort() { return server.getLocalPort(); }
+
+    /**
+     * Sets the largest PDU granted by the negotiation.
+     *
+     * @param maxPduSize the largest PDU size, 960 by default
+     */
+    public void setMaxPduSize(int maxPduSize) { this.maxPduSize = maxPduSize; }
+
+    /**
+     * Sets the number of parallel jobs granted by the negotiation.
+     *
+     * @param amq the max AmQ, 3 by default
+     */
+    public void setAmq(int amq) { this.amq = amq; }
+
+    /**
+     * Sets how long each job takes before its reply is sent.
+     *
+     * @param delay the delay in milliseconds, 0 by default
+     */
+    public void setDelay(long delay) { this.delay = delay; }
+
+    /**
+     * Sets the number of connection resources of the CPU.
+     *
+     * @param maxConnections the largest number of open connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the number of connections currently open.
+     *
+     * @return the number of open connections
+     */
+    public int getOpenConnections() { return openConnections.get(); }
+
+    /**
+     * Gets the largest number of connections open at the same time since the
+     * last reset.
+     *
+     * @return the peak number of connections
+     */
+    public int getPeakConnections() { return peakConnections.get(); }
+
+    /**
+     * Gets the number of connections accepted since the last reset.
+     *
+     * @return the number of accepted connections
+     */
+    public int getAcceptedConnections() { return acceptedConnections.get(); }
+
+    /**
+     * Gets the number of S7 jobs received since the last reset.
+     *
+     * @return the number of jobs
+     */
+    public int getRequests() { return requests.get(); }
+
+    /**
+     * Gets the number of malformed or oversized telegrams received.
+     *
+     * @return the number of protocol errors
+     */
+    public int getProtocolErrors() { return protocolErrors.get(); }
+
+    /**
+     * Gets how many connection requests were received for each remote TSAP
+     * since the last reset.
+     *
+     * @return the number of connection requests by remote TSAP
+     */
+    public synchronized Map<Integer, Integer> getRemoteTsaps() {
+        return new HashMap<>(remoteTsaps);
+    }
+
+    /**
+     * Resets the counters, the peak starting again from the connections
+     * currently open.
+     */
+    public synchronized void resetCounters() {
+        peakConnections.set(openConnections.get());
+        acceptedConnections.set(0);
+        requests.set(0);
+        remoteTsaps.clear();
+    }
+
+    /**
+     * Waits until a number of connections are open, the server noticing
+     * closed connections asynchronously.
+     *
+     * @param expected the number of open connections expected
+     * @param timeout the longest wait in milliseconds
+     * @return true if the number was reached; false otherwise
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public boolean awaitOpenConnections(int expected, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (openConnections.get() != expected) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            Thread.sleep(5);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads bytes of the memory of the CPU.
+     *
+     * @param area the S7 area code
+     * @param dbNumber the number of the data block, for S7AreaDB
+     * @param start the first byte
+     * @param size the number of bytes
+     * @return a copy of the bytes
+     */
+    public byte[] read(int area, int dbNumber, int start, int size) {
+        byte[] memory = area(area, dbNumber);
+        byte[] data = new byte[size];
+        synchronized (memory) {
+            System.arraycopy(memory, start, data, 0, size);
+        }
+
+        return data;
+    }
+
+    /**
+     * Writes bytes into the memory of the CPU.
+     *
+     * @param area the S7 area code
+     * @param dbNumber the number of the data block, for S7AreaDB
+     * @param start the first byte
+     * @param data the bytes to write
+     */
+    public void write(int area, int dbNumber, int start, byte[] data) {
+        byte[] memory = area(area, dbNumber);
+        synchronized (memory) {
+            System.arraycopy(data, 0, memory, start, data.length);
+        }
+    }
+
+    /**
+     * Stores a block in the load memory. Its MC7 size, given by the block
+     * info, is the length of its content.
+     *
+     * @param blockType the type of the block (S7.Block_DB...)
+     * @param blockNumber the number of the block
+     * @param content the block as uploaded
+     */
+    public void setBlock(int blockType, int blockNumber, byte[] content) {
+        synchronized (blocks) {
+            blocks.put((blockType << 16) | blockNumber, content.clone());
+        }
+    }
+
+    /**
+     * Gets the number of uploads started and not ended yet, the CPU ending
+     * those of a closed connection.
+     *
+     * @return the number of open uploads
+     */
+    public int getOpenUploads() {
+        synchronized (uploads) {
+            return uploads.size();
+        }
+    }
+
+    /**
+     * Queues an event of the CPU, sent after the next read reply to a
+     * connection registered to its kind: S7EvtDiagnostic for the diagnostic
+     * buffer entries, S7EvtAlarms for the alarm messages. The queued events
+     * are sent one per reply, in order.
+     *
+     * @param alarm the diagnostic entry or the alarm message
+     */
+    public void push(S7Alarm alarm) { pushes.add(alarm); }
+
+    /**
+     * Breaks all the open connections, as a network failure would.
+     */
+    public void dropConnections() {
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Stops the simulated PLC and closes its connections.
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Nothing to do, the server is closed anyway
+        }
+        dropConnections();
+        threads.shutdownNow();
+        delayer.shutdownNow();
+    }
+
+    /**
+     * Accepts the connections until the server is closed.
+     */
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                threads.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves one connection until it is closed by either side.
+     *
+     * @param socket the accepted socket
+     */
+    private void serve(Socket socket) {
+        int open = openConnections.incrementAndGet();
+        acceptedConnections.incrementAndGet();
+        synchronized (this) {
+            peakConnections.set(Math.max(peakConnections.get(), open));
+        }
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+
+        Connection connection = null;
+        try {
+            // Like a CPU out of connection resources
+            if (open > maxConnections) return;
+
+            connection = new Connection(socket);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] header = new byte[4];
+            while (true) {
+                in.readFully(header);
+                int length = S7.GetWordAt(header, 2);
+                if (header[0] != 3 || length < 7) {
+                    protocolErrors.incrementAndGet();
+                    return;
+                }
+                byte[] frame = new byte[length];
+                System.arraycopy(header, 0, frame, 0, 4);
+                in.readFully(frame, 4, length - 4);
+                if (!dispatch(connection, frame)) return;
+            }
+        } catch (IOException e) {
+            // The connection was closed
+        } finally {
+            synchronized (sockets) {
+                sockets.remove(socket);
+            }
+            closeQuietly(socket);
+            synchronized (uploads) {
+                Connection closed = connection;
+                uploads.values().removeIf(upload ->
+                        upload.connection == closed);
+            }
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Handles one ISO frame.
+     *
+     * @param connection the connection of the frame
+     * @param frame the frame, TPKT header included
+     * @return false to close the connection; true otherwise
+     * @throws IOException when the reply cannot be sent
+     */
+    private boolean dispatch(Connection connection, byte[] frame)
+            throws IOException {
+        // COTP connection request
+        if ((frame[5] & 0xFF) == 0xE0) {
+            connectionRequest(connection, frame);
+            return true;
+        }
+        if ((frame[5] & 0xFF) != 0xF0 || frame.length < 17 ||
+                (frame[7] & 0xFF) != 0x32) {
+            protocolErrors.incrementAndGet();
+            return false;
+        }
+
+        requests.incrementAndGet();
+        if (delay == 0) {
+            return job(connection, frame);
+        }
+        delayer.schedule(() -> {
+            try {
+                if (!job(connection, frame)) closeQuietly(connection.socket);
+            } catch (IOException e) {
+                closeQuietly(connection.socket);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        return true;
+    }
+
+    /**
+     * Answers the COTP connection request, recording its remote TSAP.
+     *
+     * @param connection the connection of the request
+     * @param frame the connection request
+     * @throws IOException when the reply cannot be sent
+     */
+    private void connectionRequest(Connection connection, byte[] frame)
+            throws IOException {
+        for (int pos = 11; pos + 1 < frame.length; pos += 2 + frame[pos + 1]) {
+            if ((frame[pos] & 0xFF) == 0xC2) {
+                int tsap = S7.GetWordAt(frame, pos + 2);
+                synchronized (this) {
+                    Integer count = remoteTsaps.get(tsap);
+                    remoteTsaps.put(tsap, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        byte[] reply = {
+                3, 0, 0, 22, 17, (byte) 0xD0, 0, 1, 0, 1, 0, (byte) 0xC0, 1,
+                10, (byte) 0xC1, 2, 1, 0, (byte) 0xC2, 2, 1, 2
+        };
+        synchronized (connection) {
+            connection.out.write(reply);
+        }
+    }
+
+    /**
+     * Runs an S7 job and sends its reply.
+     *
+     * @param connection the connection of the job
+     * @param frame the job, TPKT and COTP headers included
+     * @return false if the job is malformed; true otherwise
+     * @throws IOException when the reply cannot be sent
+     */
+    private boolean job(Connection connection, byte[] frame) throws IOException {
+        int rosctr = frame[8];
+        int parLength = S7.GetWordAt(frame, 13);
+        int dataLength = S7.GetWordAt(frame, 15);
+        int par = 17;
+        int data = par + parLength;
+        if (data + dataLength > frame.length) {
+            protocolErrors.incrementAndGet();
+            return false;
+        }
+        if (frame.length - 7 > Math.max(connection.pduSize, 240)) {
+            protocolErrors.incrementAndGet();
+        }
+
+        if (rosctr == 1) {
+            switch (frame[par] & 0xFF) {
+                case 0xF0:
+                    return negotiate(connection, frame, par);
+                case 0x04:
+                    return readVars(connection, frame, par);
+                case 0x05:
+                    return writeVars(connection, frame, par, data);
+                case 0x1D:
+                    startUpload(connection, frame);
+                    return true;
+                case 0x1E:
+                    upload(connection, frame);
+                    return true;
+                case 0x1F:
+                    endUpload(connection, frame);
+                    return true;
+                default:
+                    // Function not implemented
+                    send(connection, ackData(frame, 0x8104, new byte[0],
+                            new byte[0]));
+                    return true;
+            }
+        }
+        if (rosctr == 7 && parLength >= 8 && (frame[par + 5] & 0xFF) == 0x44 &&
+                frame[par + 6] == 0x01) {
+            return readSzl(connection, frame, data);
+        }
+        if (rosctr == 7 && parLength >= 4 && (frame[par + 5] & 0xFF) == 0x43 &&
+                frame[par + 6] == 0x03 && dataLength >= 12) {
+            blockInfo(connection, frame, data);
+            return true;
+        }
+        if (rosctr == 7 && parLength >= 4 && (frame[par + 5] & 0xFF) == 0x44 &&
+                frame[par + 6] == 0x02 && dataLength >= 5) {
+            return registerEvents(connection, frame, data);
+        }
+
+        protocolErrors.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Answers the PDU negotiation.
+     */
+    private boolean negotiate(Connection connection, byte[] frame, int par)
+            throws IOException {
+        connection.pduSize = Math.min(S7.GetWordAt(frame, par + 6), maxPduSize);
+
+        byte[] parameters = new byte[8];
+        parameters[0] = (byte) 0xF0;
+        S7.SetWordAt(parameters, 2, amq);
+        S7.SetWordAt(parameters, 4, amq);
+        S7.SetWordAt(parameters, 6, connection.pduSize);
+        send(connection, ackData(frame, 0, parameters, new byte[0]));
+
+        return true;
+    }
+
+    /**
+     * Answers a read of variables.
+     */
+    private boolean readVars(Connection connection, byte[] frame, int par)
+            throws IOException {
+        int count = frame[par + 1] & 0xFF;
+        if (count > MAX_VARS) {
+            protocolErrors.incrementAndGet();
+            return false;
+        }
+        byte[] out = new byte[connection.pduSize + 4];
+        int size = 0;
+
+        for (int i = 0; i < count; i++) {
+            int item = par + 2 + 12 * i;
+            int wordLength = frame[item + 3];
+            int amount = S7.GetWordAt(frame, item + 4);
+            int dbNumber = S7.GetWordAt(frame, item + 6);
+            int area = frame[item + 8] & 0xFF;
+            int address = ((frame[item + 9] & 0xFF) << 16) |
+                    ((frame[item + 10] & 0xFF) << 8) | (frame[item + 11] & 0xFF);
+            byte[] memory = area(area, dbNumber);
+
+            byte[] value;
+            int transportSize;
+            int bits;
+            if (wordLength == S7.S7WLBit) {
+                synchronized (memory) {
+                    value = new byte[]{(byte) ((memory[address >> 3] >>
+                            (address & 7)) & 1)};
+                }
+                transportSize = 3;
+                bits = 1;
+            } else {
+                boolean counter = wordLength == S7.S7WLCounter ||
+                        wordLength == S7.S7WLTimer;
+                int start = counter ? address : address >> 3;
+                int length = amount * S7.DataSizeByte(wordLength);
+                if (length <= 0 || start + length > AREA_SIZE) {
+                    if (size + 4 > connection.pduSize - 14) {
+                        protocolErrors.incrementAndGet();
+                        return false;
+                    }
+                    out[size] = ITEM_OUT_OF_RANGE;
+                    size += 4;
+                    continue;
+                }
+                value = read(area, dbNumber, start, length);
+                transportSize = counter ? 9 : 4;
+                bits = counter ? length : length * 8;
+            }
+
+            if (size + 4 + value.length > connection.pduSize - 14) {
+                protocolErrors.incrementAndGet();
+                return false;
+            }
+            out[size] = (byte) ITEM_OK;
+            out[size + 1] = (byte) transportSize;
+            S7.SetWordAt(out, size + 2, bits);
+            System.arraycopy(value, 0, out, size + 4, value.length);
+            size += 4 + value.length;
+            if (i < count - 1 && value.length % 2 != 0) size++;
+        }
+
+        byte[] items = new byte[size];
+        System.arraycopy(out, 0, items, 0, size);
+        send(connection, ackData(frame, 0, new byte[]{4, (byte) count}, items));
+        pushNext(connection);
+
+        return true;
+    }
+
+    /**
+     * Answers a write of variables.
+     */
+    private boolean writeVars(Connection connection, byte[] frame, int par,
+                              int data) throws IOException {
+        int count = frame[par + 1] & 0xFF;
+        if (count > MAX_VARS) {
+            protocolErrors.incrementAndGet();
+            return false;
+        }
+        byte[] results = new byte[count];
+        int pos = data;
+
+        for (int i = 0; i < count; i++) {
+            int item = par + 2 + 12 * i;
+            int wordLength = frame[item + 3];
+            int dbNumber = S7.GetWordAt(frame, item + 6);
+            int area = frame[item + 8] & 0xFF;
+            int address = ((frame[item + 9] & 0xFF) << 16) |
+                    ((frame[item + 10] & 0xFF) << 8) | (frame[item + 11] & 0xFF);
+            int transportSize = frame[pos + 1];
+            int length = S7.GetWordAt(frame, pos + 2);
+            int size = transportSize == 3 || transportSize == 7 ||
+                    transportSize == 9 ? length : length >> 3;
+            int value = pos + 4;
+            pos = value + size;
+            if (i < count - 1 && size % 2 != 0) pos++;
+            if (pos > frame.length) {
+                protocolErrors.incrementAndGet();
+                return false;
+            }
+
+            byte[] memory = area(area, dbNumber);
+            if (wordLength == S7.S7WLBit) {
+                synchronized (memory) {
+                    int mask = 1 << (address & 7);
+                    if ((frame[value] & 1) != 0) {
+                        memory[address >> 3] |= mask;
+                    } else {
+                        memory[address >> 3] &= ~mask;
+                    }
+                }
+                results[i] = (byte) ITEM_OK;
+                continue;
+            }
+
+            boolean counter = wordLength == S7.S7WLCounter ||
+                    wordLength == S7.S7WLTimer;
+            int start = counter ? address : address >> 3;
+            if (start + size > AREA_SIZE) {
+                results[i] = ITEM_OUT_OF_RANGE;
+                continue;
+            }
+            byte[] bytes = new byte[size];
+            System.arraycopy(frame, value, bytes, 0, size);
+            write(area, dbNumber, start, bytes);
+            results[i] = (byte) ITEM_OK;
+        }
+
+        send(connection, ackData(frame, 0, new byte[]{5, (byte) count},
+                results));
+
+        return true;
+    }
+
+    /**
+     * Answers the reading of a system status list, in one slice.
+     *
+     * The free connection resources (SZL 0x0132) and the CPU status (SZL
+     * 0x0424, RUN) are simulated. Any other list has one record holding its
+     * own ID and index, so that a client can check that it got the list it
+     * asked for.
+     */
+    private boolean readSzl(Connection connection, byte[] frame, int data)
+            throws IOException {
+        int id = S7.GetWordAt(frame, data + 4);
+        int index = S7.GetWordAt(frame, data + 6);
+
+        byte[] record;
+        if (id == 0x0132) {
+            int open = openConnections.get();
+            record = new byte[20];
+            S7.SetWordAt(record, 0, 1);
+            S7.SetWordAt(record, 2, maxConnections);
+            S7.SetWordAt(record, 6, open);
+            S7.SetWordAt(record, 14, Math.max(0, maxConnections - open));
+        } else if (id == 0x0424) {
+            record = new byte[20];
+            record[3] = S7.S7CpuStatusRun;
+        } else {
+            record = new byte[8];
+            S7.SetWordAt(record, 0, id);
+            S7.SetWordAt(record, 2, index);
+        }
+
+        byte[] payload = new byte[12 + record.length];
+        payload[0] = (byte) 0xFF;
+        payload[1] = 9;
+        S7.SetWordAt(payload, 2, 8 + record.length);
+        S7.SetWordAt(payload, 4, id);
+        S7.SetWordAt(payload, 6, index);
+        S7.SetWordAt(payload, 8, record.length);
+        S7.SetWordAt(payload, 10, 1);
+        System.arraycopy(record, 0, payload, 12, record.length);
+
+        byte[] parameters = {0, 1, 0x12, 8, 0x12, (byte) 0x84, 1, 1, 0, 0, 0, 0};
+        byte[] reply = new byte[10 + parameters.length + payload.length];
+        reply[0] = 0x32;
+        reply[1] = 7;
+        reply[4] = frame[11];
+        reply[5] = frame[12];
+        S7.SetWordAt(reply, 6, parameters.length);
+        S7.SetWordAt(reply, 8, payload.length);
+        System.arraycopy(parameters, 0, reply, 10, parameters.length);
+        System.arraycopy(payload, 0, reply, 10 + parameters.length,
+                payload.length);
+        send(connection, reply);
+
+        return true;
+    }
+
+    /**
+     * Answers the block info, giving the MC7 size of the block.
+     */
+    private void blockInfo(Connection connection, byte[] frame, int data)
+            throws IOException {
+        byte[] content = block(frame[data + 5], frame, data + 6);
+        int reference = S7.GetWordAt(frame, 11);
+        if (content == null) {
+            // Object does not exist
+            send(connection, userData(reference, 0x83, 0x03,
+                    new byte[]{0x0A, 0, 0, 0}));
+            return;
+        }
+
+        // Return code, then the info from its 10th byte
+        byte[] payload = new byte[4 + 9 + 96];
+        payload[0] = (byte) 0xFF;
+        payload[1] = 9;
+        S7.SetWordAt(payload, 2, payload.length - 4);
+        payload[13 + 2] = frame[data + 5];
+        S7.SetWordAt(payload, 13 + 31, content.length);
+        send(connection, userData(reference, 0x83, 0x03, payload));
+    }
+
+    /**
+     * Answers the start of an upload, opening the block.
+     */
+    private void startUpload(Connection connection, byte[] frame)
+            throws IOException {
+        byte[] content = block(frame[28], frame, 29);
+        if (content == null) {
+            // Object does not exist
+            send(connection, ackData(frame, 0xD209, new byte[0], new byte[0]));
+            return;
+        }
+
+        byte[] parameters = new byte[16];
+        parameters[0] = 0x1D;
+        parameters[2] = 1;
+        synchronized (uploads) {
+            uploads.put(++uploadId, new Upload(connection, content));
+            S7.SetDIntAt(parameters, 4, uploadId);
+        }
+        // Length of the block, as 7 ASCII digits
+        byte[] length = String.format("%07d", content.length).getBytes();
+        parameters[8] = 7;
+        System.arraycopy(length, 0, parameters, 9, 7);
+        send(connection, ackData(frame, 0, parameters, new byte[0]));
+    }
+
+    /**
+     * Answers the upload of the next part of an open block, as large as the
+     * PDU allows.
+     */
+    private void upload(Connection connection, byte[] frame)
+            throws IOException {
+        Upload upload;
+        synchronized (uploads) {
+            upload = uploads.get(S7.GetDIntAt(frame, 21));
+        }
+        if (upload == null) {
+            // Not in an upload
+            send(connection, ackData(frame, 0xD402, new byte[0], new byte[0]));
+            return;
+        }
+
+        int size = Math.min(upload.content.length - upload.position,
+                connection.pduSize - 18);
+        byte[] data = new byte[4 + size];
+        S7.SetWordAt(data, 0, size);
+        data[3] = (byte) 0xFB;
+        System.arraycopy(upload.content, upload.position, data, 4, size);
+        upload.position += size;
+        boolean more = upload.position < upload.content.length;
+        send(connection, ackData(frame, 0, new byte[]{0x1E,
+                (byte) (more ? 1 : 0)}, data));
+    }
+
+    /**
+     * Answers the end of an upload, closing the block.
+     */
+    private void endUpload(Connection connection, byte[] frame)
+            throws IOException {
+        synchronized (uploads) {
+            uploads.remove(S7.GetDIntAt(frame, 21));
+        }
+        send(connection, ackData(frame, 0, new byte[]{0x1F}, new byte[0]));
+    }
+
+    /**
+     * Gets a block of the load memory.
+     *
+     * @param blockType the type of the block
+     * @param frame the job
+     * @param number the position of the 5 ASCII digits of the block number
+     * @return the content of the block; null if it does not exist
+     */
+    private byte[] block(int blockType, byte[] frame, int number) {
+        int blockNumber = 0;
+        for (int i = number; i < number + 5; i++) {
+            blockNumber = blockNumber * 10 + frame[i] - '0';
+        }
+        synchronized (blocks) {
+            return blocks.get((blockType << 16) | blockNumber);
+        }
+    }
+
+    /**
+     * Answers the message service, registering the events pushed to the
+     * connection.
+     */
+    private boolean registerEvents(Connection connection, byte[] frame,
+                                   int data) throws IOException {
+        connection.events = frame[data + 4] & 0xFF;
+
+        byte[] payload = {(byte) 0xFF, 9, 0, 2, frame[data + 4], 0};
+        send(connection, userData(S7.GetWordAt(frame, 11), 0x84, 0x02,
+                payload));
+
+        return true;
+    }
+
+    /**
+     * Sends the next queued event if the connection is registered to it.
+     */
+    private void pushNext(Connection connection) throws IOException {
+        S7Alarm alarm = pushes.peek();
+        if (alarm == null) return;
+        int event = alarm.Kind == S7Alarm.KindDiagnostic ?
+                S7.S7EvtDiagnostic : S7.S7EvtAlarms;
+        if ((connection.events & event) == 0 || !pushes.remove(alarm)) return;
+
+        byte[] body;
+        if (alarm.Kind == S7Alarm.KindDiagnostic) {
+            body = new byte[20];
+            S7.SetWordAt(body, 0, alarm.EventId);
+            body[2] = (byte) alarm.Priority;
+            body[3] = (byte) alarm.OBNumber;
+            S7.SetWordAt(body, 4, alarm.DatId);
+            S7.SetWordAt(body, 6, alarm.Info1);
+            S7.SetDWordAt(body, 8, alarm.Info2);
+            S7.SetDateAt(body, 12, alarm.Timestamp);
+        } else {
+            // Time, function, one message and its associated values
+            byte[] values = alarm.Values == null ? new byte[0] : alarm.Values;
+            body = new byte[21 + values.length];
+            S7.SetDateAt(body, 0, alarm.Timestamp);
+            body[9] = 1;
+            body[10] = 0x12;
+            body[11] = (byte) (9 + values.length);
+            body[12] = 9;
+            body[13] = (byte) (values.length == 0 ? 0 : 1);
+            S7.SetDIntAt(body, 14, alarm.EventId);
+            body[18] = (byte) alarm.EventState;
+            body[19] = (byte) alarm.AckStateGoing;
+            body[20] = (byte) alarm.AckStateComing;
+            System.arraycopy(values, 0, body, 21, values.length);
+        }
+
+        byte[] payload = new byte[4 + body.length];
+        payload[0] = (byte) 0xFF;
+        payload[1] = 9;
+        S7.SetWordAt(payload, 2, body.length);
+        System.arraycopy(body, 0, payload, 4, body.length);
+        send(connection, userData(0, 0x04, alarm.Kind, payload));
+    }
+
+    /**
+     * Builds a user data PDU of the CPU functions.
+     *
+     * @param reference the PDU reference of the job, 0 for a push
+     * @param type the type and function group (0x84 for a reply, 0x04 for a
+     *             push)
+     * @param subfunction the subfunction
+     * @param payload the data, return code included
+     * @return the S7 PDU
+     */
+    private static byte[] userData(int reference, int type, int subfunction,
+                                   byte[] payload) {
+        byte[] parameters = {0, 1, 0x12, 8, 0x12, (byte) type,
+                (byte) subfunction, 0, 0, 0, 0, 0};
+        byte[] pdu = new byte[10 + parameters.length + payload.length];
+        pdu[0] = 0x32;
+        pdu[1] = 7;
+        S7.SetWordAt(pdu, 4, reference);
+        S7.SetWordAt(pdu, 6, parameters.length);
+        S7.SetWordAt(pdu, 8, payload.length);
+        System.arraycopy(parameters, 0, pdu, 10, parameters.length);
+        System.arraycopy(payload, 0, pdu, 10 + parameters.length,
+                payload.length);
+
+        return pdu;
+    }
+
+    /**
+     * Builds the reply of a job.
+     *
+     * @param frame the job
+     * @param error the error class and code
+     * @param parameters the parameters of the reply
+     * @param data the data of the reply
+     * @return the S7 PDU of the reply
+     */
+    private static byte[] ackData(byte[] frame, int error, byte[] parameters,
+                                  byte[] data) {
+        byte[] reply = new byte[12 + parameters.length + data.length];
+        reply[0] = 0x32;
+        reply[1] = 3;
+        reply[4] = frame[11];
+        reply[5] = frame[12];
+        S7.SetWordAt(reply, 6, parameters.length);
+        S7.SetWordAt(reply, 8, data.length);
+        S7.SetWordAt(reply, 10, error);
+        System.arraycopy(parameters, 0, reply, 12, parameters.length);
+        System.arraycopy(data, 0, reply, 12 + parameters.length, data.length);
+
+        return reply;
+    }
+
+    /**
+     * Sends an S7 PDU in an ISO data frame.
+     */
+    private static void send(Connection connection, byte[] pdu)
+            throws IOException {
+        byte[] frame = new byte[7 + pdu.length];
+        frame[0] = 3;
+        S7.SetWordAt(frame, 2, frame.length);
+        frame[4] = 2;
+        frame[5] = (byte) 0xF0;
+        frame[6] = (byte) 0x80;
+        System.arraycopy(pdu, 0, frame, 7, pdu.length);
+        synchronized (connection) {
+            connection.out.write(frame);
+        }
+    }
+
+    /**
+     * Gets the memory of an area, creating it on first use.
+     */
+    private byte[] area(int area, int dbNumber) {
+        int key = area == S7.S7AreaDB ? (area << 16) | dbNumber : area << 16;
+        synchronized (areas) {
+            byte[] memory = areas.get(key);
+            if (memory == null) {
+                memory = new byte[AREA_SIZE];
+                int seed = area == S7.S7AreaDB ? dbNumber : 0;
+                for (int i = 0; i < AREA_SIZE; i++) {
+                    memory[i] = initialValue(seed, i);
+                }
+                areas.put(key, memory);
+            }
+
+            return memory;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+
+/**
+ * Measures the throughput of reading a 64 KB data block with each requested
+ * PDU size, sequentially and pipelined, against a simulated PLC answering
+ * each job after a delay with 3 jobs in parallel (AmQ).
+ *
+ * Not a unit test: run its main(), with the delay per job in milliseconds
+ * (5) as optional argument.
+ *
+ * @author Terencio Agozzino
+ */
+public class PduSizeBenchmark {
+
+    private static final int SIZE = 65536;
+    private static final int[] PDU_SIZES = {240, 480, 960};
+
+    public static void main(String[] args) throws Exception {
+        long delay = args.length > 0 ? Long.parseLong(args[0]) : 5;
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            fakePlc.setDelay(delay);
+            fakePlc.setAmq(3);
+
+            System.out.println("requested  round trips  sequential" +
+                    "          pipelined");
+            for (int pduSize : PDU_SIZES) {
+                fakePlc.resetCounters();
+                long sequential = measure(fakePlc, pduSize, false);
+                int requests = fakePlc.getRequests();
+                long pipelined = measure(fakePlc, pduSize, true);
+
+                System.out.printf("%-10d %-12d %5d ms, %3d kB/s  " +
+                        "%5d ms, %3d kB/s%n", pduSize, requests, sequential,
+                        SIZE / sequential, pipelined, SIZE / pipelined);
+            }
+        }
+    }
+
+    /**
+     * Measures the time of reading the data block once.
+     *
+     * @param fakePlc the simulated PLC
+     * @param pduSize the requested PDU size
+     * @param pipelined whether the jobs are pipelined
+     * @return the time of the read in milliseconds
+     */
+    private static long measure(FakePlc fakePlc, int pduSize,
+                                boolean pipelined) {
+        S7Client client = new S7Client();
+        client.SetRemotePort(fakePlc.getPort());
+        client.SetTransport(S7Client.TransportChannel);
+        client.SetPduSizeRequested(pduSize);
+        client.SetPipelined(pipelined);
+        if (client.ConnectTo(fakePlc.getAddress(), 0, 1) != 0) {
+            throw new IllegalStateException("Unable to connect");
+        }
+
+        byte[] data = new byte[SIZE];
+        long start = System.nanoTime();
+        int result = client.ReadArea(S7.S7AreaDB, 1, 0, SIZE, data);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        client.Disconnect();
+
+        if (result != 0) {
+            throw new IllegalStateException(S7Client.ErrorText(result));
+        }
+        for (int i = 0; i < SIZE; i++) {
+            if (data[i] != FakePlc.initialValue(1, i)) {
+                throw new IllegalStateException("Wrong byte " + i);
+            }
+        }
+        return Math.max(1, elapsed);
+    }
+}
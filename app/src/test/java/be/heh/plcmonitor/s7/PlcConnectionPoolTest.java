@@ -0,0 +1,462 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import SimaticS7.S7Szl;
+
+import be.heh.plcmonitor.model.Plc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests of the S7 clients, the connection pool and the supervisors
+ * with dozens of concurrent clients against a simulated PLC.
+ *
+ * @author Terencio Agozzino
+ */
+public class PlcConnectionPoolTest {
+
+    private static final int CLIENTS = 48;
+    private static final short TYPE = S7.S7_BASIC;
+
+    private FakePlc fakePlc;
+    private PlcConnectionPool pool;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        fakePlc = new FakePlc();
+        pool = new PlcConnectionPool();
+        pool.setRemotePort(fakePlc.getPort());
+        executor = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        pool.closeAll();
+        fakePlc.close();
+    }
+
+    /**
+     * Clients connecting, negotiating and reading at the same time must each
+     * send their own telegrams: their TSAP, their PDU size, their SZL.
+     */
+    @Test(timeout = 60000)
+    public void concurrentClientsDoNotMixTheirTelegrams() throws Exception {
+        final int cycles = 20;
+        final int[] pduSizes = {240, 480, 960};
+        Map<Integer, Integer> expectedTsaps = new HashMap<>();
+        List<Callable<Void>> clients = new ArrayList<>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            final int id = i;
+            final int rack = i % 8;
+            final int slot = 1 + i / 8;
+            final int pduSize = pduSizes[i % pduSizes.length];
+            int tsap = (TYPE << 8) + rack * 0x20 + slot;
+            expectedTsaps.put(tsap, cycles);
+
+            clients.add(() -> {
+                S7Client client = new S7Client();
+                client.SetConnectionType(TYPE);
+                client.SetRemotePort(fakePlc.getPort());
+                client.SetPduSizeRequested(pduSize);
+                if (id % 2 == 1) client.SetTransport(S7Client.TransportChannel);
+                client.SetPipelined(id % 4 == 3);
+
+                byte[] written = new byte[700];
+                byte[] read = new byte[written.length];
+                S7Szl szl = new S7Szl(1024);
+                for (int cycle = 0; cycle < cycles; cycle++) {
+                    assertEquals(0, client.ConnectTo(fakePlc.getAddress(), rack,
+                            slot));
+                    assertEquals(pduSize, client.PDULength());
+
+                    for (int j = 0; j < written.length; j++) {
+                        written[j] = (byte) (id * 31 + cycle * 7 + j);
+                    }
+                    assertEquals(0, client.WriteArea(S7.S7AreaDB, 200 + id, 0,
+                            written.length, written));
+                    assertEquals(0, client.ReadArea(S7.S7AreaDB, 200 + id, 0,
+                            read.length, read));
+                    assertArrayEquals(written, read);
+
+                    assertEquals(0, client.ReadSZL(0x0100 + id, cycle, szl));
+                    assertEquals(0x0100 + id, S7.GetWordAt(szl.Data, 0));
+                    assertEquals(cycle, S7.GetWordAt(szl.Data, 2));
+
+                    client.Disconnect();
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> result : executor.invokeAll(clients)) {
+            result.get();
+        }
+        assertEquals(expectedTsaps, fakePlc.getRemoteTsaps());
+        assertEquals(0, fakePlc.getProtocolErrors());
+        assertTrue(fakePlc.awaitOpenConnections(0, 2000));
+    }
+
+    /**
+     * Dozens of threads sharing one PLC never hold more leases, nor open more
+     * connections, than the cap per PLC; released connections are reused.
+     */
+    @Test(timeout = 60000)
+    public void leasesNeverExceedTheCapPerPlc() throws Exception {
+        final int cap = 3;
+        final Plc plc = newPlc(0, 1);
+        final AtomicInteger leased = new AtomicInteger();
+        final AtomicInteger peakLeased = new AtomicInteger();
+        pool.setMaxConnectionsPerPlc(cap);
+        List<Callable<Void>> clients = new ArrayList<>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(() -> {
+                byte[] data = new byte[64];
+                for (int cycle = 0; cycle < 25; cycle++) {
+                    PlcConnection connection = pool.acquire(plc, TYPE, 20000);
+                    assertNotNull(connection);
+                    int now = leased.incrementAndGet();
+                    peakLeased.accumulateAndGet(now, Math::max);
+
+                    assertEquals(0, connection.getS7Client().ReadArea(
+                            S7.S7AreaDB, 1, 100, data.length, data));
+                    assertEquals(FakePlc.initialValue(1, 100), data[0]);
+
+                    leased.decrementAndGet();
+                    pool.release(connection);
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> result : executor.invokeAll(clients)) {
+            result.get();
+        }
+        assertTrue(peakLeased.get() <= cap);
+        assertTrue(fakePlc.getPeakConnections() <= cap);
+        // Warm connections are reused instead of being reopened
+        assertEquals(fakePlc.getAcceptedConnections(), pool.idleCount(plc, TYPE));
+        assertTrue(fakePlc.getAcceptedConnections() <= cap);
+    }
+
+    /**
+     * Released connections go back to the PLC once closed, broken ones
+     * included, so the cap can always be leased again.
+     */
+    @Test(timeout = 30000)
+    public void releasedConnectionsDoNotLeak() throws Exception {
+        final int cap = 4;
+        Plc plc = newPlc(0, 1);
+        pool.setMaxConnectionsPerPlc(cap);
+
+        for (int round = 0; round < 5; round++) {
+            List<PlcConnection> connections = new ArrayList<>();
+            for (int i = 0; i < cap; i++) {
+                PlcConnection connection = pool.acquire(plc, TYPE, 2000);
+                assertNotNull("round " + round + ", lease " + i, connection);
+                connections.add(connection);
+            }
+            assertTrue(fakePlc.awaitOpenConnections(cap, 2000));
+
+            // Every other round the link breaks while the connections are
+            // leased: the broken connections must not keep their place
+            if (round % 2 == 1) {
+                fakePlc.dropConnections();
+                for (PlcConnection connection : connections) {
+                    // The stream transport only notices the end of the
+                    // stream when the receive timeout expires
+                    connection.getS7Client().RecvTimeout = 200;
+                    assertTrue(PlcSupervisor.isLinkError(connection
+                            .getS7Client().ReadArea(S7.S7AreaDB, 1, 0, 4,
+                                    new byte[4])));
+                }
+            }
+            for (PlcConnection connection : connections) {
+                pool.release(connection);
+            }
+        }
+
+        pool.closeAll();
+        assertEquals(0, pool.idleCount(plc, TYPE));
+        assertTrue(fakePlc.awaitOpenConnections(0, 2000));
+    }
+
+    /**
+     * acquire() gives up after its timeout when all the connections are
+     * leased, and hands out a connection released while waiting.
+     */
+    @Test(timeout = 30000)
+    public void acquireTimesOutWhenAllConnectionsAreLeased() throws Exception {
+        final Plc plc = newPlc(0, 1);
+        pool.setMaxConnectionsPerPlc(1);
+        PlcConnection connection = pool.acquire(plc, TYPE, 1000);
+        assertNotNull(connection);
+
+        long start = System.nanoTime();
+        assertNull(pool.acquire(plc, TYPE, 300));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + elapsed + " ms", elapsed >= 280 && elapsed < 2000);
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Future<PlcConnection> waiter = executor.submit(() -> {
+            waiting.countDown();
+            return pool.acquire(plc, TYPE, 10000);
+        });
+        waiting.await();
+        Thread.sleep(100);
+        pool.release(connection);
+
+        assertSame(connection, waiter.get(2000, TimeUnit.MILLISECONDS));
+        assertEquals(1, fakePlc.getAcceptedConnections());
+    }
+
+    /**
+     * Editing the PDU size or the time budget of a PLC leases the connection
+     * of its address with the new settings instead of opening another one,
+     * and the connection goes back to its place even if the PLC is edited
+     * while it is leased.
+     */
+    @Test(timeout = 30000)
+    public void editedSettingsReuseTheConnectionsOfThePlc() throws Exception {
+        Plc plc = newPlc(0, 1);
+        pool.setMaxConnectionsPerPlc(1);
+        PlcConnection connection = pool.acquire(plc, TYPE, 1000);
+        assertNotNull(connection);
+        assertEquals(Plc.DEFAULT_PDU_SIZE, connection.getS7Client().PDULength());
+
+        // Edited while leased
+        plc.setTimeout(1500);
+        pool.release(connection);
+        assertEquals(1, pool.idleCount(newPlc(0, 1), TYPE));
+
+        Plc edited = newPlc(0, 1);
+        edited.setTimeout(2000);
+        assertSame(connection, pool.acquire(edited, TYPE, 1000));
+        assertEquals(2000, connection.getS7Client().OperationTimeout);
+        assertSame(edited, connection.getPlc());
+        assertEquals(1, fakePlc.getAcceptedConnections());
+        pool.release(connection);
+
+        // A new PDU size is negotiated again on the same resource
+        edited = newPlc(0, 1);
+        edited.setPduSize(960);
+        assertSame(connection, pool.acquire(edited, TYPE, 1000));
+        assertEquals(960, connection.getS7Client().PDULength());
+        assertEquals(0, connection.getS7Client().ReadArea(S7.S7AreaDB, 1, 0,
+                900, new byte[900]));
+        pool.release(connection);
+
+        assertEquals(2, fakePlc.getAcceptedConnections());
+        assertEquals(1, fakePlc.getPeakConnections());
+        assertEquals(0, fakePlc.getProtocolErrors());
+    }
+
+    /**
+     * Supervisors of dozens of PLCs run their jobs in parallel, survive a
+     * broken link and give back every connection when closed.
+     */
+    @Test(timeout = 60000)
+    public void concurrentSupervisorsReconnectAndRelease() throws Exception {
+        final int supervisors = 24;
+        final int jobs = 40;
+        final CountDownLatch halfway = new CountDownLatch(supervisors);
+        final CountDownLatch dropped = new CountDownLatch(1);
+        List<PlcSupervisor> all = new ArrayList<>();
+        List<Callable<Integer>> loops = new ArrayList<>();
+
+        for (int i = 0; i < supervisors; i++) {
+            final int dbNumber = 10 + i;
+            final PlcSupervisor supervisor = new PlcSupervisor(pool,
+                    newPlc(i / 16, 1 + i % 16), TYPE);
+            supervisor.setBackoff(10, 100);
+            all.add(supervisor);
+
+            loops.add(() -> {
+                byte[] data = new byte[32];
+                int failures = 0;
+                for (int done = 0; done < jobs; ) {
+                    if (done == jobs / 2 && halfway.getCount() > 0) {
+                        halfway.countDown();
+                        dropped.await();
+                    }
+                    int result = supervisor.execute(client -> client.ReadArea(
+                            S7.S7AreaDB, dbNumber, 0, data.length, data));
+                    if (result == 0) {
+                        assertEquals(FakePlc.initialValue(dbNumber, 31),
+                                data[31]);
+                        done++;
+                    } else {
+                        assertTrue(PlcSupervisor.isLinkError(result));
+                        failures++;
+                    }
+                }
+                return failures;
+            });
+        }
+
+        List<Future<Integer>> results = new ArrayList<>();
+        for (Callable<Integer> loop : loops) {
+            results.add(executor.submit(loop));
+        }
+        halfway.await();
+        assertEquals(supervisors, fakePlc.getOpenConnections());
+        fakePlc.dropConnections();
+        dropped.countDown();
+
+        for (Future<Integer> result : results) {
+            // At most the job running on the dropped link fails
+            assertTrue(result.get() <= 1);
+        }
+        for (PlcSupervisor supervisor : all) {
+            assertEquals(PlcSupervisor.State.CONNECTED, supervisor.getState());
+            supervisor.close();
+        }
+        assertTrue(fakePlc.getPeakConnections() <= supervisors);
+
+        pool.closeAll();
+        assertTrue(fakePlc.awaitOpenConnections(0, 2000));
+    }
+
+    /**
+     * A job running out of its time budget drops the link, so the
+     * supervisor reconnects before running the next job.
+     */
+    @Test(timeout = 30000)
+    public void supervisorReconnectsAfterAnOperationTimeout() throws Exception {
+        Plc plc = newPlc(0, 1);
+        plc.setTimeout(200);
+        PlcSupervisor supervisor = new PlcSupervisor(pool, plc, TYPE);
+        supervisor.setBackoff(10, 100);
+        final byte[] data = new byte[16];
+        PlcSupervisor.Job read = client -> {
+            assertTrue(client.Connected);
+            return client.ReadArea(S7.S7AreaDB, 1, 0, data.length, data);
+        };
+
+        assertEquals(0, supervisor.execute(read));
+
+        fakePlc.setDelay(600);
+        assertEquals(S7Client.errS7OperationTimeout, supervisor.execute(read));
+        assertEquals(PlcSupervisor.State.RECONNECTING, supervisor.getState());
+
+        fakePlc.setDelay(0);
+        assertEquals(0, supervisor.execute(read));
+        assertEquals(FakePlc.initialValue(1, 15), data[15]);
+        assertEquals(PlcSupervisor.State.CONNECTED, supervisor.getState());
+        assertEquals(2, fakePlc.getAcceptedConnections());
+
+        supervisor.close();
+        assertTrue(fakePlc.awaitOpenConnections(1, 2000));
+    }
+
+    /**
+     * The state and close() do not wait for the job running on the
+     * connection, the jobs of two threads never overlap, and the connection
+     * goes back to the pool once the running job is over.
+     */
+    @Test(timeout = 30000)
+    public void closeDoesNotWaitForTheRunningJob() throws Exception {
+        Plc plc = newPlc(0, 1);
+        PlcSupervisor supervisor = new PlcSupervisor(pool, plc, TYPE);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        Future<Integer> running = executor.submit(() -> supervisor.execute(
+                client -> {
+                    started.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return 0;
+                }));
+        started.await();
+        Future<Integer> waiting = executor.submit(() -> supervisor.execute(
+                client -> 0));
+        Thread.sleep(200);
+        assertFalse(waiting.isDone());
+
+        executor.submit(() -> {
+            assertEquals(PlcSupervisor.State.CONNECTED, supervisor.getState());
+            supervisor.setOnStateChangedListener(null);
+            supervisor.close();
+            return null;
+        }).get(1, TimeUnit.SECONDS);
+        assertEquals(PlcSupervisor.State.CLOSED, supervisor.getState());
+        assertEquals(S7Client.errTCPConnectionFailed,
+                (int) waiting.get(1, TimeUnit.SECONDS));
+        // Still leased by the running job
+        assertEquals(0, pool.idleCount(plc, TYPE));
+
+        finish.countDown();
+        assertEquals(0, (int) running.get());
+        assertEquals(1, pool.idleCount(plc, TYPE));
+        assertEquals(1, fakePlc.getAcceptedConnections());
+    }
+
+    /**
+     * A malformed S7 reply leaves the stream out of step, so the connection
+     * is reopened before the next job.
+     */
+    @Test(timeout = 30000)
+    public void supervisorReconnectsAfterAnInvalidPdu() throws Exception {
+        PlcSupervisor supervisor = new PlcSupervisor(pool, newPlc(0, 1), TYPE);
+        supervisor.setBackoff(10, 100);
+
+        assertEquals(S7Client.errS7InvalidPDU, supervisor.execute(
+                client -> S7Client.errS7InvalidPDU));
+        assertEquals(PlcSupervisor.State.RECONNECTING, supervisor.getState());
+
+        assertEquals(0, supervisor.execute(client -> 0));
+        assertEquals(PlcSupervisor.State.CONNECTED, supervisor.getState());
+        assertEquals(2, fakePlc.getAcceptedConnections());
+        supervisor.close();
+    }
+
+    private Plc newPlc(int rack, int slot) {
+        return new Plc("Fake", fakePlc.getAddress(), rack, slot, null);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+
+/**
+ * Compares reading random tags through a ReadPlan with one ReadArea per
+ * tag: round trips and wire bytes as planned, then the time of both reads
+ * against a simulated PLC answering each job after a delay.
+ *
+ * Not a unit test: run its main(), with the number of tags (300), the
+ * requested PDU size (480) and the delay per job in milliseconds (2) as
+ * optional arguments.
+ *
+ * @author Terencio Agozzino
+ */
+public class ReadPlanBenchmark {
+
+    private static final int[] WORD_LENGTHS = {
+            S7.S7WLBit, S7.S7WLByte, S7.S7WLWord, S7.S7WLDInt, S7.S7WLReal
+    };
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int pduSize = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+        List<TagAddress> tags = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < count; i++) {
+            int area = random.nextInt(4) == 0 ? S7.S7AreaMK : S7.S7AreaDB;
+            tags.add(new TagAddress(area, 5 + random.nextInt(3),
+                    random.nextInt(3000), random.nextInt(8),
+                    WORD_LENGTHS[random.nextInt(WORD_LENGTHS.length)]));
+        }
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            fakePlc.setDelay(delay);
+            S7Client client = new S7Client();
+            client.SetRemotePort(fakePlc.getPort());
+            client.SetPduSizeRequested(pduSize);
+            if (client.ConnectTo(fakePlc.getAddress(), 0, 1) != 0) {
+                throw new IllegalStateException("Unable to connect");
+            }
+
+            ReadPlan plan = new ReadPlan(tags, client.PDULength(),
+                    ReadPlan.DEFAULT_MAX_GAP);
+            System.out.println(plan);
+
+            for (int round = 0; round < 3; round++) {
+                fakePlc.resetCounters();
+                long start = System.nanoTime();
+                check(plan.read(client), client);
+                long planned = System.nanoTime() - start;
+                int plannedRequests = fakePlc.getRequests();
+
+                fakePlc.resetCounters();
+                byte[] data = new byte[4];
+                start = System.nanoTime();
+                for (TagAddress tag : tags) {
+                    check(client.ReadArea(tag.getArea(), tag.getDbNumber(),
+                            tag.getOffset(), tag.getSize(), data), client);
+                }
+                long naive = System.nanoTime() - start;
+
+                System.out.printf("round %d: plan %d requests %.1f ms, " +
+                        "ReadArea per tag %d requests %.1f ms%n", round,
+                        plannedRequests, planned / 1e6, fakePlc.getRequests(),
+                        naive / 1e6);
+            }
+
+            int wrong = 0;
+            for (int i = 0; i < tags.size(); i++) {
+                TagAddress tag = tags.get(i);
+                int dbNumber = tag.getArea() == S7.S7AreaDB ?
+                        tag.getDbNumber() : 0;
+                for (int k = 0; k < tag.getSize(); k++) {
+                    if (plan.getData(i)[plan.getOffset(i) + k] !=
+                            FakePlc.initialValue(dbNumber, tag.getOffset() + k)) {
+                        wrong++;
+                    }
+                }
+            }
+            System.out.println("wrong bytes: " + wrong);
+            client.Disconnect();
+        }
+    }
+
+    private static void check(int result, S7Client client) {
+        if (result != 0) {
+            throw new IllegalStateException(S7Client.ErrorText(result));
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import SimaticS7.IntByRef;
+import SimaticS7.S7;
+import SimaticS7.S7Alarm;
+import SimaticS7.S7Client;
+import SimaticS7.S7DataItem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the S7 client jobs against a simulated PLC.
+ *
+ * @author Terencio Agozzino
+ */
+public class S7ClientTest {
+
+    private static final int[] TRANSPORTS = {
+            S7Client.TransportStream, S7Client.TransportChannel
+    };
+
+    /**
+     * Special items of variables().
+     */
+    private static final int LARGE = 45;
+    private static final int INVALID = 46;
+    private static final int OUT_OF_RANGE = 47;
+
+    private FakePlc fakePlc;
+
+    @Before
+    public void setUp() throws Exception {
+        fakePlc = new FakePlc();
+    }
+
+    @After
+    public void tearDown() {
+        fakePlc.close();
+    }
+
+    /**
+     * A diagnostic entry and an alarm message pushed between the replies of
+     * a pipelined read are handed to the listener, and the read data is
+     * left whole.
+     */
+    @Test(timeout = 30000)
+    public void pushesBetweenPipelinedRepliesAreDispatched() {
+        // 5 jobs of 222 bytes at most, the pushes following the first two
+        final int amount = 1000;
+        Date raisedAt = new Date(1500000000123L);
+
+        for (int transport : TRANSPORTS) {
+            S7Client client = connect(transport);
+            client.SetPipelined(true);
+            List<S7Alarm> alarms =
+                    Collections.synchronizedList(new ArrayList<>());
+            assertEquals(0, client.AlarmSubscribe(S7.S7EvtDiagnostic |
+                    S7.S7EvtAlarms, alarms::add));
+
+            S7Alarm diagnostic = new S7Alarm();
+            diagnostic.Kind = S7Alarm.KindDiagnostic;
+            diagnostic.EventId = 0x4302;
+            diagnostic.Priority = 26;
+            diagnostic.OBNumber = 80;
+            diagnostic.DatId = 0xC4FE;
+            diagnostic.Info1 = 0x0123;
+            diagnostic.Info2 = 0xF0000001L;
+            diagnostic.Timestamp = raisedAt;
+            fakePlc.push(diagnostic);
+
+            S7Alarm alarm = new S7Alarm();
+            alarm.Kind = S7Alarm.KindAlarmS;
+            alarm.EventId = 0x60000042;
+            alarm.EventState = 1;
+            alarm.AckStateGoing = 0;
+            alarm.AckStateComing = 1;
+            alarm.Values = new byte[] {(byte) 0xFF, 4, 0, 16, 0x12, 0x34};
+            alarm.Timestamp = raisedAt;
+            fakePlc.push(alarm);
+
+            byte[] data = new byte[amount];
+            assertEquals(0, client.ReadArea(S7.S7AreaDB, 7, 0, amount, data));
+            for (int i = 0; i < amount; i++) {
+                assertEquals(FakePlc.initialValue(7, i), data[i]);
+            }
+
+            assertEquals(2, alarms.size());
+            S7Alarm received = alarms.get(0);
+            assertEquals(S7Alarm.KindDiagnostic, received.Kind);
+            assertEquals(0x4302, received.EventId);
+            assertEquals(26, received.Priority);
+            assertEquals(80, received.OBNumber);
+            assertEquals(0xC4FE, received.DatId);
+            assertEquals(0x0123, received.Info1);
+            assertEquals(0xF0000001L, received.Info2);
+            assertEquals(raisedAt, received.Timestamp);
+            assertTrue(received.ReceivedAt > 0);
+
+            received = alarms.get(1);
+            assertEquals(S7Alarm.KindAlarmS, received.Kind);
+            assertEquals(0x60000042, received.EventId);
+            assertTrue(received.Incoming());
+            assertEquals(0, received.AckStateGoing);
+            assertEquals(1, received.AckStateComing);
+            assertArrayEquals(alarm.Values, received.Values);
+            assertEquals(raisedAt, received.Timestamp);
+
+            client.Disconnect();
+        }
+    }
+
+    /**
+     * Variables are read by jobs of 20 items at most, an item too large
+     * for the PDU being read on its own, and each item gets its own result.
+     */
+    @Test(timeout = 30000)
+    public void multiVarsAreReadInBatches() {
+        for (boolean pipelined : new boolean[] {false, true}) {
+            S7Client client = connect(S7Client.TransportStream, 480);
+            client.SetPipelined(pipelined);
+            S7DataItem[] items = variables(0);
+            fakePlc.resetCounters();
+
+            assertEquals(0, client.ReadMultiVars(items, items.length));
+            // 20, 20 and 5 items, the large one in 3 jobs, then 5 items
+            assertEquals(7, fakePlc.getRequests());
+            assertEquals(0, fakePlc.getProtocolErrors());
+            for (int i = 0; i < items.length; i++) {
+                S7DataItem item = items[i];
+                if (i == INVALID) {
+                    assertEquals(S7Client.errS7InvalidParams, item.Result);
+                } else if (i == OUT_OF_RANGE) {
+                    assertEquals(S7Client.errS7AddressOutOfRange, item.Result);
+                } else {
+                    assertEquals(0, item.Result);
+                    assertArrayEquals(fakePlc.read(item.Area, item.DBNumber,
+                            item.Start, item.DataSize()), item.Data);
+                }
+            }
+            assertEquals(FakePlc.initialValue(3, 1999),
+                    items[LARGE].Data[999]);
+            client.Disconnect();
+        }
+    }
+
+    /**
+     * Variables are written by jobs of 20 items at most, an item too large
+     * for the PDU being written on its own, and each item gets its own
+     * result.
+     */
+    @Test(timeout = 30000)
+    public void multiVarsAreWrittenInBatches() {
+        int seed = 1;
+        for (boolean pipelined : new boolean[] {false, true}) {
+            S7Client client = connect(S7Client.TransportStream, 480);
+            client.SetPipelined(pipelined);
+            S7DataItem[] items = variables(seed);
+            seed += 100;
+            fakePlc.resetCounters();
+
+            assertEquals(0, client.WriteMultiVars(items, items.length));
+            // 20, 20 and 5 items, the large one in 3 jobs, then 5 items
+            assertEquals(7, fakePlc.getRequests());
+            assertEquals(0, fakePlc.getProtocolErrors());
+            for (int i = 0; i < items.length; i++) {
+                S7DataItem item = items[i];
+                if (i == INVALID) {
+                    assertEquals(S7Client.errS7InvalidParams, item.Result);
+                    assertArrayEquals(new byte[] {
+                            FakePlc.initialValue(2, 460),
+                            FakePlc.initialValue(2, 461)
+                    }, fakePlc.read(S7.S7AreaDB, 2, 460, 2));
+                } else if (i == OUT_OF_RANGE) {
+                    assertEquals(S7Client.errS7AddressOutOfRange, item.Result);
+                } else {
+                    assertEquals(0, item.Result);
+                    assertArrayEquals(item.Data, fakePlc.read(item.Area,
+                            item.DBNumber, item.Start, item.DataSize()));
+                }
+            }
+            client.Disconnect();
+        }
+    }
+
+    /**
+     * A block of several parts is uploaded whole into the channel, the
+     * parts being requested until the last one.
+     */
+    @Test(timeout = 30000)
+    public void multiPartBlockIsUploadedIntoTheChannel() {
+        // 10 parts of 222 bytes at most
+        byte[] block = content(2000);
+        fakePlc.setBlock(S7.Block_FC, 12, block);
+
+        for (int transport : TRANSPORTS) {
+            S7Client client = connect(transport);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IntByRef size = new IntByRef(-1);
+
+            assertEquals(0, client.Upload(S7.Block_FC, 12,
+                    Channels.newChannel(bytes), size));
+            assertArrayEquals(block, bytes.toByteArray());
+            assertEquals(block.length, size.Value);
+            assertEquals(block.length, client.PartialSize());
+            assertEquals(0, fakePlc.getOpenUploads());
+
+            // The CPU refuses an unknown block
+            size.Value = -1;
+            assertEquals(S7Client.errS7FunctionError, client.Upload(
+                    S7.Block_FC, 13, Channels.newChannel(bytes), size));
+            assertEquals(0, size.Value);
+
+            client.Disconnect();
+        }
+    }
+
+    /**
+     * The upload is ended when the channel fails, so that the CPU closes
+     * the block, and the size reports the bytes written before.
+     */
+    @Test(timeout = 30000)
+    public void uploadIsEndedWhenTheChannelFails() {
+        fakePlc.setBlock(S7.Block_OB, 1, content(2000));
+        S7Client client = connect(S7Client.TransportStream);
+        IntByRef size = new IntByRef();
+
+        assertEquals(S7Client.errS7SinkWrite, client.Upload(S7.Block_OB, 1,
+                new FailingChannel(500), size));
+        assertEquals(444, size.Value);
+        assertEquals(0, fakePlc.getOpenUploads());
+
+        // The connection is left usable
+        assertEquals(0, client.ReadArea(S7.S7AreaDB, 3, 0, 2, new byte[2]));
+        client.Disconnect();
+    }
+
+    /**
+     * An upload running out of time is ended and reports the bytes written
+     * so far.
+     */
+    @Test(timeout = 30000)
+    public void uploadOutOfTimeReportsThePartialSize()
+            throws InterruptedException {
+        fakePlc.setBlock(S7.Block_OB, 1, content(2000));
+        S7Client client = connect(S7Client.TransportStream);
+        fakePlc.setDelay(40);
+        client.OperationTimeout = 150;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IntByRef size = new IntByRef();
+
+        assertEquals(S7Client.errS7OperationTimeout, client.Upload(
+                S7.Block_OB, 1, Channels.newChannel(bytes), size));
+        assertTrue(size.Value > 0 && size.Value < 2000);
+        assertEquals(bytes.size(), size.Value);
+        assertEquals(size.Value, client.PartialSize());
+        // Ended, or dropped with the link when the reply came too late
+        if (!client.Connected) {
+            assertTrue(fakePlc.awaitOpenConnections(0, 2000));
+        }
+        assertEquals(0, fakePlc.getOpenUploads());
+        client.Disconnect();
+    }
+
+    /**
+     * A data block is read whole into the channel, window by window.
+     */
+    @Test(timeout = 30000)
+    public void dataBlockIsReadIntoTheChannel() {
+        byte[] expected = fakePlc.read(S7.S7AreaDB, 9, 0, 3000);
+        fakePlc.setBlock(S7.Block_DB, 9, expected);
+
+        for (int transport : TRANSPORTS) {
+            for (boolean pipelined : new boolean[] {false, true}) {
+                S7Client client = connect(transport);
+                client.SetPipelined(pipelined);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                IntByRef size = new IntByRef();
+
+                assertEquals(0, client.DBGet(9, Channels.newChannel(bytes),
+                        size));
+                assertArrayEquals(expected, bytes.toByteArray());
+                assertEquals(expected.length, size.Value);
+                client.Disconnect();
+            }
+        }
+    }
+
+    /**
+     * Connects a client with PDUs of 240 bytes.
+     *
+     * @param transport the transport of the client
+     * @return the connected client
+     */
+    private S7Client connect(int transport) { return connect(transport, 240); }
+
+    /**
+     * Connects a client.
+     *
+     * @param transport the transport of the client
+     * @param pduSize the PDU size to negotiate
+     * @return the connected client
+     */
+    private S7Client connect(int transport, int pduSize) {
+        S7Client client = new S7Client();
+        client.SetConnectionType(S7.S7_BASIC);
+        client.SetRemotePort(fakePlc.getPort());
+        client.SetPduSizeRequested(pduSize);
+        client.SetTransport(transport);
+        assertEquals(0, client.ConnectTo(fakePlc.getAddress(), 0, 1));
+        assertEquals(pduSize, client.PDULength());
+
+        return client;
+    }
+
+    /**
+     * Builds 52 variables: words scattered over 5 data blocks, an item too
+     * large for a PDU of 480 bytes at LARGE, an invalid one at INVALID and
+     * one beyond the data block at OUT_OF_RANGE.
+     *
+     * @param seed the first value of the data, 0 to leave it empty
+     * @return the variables
+     */
+    private static S7DataItem[] variables(int seed) {
+        S7DataItem[] items = new S7DataItem[52];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new S7DataItem(S7.S7AreaDB, S7.S7WLWord, 1 + i % 5,
+                    i * 10, 1, new byte[2]);
+        }
+        items[LARGE] = new S7DataItem(S7.S7AreaDB, S7.S7WLByte, 3, 1000,
+                1000, new byte[1000]);
+        items[INVALID].Amount = 0;
+        items[OUT_OF_RANGE].Start = FakePlc.AREA_SIZE - 1;
+
+        if (seed != 0) {
+            for (S7DataItem item : items) {
+                for (int i = 0; i < item.Data.length; i++) {
+                    item.Data[i] = (byte) (seed + i);
+                }
+                seed++;
+            }
+        }
+
+        return items;
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        return content;
+    }
+
+    /**
+     * A channel failing once a number of bytes is written.
+     */
+    private static class FailingChannel implements WritableByteChannel {
+
+        private int left;
+
+        FailingChannel(int capacity) { left = capacity; }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int size = src.remaining();
+            if (size > left) throw new IOException("Disk full");
+            left -= size;
+            src.position(src.limit());
+
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.S7;
+import SimaticS7.S7Poller;
+
+/**
+ * Measures the cycles per second of one S7Poller polling many PLCs,
+ * simulated by as many connections to a thread per connection FakePlc:
+ * small and chunked areas read back to back, then a cyclic read with a
+ * delay per job, of which the periods are reported.
+ *
+ * Not a unit test: run its main(), with the number of PLCs (500) and the
+ * seconds measured per scenario (5) as optional arguments.
+ *
+ * @author Terencio Agozzino
+ */
+public class S7PollerBenchmark {
+
+    private final int targets;
+    private final long[] lastResults;
+
+    private volatile boolean measuring;
+    private long cycles;
+    private long errors;
+    private long periods;
+    private long periodSum;
+    private long maxPeriod;
+
+    /**
+     * Main constructor of the S7PollerBenchmark class.
+     *
+     * @param targets the number of PLCs polled
+     */
+    private S7PollerBenchmark(int targets) {
+        this.targets = targets;
+        this.lastResults = new long[targets];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int targets = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            fakePlc.setMaxConnections(targets + 10);
+
+            new S7PollerBenchmark(targets).run(fakePlc, 200, 0, seconds,
+                    "200 bytes, back to back");
+            new S7PollerBenchmark(targets).run(fakePlc, 2000, 0, seconds,
+                    "2000 bytes (5 chunks at PDU 480), back to back");
+            fakePlc.setDelay(5);
+            new S7PollerBenchmark(targets).run(fakePlc, 200, 100, seconds,
+                    "200 bytes, 100 ms interval, 5 ms per job");
+        }
+    }
+
+    /**
+     * Polls the simulated PLC with a new poller and prints the results.
+     *
+     * @param fakePlc the simulated PLC
+     * @param amount the bytes read at each cycle
+     * @param interval the ms between the start of two cycles
+     * @param seconds the seconds measured, after as many to warm up
+     * @param name the name of the scenario
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private void run(FakePlc fakePlc, int amount, int interval, int seconds,
+                     String name) throws InterruptedException {
+        S7Poller poller = new S7Poller(this::onResult);
+        poller.SetRemotePort(fakePlc.getPort());
+        poller.SetPduSizeRequested(480);
+        for (int i = 0; i < targets; i++) {
+            poller.AddTarget(fakePlc.getAddress(), 0, 1, S7.S7AreaDB, 1, 0,
+                    amount, interval);
+        }
+
+        poller.Start();
+        Thread.sleep(seconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        poller.Stop();
+
+        System.out.printf("%d PLCs, %s: %.0f cycles/s, %d errors", targets,
+                name, cycles / elapsed, errors);
+        if (interval > 0 && periods > 0) {
+            System.out.printf(", mean period %.1f ms, max %.1f ms",
+                    periodSum / 1e6 / periods, maxPeriod / 1e6);
+        }
+        System.out.println();
+    }
+
+    /**
+     * Counts a result, on the poller thread.
+     *
+     * @param target the index of the target
+     * @param error the error of the cycle, 0 when successful
+     * @param data the area read
+     */
+    private void onResult(int target, int error, byte[] data) {
+        long now = System.nanoTime();
+        if (measuring) {
+            if (error != 0) {
+                errors++;
+            } else {
+                cycles++;
+                if (data[199] != FakePlc.initialValue(1, 199)) {
+                    errors++;
+                }
+                if (lastResults[target] != 0) {
+                    long period = now - lastResults[target];
+                    periods++;
+                    periodSum += period;
+                    maxPeriod = Math.max(maxPeriod, period);
+                }
+            }
+        }
+        lastResults[target] = error == 0 ? now : 0;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import be.heh.plcmonitor.model.Plc;
+
+/**
+ * Measures the time of reading a 60 KB range of a data block with a
+ * StripedReader for 1 to 12 stripes, against a simulated PLC answering each
+ * job after a delay, then the connections it settles at when the PLC only
+ * reports a few connection resources.
+ *
+ * Not a unit test: run its main(), with the delay per job in milliseconds
+ * (5) and the connection resources of the last run (6) as optional
+ * arguments.
+ *
+ * @author Terencio Agozzino
+ */
+public class StripedReaderBenchmark {
+
+    private static final int SIZE = 60 * 1024;
+    private static final int READS = 5;
+    private static final int[] STRIPES = {1, 2, 4, 8, 12};
+    private static final short TYPE = S7.S7_BASIC;
+
+    public static void main(String[] args) throws Exception {
+        long delay = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        int resources = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            fakePlc.setDelay(delay);
+            Plc plc = new Plc("Fake", fakePlc.getAddress(), 0, 1, null);
+            plc.setPduSize(480);
+
+            for (int stripes : STRIPES) {
+                double millis = measure(fakePlc, plc, stripes, executor);
+                System.out.printf("N=%-2d %5.0f ms/read %5.0f KB/s%n", stripes,
+                        millis, SIZE / 1024 / (millis / 1000));
+            }
+
+            fakePlc.setMaxConnections(resources);
+            measure(fakePlc, plc, STRIPES[STRIPES.length - 1], executor);
+            System.out.printf("N=%d with %d connection resources: %d " +
+                    "connections at most%n", STRIPES[STRIPES.length - 1],
+                    resources, fakePlc.getPeakConnections());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Measures the mean time of a read with a new pool.
+     *
+     * @param fakePlc the simulated PLC, of which the counters are reset
+     * @param plc the PLC to read
+     * @param stripes the maximum number of stripes
+     * @param executor the executor of the stripes
+     * @return the mean time of a read in milliseconds
+     * @throws InterruptedException when interrupted while reading
+     */
+    private static double measure(FakePlc fakePlc, Plc plc, int stripes,
+                                  ExecutorService executor)
+            throws InterruptedException {
+        PlcConnectionPool pool = new PlcConnectionPool();
+        pool.setRemotePort(fakePlc.getPort());
+        pool.setMaxConnectionsPerPlc(stripes);
+        StripedReader reader = new StripedReader(pool, stripes, executor);
+        byte[] buffer = new byte[SIZE];
+
+        try {
+            // Warm up, opening the connections
+            for (int i = 0; i < 2; i++) {
+                check(reader.read(plc, TYPE, 1, 0, SIZE, buffer));
+            }
+
+            fakePlc.resetCounters();
+            long start = System.nanoTime();
+            for (int i = 0; i < READS; i++) {
+                check(reader.read(plc, TYPE, 1, 0, SIZE, buffer));
+            }
+            long elapsed = System.nanoTime() - start;
+
+            for (int i = 0; i < SIZE; i++) {
+                if (buffer[i] != FakePlc.initialValue(1, i)) {
+                    throw new IllegalStateException("Wrong byte " + i);
+                }
+            }
+            return elapsed / 1e6 / READS;
+        } finally {
+            pool.closeAll();
+            fakePlc.awaitOpenConnections(0, 5000);
+        }
+    }
+
+    private static void check(int result) {
+        if (result != 0) {
+            throw new IllegalStateException(S7Client.ErrorText(result));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+
+/**
+ * Compares the latency of a small ReadArea over the stream and the channel
+ * transports of S7Client, against a simulated PLC on the loopback.
+ *
+ * Not a unit test: run its main(), with the iterations as optional
+ * argument (2000 by default).
+ *
+ * @author Terencio Agozzino
+ */
+public class TransportBenchmark {
+
+    private static final int SIZE = 20;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            for (int round = 0; round < 3; round++) {
+                double stream = measure(fakePlc, S7Client.TransportStream,
+                        iterations);
+                double channel = measure(fakePlc, S7Client.TransportChannel,
+                        iterations);
+                System.out.printf("round %d: %d-byte ReadArea, stream %.0f us," +
+                        " channel %.0f us per request%n", round, SIZE, stream,
+                        channel);
+            }
+        }
+    }
+
+    /**
+     * Measures the mean time of a ReadArea over a transport.
+     *
+     * @param fakePlc the simulated PLC
+     * @param transport the transport of the client
+     * @param iterations the number of requests
+     * @return the mean time of a request in microseconds
+     */
+    private static double measure(FakePlc fakePlc, int transport,
+                                  int iterations) {
+        S7Client client = new S7Client();
+        client.SetRemotePort(fakePlc.getPort());
+        client.SetTransport(transport);
+        if (client.ConnectTo(fakePlc.getAddress(), 0, 1) != 0) {
+            throw new IllegalStateException("Unable to connect");
+        }
+
+        byte[] data = new byte[SIZE];
+        // Warm up
+        for (int i = 0; i < iterations / 10; i++) {
+            client.ReadArea(S7.S7AreaDB, 1, 0, SIZE, data);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (client.ReadArea(S7.S7AreaDB, 1, 0, SIZE, data) != 0) {
+                throw new IllegalStateException(S7Client.ErrorText(
+                        client.LastError));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        client.Disconnect();
+
+        return elapsed / 1000.0 / iterations;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Terencio Agozzino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package be.heh.plcmonitor.s7;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import SimaticS7.S7;
+import SimaticS7.S7Client;
+import be.heh.plcmonitor.model.Plc;
+
+/**
+ * Measures the latency of bit writes while a data block is polled back to
+ * back, against a simulated PLC answering each job after a delay: with a
+ * FIFO drained before each read of the whole block, then with the
+ * CommandScheduler preempting the poll at the next PDU.
+ *
+ * Not a unit test: run its main(), with the seconds measured per mode (15)
+ * and the delay per job in milliseconds (5) as optional arguments.
+ *
+ * @author Terencio Agozzino
+ */
+public class WriteLatencyBenchmark {
+
+    private static final int AMOUNT = 8000;
+    private static final int POLLED_DB = 10;
+    private static final int WRITTEN_DB = 20;
+
+    private final PlcSupervisor supervisor;
+    private final byte[] buffer = new byte[AMOUNT];
+    private final List<Double> latencies =
+            Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running = true;
+
+    /**
+     * Main constructor of the WriteLatencyBenchmark class.
+     *
+     * @param supervisor the supervisor of the connection
+     */
+    private WriteLatencyBenchmark(PlcSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+        try (FakePlc fakePlc = new FakePlc()) {
+            fakePlc.setDelay(delay);
+            PlcConnectionPool pool = new PlcConnectionPool();
+            pool.setRemotePort(fakePlc.getPort());
+            Plc plc = new Plc("Fake", fakePlc.getAddress(), 0, 1, null);
+            plc.setPduSize(480);
+
+            for (boolean scheduled : new boolean[] {false, true}) {
+                PlcSupervisor supervisor = new PlcSupervisor(pool, plc,
+                        S7.S7_BASIC);
+                try {
+                    new WriteLatencyBenchmark(supervisor).run(scheduled,
+                            seconds);
+                } finally {
+                    supervisor.close();
+                }
+            }
+            pool.closeAll();
+        }
+    }
+
+    /**
+     * Polls the data block while another thread writes a bit every 5 to 30
+     * ms, then prints the latencies of the writes.
+     *
+     * @param scheduled whether the jobs go through a CommandScheduler
+     * @param seconds the duration of the measure
+     * @throws InterruptedException when interrupted while polling
+     */
+    private void run(boolean scheduled, int seconds)
+            throws InterruptedException {
+        Queue<PlcSupervisor.Job> fifo = new ConcurrentLinkedQueue<>();
+        CommandScheduler scheduler = new CommandScheduler();
+        CommandScheduler.StepJob poll = new Poll();
+
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            try {
+                while (running) {
+                    Thread.sleep(5 + random.nextInt(26));
+                    PlcSupervisor.Job write = write(System.nanoTime());
+                    if (scheduled) {
+                        scheduler.submit(CommandScheduler.Priority.COMMAND,
+                                write);
+                    } else {
+                        fifo.add(write);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Writer");
+        writer.start();
+
+        int reads = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            if (scheduled) {
+                scheduler.submit(CommandScheduler.Priority.FAST_TAG, poll);
+                scheduler.runAll(supervisor);
+            } else {
+                PlcSupervisor.Job job;
+                while ((job = fifo.poll()) != null) {
+                    check(supervisor.execute(job));
+                }
+                check(supervisor.execute(client -> client.ReadArea(S7.S7AreaDB,
+                        POLLED_DB, 0, AMOUNT, buffer)));
+            }
+            reads++;
+        }
+        running = false;
+        writer.join();
+
+        double[] sorted = new double[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = latencies.get(i);
+        Arrays.sort(sorted);
+        System.out.printf("%-9s %d reads, %d writes: p50 %.1f ms, p99 %.1f " +
+                "ms, max %.1f ms%n", scheduled ? "scheduler" : "FIFO", reads,
+                sorted.length, sorted[sorted.length / 2],
+                sorted[(int) (sorted.length * 0.99)],
+                sorted[sorted.length - 1]);
+    }
+
+    /**
+     * Builds the write of a bit, recording its latency once written.
+     *
+     * @param submitted the time of its submission, in nanoseconds
+     * @return the job writing the bit
+     */
+    private PlcSupervisor.Job write(long submitted) {
+        return client -> {
+            int result = client.WriteBit(S7.S7AreaDB, WRITTEN_DB, 0, 1, true);
+            latencies.add((System.nanoTime() - submitted) / 1e6);
+            return result;
+        };
+    }
+
+    private static void check(int result) {
+        if (result != 0) {
+            throw new IllegalStateException(S7Client.ErrorText(result));
+        }
+    }
+
+    /**
+     * Poll of the data block, one PDU per step.
+     */
+    private class Poll implements CommandScheduler.StepJob {
+
+        private int position;
+
+        @Override
+        public int run(S7Client client) {
+            int amount = Math.min(AMOUNT - position, client.PDULength() - 18);
+            int result = client.ReadArea(S7.S7AreaDB, POLLED_DB, position,
+                    amount, ByteBuffer.wrap(buffer), position);
+            check(result);
+            position = position + amount >= AMOUNT ? 0 : position + amount;
+            return result;
+        }
+
+        @Override
+        public boolean isDone() { return position == 0; }
+    }
+}